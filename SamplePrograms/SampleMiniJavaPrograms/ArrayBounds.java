@@ -0,0 +1,43 @@
+class ArrayBounds{
+    public static void main(String[] a){
+	System.out.println(new Buffer().Start(8));
+    }
+}
+
+// Loops over an array whose checks can be proven or versioned away, then
+// one that runs a word past the end. java stops there with an exception;
+// with -S the compiled program traps at the same access.
+class Buffer {
+    int[] data ;
+    int size ;
+
+    public int Start(int n){
+	int i ;
+	data = new int[n] ;
+	i = 0 ;
+	while (i < data.length) {
+	    data[i] = i + 1 ;
+	    i = i + 1 ;
+	}
+	size = n ;
+	System.out.println(this.Sum(size));
+	System.out.println(this.Sum(n - 3));
+	size = n + 1 ;
+	System.out.println(this.Sum(size));
+	return 0 ;
+    }
+
+    public int Sum(int count){
+	int i ;
+	int sum ;
+	int v ;
+	i = 0 ;
+	sum = 0 ;
+	while (i < count) {
+	    v = data[i] ;
+	    sum = sum + v ;
+	    i = i + 1 ;
+	}
+	return sum ;
+    }
+}
@@ -0,0 +1,73 @@
+class ConstantFolding{
+    public static void main(String[] a){
+	System.out.println(new Fold().Start(6));
+    }
+}
+
+// Constant parts of these expressions and conditions fold away, but the
+// calls inside them still run, once each and in order.
+class Fold {
+
+    public int Start(int n){
+	Ticker t ;
+	int x ;
+	int y ;
+	boolean b ;
+	t = new Ticker() ;
+	x = t.Clear() ;
+	x = (2 + 3) * 4 - 1 ;
+	System.out.println(x);
+	y = n * 0 + n * 1 + 0 ;
+	System.out.println(y);
+	y = t.Tick(5) * 0 ;
+	System.out.println(y);
+	y = 0 * t.Tick(7) + t.Tick(1) * 1 ;
+	System.out.println(y);
+	b = !!(1 < 2) && true ;
+	if (b)
+	    x = x + 1 ;
+	else
+	    x = t.Tick(100) ;
+	if (false)
+	    x = t.Tick(1000) ;
+	else
+	    x = x + 0 ;
+	if (!true && t.Check())
+	    x = 0 ;
+	else
+	    x = x * 1 ;
+	if (true && t.Check())
+	    x = x + 2 ;
+	else
+	    x = 0 ;
+	System.out.println(x);
+	System.out.println(t.Calls());
+	x = 2147483647 + 1 ;
+	System.out.println(x);
+	return t.Calls() ;
+    }
+}
+
+class Ticker {
+    int calls ;
+
+    public int Clear(){
+	calls = 0 ;
+	return calls ;
+    }
+
+    public int Tick(int n){
+	calls = calls + 1 ;
+	System.out.println(n);
+	return n ;
+    }
+
+    public boolean Check(){
+	calls = calls + 10 ;
+	return true ;
+    }
+
+    public int Calls(){
+	return calls ;
+    }
+}
@@ -0,0 +1,112 @@
+class Escape{
+    public static void main(String[] a){
+	System.out.println(new Objects().Start(5));
+    }
+}
+
+// Points that never leave their method, points that escape into a field
+// on some loop iterations, a point carried from one iteration to the
+// next, and a list whose nodes escape into each other.
+class Objects {
+    Point kept ;
+
+    public int Start(int n){
+	Point p ;
+	Point q ;
+	Point r ;
+	Node head ;
+	Node node ;
+	int i ;
+	int sum ;
+	p = new Point() ;
+	sum = p.Set(3, 4) ;
+	System.out.println(p.X() * p.Y());
+	i = 0 ;
+	sum = 0 ;
+	while (i < n) {
+	    q = new Point() ;
+	    sum = sum + q.Set(i, 2) ;
+	    i = i + 1 ;
+	}
+	System.out.println(sum);
+	i = 0 ;
+	while (i < n) {
+	    p = new Point() ;
+	    sum = p.Set(i, i) ;
+	    if (i < 2)
+		kept = p ;
+	    else
+		sum = 0 ;
+	    i = i + 1 ;
+	}
+	System.out.println(kept.X());
+	q = new Point() ;
+	sum = q.Set(7, 7) ;
+	i = 0 ;
+	sum = 0 ;
+	while (i < n) {
+	    r = q ;
+	    q = new Point() ;
+	    sum = sum + r.X() * 10 + q.X() ;
+	    sum = sum + q.Set(i, i) ;
+	    i = i + 1 ;
+	}
+	System.out.println(sum);
+	head = new Node() ;
+	sum = head.Init(0, head) ;
+	i = 1 ;
+	while (i < n + 1) {
+	    node = new Node() ;
+	    sum = node.Init(i, head) ;
+	    head = node ;
+	    i = i + 1 ;
+	}
+	node = head ;
+	sum = 0 ;
+	i = 0 ;
+	while (i < n + 1) {
+	    sum = sum * 10 + node.Value() ;
+	    node = node.Next() ;
+	    i = i + 1 ;
+	}
+	return sum ;
+    }
+}
+
+class Point {
+    int px ;
+    int py ;
+
+    public int Set(int x, int y){
+	px = x ;
+	py = y ;
+	return px + py ;
+    }
+
+    public int X(){
+	return px ;
+    }
+
+    public int Y(){
+	return py ;
+    }
+}
+
+class Node {
+    int value ;
+    Node next ;
+
+    public int Init(int v, Node n){
+	value = v ;
+	next = n ;
+	return v ;
+    }
+
+    public int Value(){
+	return value ;
+    }
+
+    public Node Next(){
+	return next ;
+    }
+}
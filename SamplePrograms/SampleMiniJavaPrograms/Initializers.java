@@ -0,0 +1,57 @@
+class Initializers{
+    public static void main(String[] a){
+	System.out.println(new Init().Start(3));
+    }
+}
+
+// Locals declared with a value start from it on every call.
+class Init {
+
+    public int Start(int n){
+	int total = 0 ;
+	int i = 0 ;
+	int part = 0 ;
+	while (i < n) {
+	    part = this.Sum(i) ;
+	    total = total + part ;
+	    i = i + 1 ;
+	}
+	System.out.println(total);
+	part = this.Fill(4) ;
+	total = total + part ;
+	System.out.println(total);
+	return this.Flag(n) ;
+    }
+
+    public int Sum(int k){
+	int x = 5 ;
+	int y = x + k ;
+	x = x + y ;
+	return x ;
+    }
+
+    public int Fill(int size){
+	int[] values = new int[size] ;
+	int j = 0 ;
+	int sum = 0 ;
+	int v = 0 ;
+	while (j < values.length) {
+	    values[j] = j * j ;
+	    v = values[j] ;
+	    sum = sum + v ;
+	    j = j + 1 ;
+	}
+	return sum ;
+    }
+
+    public int Flag(int n){
+	boolean small = n < 10 ;
+	Init other = this ;
+	int rv = 0 ;
+	if (small)
+	    rv = other.Sum(n) ;
+	else
+	    rv = 0 - 1 ;
+	return rv ;
+    }
+}
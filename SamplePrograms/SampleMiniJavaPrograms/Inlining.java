@@ -0,0 +1,90 @@
+class Inlining{
+    public static void main(String[] a){
+	System.out.println(new Driver().Start(10));
+    }
+}
+
+// Small accessors that can be inlined, an overridden helper that cannot,
+// and direct and mutual recursion that must stop being expanded.
+class Driver {
+
+    public int Start(int n){
+	Counter c ;
+	Counter d ;
+	int i ;
+	int total ;
+	c = new Counter() ;
+	d = new Doubler() ;
+	total = c.Init(0) ;
+	total = d.Init(1) ;
+	i = 0 ;
+	while (i < n) {
+	    total = c.Add(i) ;
+	    total = d.Add(i) ;
+	    i = i + 1 ;
+	}
+	System.out.println(c.Get());
+	System.out.println(d.Get());
+	System.out.println(this.Even(n));
+	System.out.println(this.Even(7));
+	System.out.println(this.Fib(15));
+	return c.Get() + d.Get() ;
+    }
+
+    public int Even(int n){
+	int rv ;
+	if (n < 1)
+	    rv = 1 ;
+	else
+	    rv = this.Odd(n - 1) ;
+	return rv ;
+    }
+
+    public int Odd(int n){
+	int rv ;
+	if (n < 1)
+	    rv = 0 ;
+	else
+	    rv = this.Even(n - 1) ;
+	return rv ;
+    }
+
+    public int Fib(int n){
+	int rv ;
+	if (n < 2)
+	    rv = n ;
+	else
+	    rv = this.Fib(n - 1) + this.Fib(n - 2) ;
+	return rv ;
+    }
+}
+
+class Counter {
+    int count ;
+
+    public int Init(int v){
+	count = v ;
+	return count ;
+    }
+
+    public int Add(int k){
+	int step ;
+	step = this.Step(k) ;
+	count = count + step ;
+	return count ;
+    }
+
+    public int Step(int k){
+	return k ;
+    }
+
+    public int Get(){
+	return count ;
+    }
+}
+
+class Doubler extends Counter {
+    public int Step(int k){
+	return k * 2 ;
+    }
+}
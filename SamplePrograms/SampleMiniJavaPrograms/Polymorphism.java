@@ -0,0 +1,68 @@
+class Polymorphism{
+    public static void main(String[] a){
+	System.out.println(new Shapes().Start());
+    }
+}
+
+// Area is overridden at every level, so calls to it keep the table.
+// Scale has one implementation, and Sides has one within Square's
+// subclasses, so those calls can go straight to it.
+class Shapes {
+
+    public int Start(){
+	Shape s ;
+	Square q ;
+	s = new Shape() ;
+	System.out.println(this.Measure(s));
+	q = new Square() ;
+	System.out.println(this.Measure(q));
+	s = new Triangle() ;
+	System.out.println(this.Measure(s));
+	q = new Cube() ;
+	System.out.println(this.Measure(q));
+	s = q ;
+	System.out.println(s.Area(4));
+	System.out.println(q.Scale(5));
+	return s.Sides() + q.Sides() ;
+    }
+
+    public int Measure(Shape s){
+	return s.Area(3) * 100 + s.Sides() * 10 + s.Scale(1) ;
+    }
+}
+
+class Shape {
+    public int Area(int n){
+	return 0 ;
+    }
+
+    public int Sides(){
+	return 0 ;
+    }
+
+    public int Scale(int n){
+	return n * 2 ;
+    }
+}
+
+class Square extends Shape {
+    public int Area(int n){
+	return n * n ;
+    }
+
+    public int Sides(){
+	return 4 ;
+    }
+}
+
+class Triangle extends Shape {
+    public int Area(int n){
+	return n * (n + 1) ;
+    }
+}
+
+class Cube extends Square {
+    public int Area(int n){
+	return n * n * n ;
+    }
+}
@@ -0,0 +1,65 @@
+class StrengthReduction{
+    public static void main(String[] a){
+	System.out.println(new Mul().Start(7));
+    }
+}
+
+// Multiplications by constants, induction variables times a constant,
+// and array indexes with constant offsets.
+class Mul {
+
+    public int Start(int n){
+	int[] a ;
+	int i ;
+	int sum ;
+	int prev ;
+	int next ;
+	int v ;
+	System.out.println(this.Factors(n));
+	System.out.println(this.Factors(0 - n));
+	a = new int[10] ;
+	i = 0 ;
+	while (i < a.length) {
+	    a[i] = i * 12 ;
+	    i = i + 1 ;
+	}
+	i = 1 ;
+	sum = 0 ;
+	while (i < a.length - 1) {
+	    prev = a[i - 1] ;
+	    next = a[i + 1] ;
+	    v = a[i] ;
+	    sum = sum + prev * 3 + next - v ;
+	    a[i - 1] = i * 5 ;
+	    i = i + 1 ;
+	}
+	System.out.println(sum);
+	i = 0 ;
+	sum = 0 ;
+	while (i < a.length) {
+	    v = a[i] ;
+	    sum = sum + v ;
+	    i = i + 1 ;
+	}
+	System.out.println(sum);
+	return this.Stride(n) ;
+    }
+
+    public int Factors(int x){
+	return x * 0 + x * 1 + x * 2 + x * 3 + x * 4 + x * 5 + x * 6 + x * 8 +
+	       x * 9 + x * 10 + x * 12 + x * 18 + x * 36 + x * 7 + x * 11 +
+	       x * 1024 + (0 - 1) * x ;
+    }
+
+    public int Stride(int n){
+	int i ;
+	int total ;
+	i = 0 ;
+	total = 0 ;
+	while (i < n) {
+	    total = total + i * 7 + i * 40 ;
+	    i = i + 1 ;
+	}
+	return total ;
+    }
+}
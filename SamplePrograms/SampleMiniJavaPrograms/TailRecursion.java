@@ -0,0 +1,63 @@
+class TailRecursion{
+    public static void main(String[] a){
+	System.out.println(new Rec().Start());
+    }
+}
+
+// -O turns Gcd and Count into loops, Sum and Fac into loops with an
+// accumulator; Mixed combines its calls with both + and *, so only
+// some of them can be transformed.
+class Rec {
+    int calls ;
+
+    public int Start(){
+	System.out.println(this.Fac(10));
+	System.out.println(this.Sum(100000));
+	System.out.println(this.Gcd(1071, 462));
+	System.out.println(this.Count(0, 200000));
+	System.out.println(calls);
+	return this.Mixed(6) ;
+    }
+
+    public int Fac(int n){
+	int r ;
+	if (n < 2) r = 1 ;
+	else r = n * (this.Fac(n - 1)) ;
+	return r ;
+    }
+
+    public int Sum(int n){
+	int r ;
+	if (n < 1) r = 0 ;
+	else r = this.Sum(n - 1) + n ;
+	return r ;
+    }
+
+    public int Gcd(int a, int b){
+	int r ;
+	int q ;
+	if (b < 1) r = a ;
+	else {
+	    q = a ;
+	    while (!(q < b)) q = q - b ;
+	    r = this.Gcd(b, q) ;
+	}
+	return r ;
+    }
+
+    public int Count(int acc, int n){
+	int r ;
+	calls = calls + 1 ;
+	if (n < 1) r = acc ;
+	else r = this.Count(acc + 1, n - 1) ;
+	return r ;
+    }
+
+    public int Mixed(int n){
+	int r ;
+	if (n < 1) r = 1 ;
+	else if (n < 3) r = 2 * (this.Mixed(n - 1)) ;
+	else r = this.Mixed(n - 1) + 1 ;
+	return r ;
+    }
+}
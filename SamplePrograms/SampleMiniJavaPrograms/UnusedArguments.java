@@ -0,0 +1,37 @@
+class UnusedArguments{
+    public static void main(String[] a){
+	System.out.println(new Run().Start(7));
+    }
+}
+
+// None of these methods reads this, and some ignore their parameters.
+class Run {
+
+    public int Start(int n){
+	int total ;
+	total = this.Many(1, 2, 3, 4, 5) ;
+	System.out.println(total);
+	total = total + this.Ignore(n, 100, n) ;
+	System.out.println(total);
+	total = total + this.Last(9, 8, 7, 6, 5, 4, 3) ;
+	System.out.println(total);
+	total = total + this.Nothing(n, n) ;
+	return total ;
+    }
+
+    public int Many(int a, int b, int c, int d, int e){
+	return a * 10000 + b * 1000 + c * 100 + d * 10 + e ;
+    }
+
+    public int Ignore(int unused, int b, int alsoUnused){
+	return b ;
+    }
+
+    public int Last(int a, int b, int c, int d, int e, int f, int g){
+	return g ;
+    }
+
+    public int Nothing(int a, int b){
+	return 0 ;
+    }
+}
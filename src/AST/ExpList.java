@@ -18,6 +18,11 @@ public class ExpList extends ASTNode{
       return (Exp)list.elementAt(i); 
    }
 
+   @SuppressWarnings("unchecked")
+   public void setElementAt(Exp n, int i) {
+      list.setElementAt(n, i);
+   }
+
    public int size() { 
       return list.size(); 
    }
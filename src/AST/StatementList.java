@@ -19,6 +19,11 @@ public class StatementList extends ASTNode {
       return (Statement)list.elementAt(i); 
    }
 
+   @SuppressWarnings("unchecked")
+   public void setElementAt(Statement n, int i) {
+      list.setElementAt(n, i);
+   }
+
    public int size() { 
       return list.size(); 
    }
@@ -0,0 +1,448 @@
+package AST.Visitor;
+
+import AST.*;
+
+/*
+ * Folds constant expressions and algebraic identities in place, between
+ *      type checking and code generation:
+ *
+ *      - arithmetic and comparisons on integer literals,
+ *      - x + 0, 0 + x, x - 0, x * 1, 1 * x  =>  x,
+ *      - x * 0 and 0 * x  =>  0 when x has no side effects,
+ *      - &&, ! and ==/!= on boolean literals,
+ *      - if (true/false) keeps only the branch that runs,
+ *      - while (false) is dropped.
+ *
+ *      Every visit leaves the node that replaces the visited one in
+ *      `exp` (expressions) or `statement` (statements); parents store it
+ *      back into their fields. Counts cover expression and statement
+ *      nodes only.
+ */
+public class ConstantFoldingVisitor implements Visitor {
+    private Exp exp;
+    private Statement statement;
+    private int nodes;
+    private int nodesBefore;
+    private int nodesAfter;
+
+    public ConstantFoldingVisitor() {
+        super();
+        this.exp = null;
+        this.statement = null;
+        this.nodes = 0;
+        this.nodesBefore = 0;
+        this.nodesAfter = 0;
+    }
+
+    public int getNodesBefore() {
+        return nodesBefore;
+    }
+
+    public int getNodesAfter() {
+        return nodesAfter;
+    }
+
+    public int getEliminatedCount() {
+        return nodesBefore - nodesAfter;
+    }
+
+    private Exp fold(Exp e) {
+        e.accept(this);
+        return exp;
+    }
+
+    private Statement fold(Statement s) {
+        s.accept(this);
+        return statement;
+    }
+
+    private void foldAll(ExpList list) {
+        for (int i = 0; i < list.size(); ++i) {
+            list.setElementAt(fold(list.elementAt(i)), i);
+        }
+    }
+
+    private void foldAll(StatementList list) {
+        for (int i = 0; i < list.size(); ++i) {
+            list.setElementAt(fold(list.elementAt(i)), i);
+        }
+    }
+
+    private static boolean isInteger(Exp e) {
+        return e instanceof IntegerLiteral;
+    }
+
+    private static boolean isInteger(Exp e, int value) {
+        return e instanceof IntegerLiteral && ((IntegerLiteral) e).i == value;
+    }
+
+    private static int integer(Exp e) {
+        return ((IntegerLiteral) e).i;
+    }
+
+    private static boolean isBoolean(Exp e) {
+        return e instanceof True || e instanceof False;
+    }
+
+    private static Exp bool(boolean value, int line) {
+        return value ? new True(line) : new False(line);
+    }
+
+    /*
+     * Expressions that can be dropped without losing a side effect.
+     */
+    private static boolean isPure(Exp e) {
+        return e instanceof IdentifierExp || e instanceof IntegerLiteral ||
+               e instanceof True || e instanceof False ||
+               e instanceof This || e instanceof Null;
+    }
+
+    /*
+     * Folds until a pass removes nothing more; one pass normally
+     *      suffices since children are folded before their parents.
+     */
+    public void visit(Program n) {
+        nodesBefore = -1;
+        int previous;
+        do {
+            previous = nodes;
+            nodes = 0;
+            n.m.accept(this);
+            for (int i = 0; i < n.cl.size(); ++i) {
+                n.cl.elementAt(i).accept(this);
+            }
+            if (nodesBefore < 0) {
+                nodesBefore = nodes;
+                previous = -1;
+            }
+        } while (nodes != previous);
+        nodesAfter = nodes;
+    }
+
+    public void visit(MainClass n) {
+        n.s = fold(n.s);
+    }
+
+    public void visit(ClassDeclSimple n) {
+        for (int i = 0; i < n.vl.size(); ++i) {
+            n.vl.elementAt(i).accept(this);
+        }
+        for (int i = 0; i < n.ml.size(); ++i) {
+            n.ml.elementAt(i).accept(this);
+        }
+    }
+
+    public void visit(ClassDeclExtends n) {
+        for (int i = 0; i < n.vl.size(); ++i) {
+            n.vl.elementAt(i).accept(this);
+        }
+        for (int i = 0; i < n.ml.size(); ++i) {
+            n.ml.elementAt(i).accept(this);
+        }
+    }
+
+    public void visit(VarDecl n) {
+        if (n.exp != null) {
+            n.exp = fold(n.exp);
+        }
+    }
+
+    public void visit(MethodDecl n) {
+        for (int i = 0; i < n.vl.size(); ++i) {
+            n.vl.elementAt(i).accept(this);
+        }
+        foldAll(n.sl);
+        n.e = fold(n.e);
+    }
+
+    public void visit(Formal n) { }
+
+    public void visit(IntArrayType n) { }
+
+    public void visit(BooleanType n) { }
+
+    public void visit(IntegerType n) { }
+
+    public void visit(IdentifierType n) { }
+
+    public void visit(Block n) {
+        ++nodes;
+        foldAll(n.sl);
+        statement = n;
+    }
+
+    public void visit(If n) {
+        ++nodes;
+        n.e = fold(n.e);
+        n.s1 = fold(n.s1);
+        n.s2 = fold(n.s2);
+        if (n.e instanceof True) {
+            statement = n.s1;
+        } else if (n.e instanceof False) {
+            statement = n.s2;
+        } else {
+            statement = n;
+        }
+    }
+
+    public void visit(While n) {
+        ++nodes;
+        n.e = fold(n.e);
+        n.s = fold(n.s);
+        if (n.e instanceof False) {
+            statement = new Block(new StatementList(n.getLine()), n.getLine());
+        } else {
+            statement = n;
+        }
+    }
+
+    public void visit(Print n) {
+        ++nodes;
+        n.e = fold(n.e);
+        statement = n;
+    }
+
+    public void visit(Assign n) {
+        ++nodes;
+        n.e = fold(n.e);
+        statement = n;
+    }
+
+    public void visit(ArrayAssign n) {
+        ++nodes;
+        n.e1 = fold(n.e1);
+        n.e2 = fold(n.e2);
+        statement = n;
+    }
+
+    public void visit(And n) {
+        ++nodes;
+        n.e1 = fold(n.e1);
+        n.e2 = fold(n.e2);
+        if (n.e1 instanceof True) {
+            exp = n.e2;
+        } else if (n.e1 instanceof False) {
+            exp = n.e1;
+        } else if (n.e2 instanceof True) {
+            exp = n.e1;
+        } else if (n.e2 instanceof False && isPure(n.e1)) {
+            exp = n.e2;
+        } else {
+            exp = n;
+        }
+    }
+
+    public void visit(LessThan n) {
+        ++nodes;
+        n.e1 = fold(n.e1);
+        n.e2 = fold(n.e2);
+        if (isInteger(n.e1) && isInteger(n.e2)) {
+            exp = bool(integer(n.e1) < integer(n.e2), n.getLine());
+        } else {
+            exp = n;
+        }
+    }
+
+    public void visit(LessThanEqual n) {
+        ++nodes;
+        n.e1 = fold(n.e1);
+        n.e2 = fold(n.e2);
+        if (isInteger(n.e1) && isInteger(n.e2)) {
+            exp = bool(integer(n.e1) <= integer(n.e2), n.getLine());
+        } else {
+            exp = n;
+        }
+    }
+
+    public void visit(GreatThan n) {
+        ++nodes;
+        n.e1 = fold(n.e1);
+        n.e2 = fold(n.e2);
+        if (isInteger(n.e1) && isInteger(n.e2)) {
+            exp = bool(integer(n.e1) > integer(n.e2), n.getLine());
+        } else {
+            exp = n;
+        }
+    }
+
+    public void visit(GreatThanEqual n) {
+        ++nodes;
+        n.e1 = fold(n.e1);
+        n.e2 = fold(n.e2);
+        if (isInteger(n.e1) && isInteger(n.e2)) {
+            exp = bool(integer(n.e1) >= integer(n.e2), n.getLine());
+        } else {
+            exp = n;
+        }
+    }
+
+    public void visit(EqualEqual n) {
+        ++nodes;
+        n.e1 = fold(n.e1);
+        n.e2 = fold(n.e2);
+        if (isInteger(n.e1) && isInteger(n.e2)) {
+            exp = bool(integer(n.e1) == integer(n.e2), n.getLine());
+        } else if (isBoolean(n.e1) && isBoolean(n.e2)) {
+            exp = bool(n.e1.getClass() == n.e2.getClass(), n.getLine());
+        } else {
+            exp = n;
+        }
+    }
+
+    public void visit(NotEqual n) {
+        ++nodes;
+        n.e1 = fold(n.e1);
+        n.e2 = fold(n.e2);
+        if (isInteger(n.e1) && isInteger(n.e2)) {
+            exp = bool(integer(n.e1) != integer(n.e2), n.getLine());
+        } else if (isBoolean(n.e1) && isBoolean(n.e2)) {
+            exp = bool(n.e1.getClass() != n.e2.getClass(), n.getLine());
+        } else {
+            exp = n;
+        }
+    }
+
+    public void visit(Plus n) {
+        ++nodes;
+        n.e1 = fold(n.e1);
+        n.e2 = fold(n.e2);
+        if (isInteger(n.e1) && isInteger(n.e2)) {
+            exp = new IntegerLiteral(integer(n.e1) + integer(n.e2), n.getLine());
+        } else if (isInteger(n.e2, 0)) {
+            exp = n.e1;
+        } else if (isInteger(n.e1, 0)) {
+            exp = n.e2;
+        } else {
+            exp = n;
+        }
+    }
+
+    public void visit(Minus n) {
+        ++nodes;
+        n.e1 = fold(n.e1);
+        n.e2 = fold(n.e2);
+        if (isInteger(n.e1) && isInteger(n.e2)) {
+            exp = new IntegerLiteral(integer(n.e1) - integer(n.e2), n.getLine());
+        } else if (isInteger(n.e2, 0)) {
+            exp = n.e1;
+        } else {
+            exp = n;
+        }
+    }
+
+    public void visit(Times n) {
+        ++nodes;
+        n.e1 = fold(n.e1);
+        n.e2 = fold(n.e2);
+        if (isInteger(n.e1) && isInteger(n.e2)) {
+            exp = new IntegerLiteral(integer(n.e1) * integer(n.e2), n.getLine());
+        } else if (isInteger(n.e2, 1)) {
+            exp = n.e1;
+        } else if (isInteger(n.e1, 1)) {
+            exp = n.e2;
+        } else if ((isInteger(n.e2, 0) && isPure(n.e1)) ||
+                   (isInteger(n.e1, 0) && isPure(n.e2))) {
+            exp = new IntegerLiteral(0, n.getLine());
+        } else {
+            exp = n;
+        }
+    }
+
+    public void visit(ArrayLookup n) {
+        ++nodes;
+        n.e1 = fold(n.e1);
+        n.e2 = fold(n.e2);
+        exp = n;
+    }
+
+    public void visit(ArrayLength n) {
+        ++nodes;
+        n.e = fold(n.e);
+        exp = n;
+    }
+
+    public void visit(Call n) {
+        ++nodes;
+        n.e = fold(n.e);
+        foldAll(n.el);
+        exp = n;
+    }
+
+    public void visit(IntegerLiteral n) {
+        ++nodes;
+        exp = n;
+    }
+
+    public void visit(True n) {
+        ++nodes;
+        exp = n;
+    }
+
+    public void visit(False n) {
+        ++nodes;
+        exp = n;
+    }
+
+    public void visit(IdentifierExp n) {
+        ++nodes;
+        exp = n;
+    }
+
+    public void visit(This n) {
+        ++nodes;
+        exp = n;
+    }
+
+    public void visit(NewArray n) {
+        ++nodes;
+        n.e = fold(n.e);
+        exp = n;
+    }
+
+    public void visit(NewObject n) {
+        ++nodes;
+        exp = n;
+    }
+
+    public void visit(Not n) {
+        ++nodes;
+        n.e = fold(n.e);
+        if (n.e instanceof True) {
+            exp = new False(n.getLine());
+        } else if (n.e instanceof False) {
+            exp = new True(n.getLine());
+        } else if (n.e instanceof Not) {
+            exp = ((Not) n.e).e;
+        } else {
+            exp = n;
+        }
+    }
+
+    public void visit(Identifier n) { }
+
+    public void visit(FloatLiteral n) {
+        ++nodes;
+        exp = n;
+    }
+
+    public void visit(FloatType n) { }
+
+    public void visit(DoubleLiteral n) {
+        ++nodes;
+        exp = n;
+    }
+
+    public void visit(DoubleType n) { }
+
+    public void visit(Instanceof n) {
+        ++nodes;
+        n.e1 = fold(n.e1);
+        n.e2 = fold(n.e2);
+        exp = n;
+    }
+
+    public void visit(Null n) {
+        ++nodes;
+        exp = n;
+    }
+}
@@ -1,6 +1,6 @@
 package AST.Visitor;
 
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -69,7 +69,7 @@ public class TypeVisitor implements Visitor {
     public TypeVisitor() {
         super();
 
-        classes = new HashMap<String, ClassNode>();
+        classes = new LinkedHashMap<String, ClassNode>();
         currentClass = null;
         currentMethod = null;
     }
@@ -201,8 +201,12 @@ public class TypeVisitor implements Visitor {
     }
 
     public void visit(MethodDecl n) {
-        MethodNode node =
-            new MethodNode(new Semantic.Node(nodeTypeOf(n.t)));
+        Semantic.Node returnType = new Semantic.Node(nodeTypeOf(n.t));
+        if (n.t instanceof IdentifierType) {
+            returnType.iam = ((IdentifierType)n.t).s;
+        }
+
+        MethodNode node = new MethodNode(returnType);
         currentMethod = node;
         currentClass.getMembers().put(n.i.s, node);
 
@@ -0,0 +1,98 @@
+import java.io.StringReader;
+
+import AST.Program;
+import AST.Visitor.*;
+import Parser.parser;
+import Scanner.scanner;
+import CodeGenerator.*;
+import IntermediateCode.IntermediateCode;
+import Layout.ProgramLayout;
+
+/*
+ * Measures code generation time on synthetic methods of growing size.
+ *      Each method declares N locals and runs N statements that read and
+ *      write them, so time per statement should stay flat as N grows.
+ *
+ *      usage: BenchCodeGenerator [maxStatements] [repetitions]
+ */
+public class BenchCodeGenerator {
+    public static void main(String[] args) {
+        int maxStatements = args.length >= 1 ? Integer.parseInt(args[0]) : 8000;
+        int repetitions = args.length >= 2 ? Integer.parseInt(args[1]) : 5;
+
+        try {
+            // warm up the JIT before measuring anything
+            for (int i = 0; i < 3; ++i) {
+                generate(parse(source(500)));
+            }
+
+            System.out.println("statements      codegen (ms)    ns/statement");
+            for (int size = 500; size <= maxStatements; size *= 2) {
+                Program prog = parse(source(size));
+
+                long best = Long.MAX_VALUE;
+                for (int i = 0; i < repetitions; ++i) {
+                    long start = System.nanoTime();
+                    generate(prog);
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+
+                System.out.println(String.format("%10d  %14.2f  %14.1f",
+                                                 size,
+                                                 best / 1e6,
+                                                 (double)best / size));
+            }
+        } catch (Exception e) {
+            System.err.println("Unexpected internal compiler error: " +
+                               e.toString());
+            e.printStackTrace();
+        }
+    }
+
+    private static Program parse(String source) throws Exception {
+        parser p = new parser(new scanner(new StringReader(source)));
+        return (Program)(p.parse().value);
+    }
+
+    private static int generate(Program prog) {
+        TypeVisitor typeInfo = new TypeVisitor();
+        prog.accept(typeInfo);
+
+        ProgramLayout layout = new ProgramLayout(typeInfo);
+
+        IntermediateCode intermediateCode = new IntermediateCode(typeInfo, layout);
+        prog.accept(intermediateCode);
+
+        CodeGenerator codeGenerator = new CodeGenerator(typeInfo, intermediateCode, layout);
+        prog.accept(codeGenerator);
+        return codeGenerator.getCode().size();
+    }
+
+    /*
+     * One class, one big method: N locals, N assignments mixing locals,
+     *      the parameter and a field.
+     */
+    private static String source(int size) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("class Main {\n");
+        sb.append("    public static void main(String[] a) {\n");
+        sb.append("        System.out.println(new Big().Run(1));\n");
+        sb.append("    }\n");
+        sb.append("}\n");
+        sb.append("class Big {\n");
+        sb.append("    int field;\n");
+        sb.append("    public int Run(int p) {\n");
+        for (int i = 0; i < size; ++i) {
+            sb.append("        int v").append(i).append(";\n");
+        }
+        for (int i = 0; i < size; ++i) {
+            int prev = (i + size - 1) % size;
+            sb.append("        v").append(i).append(" = v").append(prev)
+              .append(" + p * field;\n");
+        }
+        sb.append("        return v0;\n");
+        sb.append("    }\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,104 @@
+import java.io.File;
+import java.io.FileReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import AST.Program;
+import AST.Visitor.*;
+import Parser.parser;
+import Scanner.scanner;
+import Bytecode.*;
+import Layout.ProgramLayout;
+
+/*
+ * Run time of every program in a directory under the bytecode machine,
+ *      interpreted and tiered, next to the native executables
+ *      CodeGenerator's output links into. The machine's numbers are the
+ *      best of N in-process runs after a warm-up, with output discarded
+ *      (so the tiered machine has compiled what is hot); the native ones
+ *      are the best of N process runs, start-up included, which is what a
+ *      caller forking them would pay. Native timing needs the executables
+ *      already built (named after the program, e.g. nativeDir/QuickSort);
+ *      without a directory, or with an empty one, only the machine is
+ *      measured.
+ *
+ *      usage: BenchInterpreter [programDir] [repetitions] [nativeDir]
+ */
+public class BenchInterpreter {
+    public static void main(String[] args) {
+        String programDir = args.length >= 1 ? args[0]
+                                              : "SamplePrograms/SampleMiniJavaPrograms";
+        int repetitions = args.length >= 2 ? Integer.parseInt(args[1]) : 5;
+        // ant passes an empty native.dir when none is given
+        File nativeDir = args.length >= 3 && !args[2].isEmpty() ? new File(args[2])
+                                                                : null;
+
+        try {
+            File[] programs = new File(programDir).listFiles((dir, name) -> name.endsWith(".java"));
+            Arrays.sort(programs);
+            PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+
+            System.out.println("program            machine (ms)     tiered (ms)     native (ms)     ratio");
+            for (File program : programs) {
+                String name = program.getName().replace(".java", "");
+                Executable executable = compile(program);
+                Machine machine = new Machine(executable, discard);
+                long best = time(machine, repetitions);
+                Machine tiered = new Machine(executable, discard);
+                tiered.setTiered(true);
+                long bestTiered = time(tiered, repetitions);
+
+                File executableFile = nativeDir == null ? null : new File(nativeDir, name);
+                if (executableFile != null && executableFile.canExecute()) {
+                    long bestNative = Long.MAX_VALUE;
+                    for (int i = 0; i < repetitions; ++i) {
+                        long start = System.nanoTime();
+                        new ProcessBuilder(executableFile.getPath())
+                            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                            .start().waitFor();
+                        bestNative = Math.min(bestNative, System.nanoTime() - start);
+                    }
+                    System.out.println(String.format("%-16s %14.3f  %14.3f  %14.3f  %8.2f",
+                                                     name, best / 1e6, bestTiered / 1e6,
+                                                     bestNative / 1e6,
+                                                     (double) best / bestNative));
+                } else {
+                    System.out.println(String.format("%-16s %14.3f  %14.3f  %14s  %8s",
+                                                     name, best / 1e6, bestTiered / 1e6,
+                                                     "-", "-"));
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Unexpected internal compiler error: " +
+                               e.toString());
+            e.printStackTrace();
+        }
+    }
+
+    private static long time(Machine machine, int repetitions) {
+        for (int i = 0; i < 3; ++i) {
+            machine.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < repetitions; ++i) {
+            long start = System.nanoTime();
+            machine.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static Executable compile(File program) throws Exception {
+        parser p = new parser(new scanner(new FileReader(program)));
+        Program prog = (Program)(p.parse().value);
+
+        TypeVisitor typeInfo = new TypeVisitor();
+        prog.accept(typeInfo);
+        prog.accept(new ConstantFoldingVisitor());
+
+        BytecodeCompiler compiler = new BytecodeCompiler(new ProgramLayout(typeInfo));
+        prog.accept(compiler);
+        return compiler.getExecutable();
+    }
+}
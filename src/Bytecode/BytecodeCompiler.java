@@ -0,0 +1,641 @@
+package Bytecode;
+
+import java.util.*;
+
+import AST.*;
+import AST.Visitor.*;
+import Layout.*;
+import Semantic.*;
+
+/*
+ * Compiles the checked AST to register bytecode for Machine.
+ *
+ *      Each method gets a fixed frame of registers: r0 this, r1..rn the
+ *      parameters, the locals after them and then temporaries, which are
+ *      handed out like a stack and released at the end of each statement.
+ *      A parameter or local used as an operand is read in place, and an
+ *      expression assigned to a local computes straight into it, so
+ *      `i = i + 1` is a single ADDI. Integer literals fold into the
+ *      immediate forms of arithmetic and comparisons, and conditions
+ *      compile to compare-and-branch the way CodeGenerator.branch does.
+ *      Calls whose target the class hierarchy pins down use CALLD and
+ *      skip the vtable.
+ */
+public class BytecodeCompiler implements Visitor {
+    private ProgramLayout layout;
+    private Map<String, Integer> methodIds;
+    private Map<String, Integer> classIds;
+
+    private List<int[]> methods;
+    private List<Integer> frameSizes;
+    private List<Integer> parameterCounts;
+    private List<String> methodNames;
+    private Executable executable;
+
+    // the method being compiled
+    private int[] buffer;
+    private int size;
+    private List<Integer> labels;
+    private List<int[]> fixups;
+    private String currentClass;
+    private FrameLayout currentFrame;
+    private Map<String, Integer> registers;
+    private int firstTemp;
+    private int nextTemp;
+    private int maxRegisters;
+
+    // expression results: where to put the value (-1 for anywhere),
+    // where it ended up and, for objects, its class
+    private int target;
+    private int result;
+    private String resultClass;
+
+    private int callSites;
+    private int devirtualized;
+
+    public BytecodeCompiler(ProgramLayout layout) {
+        this.layout = layout;
+        this.target = -1;
+    }
+
+    public Executable getExecutable() {
+        return executable;
+    }
+
+    public int getCallSiteCount() {
+        return callSites;
+    }
+
+    public int getDevirtualizedCount() {
+        return devirtualized;
+    }
+
+    public void visit(Program n) {
+        methods = new ArrayList<int[]>();
+        frameSizes = new ArrayList<Integer>();
+        parameterCounts = new ArrayList<Integer>();
+        methodNames = new ArrayList<String>();
+        methodIds = new HashMap<String, Integer>();
+        classIds = new HashMap<String, Integer>();
+
+        // number everything first so calls can refer to later methods
+        ClassDeclList classDeclarations = n.cl;
+        int classCount = classDeclarations.size();
+        String[] classNames = new String[classCount];
+        methodNames.add(n.m.i1.s + "$main");
+        for (int i = 0; i < classCount; ++i) {
+            ClassDecl declaration = classDeclarations.elementAt(i);
+            String className;
+            MethodDeclList declared;
+            if (declaration instanceof ClassDeclSimple) {
+                className = ((ClassDeclSimple) declaration).i.s;
+                declared = ((ClassDeclSimple) declaration).ml;
+            } else {
+                className = ((ClassDeclExtends) declaration).i.s;
+                declared = ((ClassDeclExtends) declaration).ml;
+            }
+            classNames[i] = className;
+            classIds.put(className, i);
+            for (int j = 0; j < declared.size(); ++j) {
+                String label = className + "$" + declared.elementAt(j).i.s;
+                methodIds.put(label, methodNames.size());
+                methodNames.add(label);
+            }
+        }
+
+        int[][] vtables = new int[classCount][];
+        int[] objectSizes = new int[classCount];
+        for (int i = 0; i < classCount; ++i) {
+            VTable table = layout.getVTable(classNames[i]);
+            vtables[i] = new int[1 + table.getMethodCount()];
+            for (int slot = 1; slot <= table.getMethodCount(); ++slot) {
+                vtables[i][slot] = methodIds.get(table.getEntry(slot));
+            }
+            objectSizes[i] = 1 + layout.getClassLayout(classNames[i]).getFieldCount();
+        }
+
+        n.m.accept(this);
+        for (int i = 0; i < classCount; ++i) {
+            classDeclarations.elementAt(i).accept(this);
+        }
+
+        executable = new Executable(methods, frameSizes, parameterCounts, methodNames,
+                            vtables, objectSizes, classNames, 0);
+    }
+
+    private void beginMethod(int parameterCount) {
+        buffer = new int[64];
+        size = 0;
+        labels = new ArrayList<Integer>();
+        fixups = new ArrayList<int[]>();
+        registers = new HashMap<String, Integer>();
+        firstTemp = 1 + parameterCount;
+        parameterCounts.add(parameterCount);
+    }
+
+    private void endMethod() {
+        for (int[] fixup : fixups) {
+            buffer[fixup[0]] = labels.get(fixup[1]);
+        }
+        methods.add(Arrays.copyOf(buffer, size));
+        frameSizes.add(Math.max(maxRegisters, firstTemp));
+        currentFrame = null;
+        registers = null;
+    }
+
+    public void visit(MainClass n) {
+        beginMethod(0);
+        maxRegisters = nextTemp = firstTemp;
+        statement(n.s);
+        emit(Opcodes.RET, 0);
+        endMethod();
+    }
+
+    public void visit(ClassDeclSimple n) {
+        currentClass = n.i.s;
+        MethodDeclList methodDeclarations = n.ml;
+        for (int i = 0; i < methodDeclarations.size(); ++i) {
+            methodDeclarations.elementAt(i).accept(this);
+        }
+        currentClass = null;
+    }
+
+    public void visit(ClassDeclExtends n) {
+        currentClass = n.i.s;
+        MethodDeclList methodDeclarations = n.ml;
+        for (int i = 0; i < methodDeclarations.size(); ++i) {
+            methodDeclarations.elementAt(i).accept(this);
+        }
+        currentClass = null;
+    }
+
+    /*
+     * Reached only for locals: an initializer is stored like an
+     *      assignment, before the method body runs.
+     */
+    public void visit(VarDecl n) {
+        if (n.exp != null) {
+            statement(new Assign(n.i, n.exp, n.getLine()));
+        }
+    }
+
+    public void visit(MethodDecl n) {
+        currentFrame = layout.getFrameLayout(currentClass, n.i.s);
+        beginMethod(currentFrame.getParameterCount());
+        for (Slot parameter : currentFrame.getParameterList()) {
+            registers.put(parameter.getName(), 1 + parameter.getIndex());
+        }
+        for (Slot local : currentFrame.getLocalList()) {
+            if (!registers.containsKey(local.getName())) {
+                registers.put(local.getName(), firstTemp++);
+            }
+        }
+        maxRegisters = nextTemp = firstTemp;
+
+        VarDeclList localVariables = n.vl;
+        int variablesCount = localVariables.size();
+        for (int i = 0; i < variablesCount; ++i) {
+            localVariables.elementAt(i).accept(this);
+        }
+
+        StatementList stmts = n.sl;
+        for (int i = 0; i < stmts.size(); ++i) {
+            statement(stmts.elementAt(i));
+        }
+
+        nextTemp = firstTemp;
+        emit(Opcodes.RET, value(n.e, -1));
+        endMethod();
+    }
+
+    public void visit(Formal n) { }
+
+    public void visit(IntArrayType n) { }
+
+    public void visit(BooleanType n) { }
+
+    public void visit(IntegerType n) { }
+
+    public void visit(IdentifierType n) { }
+
+    private void emit(int... instruction) {
+        if (size + instruction.length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, 2 * buffer.length + instruction.length);
+        }
+        System.arraycopy(instruction, 0, buffer, size, instruction.length);
+        size += instruction.length;
+    }
+
+    private int newLabel() {
+        labels.add(-1);
+        return labels.size() - 1;
+    }
+
+    private void place(int label) {
+        labels.set(label, size);
+    }
+
+    /*
+     * Emits a branch whose last operand is label, patched in endMethod.
+     */
+    private void jump(int label, int... instruction) {
+        emit(instruction);
+        emit(0);
+        fixups.add(new int[] { size - 1, label });
+    }
+
+    private int temp() {
+        int rv = nextTemp++;
+        maxRegisters = Math.max(maxRegisters, nextTemp);
+        return rv;
+    }
+
+    /*
+     * Compiles e and returns the register holding its value: into, when
+     *      that is not -1.
+     */
+    private int value(Exp e, int into) {
+        int saved = target;
+        target = into;
+        e.accept(this);
+        target = saved;
+        return result;
+    }
+
+    private int destination(int into) {
+        return into >= 0 ? into : temp();
+    }
+
+    private void statement(Statement s) {
+        int mark = nextTemp;
+        s.accept(this);
+        nextTemp = mark;
+    }
+
+    private static boolean isLiteral(Exp e) {
+        return e instanceof IntegerLiteral;
+    }
+
+    private static int literal(Exp e) {
+        return ((IntegerLiteral) e).i;
+    }
+
+    public void visit(Block n) {
+        StatementList stmts = n.sl;
+        for (int i = 0; i < stmts.size(); ++i) {
+            statement(stmts.elementAt(i));
+        }
+    }
+
+    public void visit(If n) {
+        int labelElse = newLabel();
+        int labelEnd = newLabel();
+
+        branch(n.e, labelElse, false);
+        statement(n.s1);
+        jump(labelEnd, Opcodes.JMP);
+        place(labelElse);
+        statement(n.s2);
+        place(labelEnd);
+    }
+
+    public void visit(While n) {
+        int labelStart = newLabel();
+        int labelTest = newLabel();
+
+        jump(labelTest, Opcodes.JMP);
+        place(labelStart);
+        statement(n.s);
+        place(labelTest);
+        branch(n.e, labelStart, true);
+    }
+
+    /*
+     * Jumps to label when e evaluates to jumpIf, falls through otherwise.
+     */
+    private void branch(Exp e, int label, boolean jumpIf) {
+        int mark = nextTemp;
+        if (e instanceof And) {
+            And and = (And) e;
+            if (jumpIf) {
+                int labelSkip = newLabel();
+                branch(and.e1, labelSkip, false);
+                branch(and.e2, label, true);
+                place(labelSkip);
+            } else {
+                branch(and.e1, label, false);
+                branch(and.e2, label, false);
+            }
+        } else if (e instanceof Not) {
+            branch(((Not) e).e, label, !jumpIf);
+        } else if (e instanceof True || e instanceof False) {
+            if ((e instanceof True) == jumpIf) {
+                jump(label, Opcodes.JMP);
+            }
+        } else if (e instanceof LessThan) {
+            compare(((LessThan) e).e1, ((LessThan) e).e2, Opcodes.JLT, label, jumpIf);
+        } else if (e instanceof LessThanEqual) {
+            compare(((LessThanEqual) e).e1, ((LessThanEqual) e).e2, Opcodes.JLE,
+                    label, jumpIf);
+        } else if (e instanceof GreatThan) {
+            compare(((GreatThan) e).e1, ((GreatThan) e).e2, Opcodes.JGT, label, jumpIf);
+        } else if (e instanceof GreatThanEqual) {
+            compare(((GreatThanEqual) e).e1, ((GreatThanEqual) e).e2, Opcodes.JGE,
+                    label, jumpIf);
+        } else if (e instanceof EqualEqual) {
+            compare(((EqualEqual) e).e1, ((EqualEqual) e).e2, Opcodes.JEQ, label, jumpIf);
+        } else if (e instanceof NotEqual) {
+            compare(((NotEqual) e).e1, ((NotEqual) e).e2, Opcodes.JNE, label, jumpIf);
+        } else {
+            jump(label, jumpIf ? Opcodes.JNZ : Opcodes.JZ, value(e, -1));
+        }
+        nextTemp = mark;
+    }
+
+    private void compare(Exp e1, Exp e2, int opcode, int label, boolean jumpIf) {
+        int immediate = Opcodes.JLTI - Opcodes.JLT;
+        if (!jumpIf) {
+            opcode = Opcodes.negate(opcode);
+        }
+        if (isLiteral(e2)) {
+            jump(label, opcode + immediate, value(e1, -1), literal(e2));
+        } else if (isLiteral(e1)) {
+            jump(label, Opcodes.mirror(opcode) + immediate, value(e2, -1), literal(e1));
+        } else {
+            int a = value(e1, -1);
+            jump(label, opcode, a, value(e2, -1));
+        }
+    }
+
+    /*
+     * A condition as a value, 1 or 0.
+     */
+    private void condition(Exp e) {
+        int d = destination(target);
+        int labelFalse = newLabel();
+        int labelEnd = newLabel();
+
+        branch(e, labelFalse, false);
+        emit(Opcodes.CONST, d, 1);
+        jump(labelEnd, Opcodes.JMP);
+        place(labelFalse);
+        emit(Opcodes.CONST, d, 0);
+        place(labelEnd);
+        result = d;
+        resultClass = null;
+    }
+
+    /*
+     * ADD, SUB or MUL; the I form when the right operand (or, for the
+     *      commutative ones, the left) is a literal.
+     */
+    private void arithmetic(Exp e1, Exp e2, int opcode, boolean commutative) {
+        int into = target;
+        int mark = nextTemp;
+        int immediate = Opcodes.ADDI - Opcodes.ADD;
+        int[] instruction;
+        if (isLiteral(e2)) {
+            instruction = new int[] { opcode + immediate, 0, value(e1, -1), literal(e2) };
+        } else if (commutative && isLiteral(e1)) {
+            instruction = new int[] { opcode + immediate, 0, value(e2, -1), literal(e1) };
+        } else {
+            int a = value(e1, -1);
+            instruction = new int[] { opcode, 0, a, value(e2, -1) };
+        }
+        nextTemp = mark;
+        instruction[1] = destination(into);
+        emit(instruction);
+        result = instruction[1];
+        resultClass = null;
+    }
+
+    public void visit(Print n) {
+        emit(Opcodes.PRINT, value(n.e, -1));
+    }
+
+    public void visit(Assign n) {
+        Integer register = registers == null ? null : registers.get(n.i.s);
+        if (register != null) {
+            value(n.e, register);
+            return;
+        }
+        Slot slot = field(n.i.s);
+        if (slot != null) {
+            emit(Opcodes.PUTF, slot.getIndex(), value(n.e, -1));
+        }
+    }
+
+    public void visit(ArrayAssign n) {
+        int array = variable(n.i.s, -1);
+        int index = value(n.e1, -1);
+        emit(Opcodes.ASTORE, array, index, value(n.e2, -1));
+    }
+
+    private Slot field(String name) {
+        Slot rv = currentFrame == null ? null : currentFrame.resolve(name);
+        if (rv == null || rv.getKind() != Slot.Kind.FIELD) {
+            System.err.println("SHOULD NOT HAVE GOTTEN HERE!!");
+            return null;
+        }
+        return rv;
+    }
+
+    /*
+     * Register holding a parameter, local or (loaded) field.
+     */
+    private int variable(String name, int into) {
+        Integer register = registers == null ? null : registers.get(name);
+        if (register != null) {
+            if (into >= 0 && into != register) {
+                emit(Opcodes.MOV, into, register);
+                return into;
+            }
+            return register;
+        }
+        Slot slot = field(name);
+        int d = destination(into);
+        if (slot != null) {
+            emit(Opcodes.GETF, d, slot.getIndex());
+        }
+        return d;
+    }
+
+    public void visit(And n) {
+        condition(n);
+    }
+
+    public void visit(LessThan n) {
+        condition(n);
+    }
+
+    public void visit(LessThanEqual n) {
+        condition(n);
+    }
+
+    public void visit(GreatThan n) {
+        condition(n);
+    }
+
+    public void visit(GreatThanEqual n) {
+        condition(n);
+    }
+
+    public void visit(EqualEqual n) {
+        condition(n);
+    }
+
+    public void visit(NotEqual n) {
+        condition(n);
+    }
+
+    public void visit(Not n) {
+        int into = target;
+        int mark = nextTemp;
+        int a = value(n.e, -1);
+        nextTemp = mark;
+        int d = destination(into);
+        emit(Opcodes.NOT, d, a);
+        result = d;
+        resultClass = null;
+    }
+
+    public void visit(Plus n) {
+        arithmetic(n.e1, n.e2, Opcodes.ADD, true);
+    }
+
+    public void visit(Minus n) {
+        arithmetic(n.e1, n.e2, Opcodes.SUB, false);
+    }
+
+    public void visit(Times n) {
+        arithmetic(n.e1, n.e2, Opcodes.MUL, true);
+    }
+
+    public void visit(ArrayLookup n) {
+        int into = target;
+        int mark = nextTemp;
+        int array = value(n.e1, -1);
+        int index = value(n.e2, -1);
+        nextTemp = mark;
+        int d = destination(into);
+        emit(Opcodes.ALOAD, d, array, index);
+        result = d;
+        resultClass = null;
+    }
+
+    public void visit(ArrayLength n) {
+        int into = target;
+        int mark = nextTemp;
+        int array = value(n.e, -1);
+        nextTemp = mark;
+        int d = destination(into);
+        emit(Opcodes.ALEN, d, array);
+        result = d;
+        resultClass = null;
+    }
+
+    public void visit(Call n) {
+        int into = target;
+        int mark = nextTemp;
+        int receiver = value(n.e, -1);
+        String className = resultClass;
+
+        // the parser builds the list last argument first
+        ExpList params = n.el;
+        int count = params.size();
+        int[] instruction = new int[5 + count];
+        for (int i = 0; i < count; ++i) {
+            instruction[5 + i] = value(params.elementAt(count - 1 - i), -1);
+        }
+        nextTemp = mark;
+
+        VTable table = layout.getVTable(className);
+        int slot = table.getSlot(n.i.s);
+        String implementor = layout.getHierarchy().getUniqueImplementor(className, n.i.s);
+        ++callSites;
+        if (implementor != null) {
+            ++devirtualized;
+            instruction[0] = Opcodes.CALLD;
+            instruction[3] = methodIds.get(implementor + "$" + n.i.s);
+        } else {
+            instruction[0] = Opcodes.CALL;
+            instruction[3] = slot;
+        }
+        instruction[1] = destination(into);
+        instruction[2] = receiver;
+        instruction[4] = count;
+        emit(instruction);
+
+        Node returnType = table.getMethod(slot).getReturnType();
+        result = instruction[1];
+        resultClass = returnType.getType() == NodeType.CLASS ? returnType.iam : null;
+    }
+
+    private void constant(int value) {
+        int d = destination(target);
+        emit(Opcodes.CONST, d, value);
+        result = d;
+        resultClass = null;
+    }
+
+    public void visit(IntegerLiteral n) {
+        constant(n.i);
+    }
+
+    public void visit(True n) {
+        constant(1);
+    }
+
+    public void visit(False n) {
+        constant(0);
+    }
+
+    public void visit(IdentifierExp n) {
+        result = variable(n.s, target);
+        Slot slot = currentFrame == null ? null : currentFrame.resolve(n.s);
+        resultClass = slot != null && slot.getType().getType() == NodeType.CLASS
+                      ? slot.getClassName() : null;
+    }
+
+    public void visit(This n) {
+        if (target >= 0) {
+            emit(Opcodes.MOV, target, 0);
+            result = target;
+        } else {
+            result = 0;
+        }
+        resultClass = currentClass;
+    }
+
+    public void visit(NewArray n) {
+        int into = target;
+        int mark = nextTemp;
+        int length = value(n.e, -1);
+        nextTemp = mark;
+        int d = destination(into);
+        emit(Opcodes.NEWARR, d, length);
+        result = d;
+        resultClass = null;
+    }
+
+    public void visit(NewObject n) {
+        int d = destination(target);
+        emit(Opcodes.NEW, d, classIds.get(n.i.s));
+        result = d;
+        resultClass = n.i.s;
+    }
+
+    public void visit(Identifier n) { }
+
+    public void visit(FloatLiteral n) { }
+
+    public void visit(FloatType n) { }
+
+    public void visit(DoubleLiteral n) { }
+
+    public void visit(DoubleType n) { }
+
+    public void visit(Instanceof n) { }
+
+    public void visit(Null n) { }
+}
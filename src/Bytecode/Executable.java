@@ -0,0 +1,160 @@
+package Bytecode;
+
+import java.util.*;
+
+/*
+ * A compiled program: the code of every method, numbered, and the class
+ *      tables the machine dispatches through. Classes are numbered too,
+ *      and an object's first heap word is its class number, so
+ *      vtables[heap[obj]][slot] is the method to run; slots are the ones
+ *      Layout.VTable assigns.
+ */
+public final class Executable {
+    final int[][] code;
+    final int[] frameSizes;
+    final int[] parameterCounts;
+    final String[] methodNames;
+    final int[][] vtables;
+    final int[] objectSizes;
+    final String[] classNames;
+    final int main;
+
+    Executable(List<int[]> code, List<Integer> frameSizes, List<Integer> parameterCounts,
+           List<String> methodNames, int[][] vtables, int[] objectSizes,
+           String[] classNames, int main) {
+        int count = code.size();
+        this.code = code.toArray(new int[count][]);
+        this.frameSizes = new int[count];
+        this.parameterCounts = new int[count];
+        for (int i = 0; i < count; ++i) {
+            this.frameSizes[i] = frameSizes.get(i);
+            this.parameterCounts[i] = parameterCounts.get(i);
+        }
+        this.methodNames = methodNames.toArray(new String[count]);
+        this.vtables = vtables;
+        this.objectSizes = objectSizes;
+        this.classNames = classNames;
+        this.main = main;
+    }
+
+    public int getMethodCount() {
+        return code.length;
+    }
+
+    /*
+     * Class$method, as CodeGenerator labels it; main is Main$main.
+     */
+    public String getMethodName(int method) {
+        return methodNames[method];
+    }
+
+    /*
+     * Method number by name, or -1.
+     */
+    public int getMethod(String name) {
+        return Arrays.asList(methodNames).indexOf(name);
+    }
+
+    public int getMainMethod() {
+        return main;
+    }
+
+    public int[] getCode(int method) {
+        return code[method];
+    }
+
+    public int getFrameSize(int method) {
+        return frameSizes[method];
+    }
+
+    public int getParameterCount(int method) {
+        return parameterCounts[method];
+    }
+
+    /*
+     * Total code size in ints, for reports.
+     */
+    public int getCodeSize() {
+        int rv = 0;
+        for (int[] method : code) {
+            rv += method.length;
+        }
+        return rv;
+    }
+
+    /*
+     * Human-readable listing, one instruction per line.
+     */
+    public List<String> disassemble() {
+        List<String> rv = new ArrayList<String>();
+        for (int c = 0; c < classNames.length; ++c) {
+            StringBuilder line = new StringBuilder(classNames[c]).append("$$:");
+            for (int slot = 1; slot < vtables[c].length; ++slot) {
+                line.append(" ").append(methodNames[vtables[c][slot]]);
+            }
+            rv.add(line.toString());
+        }
+        for (int m = 0; m < code.length; ++m) {
+            rv.add("");
+            rv.add(methodNames[m] + ": (" + parameterCounts[m] + " parameters, " +
+                   frameSizes[m] + " registers)");
+            int[] method = code[m];
+            for (int pc = 0; pc < method.length; pc += Opcodes.length(method, pc)) {
+                rv.add(String.format("%6d  %s", pc, instruction(method, pc)));
+            }
+        }
+        return rv;
+    }
+
+    private String instruction(int[] method, int pc) {
+        int opcode = method[pc];
+        StringBuilder rv = new StringBuilder(String.format("%-7s", Opcodes.NAMES[opcode]));
+        switch (opcode) {
+        case Opcodes.CONST:
+            return rv.append("r").append(method[pc + 1]).append(", ")
+                     .append(method[pc + 2]).toString();
+        case Opcodes.ADDI: case Opcodes.SUBI: case Opcodes.MULI:
+            return rv.append("r").append(method[pc + 1]).append(", r")
+                     .append(method[pc + 2]).append(", ")
+                     .append(method[pc + 3]).toString();
+        case Opcodes.JLTI: case Opcodes.JLEI: case Opcodes.JGTI:
+        case Opcodes.JGEI: case Opcodes.JEQI: case Opcodes.JNEI:
+            return rv.append("r").append(method[pc + 1]).append(", ")
+                     .append(method[pc + 2]).append(", @")
+                     .append(method[pc + 3]).toString();
+        case Opcodes.JLT: case Opcodes.JLE: case Opcodes.JGT:
+        case Opcodes.JGE: case Opcodes.JEQ: case Opcodes.JNE:
+            return rv.append("r").append(method[pc + 1]).append(", r")
+                     .append(method[pc + 2]).append(", @")
+                     .append(method[pc + 3]).toString();
+        case Opcodes.JZ: case Opcodes.JNZ:
+            return rv.append("r").append(method[pc + 1]).append(", @")
+                     .append(method[pc + 2]).toString();
+        case Opcodes.JMP:
+            return rv.append("@").append(method[pc + 1]).toString();
+        case Opcodes.NEW:
+            return rv.append("r").append(method[pc + 1]).append(", ")
+                     .append(classNames[method[pc + 2]]).toString();
+        case Opcodes.GETF:
+            return rv.append("r").append(method[pc + 1]).append(", [")
+                     .append(method[pc + 2]).append("]").toString();
+        case Opcodes.PUTF:
+            return rv.append("[").append(method[pc + 1]).append("], r")
+                     .append(method[pc + 2]).toString();
+        case Opcodes.CALL: case Opcodes.CALLD:
+            rv.append("r").append(method[pc + 1]).append(", r").append(method[pc + 2])
+              .append(", ")
+              .append(opcode == Opcodes.CALL ? "slot " + method[pc + 3]
+                                             : methodNames[method[pc + 3]]);
+            for (int i = 0; i < method[pc + 4]; ++i) {
+                rv.append(", r").append(method[pc + 5 + i]);
+            }
+            return rv.toString();
+        default:
+            for (int i = 1; i <= Opcodes.OPERANDS[opcode]; ++i) {
+                rv.append(i == 1 ? "r" : ", r").append(method[pc + i]);
+            }
+            return rv.toString();
+        }
+    }
+}
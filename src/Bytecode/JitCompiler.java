@@ -0,0 +1,417 @@
+package Bytecode;
+
+import java.lang.invoke.*;
+import java.util.*;
+
+import ClassFile.*;
+
+/*
+ * Translates one method of an Executable into a hidden class, for the
+ *      top tier of Machine. Registers become JVM locals and each
+ *      instruction becomes a few JVM instructions; anything that touches
+ *      the heap or can trap calls a static helper in Machine, which
+ *      HotSpot inlines. The class has two entry points:
+ *
+ *          static int invoke(Machine, int this, int arg...)
+ *              what callers run, through the callee's MutableCallSite
+ *          static int enter(Machine, int[] registers, int base, int pc)
+ *              picks up an interpreted frame at pc, which is 0 or the
+ *              head of a loop (on-stack replacement)
+ *
+ *      A direct call reads the callee's call site invoker from a static
+ *      final field, which HotSpot treats as a constant, so when the
+ *      callee is compiled later and its site retargeted, the caller's
+ *      compiled code follows without being regenerated. Virtual calls
+ *      look the invoker up through the vtable on every call.
+ */
+final class JitCompiler {
+    private static final String MACHINE = "Bytecode/Machine";
+    private static final String MACHINE_TYPE = "LBytecode/Machine;";
+    private static final String HANDLE = "java/lang/invoke/MethodHandle";
+    private static final String HANDLE_TYPE = "Ljava/lang/invoke/MethodHandle;";
+
+    /*
+     * The entry points of a compiled method.
+     */
+    static final class Compiled {
+        final MethodHandle invoke;
+        final MethodHandle enter;
+
+        Compiled(MethodHandle invoke, MethodHandle enter) {
+            this.invoke = invoke;
+            this.enter = enter;
+        }
+    }
+
+    private final Executable executable;
+    private final MethodHandle[] invokers;
+    private final MethodHandles.Lookup lookup;
+
+    // the method being compiled
+    private int method;
+    private int[] code;
+    private int offset;
+    private Map<Integer, Label> labels;
+    private List<Integer> callees;
+
+    JitCompiler(Executable executable, MethodHandle[] invokers) {
+        this.executable = executable;
+        this.invokers = invokers;
+        this.lookup = MethodHandles.lookup();
+    }
+
+    static MethodType invokeType(int parameterCount) {
+        Class<?>[] parameters = new Class<?>[2 + parameterCount];
+        parameters[0] = Machine.class;
+        Arrays.fill(parameters, 1, parameters.length, int.class);
+        return MethodType.methodType(int.class, parameters);
+    }
+
+    static MethodType enterType() {
+        return MethodType.methodType(int.class, Machine.class, int[].class,
+                                     int.class, int.class);
+    }
+
+    private static String invokeDescriptor(int parameterCount) {
+        StringBuilder rv = new StringBuilder("(").append(MACHINE_TYPE).append("I");
+        for (int i = 0; i < parameterCount; ++i) {
+            rv.append("I");
+        }
+        return rv.append(")I").toString();
+    }
+
+    Compiled compile(int method) throws ReflectiveOperationException {
+        this.method = method;
+        this.code = executable.code[method];
+        this.callees = new ArrayList<Integer>();
+        for (int pc = 0; pc < code.length; pc += Opcodes.length(code, pc)) {
+            if (code[pc] == Opcodes.CALLD && !callees.contains(code[pc + 3])
+                    && code[pc + 3] != method) {
+                callees.add(code[pc + 3]);
+            }
+        }
+
+        String name = "Bytecode/Compiled$" + executable.methodNames[method];
+        ClassWriter writer = new ClassWriter(ClassWriter.ACC_FINAL, name, "java/lang/Object");
+        int parameterCount = executable.parameterCounts[method];
+
+        Code invoke = writer.addMethod(ClassWriter.ACC_STATIC, "invoke",
+                                       invokeDescriptor(parameterCount));
+        offset = 1;
+        labels = new HashMap<Integer, Label>();
+        for (int r = 1 + parameterCount; r < executable.frameSizes[method]; ++r) {
+            invoke.iconst(0);
+            invoke.store("I", offset + r);
+        }
+        body(invoke, name);
+
+        Code enter = writer.addMethod(ClassWriter.ACC_STATIC, "enter",
+                                      "(" + MACHINE_TYPE + "[III)I");
+        offset = 4;
+        labels = new HashMap<Integer, Label>();
+        for (int r = 0; r < executable.frameSizes[method]; ++r) {
+            enter.load("[I", 1);
+            enter.load("I", 2);
+            enter.iconst(r);
+            enter.arithmetic(Code.IADD);
+            enter.iaload();
+            enter.store("I", offset + r);
+        }
+        for (int target : loopHeads()) {
+            enter.load("I", 3);
+            enter.iconst(target);
+            enter.branch(Code.IF_ICMPEQ, label(target));
+        }
+        enter.branch(Code.GOTO, label(0));
+        body(enter, name);
+
+        MethodHandle[] sites = new MethodHandle[callees.size()];
+        for (int i = 0; i < sites.length; ++i) {
+            writer.addField(ClassWriter.ACC_STATIC | ClassWriter.ACC_FINAL,
+                            "site" + i, HANDLE_TYPE);
+            sites[i] = invokers[callees.get(i)];
+        }
+        if (sites.length > 0) {
+            classData(writer, name, sites.length);
+        }
+
+        MethodHandles.Lookup hidden =
+            lookup.defineHiddenClassWithClassData(writer.toBytes(), sites, true);
+        Class<?> klass = hidden.lookupClass();
+        return new Compiled(hidden.findStatic(klass, "invoke", invokeType(parameterCount)),
+                            hidden.findStatic(klass, "enter", enterType()));
+    }
+
+    /*
+     * <clinit> copying the call site invokers out of the class data.
+     */
+    private void classData(ClassWriter writer, String name, int count) {
+        Code clinit = writer.addMethod(ClassWriter.ACC_STATIC, "<clinit>", "()V");
+        clinit.invokestatic("java/lang/invoke/MethodHandles", "lookup",
+                            "()Ljava/lang/invoke/MethodHandles$Lookup;");
+        clinit.ldcString("_");
+        clinit.ldcClass("[" + HANDLE_TYPE);
+        clinit.invokestatic("java/lang/invoke/MethodHandles", "classData",
+                            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;" +
+                            "Ljava/lang/Class;)Ljava/lang/Object;");
+        clinit.checkcast("[" + HANDLE_TYPE);
+        for (int i = 0; i < count; ++i) {
+            clinit.dup();
+            clinit.iconst(i);
+            clinit.aaload();
+            clinit.putstatic(name, "site" + i, HANDLE_TYPE);
+        }
+        clinit.pop();
+        clinit.returnValue("V");
+    }
+
+    /*
+     * Targets of backward branches: where a loop can be entered.
+     */
+    private List<Integer> loopHeads() {
+        List<Integer> rv = new ArrayList<Integer>();
+        for (int pc = 0; pc < code.length; pc += Opcodes.length(code, pc)) {
+            int target = target(pc);
+            if (target >= 0 && target <= pc && !rv.contains(target)) {
+                rv.add(target);
+            }
+        }
+        return rv;
+    }
+
+    /*
+     * Branch target of the instruction at pc, or -1.
+     */
+    private int target(int pc) {
+        int opcode = code[pc];
+        if (opcode >= Opcodes.JLT && opcode <= Opcodes.JNEI) {
+            return code[pc + 3];
+        } else if (opcode == Opcodes.JZ || opcode == Opcodes.JNZ) {
+            return code[pc + 2];
+        } else if (opcode == Opcodes.JMP) {
+            return code[pc + 1];
+        }
+        return -1;
+    }
+
+    private Label label(int pc) {
+        Label rv = labels.get(pc);
+        if (rv == null) {
+            rv = new Label();
+            labels.put(pc, rv);
+        }
+        return rv;
+    }
+
+    private void body(Code out, String name) {
+        for (int pc = 0; pc < code.length; pc += Opcodes.length(code, pc)) {
+            if (target(pc) >= 0) {
+                label(target(pc));
+            }
+        }
+        label(0);
+
+        for (int pc = 0; pc < code.length; pc += Opcodes.length(code, pc)) {
+            Label here = labels.get(pc);
+            if (here != null) {
+                out.place(here);
+            }
+            instruction(out, name, pc);
+        }
+    }
+
+    private void load(Code out, int register) {
+        out.load("I", offset + register);
+    }
+
+    private void store(Code out, int register) {
+        out.store("I", offset + register);
+    }
+
+    private void machine(Code out) {
+        out.load(MACHINE_TYPE, 0);
+    }
+
+    private void helper(Code out, String helperName, String descriptor) {
+        out.invokestatic(MACHINE, helperName, descriptor);
+    }
+
+    private static int arithmetic(int opcode) {
+        switch (opcode) {
+        case Opcodes.ADD: case Opcodes.ADDI:
+            return Code.IADD;
+        case Opcodes.SUB: case Opcodes.SUBI:
+            return Code.ISUB;
+        default:
+            return Code.IMUL;
+        }
+    }
+
+    private static int comparison(int opcode) {
+        switch (opcode) {
+        case Opcodes.JLT: case Opcodes.JLTI:
+            return Code.IF_ICMPLT;
+        case Opcodes.JLE: case Opcodes.JLEI:
+            return Code.IF_ICMPLE;
+        case Opcodes.JGT: case Opcodes.JGTI:
+            return Code.IF_ICMPGT;
+        case Opcodes.JGE: case Opcodes.JGEI:
+            return Code.IF_ICMPGE;
+        case Opcodes.JEQ: case Opcodes.JEQI:
+            return Code.IF_ICMPEQ;
+        default:
+            return Code.IF_ICMPNE;
+        }
+    }
+
+    private void instruction(Code out, String name, int pc) {
+        int opcode = code[pc];
+        switch (opcode) {
+        case Opcodes.CONST:
+            out.iconst(code[pc + 2]);
+            store(out, code[pc + 1]);
+            break;
+        case Opcodes.MOV:
+            load(out, code[pc + 2]);
+            store(out, code[pc + 1]);
+            break;
+        case Opcodes.ADD: case Opcodes.SUB: case Opcodes.MUL:
+            load(out, code[pc + 2]);
+            load(out, code[pc + 3]);
+            out.arithmetic(arithmetic(opcode));
+            store(out, code[pc + 1]);
+            break;
+        case Opcodes.ADDI: case Opcodes.SUBI: case Opcodes.MULI:
+            load(out, code[pc + 2]);
+            out.iconst(code[pc + 3]);
+            out.arithmetic(arithmetic(opcode));
+            store(out, code[pc + 1]);
+            break;
+        case Opcodes.NOT:
+            load(out, code[pc + 2]);
+            out.iconst(1);
+            out.arithmetic(Code.IXOR);
+            store(out, code[pc + 1]);
+            break;
+        case Opcodes.JLT: case Opcodes.JLE: case Opcodes.JGT:
+        case Opcodes.JGE: case Opcodes.JEQ: case Opcodes.JNE:
+            load(out, code[pc + 1]);
+            load(out, code[pc + 2]);
+            out.branch(comparison(opcode), label(code[pc + 3]));
+            break;
+        case Opcodes.JLTI: case Opcodes.JLEI: case Opcodes.JGTI:
+        case Opcodes.JGEI: case Opcodes.JEQI: case Opcodes.JNEI:
+            load(out, code[pc + 1]);
+            out.iconst(code[pc + 2]);
+            out.branch(comparison(opcode), label(code[pc + 3]));
+            break;
+        case Opcodes.JZ: case Opcodes.JNZ:
+            load(out, code[pc + 1]);
+            out.branch(opcode == Opcodes.JZ ? Code.IFEQ : Code.IFNE, label(code[pc + 2]));
+            break;
+        case Opcodes.JMP:
+            out.branch(Code.GOTO, label(code[pc + 1]));
+            break;
+        case Opcodes.ALOAD:
+            machine(out);
+            load(out, code[pc + 2]);
+            load(out, code[pc + 3]);
+            out.iconst(method);
+            helper(out, "arrayLoad", "(" + MACHINE_TYPE + "III)I");
+            store(out, code[pc + 1]);
+            break;
+        case Opcodes.ASTORE:
+            machine(out);
+            load(out, code[pc + 1]);
+            load(out, code[pc + 2]);
+            load(out, code[pc + 3]);
+            out.iconst(method);
+            helper(out, "arrayStore", "(" + MACHINE_TYPE + "IIII)V");
+            break;
+        case Opcodes.ALEN:
+            machine(out);
+            load(out, code[pc + 2]);
+            out.iconst(method);
+            helper(out, "arrayLength", "(" + MACHINE_TYPE + "II)I");
+            store(out, code[pc + 1]);
+            break;
+        case Opcodes.NEWARR:
+            machine(out);
+            load(out, code[pc + 2]);
+            out.iconst(method);
+            helper(out, "newArray", "(" + MACHINE_TYPE + "II)I");
+            store(out, code[pc + 1]);
+            break;
+        case Opcodes.NEW:
+            machine(out);
+            out.iconst(code[pc + 2]);
+            helper(out, "newObject", "(" + MACHINE_TYPE + "I)I");
+            store(out, code[pc + 1]);
+            break;
+        case Opcodes.GETF:
+            machine(out);
+            load(out, 0);
+            out.iconst(code[pc + 2]);
+            helper(out, "getField", "(" + MACHINE_TYPE + "II)I");
+            store(out, code[pc + 1]);
+            break;
+        case Opcodes.PUTF:
+            machine(out);
+            load(out, 0);
+            out.iconst(code[pc + 1]);
+            load(out, code[pc + 2]);
+            helper(out, "putField", "(" + MACHINE_TYPE + "III)V");
+            break;
+        case Opcodes.CALL:
+        case Opcodes.CALLD:
+            call(out, name, pc);
+            break;
+        case Opcodes.RET:
+            load(out, code[pc + 1]);
+            out.returnValue("I");
+            break;
+        case Opcodes.PRINT:
+            machine(out);
+            load(out, code[pc + 1]);
+            helper(out, "print", "(" + MACHINE_TYPE + "I)V");
+            break;
+        default:
+            throw new IllegalStateException("bad opcode " + opcode);
+        }
+    }
+
+    private void call(Code out, String name, int pc) {
+        int callee = code[pc + 3];
+        int count = code[pc + 4];
+        boolean recursive = code[pc] == Opcodes.CALLD && callee == method;
+        if (code[pc] == Opcodes.CALL) {
+            machine(out);
+            load(out, code[pc + 2]);
+            out.iconst(code[pc + 3]);
+            out.iconst(method);
+            helper(out, "dispatch", "(" + MACHINE_TYPE + "III)" + HANDLE_TYPE);
+        } else if (!recursive) {
+            out.getstatic(name, "site" + callees.indexOf(callee), HANDLE_TYPE);
+        }
+
+        machine(out);
+        if (code[pc] == Opcodes.CALL) {
+            load(out, code[pc + 2]);
+        } else {
+            machine(out);
+            load(out, code[pc + 2]);
+            out.iconst(method);
+            helper(out, "receiver", "(" + MACHINE_TYPE + "II)I");
+        }
+        for (int i = 0; i < count; ++i) {
+            load(out, code[pc + 5 + i]);
+        }
+
+        if (recursive) {
+            out.invokestatic(name, "invoke", invokeDescriptor(count));
+        } else {
+            out.invokevirtual(HANDLE, "invokeExact", invokeDescriptor(count));
+        }
+        store(out, code[pc + 1]);
+    }
+}
@@ -0,0 +1,582 @@
+package Bytecode;
+
+import java.io.PrintStream;
+import java.lang.invoke.*;
+import java.util.*;
+
+/*
+ * Runs an Executable. Everything the program touches lives in int arrays:
+ *
+ *      registers   every active frame back to back; a call's frame
+ *                  starts right after its caller's
+ *      heap        objects as [class, fields...] and arrays as
+ *                  [length, elements...]; a reference is the index of
+ *                  the first word, and 0 is null (heap[0] stays 0, so a
+ *                  null array has length 0)
+ *      frames      (method, return pc, base, destination) per call
+ *
+ *      Interpreted calls do not recurse in Java, so deep MiniJava
+ *      recursion only grows the arrays. Memory is never reclaimed, as
+ *      with mjmalloc. Array indexes are always checked, and errors throw
+ *      Trap.
+ *
+ *      With setTiered, every method also counts its invocations and taken
+ *      backward branches. Past a threshold JitCompiler turns it into a
+ *      hidden class: its call site is retargeted, so compiled callers
+ *      switch over, and an interpreted activation looping in it moves to
+ *      the compiled code at its next backward branch. Compiled frames do
+ *      live on the Java stack.
+ */
+public class Machine {
+    private static final int FRAME = 4;
+
+    private final Executable executable;
+    private final PrintStream out;
+    private int[] heap;
+    private int top;
+
+    private boolean tiered;
+    private int invocationThreshold = 1000;
+    private int backedgeThreshold = 10000;
+    private JitCompiler compiler;
+    private int[] invocations;
+    private int[] backedges;
+    private boolean[] failed;
+    private MutableCallSite[] sites;
+    private MethodHandle[] invokers;
+    private MethodHandle[] entries;
+    private List<String> compiled;
+    private int transfers;
+
+    public Machine(Executable executable, PrintStream out) {
+        this.executable = executable;
+        this.out = out;
+    }
+
+    public void setTiered(boolean tiered) {
+        this.tiered = tiered;
+    }
+
+    /*
+     * Invocations, or loop iterations within one method, after which
+     *      the method is compiled.
+     */
+    public void setThresholds(int invocations, int backedges) {
+        this.invocationThreshold = invocations;
+        this.backedgeThreshold = backedges;
+    }
+
+    /*
+     * Labels of the methods compiled so far, in order.
+     */
+    public List<String> getCompiledMethods() {
+        return compiled == null ? Collections.<String>emptyList() : compiled;
+    }
+
+    /*
+     * Interpreted activations that moved into compiled code mid-loop.
+     */
+    public int getTransferCount() {
+        return transfers;
+    }
+
+    /*
+     * Heap words allocated by the last run, for reports.
+     */
+    public int getHeapSize() {
+        return top;
+    }
+
+    /*
+     * Runs main from a fresh heap.
+     */
+    public void run() {
+        heap = new int[1 << 12];
+        top = 1;
+        if (tiered && compiler == null) {
+            startTiers();
+        }
+        try {
+            execute(executable.main, new int[Math.max(256, executable.frameSizes[executable.main])]);
+        } catch (StackOverflowError e) {
+            throw new Trap("stack overflow");
+        }
+    }
+
+    /*
+     * Points every method's call site at the interpreter.
+     */
+    private void startTiers() {
+        int count = executable.code.length;
+        invocations = new int[count];
+        backedges = new int[count];
+        failed = new boolean[count];
+        sites = new MutableCallSite[count];
+        invokers = new MethodHandle[count];
+        entries = new MethodHandle[count];
+        compiled = new ArrayList<String>();
+        try {
+            MethodHandle interpret = MethodHandles.lookup().findStatic(
+                Machine.class, "interpret",
+                MethodType.methodType(int.class, Machine.class, int.class,
+                                      int.class, int[].class));
+            for (int method = 0; method < count; ++method) {
+                int parameterCount = executable.parameterCounts[method];
+                MethodHandle adapter = MethodHandles.insertArguments(interpret, 1, method)
+                    .asCollector(int[].class, parameterCount);
+                sites[method] = new MutableCallSite(adapter);
+                invokers[method] = sites[method].dynamicInvoker();
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+        compiler = new JitCompiler(executable, invokers);
+    }
+
+    /*
+     * Compiles a hot method and retargets its call site. A method that
+     *      fails to compile (too large for 16-bit branches, say) stays
+     *      interpreted.
+     */
+    private void compile(int method) {
+        if (failed[method]) {
+            return;
+        }
+        try {
+            JitCompiler.Compiled result = compiler.compile(method);
+            entries[method] = result.enter;
+            sites[method].setTarget(result.invoke);
+            compiled.add(executable.methodNames[method]);
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+            failed[method] = true;
+        }
+    }
+
+    /*
+     * Call site target of a method that is not compiled yet.
+     */
+    private static int interpret(Machine machine, int method, int receiver, int[] arguments) {
+        if (++machine.invocations[method] >= machine.invocationThreshold) {
+            machine.compile(method);
+        }
+        int[] registers = new int[Math.max(256, machine.executable.frameSizes[method])];
+        registers[0] = receiver;
+        System.arraycopy(arguments, 0, registers, 1, arguments.length);
+        return machine.execute(method, registers);
+    }
+
+    /*
+     * Runs the compiled method on the frame at base, from pc.
+     */
+    private int enter(int method, int[] registers, int base, int pc) {
+        try {
+            return (int) entries[method].invokeExact(this, registers, base, pc);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * Interprets method, whose frame is at the start of registers, and
+     *      returns its result.
+     */
+    private int execute(int entry, int[] registers) {
+        final int[][] codes = executable.code;
+        final int[] frameSizes = executable.frameSizes;
+        final int[][] vtables = executable.vtables;
+
+        int[] frames = new int[64 * FRAME];
+        int sp = 0;
+        int method = entry;
+        int[] code = codes[method];
+        int base = 0;
+        int pc = 0;
+        int[] heap = this.heap;
+
+        for (;;) {
+            // instructions continue the loop; a taken branch sets target
+            // and breaks out of the switch
+            int target;
+            switch (code[pc]) {
+            case Opcodes.CONST:
+                registers[base + code[pc + 1]] = code[pc + 2];
+                pc += 3;
+                continue;
+            case Opcodes.MOV:
+                registers[base + code[pc + 1]] = registers[base + code[pc + 2]];
+                pc += 3;
+                continue;
+            case Opcodes.ADD:
+                registers[base + code[pc + 1]] =
+                    registers[base + code[pc + 2]] + registers[base + code[pc + 3]];
+                pc += 4;
+                continue;
+            case Opcodes.SUB:
+                registers[base + code[pc + 1]] =
+                    registers[base + code[pc + 2]] - registers[base + code[pc + 3]];
+                pc += 4;
+                continue;
+            case Opcodes.MUL:
+                registers[base + code[pc + 1]] =
+                    registers[base + code[pc + 2]] * registers[base + code[pc + 3]];
+                pc += 4;
+                continue;
+            case Opcodes.ADDI:
+                registers[base + code[pc + 1]] = registers[base + code[pc + 2]] + code[pc + 3];
+                pc += 4;
+                continue;
+            case Opcodes.SUBI:
+                registers[base + code[pc + 1]] = registers[base + code[pc + 2]] - code[pc + 3];
+                pc += 4;
+                continue;
+            case Opcodes.MULI:
+                registers[base + code[pc + 1]] = registers[base + code[pc + 2]] * code[pc + 3];
+                pc += 4;
+                continue;
+            case Opcodes.NOT:
+                registers[base + code[pc + 1]] = registers[base + code[pc + 2]] ^ 1;
+                pc += 3;
+                continue;
+            case Opcodes.JLT:
+                if (registers[base + code[pc + 1]] < registers[base + code[pc + 2]]) {
+                    target = code[pc + 3];
+                    break;
+                }
+                pc += 4;
+                continue;
+            case Opcodes.JLE:
+                if (registers[base + code[pc + 1]] <= registers[base + code[pc + 2]]) {
+                    target = code[pc + 3];
+                    break;
+                }
+                pc += 4;
+                continue;
+            case Opcodes.JGT:
+                if (registers[base + code[pc + 1]] > registers[base + code[pc + 2]]) {
+                    target = code[pc + 3];
+                    break;
+                }
+                pc += 4;
+                continue;
+            case Opcodes.JGE:
+                if (registers[base + code[pc + 1]] >= registers[base + code[pc + 2]]) {
+                    target = code[pc + 3];
+                    break;
+                }
+                pc += 4;
+                continue;
+            case Opcodes.JEQ:
+                if (registers[base + code[pc + 1]] == registers[base + code[pc + 2]]) {
+                    target = code[pc + 3];
+                    break;
+                }
+                pc += 4;
+                continue;
+            case Opcodes.JNE:
+                if (registers[base + code[pc + 1]] != registers[base + code[pc + 2]]) {
+                    target = code[pc + 3];
+                    break;
+                }
+                pc += 4;
+                continue;
+            case Opcodes.JLTI:
+                if (registers[base + code[pc + 1]] < code[pc + 2]) {
+                    target = code[pc + 3];
+                    break;
+                }
+                pc += 4;
+                continue;
+            case Opcodes.JLEI:
+                if (registers[base + code[pc + 1]] <= code[pc + 2]) {
+                    target = code[pc + 3];
+                    break;
+                }
+                pc += 4;
+                continue;
+            case Opcodes.JGTI:
+                if (registers[base + code[pc + 1]] > code[pc + 2]) {
+                    target = code[pc + 3];
+                    break;
+                }
+                pc += 4;
+                continue;
+            case Opcodes.JGEI:
+                if (registers[base + code[pc + 1]] >= code[pc + 2]) {
+                    target = code[pc + 3];
+                    break;
+                }
+                pc += 4;
+                continue;
+            case Opcodes.JEQI:
+                if (registers[base + code[pc + 1]] == code[pc + 2]) {
+                    target = code[pc + 3];
+                    break;
+                }
+                pc += 4;
+                continue;
+            case Opcodes.JNEI:
+                if (registers[base + code[pc + 1]] != code[pc + 2]) {
+                    target = code[pc + 3];
+                    break;
+                }
+                pc += 4;
+                continue;
+            case Opcodes.JZ:
+                if (registers[base + code[pc + 1]] == 0) {
+                    target = code[pc + 2];
+                    break;
+                }
+                pc += 3;
+                continue;
+            case Opcodes.JNZ:
+                if (registers[base + code[pc + 1]] != 0) {
+                    target = code[pc + 2];
+                    break;
+                }
+                pc += 3;
+                continue;
+            case Opcodes.JMP:
+                target = code[pc + 1];
+                break;
+            case Opcodes.ALOAD: {
+                int array = registers[base + code[pc + 2]];
+                int index = registers[base + code[pc + 3]];
+                if (index < 0 || index >= heap[array]) {
+                    throw outOfBounds(method, array, index);
+                }
+                registers[base + code[pc + 1]] = heap[array + 1 + index];
+                pc += 4;
+                continue;
+            }
+            case Opcodes.ASTORE: {
+                int array = registers[base + code[pc + 1]];
+                int index = registers[base + code[pc + 2]];
+                if (index < 0 || index >= heap[array]) {
+                    throw outOfBounds(method, array, index);
+                }
+                heap[array + 1 + index] = registers[base + code[pc + 3]];
+                pc += 4;
+                continue;
+            }
+            case Opcodes.ALEN:
+                registers[base + code[pc + 1]] =
+                    arrayLength(this, registers[base + code[pc + 2]], method);
+                pc += 3;
+                continue;
+            case Opcodes.NEWARR:
+                registers[base + code[pc + 1]] =
+                    newArray(this, registers[base + code[pc + 2]], method);
+                heap = this.heap;
+                pc += 3;
+                continue;
+            case Opcodes.NEW:
+                registers[base + code[pc + 1]] = newObject(this, code[pc + 2]);
+                heap = this.heap;
+                pc += 3;
+                continue;
+            case Opcodes.GETF:
+                registers[base + code[pc + 1]] = heap[registers[base] + code[pc + 2]];
+                pc += 3;
+                continue;
+            case Opcodes.PUTF:
+                heap[registers[base] + code[pc + 1]] = registers[base + code[pc + 2]];
+                pc += 3;
+                continue;
+            case Opcodes.CALL:
+            case Opcodes.CALLD: {
+                int receiver = registers[base + code[pc + 2]];
+                if (receiver == 0) {
+                    throw new Trap("call on null in " + executable.methodNames[method]);
+                }
+                int callee = code[pc] == Opcodes.CALL
+                             ? vtables[heap[receiver]][code[pc + 3]]
+                             : code[pc + 3];
+                int count = code[pc + 4];
+                int calleeBase = base + frameSizes[method];
+                int calleeSize = frameSizes[callee];
+                if (calleeBase + calleeSize > registers.length) {
+                    registers = Arrays.copyOf(registers, Math.max(2 * registers.length,
+                                                                  calleeBase + calleeSize));
+                }
+                registers[calleeBase] = receiver;
+                for (int i = 0; i < count; ++i) {
+                    registers[calleeBase + 1 + i] = registers[base + code[pc + 5 + i]];
+                }
+                Arrays.fill(registers, calleeBase + 1 + count, calleeBase + calleeSize, 0);
+
+                if (tiered) {
+                    if (entries[callee] == null &&
+                        ++invocations[callee] >= invocationThreshold) {
+                        compile(callee);
+                    }
+                    if (entries[callee] != null) {
+                        registers[base + code[pc + 1]] =
+                            enter(callee, registers, calleeBase, 0);
+                        heap = this.heap;
+                        pc += 5 + count;
+                        continue;
+                    }
+                }
+
+                if (sp + FRAME > frames.length) {
+                    frames = Arrays.copyOf(frames, 2 * frames.length);
+                }
+                frames[sp] = method;
+                frames[sp + 1] = pc + 5 + count;
+                frames[sp + 2] = base;
+                frames[sp + 3] = code[pc + 1];
+                sp += FRAME;
+
+                method = callee;
+                code = codes[callee];
+                base = calleeBase;
+                pc = 0;
+                continue;
+            }
+            case Opcodes.RET: {
+                int value = registers[base + code[pc + 1]];
+                if (sp == 0) {
+                    return value;
+                }
+                sp -= FRAME;
+                method = frames[sp];
+                pc = frames[sp + 1];
+                base = frames[sp + 2];
+                registers[base + frames[sp + 3]] = value;
+                code = codes[method];
+                continue;
+            }
+            case Opcodes.PRINT:
+                out.println(registers[base + code[pc + 1]]);
+                pc += 2;
+                continue;
+            default:
+                throw new IllegalStateException("bad opcode " + code[pc] + " at " +
+                                                executable.methodNames[method] + "+" + pc);
+            }
+
+            if (target <= pc && tiered) {
+                if (entries[method] == null && ++backedges[method] >= backedgeThreshold) {
+                    compile(method);
+                }
+                if (entries[method] != null) {
+                    // finish this activation in compiled code, then return
+                    ++transfers;
+                    int value = enter(method, registers, base, target);
+                    heap = this.heap;
+                    if (sp == 0) {
+                        return value;
+                    }
+                    sp -= FRAME;
+                    method = frames[sp];
+                    pc = frames[sp + 1];
+                    base = frames[sp + 2];
+                    registers[base + frames[sp + 3]] = value;
+                    code = codes[method];
+                    continue;
+                }
+            }
+            pc = target;
+        }
+    }
+
+    /*
+     * Makes room for words more heap words; the caller takes them from
+     *      top.
+     */
+    private void allocate(long words) {
+        long needed = top + words;
+        if (needed > heap.length) {
+            if (needed > Integer.MAX_VALUE - 8) {
+                throw new Trap("out of memory");
+            }
+            heap = Arrays.copyOf(heap, (int) Math.max(needed, Math.min(2L * heap.length,
+                                                                       Integer.MAX_VALUE - 8)));
+        }
+    }
+
+    private Trap outOfBounds(int method, int array, int index) {
+        if (array == 0) {
+            return new Trap("index into a null array in " + executable.methodNames[method]);
+        }
+        return new Trap("array index " + index + " out of bounds for length " +
+                        heap[array] + " in " + executable.methodNames[method]);
+    }
+
+    // the instructions JitCompiler does not inline, shared with the loop
+
+    static int arrayLoad(Machine machine, int array, int index, int method) {
+        int[] heap = machine.heap;
+        if (index < 0 || index >= heap[array]) {
+            throw machine.outOfBounds(method, array, index);
+        }
+        return heap[array + 1 + index];
+    }
+
+    static void arrayStore(Machine machine, int array, int index, int value, int method) {
+        int[] heap = machine.heap;
+        if (index < 0 || index >= heap[array]) {
+            throw machine.outOfBounds(method, array, index);
+        }
+        heap[array + 1 + index] = value;
+    }
+
+    static int arrayLength(Machine machine, int array, int method) {
+        if (array == 0) {
+            throw new Trap("length of a null array in " +
+                           machine.executable.methodNames[method]);
+        }
+        return machine.heap[array];
+    }
+
+    static int newArray(Machine machine, int length, int method) {
+        if (length < 0) {
+            throw new Trap("negative array size " + length + " in " +
+                           machine.executable.methodNames[method]);
+        }
+        machine.allocate(1 + (long) length);
+        int array = machine.top;
+        machine.heap[array] = length;
+        machine.top += 1 + length;
+        return array;
+    }
+
+    static int newObject(Machine machine, int klass) {
+        int size = machine.executable.objectSizes[klass];
+        machine.allocate(size);
+        int object = machine.top;
+        machine.heap[object] = klass;
+        machine.top += size;
+        return object;
+    }
+
+    static int getField(Machine machine, int object, int field) {
+        return machine.heap[object + field];
+    }
+
+    static void putField(Machine machine, int object, int field, int value) {
+        machine.heap[object + field] = value;
+    }
+
+    static void print(Machine machine, int value) {
+        machine.out.println(value);
+    }
+
+    static int receiver(Machine machine, int receiver, int method) {
+        if (receiver == 0) {
+            throw new Trap("call on null in " + machine.executable.methodNames[method]);
+        }
+        return receiver;
+    }
+
+    /*
+     * Invoker of the method a virtual call on receiver runs.
+     */
+    static MethodHandle dispatch(Machine machine, int receiver, int slot, int method) {
+        receiver(machine, receiver, method);
+        Executable executable = machine.executable;
+        return machine.invokers[executable.vtables[machine.heap[receiver]][slot]];
+    }
+}
@@ -0,0 +1,128 @@
+package Bytecode;
+
+/*
+ * Instruction set of the register machine. An instruction is its opcode
+ *      followed by int operands in the same int[]: d names the destination
+ *      register, a and b source registers, k an immediate and t a branch
+ *      target (an index into the method's code). Registers are relative to
+ *      the frame: r0 is this, r1..rn the parameters, then the locals, then
+ *      temporaries.
+ *
+ *          CONST  d k          MOV    d a
+ *          ADD    d a b        ADDI   d a k      (SUB, MUL likewise)
+ *          NOT    d a
+ *          JLT    a b t        JLTI   a k t      (JLE JGT JGE JEQ JNE)
+ *          JZ     a t          JNZ    a t        JMP    t
+ *          ALOAD  d a b        ASTORE a b c      ALEN   d a
+ *          NEWARR d a          NEW    d class
+ *          GETF   d field      PUTF   field a    (fields of r0)
+ *          CALL   d a slot n args...             (through the vtable)
+ *          CALLD  d a method n args...           (unique implementor)
+ *          RET    a            PRINT  a
+ */
+public final class Opcodes {
+    public static final int CONST = 0;
+    public static final int MOV = 1;
+    public static final int ADD = 2;
+    public static final int SUB = 3;
+    public static final int MUL = 4;
+    public static final int ADDI = 5;
+    public static final int SUBI = 6;
+    public static final int MULI = 7;
+    public static final int NOT = 8;
+    public static final int JLT = 9;
+    public static final int JLE = 10;
+    public static final int JGT = 11;
+    public static final int JGE = 12;
+    public static final int JEQ = 13;
+    public static final int JNE = 14;
+    public static final int JLTI = 15;
+    public static final int JLEI = 16;
+    public static final int JGTI = 17;
+    public static final int JGEI = 18;
+    public static final int JEQI = 19;
+    public static final int JNEI = 20;
+    public static final int JZ = 21;
+    public static final int JNZ = 22;
+    public static final int JMP = 23;
+    public static final int ALOAD = 24;
+    public static final int ASTORE = 25;
+    public static final int ALEN = 26;
+    public static final int NEWARR = 27;
+    public static final int NEW = 28;
+    public static final int GETF = 29;
+    public static final int PUTF = 30;
+    public static final int CALL = 31;
+    public static final int CALLD = 32;
+    public static final int RET = 33;
+    public static final int PRINT = 34;
+
+    static final String[] NAMES = {
+        "const", "mov", "add", "sub", "mul", "addi", "subi", "muli", "not",
+        "jlt", "jle", "jgt", "jge", "jeq", "jne",
+        "jlti", "jlei", "jgti", "jgei", "jeqi", "jnei",
+        "jz", "jnz", "jmp",
+        "aload", "astore", "alen", "newarr", "new", "getf", "putf",
+        "call", "calld", "ret", "print"
+    };
+
+    // fixed operand count; CALL and CALLD add one register per argument
+    static final int[] OPERANDS = {
+        2, 2, 3, 3, 3, 3, 3, 3, 2,
+        3, 3, 3, 3, 3, 3,
+        3, 3, 3, 3, 3, 3,
+        2, 2, 1,
+        3, 3, 2, 2, 2, 2, 2,
+        4, 4, 1, 1
+    };
+
+    private Opcodes() { }
+
+    /*
+     * Length in ints of the instruction at pc, opcode included.
+     */
+    static int length(int[] code, int pc) {
+        int opcode = code[pc];
+        int rv = 1 + OPERANDS[opcode];
+        if (opcode == CALL || opcode == CALLD) {
+            rv += code[pc + 4];
+        }
+        return rv;
+    }
+
+    /*
+     * The branch that tests the opposite condition, e.g. JGE for JLT.
+     */
+    static int negate(int opcode) {
+        switch (opcode) {
+        case JLT: return JGE;
+        case JLE: return JGT;
+        case JGT: return JLE;
+        case JGE: return JLT;
+        case JEQ: return JNE;
+        case JNE: return JEQ;
+        case JLTI: return JGEI;
+        case JLEI: return JGTI;
+        case JGTI: return JLEI;
+        case JGEI: return JLTI;
+        case JEQI: return JNEI;
+        case JNEI: return JEQI;
+        case JZ: return JNZ;
+        default: return JZ;
+        }
+    }
+
+    /*
+     * The branch with its operands swapped, e.g. JGT for JLT, so that
+     *      `3 < x` can use the immediate form `x > 3`.
+     */
+    static int mirror(int opcode) {
+        switch (opcode) {
+        case JLT: return JGT;
+        case JLE: return JGE;
+        case JGT: return JLT;
+        case JGE: return JLE;
+        default: return opcode;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package Bytecode;
+
+/*
+ * A run-time error in the program being interpreted: an array index out
+ *      of bounds, a negative array size or a call on null. Native code
+ *      traps (with -S) or crashes on the same programs.
+ */
+public class Trap extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public Trap(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,243 @@
+package ClassFile;
+
+import java.io.*;
+import java.util.*;
+
+/*
+ * Builds one class file: the constant pool, fields and methods with
+ *      their Code attribute, and nothing else. Classes are written as
+ *      version 49 (Java 5), the last one the JVM still verifies by type
+ *      inference, so no StackMapTable has to be computed; every current
+ *      JVM loads them.
+ *
+ *      Names are internal names ("java/lang/Object") and types are
+ *      descriptors ("I", "[I", "LFoo;", "(IZ)I").
+ */
+public final class ClassWriter {
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_STATIC = 0x0008;
+    public static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private static final int VERSION = 49;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final String name;
+    private final String superName;
+    private final int access;
+    private final ByteArrayOutputStream pool;
+    private final DataOutputStream poolOut;
+    private final Map<String, Integer> constants;
+    private int constantCount;
+    private final List<Object[]> fields;
+    private final List<Object[]> methods;
+
+    public ClassWriter(String name, String superName) {
+        this(ACC_PUBLIC, name, superName);
+    }
+
+    public ClassWriter(int access, String name, String superName) {
+        this.name = name;
+        this.superName = superName;
+        this.access = access;
+        this.pool = new ByteArrayOutputStream();
+        this.poolOut = new DataOutputStream(pool);
+        this.constants = new HashMap<String, Integer>();
+        this.constantCount = 1;
+        this.fields = new ArrayList<Object[]>();
+        this.methods = new ArrayList<Object[]>();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void addField(String fieldName, String descriptor) {
+        addField(0, fieldName, descriptor);
+    }
+
+    public void addField(int fieldAccess, String fieldName, String descriptor) {
+        fields.add(new Object[] { fieldAccess, fieldName, descriptor });
+    }
+
+    /*
+     * Starts a method; its code is complete when toBytes() is called.
+     */
+    public Code addMethod(int methodAccess, String methodName, String descriptor) {
+        Code code = new Code(this, Descriptors.argumentSlots(descriptor) +
+                                   ((methodAccess & ACC_STATIC) != 0 ? 0 : 1));
+        methods.add(new Object[] { methodAccess, methodName, descriptor, code });
+        return code;
+    }
+
+    /*
+     * <init>()V that only calls the superclass constructor.
+     */
+    public void addDefaultConstructor() {
+        Code code = addMethod(ACC_PUBLIC, "<init>", "()V");
+        code.load("Ljava/lang/Object;", 0);
+        code.invokespecial(superName, "<init>", "()V");
+        code.returnValue("V");
+    }
+
+    public byte[] toBytes() {
+        try {
+            int thisIndex = classConstant(name);
+            int superIndex = classConstant(superName);
+            List<int[]> fieldEntries = new ArrayList<int[]>();
+            for (Object[] field : fields) {
+                fieldEntries.add(new int[] { (Integer) field[0],
+                                             utf8((String) field[1]),
+                                             utf8((String) field[2]) });
+            }
+            int codeName = utf8("Code");
+            List<int[]> methodEntries = new ArrayList<int[]>();
+            for (Object[] method : methods) {
+                methodEntries.add(new int[] { (Integer) method[0],
+                                              utf8((String) method[1]),
+                                              utf8((String) method[2]) });
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(constantCount);
+            poolOut.flush();
+            out.write(pool.toByteArray());
+            out.writeShort(access | ACC_SUPER);
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(0);              // interfaces
+
+            out.writeShort(fieldEntries.size());
+            for (int[] field : fieldEntries) {
+                out.writeShort(field[0]);
+                out.writeShort(field[1]);
+                out.writeShort(field[2]);
+                out.writeShort(0);
+            }
+
+            out.writeShort(methods.size());
+            for (int i = 0; i < methods.size(); ++i) {
+                int[] entry = methodEntries.get(i);
+                Code code = (Code) methods.get(i)[3];
+                byte[] body = code.getBytes();
+                out.writeShort(entry[0]);
+                out.writeShort(entry[1]);
+                out.writeShort(entry[2]);
+                out.writeShort(1);
+                out.writeShort(codeName);
+                out.writeInt(12 + body.length);
+                out.writeShort(code.getMaxStack());
+                out.writeShort(code.getMaxLocals());
+                out.writeInt(body.length);
+                out.write(body);
+                out.writeShort(0);          // exception table
+                out.writeShort(0);          // attributes
+            }
+
+            out.writeShort(0);              // class attributes
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private int constant(String key, int tag, int first, int second)
+            throws IOException {
+        Integer rv = constants.get(key);
+        if (rv != null) {
+            return rv;
+        }
+        poolOut.writeByte(tag);
+        poolOut.writeShort(first);
+        if (second >= 0) {
+            poolOut.writeShort(second);
+        }
+        constants.put(key, constantCount);
+        return constantCount++;
+    }
+
+    int utf8(String text) {
+        try {
+            String key = "U" + text;
+            Integer rv = constants.get(key);
+            if (rv != null) {
+                return rv;
+            }
+            poolOut.writeByte(CONSTANT_UTF8);
+            poolOut.writeUTF(text);
+            constants.put(key, constantCount);
+            return constantCount++;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    int integer(int value) {
+        try {
+            String key = "I" + value;
+            Integer rv = constants.get(key);
+            if (rv != null) {
+                return rv;
+            }
+            poolOut.writeByte(CONSTANT_INTEGER);
+            poolOut.writeInt(value);
+            constants.put(key, constantCount);
+            return constantCount++;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    int classConstant(String className) {
+        try {
+            int nameIndex = utf8(className);
+            return constant("C" + className, CONSTANT_CLASS, nameIndex, -1);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    int string(String text) {
+        try {
+            int textIndex = utf8(text);
+            return constant("S" + text, CONSTANT_STRING, textIndex, -1);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    int fieldRef(String owner, String fieldName, String descriptor) {
+        return memberRef(CONSTANT_FIELDREF, owner, fieldName, descriptor);
+    }
+
+    int methodRef(String owner, String methodName, String descriptor) {
+        return memberRef(CONSTANT_METHODREF, owner, methodName, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String memberName,
+                          String descriptor) {
+        try {
+            int ownerIndex = classConstant(owner);
+            int nameIndex = utf8(memberName);
+            int typeIndex = utf8(descriptor);
+            int nameAndType = constant("N" + memberName + " " + descriptor,
+                                       CONSTANT_NAME_AND_TYPE, nameIndex, typeIndex);
+            return constant(tag + owner + "." + memberName + " " + descriptor,
+                            tag, ownerIndex, nameAndType);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
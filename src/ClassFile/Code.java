@@ -0,0 +1,284 @@
+package ClassFile;
+
+import java.io.ByteArrayOutputStream;
+
+/*
+ * Bytecode of one method. Each helper emits one instruction and keeps
+ *      the operand stack depth, so max_stack and max_locals come out
+ *      right without a separate analysis; a label takes the depth of the
+ *      first branch to it.
+ */
+public final class Code {
+    public static final int IADD = 0x60;
+    public static final int ISUB = 0x64;
+    public static final int IMUL = 0x68;
+    public static final int IXOR = 0x82;
+
+    public static final int IFEQ = 0x99;
+    public static final int IFNE = 0x9A;
+    public static final int IFLT = 0x9B;
+    public static final int IFGE = 0x9C;
+    public static final int IFGT = 0x9D;
+    public static final int IFLE = 0x9E;
+    public static final int IF_ICMPEQ = 0x9F;
+    public static final int IF_ICMPNE = 0xA0;
+    public static final int IF_ICMPLT = 0xA1;
+    public static final int IF_ICMPGE = 0xA2;
+    public static final int IF_ICMPGT = 0xA3;
+    public static final int IF_ICMPLE = 0xA4;
+    public static final int IF_ACMPEQ = 0xA5;
+    public static final int IF_ACMPNE = 0xA6;
+    public static final int GOTO = 0xA7;
+
+    private static final int T_INT = 10;
+
+    private final ClassWriter owner;
+    private final ByteArrayOutputStream bytes;
+    private int depth;
+    private int maxStack;
+    private int maxLocals;
+
+    Code(ClassWriter owner, int argumentSlots) {
+        this.owner = owner;
+        this.bytes = new ByteArrayOutputStream();
+        this.maxLocals = argumentSlots;
+    }
+
+    public int getMaxStack() {
+        return maxStack;
+    }
+
+    public int getMaxLocals() {
+        return maxLocals;
+    }
+
+    byte[] getBytes() {
+        return bytes.toByteArray();
+    }
+
+    /*
+     * Current length, the offset of the next instruction.
+     */
+    public int size() {
+        return bytes.size();
+    }
+
+    private void emit(int opcode, int stackEffect) {
+        bytes.write(opcode);
+        adjust(stackEffect);
+    }
+
+    private void adjust(int stackEffect) {
+        depth += stackEffect;
+        maxStack = Math.max(maxStack, depth);
+    }
+
+    private void emitShort(int value) {
+        bytes.write(value >> 8);
+        bytes.write(value);
+    }
+
+    public void iconst(int value) {
+        if (value >= -1 && value <= 5) {
+            emit(0x03 + value, 1);          // iconst_<n>
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            emit(0x10, 1);                  // bipush
+            bytes.write(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            emit(0x11, 1);                  // sipush
+            emitShort(value);
+        } else {
+            emit(0x13, 1);                  // ldc_w
+            emitShort(owner.integer(value));
+        }
+    }
+
+    public void aconstNull() {
+        emit(0x01, 1);
+    }
+
+    public void ldcString(String text) {
+        emit(0x13, 1);
+        emitShort(owner.string(text));
+    }
+
+    /*
+     * The Class object of an internal name or array descriptor.
+     */
+    public void ldcClass(String className) {
+        emit(0x13, 1);
+        emitShort(owner.classConstant(className));
+    }
+
+    /*
+     * iload or aload, depending on the type.
+     */
+    public void load(String type, int slot) {
+        local(Descriptors.isReference(type) ? 0x19 : 0x15, 0x1A, slot, 1);
+    }
+
+    public void store(String type, int slot) {
+        local(Descriptors.isReference(type) ? 0x3A : 0x36, 0x3B, slot, -1);
+    }
+
+    private void local(int opcode, int shortBase, int slot, int stackEffect) {
+        maxLocals = Math.max(maxLocals, slot + 1);
+        if (slot <= 3) {
+            // iload_0 is 0x1a, aload_0 0x2a, istore_0 0x3b, astore_0 0x4b
+            boolean reference = opcode == 0x19 || opcode == 0x3A;
+            emit(shortBase + (reference ? 16 : 0) + slot, stackEffect);
+        } else if (slot <= 255) {
+            emit(opcode, stackEffect);
+            bytes.write(slot);
+        } else {
+            emit(0xC4, stackEffect);        // wide
+            bytes.write(opcode);
+            emitShort(slot);
+        }
+    }
+
+    /*
+     * A binary int instruction: IADD, ISUB, IMUL or IXOR.
+     */
+    public void arithmetic(int opcode) {
+        emit(opcode, -1);
+    }
+
+    public void iaload() {
+        emit(0x2E, -1);
+    }
+
+    public void aaload() {
+        emit(0x32, -1);
+    }
+
+    public void iastore() {
+        emit(0x4F, -3);
+    }
+
+    public void arraylength() {
+        emit(0xBE, 0);
+    }
+
+    public void newIntArray() {
+        emit(0xBC, 0);
+        bytes.write(T_INT);
+    }
+
+    public void dup() {
+        emit(0x59, 1);
+    }
+
+    public void pop() {
+        emit(0x57, -1);
+    }
+
+    public void newObject(String className) {
+        emit(0xBB, 1);
+        emitShort(owner.classConstant(className));
+    }
+
+    public void checkcast(String className) {
+        emit(0xC0, 0);
+        emitShort(owner.classConstant(className));
+    }
+
+    public void getfield(String className, String name, String descriptor) {
+        emit(0xB4, 0);
+        emitShort(owner.fieldRef(className, name, descriptor));
+    }
+
+    public void putfield(String className, String name, String descriptor) {
+        emit(0xB5, -2);
+        emitShort(owner.fieldRef(className, name, descriptor));
+    }
+
+    public void getstatic(String className, String name, String descriptor) {
+        emit(0xB2, 1);
+        emitShort(owner.fieldRef(className, name, descriptor));
+    }
+
+    public void putstatic(String className, String name, String descriptor) {
+        emit(0xB3, -1);
+        emitShort(owner.fieldRef(className, name, descriptor));
+    }
+
+    public void invokevirtual(String className, String name, String descriptor) {
+        invoke(0xB6, className, name, descriptor, 1);
+    }
+
+    public void invokespecial(String className, String name, String descriptor) {
+        invoke(0xB7, className, name, descriptor, 1);
+    }
+
+    public void invokestatic(String className, String name, String descriptor) {
+        invoke(0xB8, className, name, descriptor, 0);
+    }
+
+    private void invoke(int opcode, String className, String name,
+                        String descriptor, int receiver) {
+        int pushed = Descriptors.returnType(descriptor).equals("V") ? 0 : 1;
+        emit(opcode, pushed - receiver - Descriptors.argumentSlots(descriptor));
+        emitShort(owner.methodRef(className, name, descriptor));
+    }
+
+    /*
+     * Conditional branch or GOTO to target.
+     */
+    public void branch(int opcode, Label target) {
+        int popped = opcode == GOTO ? 0
+                   : opcode >= IF_ICMPEQ ? 2
+                   : 1;
+        int at = bytes.size();
+        emit(opcode, -popped);
+        if (target.depth < 0) {
+            target.depth = depth;
+        }
+        if (target.isPlaced()) {
+            emitShort(offset(target.position - at));
+        } else {
+            target.fixups.add(new int[] { at });
+            emitShort(0);
+        }
+    }
+
+    public void place(Label label) {
+        if (label.isPlaced()) {
+            throw new IllegalStateException("label placed twice");
+        }
+        label.position = bytes.size();
+        if (label.depth >= 0) {
+            depth = label.depth;
+        } else {
+            label.depth = depth;
+        }
+        byte[] current = bytes.toByteArray();
+        for (int[] fixup : label.fixups) {
+            int value = offset(label.position - fixup[0]);
+            current[fixup[0] + 1] = (byte) (value >> 8);
+            current[fixup[0] + 2] = (byte) value;
+        }
+        if (!label.fixups.isEmpty()) {
+            bytes.reset();
+            bytes.write(current, 0, current.length);
+        }
+    }
+
+    private static int offset(int value) {
+        if (value < Short.MIN_VALUE || value > Short.MAX_VALUE) {
+            throw new IllegalStateException("method too large for 16-bit branches");
+        }
+        return value;
+    }
+
+    /*
+     * ireturn, areturn or, for "V", return.
+     */
+    public void returnValue(String type) {
+        if (type.equals("V")) {
+            emit(0xB1, 0);
+        } else {
+            emit(Descriptors.isReference(type) ? 0xB0 : 0xAC, -1);
+        }
+    }
+}
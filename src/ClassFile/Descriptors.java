@@ -0,0 +1,46 @@
+package ClassFile;
+
+import java.util.*;
+
+/*
+ * Pieces of method descriptors, for stack and local slot accounting.
+ *      Only one-slot types occur (no long or double).
+ */
+public final class Descriptors {
+    private Descriptors() { }
+
+    /*
+     * Argument types of a method descriptor, e.g. ["I", "[I", "LFoo;"].
+     */
+    public static List<String> arguments(String descriptor) {
+        List<String> rv = new ArrayList<String>();
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            int start = i;
+            while (descriptor.charAt(i) == '[') {
+                ++i;
+            }
+            if (descriptor.charAt(i) == 'L') {
+                i = descriptor.indexOf(';', i);
+            }
+            ++i;
+            rv.add(descriptor.substring(start, i));
+        }
+        return rv;
+    }
+
+    public static String returnType(String descriptor) {
+        return descriptor.substring(descriptor.indexOf(')') + 1);
+    }
+
+    static int argumentSlots(String descriptor) {
+        return arguments(descriptor).size();
+    }
+
+    /*
+     * Whether values of the type go through the a-prefixed instructions.
+     */
+    public static boolean isReference(String type) {
+        return type.startsWith("L") || type.startsWith("[");
+    }
+}
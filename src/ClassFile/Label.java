@@ -0,0 +1,19 @@
+package ClassFile;
+
+import java.util.*;
+
+/*
+ * A branch target inside one Code. Branches to a label that is not
+ *      placed yet leave a hole that place() fills in.
+ */
+public final class Label {
+    int position = -1;
+    // operand stack depth on arrival, -1 until a branch or place() sets it
+    int depth = -1;
+    // offsets of the branch opcodes still waiting for the position
+    final List<int[]> fixups = new ArrayList<int[]>();
+
+    public boolean isPlaced() {
+        return position >= 0;
+    }
+}
@@ -5,270 +5,327 @@ import java.util.*;
 import AST.*;
 import AST.Visitor.*;
 import IntermediateCode.IntermediateCode;
+import Layout.*;
 import Semantic.*;
 
 public class CodeGenerator implements Visitor {
+    /*
+     * Where a failed array bounds check jumps; see boundsTrap().
+     */
+    static final String BOUNDS_TRAP = "array_bounds_error";
+
+    /*
+     * Internal register calling convention (setRegisterCalls), shared
+     *      with OptimizingCodeGenerator:
+     *
+     *      - the receiver is passed in %ecx and the first two arguments in
+     *        ARGUMENT_REGISTERS; the rest are pushed first to last, so
+     *        argument i >= 2 is at 4 * (1 + n - i)(%ebp) in the callee;
+     *      - %eax, %ecx and %edx are clobbered by a call and the result
+     *        comes back in %eax;
+     *      - %ebx, %esi and %edi are callee-saved, as in the C ABI, so put
+     *        and mjmalloc keep them too. This backend keeps `this` in %esi
+     *        and the register arguments in PARAMETER_REGISTERS for the
+     *        whole method.
+     *
+     *      Calls to put and mjmalloc always use the C ABI.
+     */
+    static final String[] ARGUMENT_REGISTERS = { "%edx", "%eax" };
+    private static final String[] PARAMETER_REGISTERS = { "%edi", "%ebx" };
+    private static final String THIS_REGISTER = "%esi";
+
     private List<String> code;
     private String currentClass;
     private String currentMethod;
     private TypeVisitor declaredTypes;
-    private Map<String, Integer> currentMethodParameters;
-    private Map<String, Integer> currentMethodVariables;
+    private ProgramLayout layout;
+    private FrameLayout currentFrame;
     private int lastLabel;
-    private Map<String, Map> vTable;
     private String lastSeenType;
     private IntermediateCode intermediateCode;
+    private int callSites;
+    private int devirtualized;
+    private boolean safeArrays;
+    private boolean registerCalls;
+    // callee-saved registers pushed by the current method (-R only)
+    private List<String> savedRegisters;
+    // frame word holding the target of a virtual call (-R only)
+    private String dispatchSlot;
+    private boolean dispatched;
+    // leaf method without a frame pointer, see visit(MethodDecl)
+    private boolean frameless;
+    // words pushed since the prologue, which moves %esp-based operands
+    private int stackDepth;
+    private int methods;
+    private int framelessMethods;
+    // IR of each method by label, for leaf detection and slot sharing
+    private Map<String, IR.Function> functions;
+    // frame word of each local of the current method, and how many
+    private Map<String, Integer> localSlots;
+    private int localWords;
+    private int declaredLocals;
+    private int usedLocalSlots;
 
     public CodeGenerator(TypeVisitor declaredTypes, IntermediateCode intermediate) {
+        this(declaredTypes, intermediate, intermediate != null ?
+                intermediate.getLayout() : new ProgramLayout(declaredTypes));
+    }
+
+    public CodeGenerator(TypeVisitor declaredTypes,
+                         IntermediateCode intermediate,
+                         ProgramLayout layout) {
         super();
         this.code = new ArrayList<String>();
         this.currentClass = null;
         this.currentMethod = null;
-        this.currentMethodParameters = null;
+        this.currentFrame = null;
+        this.layout = layout;
         this.declaredTypes = declaredTypes;
         this.lastLabel = 0;
-        this.vTable = null;
         this.lastSeenType = null;
         this.intermediateCode = intermediate;
+        this.callSites = 0;
+        this.devirtualized = 0;
     }
 
     public List<String> getCode() {
         return code;
     }
 
-    private String getLabel() {
-        String rv = "L" + lastLabel;
-        ++lastLabel;
-        return rv;
+    public int getCallSiteCount() {
+        return callSites;
     }
 
     /*
-     * vTable: key=class name, value=(method name=>slot number)
+     * Call sites emitted as a direct call because the class hierarchy
+     *      leaves a single possible target.
      */
-    private void createVTables() {
-        this.vTable = new HashMap<String, Map>();
+    public int getDevirtualizedCount() {
+        return devirtualized;
+    }
 
-        Map classes = this.declaredTypes.getClasses();
-        Iterator cls_it = classes.entrySet().iterator();
-        while(cls_it.hasNext()) {
-            Map.Entry clsMapEntry = (Map.Entry)cls_it.next();
+    public int getMethodCount() {
+        return methods;
+    }
 
-            String clsName = (String)clsMapEntry.getKey();
-            ClassNode clsNode = (ClassNode)clsMapEntry.getValue();
+    /*
+     * Methods emitted without a frame pointer.
+     */
+    public int getFramelessCount() {
+        return framelessMethods;
+    }
 
-            Map methods = collectVtableMethods(clsName, clsNode, classes);
+    public int getDeclaredLocalCount() {
+        return declaredLocals;
+    }
 
-            List<ClassNode> clsRel = createClsRelList(clsNode, classes);
-            HashMap<String, Integer> clsVTable = constructTableEntry(clsName,
-                                                                     methods,
-                                                                     clsRel,
-                                                                     clsNode);
-            this.vTable.put(clsName, clsVTable);
-        }
+    /*
+     * Frame words the locals of all methods take once locals with
+     *      disjoint lifetimes share one.
+     */
+    public int getLocalSlotCount() {
+        return usedLocalSlots;
+    }
+
+    public ProgramLayout getLayout() {
+        return layout;
     }
 
     /*
-     * clsRel is used to start formatting vtable entry based on older classes
-     *
-     *      VTable Representation:
-     *          Foo$$:
-     *              .long 0 # null parent   [slot 0]
-     *              .long Foo$MethodA       [slot 1]
-     *              .long Foo$MethodB       [slot 2]
-     *          Bar$$
-     *              .long Foo$$             [slot 0]
-     *              .long Foo$MethodA       [slot 1]
-     *              .long Bar$MethodB       [slot 2]
-     *
-     * @return: HashMap, key=method, value=slot #
+     * When set, array accesses compare the index with the length stored
+     *      at -4(array) and jump to BOUNDS_TRAP when it is out of range.
      */
-    private HashMap<String, Integer> constructTableEntry(String clsName,
-                                     Map<String, String> methods,
-                                     List<ClassNode> clsRel,
-                                     ClassNode clsNode) {
-        HashMap<String, Integer> clsVTable = new HashMap<String, Integer>();
-        int slotNumber = 1;
-
-        String clsParent = "";
-        if(clsNode instanceof ClassWithParentNode)
-            clsParent = ((ClassWithParentNode)clsNode).getParent() + "$$";
-        else
-            clsParent = "0";
-        code.add(clsName + "$$:");
-        code.add("    .long " + clsParent);
-
-        HashSet<String> recordedMethods = new HashSet<String>();
-
-        List<ClassNode> clsRelList = clsRel;
-        Iterator clsRel_it = clsRelList.iterator();
-        while(clsRel_it.hasNext()) {
-            ClassNode currCls = (ClassNode)clsRel_it.next();
-            Map<String, MethodNode> currMeth = getMethods(currCls);
-            Iterator currMeth_it = currMeth.keySet().iterator();
-            while(currMeth_it.hasNext()) {
-                String meth = (String)currMeth_it.next();
-                if(!recordedMethods.contains(meth)) {
-                    String methEntry = methods.get(meth);
-                    code.add("    .long " + methEntry);
-                    clsVTable.put(meth, new Integer(slotNumber++));
-                    recordedMethods.add(meth);
-                }
-            }
-        }
-        return clsVTable;
+    public void setSafeArrays(boolean safeArrays) {
+        this.safeArrays = safeArrays;
     }
 
     /*
-     * Collects all the methods visible by a class, as well as the code
-     *      source of each method
+     * When set, MiniJava methods call each other with the register
+     *      convention described at ARGUMENT_REGISTERS instead of passing
+     *      everything on the stack and reloading %ecx after each call.
      */
-    private Map<String, String> collectVtableMethods(String clsName,
-                                                     ClassNode clsNode,
-                                                     Map classes) {
-        Map<String, String> methods = new HashMap<String, String>();
-
-        String currClsName = clsName;
-        ClassNode currCls = clsNode;
-
-        while(currCls instanceof ClassWithParentNode) {
-            Map<String, MethodNode> currMethods = getMethods(currCls);
-            Iterator method_it = currMethods.keySet().iterator();
-            while(method_it.hasNext()) {
-                String methodName = (String)method_it.next();
-                if(!methods.containsKey((String)methodName)) {
-                    methods.put(methodName, currClsName + "$" + methodName);
-                }
-            }
+    public void setRegisterCalls(boolean registerCalls) {
+        this.registerCalls = registerCalls;
+    }
 
-            currClsName = ((ClassWithParentNode)currCls).getParent();
-            currCls = (ClassNode)classes.get(currClsName);
-        }
+    /*
+     * The routine failed bounds checks jump to. There is no exception
+     *      to throw, so it stops the program with an invalid opcode.
+     */
+    static List<String> boundsTrap() {
+        List<String> rv = new ArrayList<String>();
+        rv.add(BOUNDS_TRAP + ":");
+        rv.add("    # array index out of bounds");
+        rv.add("    ud2");
+        return rv;
+    }
+
+    private String getLabel() {
+        String rv = "L" + lastLabel;
+        ++lastLabel;
+        return rv;
+    }
 
-        // finish adding methods from base class...
-        Map<String, MethodNode> currMethods = getMethods(currCls);
-        Iterator method_it = currMethods.keySet().iterator();
-        while(method_it.hasNext()) {
-            String methodName = (String)method_it.next();
-            if(!methods.containsKey(methodName)) {
-                methods.put(methodName, currClsName + "$" + methodName);
+    /*
+     * Emits every dispatch table, parents before children.
+     */
+    private void createVTables() {
+        for (String className : layout.getClassOrder()) {
+            VTable table = layout.getVTable(className);
+            VTable parent = table.getParent();
+
+            code.add(table.getLabel() + ":");
+            code.add("    .long " + (parent == null ? "0" : parent.getLabel()));
+            for (int slot = 1; slot <= table.getMethodCount(); ++slot) {
+                code.add("    .long " + table.getEntry(slot));
             }
         }
-        return methods;
+    }
+
+    private Slot resolve(String name) {
+        return currentFrame.resolve(name);
     }
 
     /*
-     * Get all methods associated with a class
+     * The IR of a method, or null without intermediate code; then every
+     *      method gets a frame and one word per local.
      */
-    private Map<String, MethodNode> getMethods(ClassNode cls) {
-        Map<String, MethodNode> methods = new HashMap<String, MethodNode>();
-
-        Map<String, Node> allAttrs = cls.getMembers();
-        Iterator allAttrs_it = allAttrs.entrySet().iterator();
-        while(allAttrs_it.hasNext()) {
-            Map.Entry attr_entry = (Map.Entry)allAttrs_it.next();
-            if(attr_entry.getValue() instanceof MethodNode) {
-                String methodName = (String)attr_entry.getKey();
-                MethodNode method = (MethodNode)attr_entry.getValue();
-                methods.put(methodName, method);
+    private IR.Function function(String label) {
+        if (functions == null) {
+            functions = new HashMap<String, IR.Function>();
+            if (intermediateCode != null) {
+                for (IR.Function function : intermediateCode.getFunctions()) {
+                    functions.put(function.getLabel(), function);
+                }
             }
         }
-        return methods;
+        return functions.get(label);
     }
 
     /*
-     * Construct List: This is used to backtrack to make sure we vtable
-     *      entries are aligned uniformly according the the ancestors.
-     *
-     *      [GreatGrandpa] -> [Grandpa] -> [pa] -> [me]
-     *          ^
-     *        HEAD
+     * Gives the locals of the current method their frame words: locals
+     *      whose lifetimes in the IR never overlap share one (see
+     *      IR.StackSlots). A local hidden by a parameter of the same name
+     *      is never accessed and shares word 0.
      */
-    private List<ClassNode> createClsRelList(ClassNode clsNode, Map classes) {
-        ClassNode currClsNode = clsNode;
-        Map<String, ClassNode> classMap = classes;
-
-        List<ClassNode> clsRel = new LinkedList<ClassNode>();
-        clsRel.add(clsNode);
-
-        while(currClsNode instanceof ClassWithParentNode) {
-            ClassNode nextClsNode = classMap.get(((ClassWithParentNode)
-                                                currClsNode).getParent());
-            clsRel.add(0, nextClsNode);
-            currClsNode = nextClsNode;
+    private void planLocals(IR.Function function) {
+        localSlots = new HashMap<String, Integer>();
+        List<Slot> locals = currentFrame.getLocalList();
+        if (function == null) {
+            for (Slot local : locals) {
+                localSlots.put(local.getName(), local.getIndex());
+            }
+            localWords = locals.size();
+        } else {
+            Map<String, Integer> registers = new HashMap<String, Integer>();
+            for (int reg = 1 + currentFrame.getParameterCount();
+                     reg < function.getRegisterCount(); ++reg) {
+                String name = function.getRegisterName(reg);
+                if (name != null && !registers.containsKey(name)) {
+                    registers.put(name, reg);
+                }
+            }
+            List<Integer> shared = new ArrayList<Integer>();
+            for (Slot local : locals) {
+                Integer reg = registers.get(local.getName());
+                if (reg != null && !currentFrame.getParameters()
+                                                .containsKey(local.getName())) {
+                    shared.add(reg);
+                }
+            }
+            IR.StackSlots slots = new IR.StackSlots(function, shared);
+            for (Slot local : locals) {
+                Integer reg = registers.get(local.getName());
+                localSlots.put(local.getName(),
+                               shared.contains(reg) ? slots.getSlot(reg) : 0);
+            }
+            localWords = slots.getSlotCount();
         }
-        return clsRel;
+        declaredLocals += locals.size();
+        usedLocalSlots += localWords;
     }
 
-    public Map<String, Integer> getMethodParameterOffsets(
-            String className,
-            String methodName) {
-        Map<Integer, String> parameterPositions =
-            ((MethodNode)(
-                declaredTypes
-                .getClasses()
-                .get(className)
-                .getMembers()
-                .get(methodName)))
-            .getParametersPositions();
-        Map<String, Integer> rv = new HashMap<String, Integer>();
-
-        for (Map.Entry<Integer, String> entry :
-                parameterPositions.entrySet()) {
-            rv.put(entry.getValue(), entry.getKey());
+    /*
+     * Operand for a slot: parameters and locals live in the frame, fields
+     *      are addressed through this (%ecx). With register calls, this
+     *      and the first two parameters stay in registers and the locals
+     *      sit below the saved registers.
+     */
+    private String operand(Slot slot) {
+        if (slot.getKind() == Slot.Kind.FIELD) {
+            return slot.getOffset() + "(" + thisRegister() + ")";
         }
-
-        return rv;
+        if (registerCalls && slot.getKind() == Slot.Kind.PARAMETER &&
+                slot.getIndex() < PARAMETER_REGISTERS.length) {
+            return PARAMETER_REGISTERS[slot.getIndex()];
+        }
+        if (slot.getKind() == Slot.Kind.LOCAL) {
+            return frame(-4 * (savedRegisters.size() + 1 +
+                               localSlots.get(slot.getName())));
+        }
+        return frame(slot.getOffset());
     }
 
-    public Map<String, Integer> getMethodVariableOffsets(
-            String className,
-            String methodName) {
-        String[] localVariables =
-            ((MethodNode)(
-                declaredTypes
-                .getClasses()
-                .get(className)
-                .getMembers()
-                .get(methodName)))
-            .getLocalVariables()
-            .keySet()
-            .toArray(new String[0]);
-        Arrays.sort(localVariables);
-
-        Map<String, Integer> rv = new HashMap<String, Integer>();
-        int i = 0;
-        for (String localvar : localVariables) {
-            rv.put(localVariables[i], i);
-            ++i;
+    /*
+     * Memory operand for a word at offset from where %ebp would point.
+     *      A frameless method saved no %ebp, so the words below it move up
+     *      one; everything is then addressed off %esp, corrected by the
+     *      temporaries pushed so far.
+     */
+    private String frame(int offset) {
+        if (!frameless) {
+            return offset + "(%ebp)";
         }
+        int fromEntry = offset > 0 ? offset - 4 : offset;
+        int words = savedRegisters.size() + localWords + stackDepth;
+        return (fromEntry + 4 * words) + "(%esp)";
+    }
 
-        return rv;
+    private void push(String operand) {
+        code.add("    pushl " + operand);
+        ++stackDepth;
     }
 
-    public Map<String, Integer> getInstanceVariableOffsets(
-            String className) {
-        Map<String, ClassNode> classes = declaredTypes.getClasses();
+    private void pop(String register) {
+        code.add("    popl " + register);
+        --stackDepth;
+    }
 
-        Map<String, Integer> rv = new HashMap<String, Integer>();
-        int currentPosition = 1; // 0 has the vtable pointer
-        ClassNode klass = classes.get(className);
+    /*
+     * Drops words pushed for a call.
+     */
+    private void release(int words) {
+        code.add("    addl $" + (4 * words) + ", %esp");
+        stackDepth -= words;
+    }
 
-        while (true) {
-            for (Map.Entry<String, Node> entry :
-                    klass.getMembers().entrySet()) {
-                if (!(entry.getValue() instanceof MethodNode)) {
-                    rv.put(entry.getKey(), currentPosition++);
-                }
-            }
+    /*
+     * A frameless method makes no call, so this never leaves %ecx.
+     */
+    private String thisRegister() {
+        return registerCalls && !frameless ? THIS_REGISTER : "%ecx";
+    }
 
-            if (klass instanceof ClassWithParentNode) {
-                klass = classes.get(((ClassWithParentNode)klass).getParent());
-            } else {
-                break;
-            }
+    /*
+     * After a call: the stack convention gets this back from the copy
+     *      saved below the locals; with register calls it is callee-saved.
+     *      Main has no this.
+     */
+    private void restoreThis() {
+        if (!registerCalls && currentMethod != null) {
+            code.add("    movl " + frame(-4 * (localWords + 1)) + ", %ecx");
         }
+    }
 
-        return rv;
+    private String describe(Slot slot) {
+        switch (slot.getKind()) {
+        case PARAMETER:
+            return "    # parameter " + slot.getName();
+        case LOCAL:
+            return "    # local var " + slot.getName();
+        default:
+            return "    # instance var " + slot.getName();
+        }
     }
 
     public void visit(Program n) {
@@ -281,6 +338,10 @@ public class CodeGenerator implements Visitor {
         for (int i = 0; i < size; ++i) {
             classDeclarations.elementAt(i).accept(this);
         }
+
+        if (safeArrays) {
+            code.addAll(boundsTrap());
+        }
     }
 
     public void visit(MainClass n) {
@@ -288,7 +349,25 @@ public class CodeGenerator implements Visitor {
         code.add("    .global asm_main");
         code.add("");
         code.add("asm_main:");
-        n.s.accept(this);
+        frameless = false;
+        stackDepth = 0;
+        if (registerCalls) {
+            // a frame only for the dispatch slot, if a virtual call needs it
+            savedRegisters = new ArrayList<String>();
+            dispatchSlot = "-4(%ebp)";
+            dispatched = false;
+            int prologue = code.size();
+            n.s.accept(this);
+            if (dispatched) {
+                code.addAll(prologue, Arrays.asList("    pushl %ebp",
+                                                    "    movl %esp, %ebp",
+                                                    "    subl $4, %esp"));
+                code.add("    movl %ebp, %esp");
+                code.add("    popl %ebp");
+            }
+        } else {
+            n.s.accept(this);
+        }
         code.add("    ret");
     }
 
@@ -328,29 +407,59 @@ public class CodeGenerator implements Visitor {
         currentClass = null;
     }
 
-    public void visit(VarDecl n) { }
+    /*
+     * Fields get no code. A local's initializer is stored like an
+     *      assignment, before the method body runs.
+     */
+    public void visit(VarDecl n) {
+        if (currentMethod != null && n.exp != null) {
+            new Assign(n.i, n.exp, n.getLine()).accept(this);
+        }
+    }
 
+    /*
+     * A method whose body makes no call (a leaf, typically an accessor)
+     *      gets no frame pointer: this stays in %ecx, and the locals and
+     *      stack arguments are addressed off %esp. Other methods get a
+     *      frame of exactly their locals, plus the saved this or, with
+     *      register calls, the dispatch slot when a virtual call uses it.
+     */
     public void visit(MethodDecl n) {
         currentMethod = n.i.s;
+        currentFrame = layout.getFrameLayout(currentClass, currentMethod);
+        IR.Function function = function(currentClass + "$" + currentMethod);
+        frameless = function != null && function.isLeaf();
+        stackDepth = 0;
+        ++methods;
+        if (frameless) {
+            ++framelessMethods;
+        }
+        planLocals(function);
+        int locals = localWords;
 
         code.add(currentClass + "$" + currentMethod + ":");
-        code.add("    pushl %ebp");
-        code.add("    movl %esp, %ebp");
-        code.add("    subl $" + (4 * n.vl.size()) + ", %esp");
-        code.add("    pushl %ecx");
-
-        currentMethodParameters = new HashMap<String, Integer>();
-        FormalList params = n.fl;
-        int paramsCount = params.size();
-        for (int i = 0; i < paramsCount; ++i) {
-            currentMethodParameters.put(params.elementAt(i).i.s, i);
+        int prologue;
+        if (registerCalls) {
+            prologue = registerPrologue();
+        } else {
+            savedRegisters = Collections.<String>emptyList();
+            if (!frameless) {
+                code.add("    pushl %ebp");
+                code.add("    movl %esp, %ebp");
+            }
+            if (locals > 0) {
+                code.add("    subl $" + (4 * locals) + ", %esp");
+            }
+            if (!frameless) {
+                code.add("    pushl %ecx");
+            }
+            prologue = -1;
         }
 
-        currentMethodVariables = new HashMap<String, Integer>();
         VarDeclList localVariables = n.vl;
         int variablesCount = localVariables.size();
         for (int i = 0; i < variablesCount; ++i) {
-            currentMethodVariables.put(localVariables.elementAt(i).i.s, i);
+            localVariables.elementAt(i).accept(this);
         }
 
         StatementList stmts = n.sl;
@@ -362,13 +471,77 @@ public class CodeGenerator implements Visitor {
         // Return value. Left at eax.
         n.e.accept(this);
 
-        code.add("    addl $" + (1 + 4 * n.vl.size()) + ", %esp");
-        code.add("    movl %ebp, %esp");
-        code.add("    popl %ebp");
+        if (prologue >= 0) {
+            int words = locals + (dispatched ? 1 : 0);
+            if (words > 0) {
+                code.add(prologue, "    subl $" + (4 * words) + ", %esp");
+            }
+        }
+        if (frameless) {
+            if (locals > 0) {
+                code.add("    addl $" + (4 * locals) + ", %esp");
+            }
+        } else if (registerCalls) {
+            code.add("    leal " + (-4 * savedRegisters.size()) + "(%ebp), %esp");
+        } else {
+            code.add("    movl %ebp, %esp");
+        }
+        for (int i = savedRegisters.size() - 1; i >= 0; --i) {
+            code.add("    popl " + savedRegisters.get(i));
+        }
+        if (!frameless) {
+            code.add("    popl %ebp");
+        }
         code.add("    ret");
 
-        currentMethodParameters = null;
+        currentFrame = null;
         currentMethod = null;
+        frameless = false;
+    }
+
+    /*
+     * Saves the callee-saved registers the method takes over and moves
+     *      this and the register arguments into them; a frameless method
+     *      leaves this in %ecx. Returns where the subl for the locals and
+     *      the dispatch slot goes once the body shows whether the slot is
+     *      needed, or -1 for a frameless method, which reserves its
+     *      locals here.
+     */
+    private int registerPrologue() {
+        savedRegisters = new ArrayList<String>();
+        if (!frameless) {
+            savedRegisters.add(THIS_REGISTER);
+        }
+        int registerParameters = Math.min(currentFrame.getParameterCount(),
+                                          PARAMETER_REGISTERS.length);
+        for (int i = 0; i < registerParameters; ++i) {
+            savedRegisters.add(PARAMETER_REGISTERS[i]);
+        }
+        int locals = localWords;
+        dispatchSlot = (-4 * (savedRegisters.size() + locals + 1)) + "(%ebp)";
+        dispatched = false;
+
+        if (!frameless) {
+            code.add("    pushl %ebp");
+            code.add("    movl %esp, %ebp");
+        }
+        for (String reg : savedRegisters) {
+            code.add("    pushl " + reg);
+        }
+        int rv = code.size();
+        if (frameless) {
+            rv = -1;
+            if (locals > 0) {
+                code.add("    subl $" + (4 * locals) + ", %esp");
+            }
+        } else {
+            code.add("    movl %ecx, " + THIS_REGISTER);
+        }
+        for (int i = 0; i < registerParameters; ++i) {
+            code.add("    movl " + ARGUMENT_REGISTERS[i] + ", " +
+                     PARAMETER_REGISTERS[i]);
+        }
+        return rv;
     }
 
     public void visit(Formal n) { }
@@ -393,9 +566,7 @@ public class CodeGenerator implements Visitor {
         String labelElse = getLabel();
         String labelEnd = getLabel();
 
-        n.e.accept(this);
-        code.add("    cmpl $0, %eax");
-        code.add("    je " + labelElse);
+        branch(n.e, labelElse, false);
         n.s1.accept(this);
         code.add("    jmp " + labelEnd);
         code.add(labelElse + ":");
@@ -411,90 +582,117 @@ public class CodeGenerator implements Visitor {
         code.add(labelStart + ":");
         n.s.accept(this);
         code.add(labelTest + ":");
-        n.e.accept(this);
-        code.add("    cmpl $0, %eax");
-        code.add("    jne " + labelStart);
+        branch(n.e, labelStart, true);
+    }
+
+    /*
+     * Condition context: jumps to target when e evaluates to jumpIf and
+     *      falls through otherwise. Comparisons become one cmpl and one
+     *      conditional jump, And and Not only rewire the targets; no 0/1
+     *      value is ever built.
+     */
+    private void branch(Exp e, String target, boolean jumpIf) {
+        if (e instanceof And) {
+            And and = (And) e;
+            if (jumpIf) {
+                String labelSkip = getLabel();
+                branch(and.e1, labelSkip, false);
+                branch(and.e2, target, true);
+                code.add(labelSkip + ":");
+            } else {
+                branch(and.e1, target, false);
+                branch(and.e2, target, false);
+            }
+        } else if (e instanceof Not) {
+            branch(((Not) e).e, target, !jumpIf);
+        } else if (e instanceof True || e instanceof False) {
+            if ((e instanceof True) == jumpIf) {
+                code.add("    jmp " + target);
+            }
+        } else if (e instanceof LessThan) {
+            compare(((LessThan) e).e1, ((LessThan) e).e2);
+            code.add("    " + (jumpIf ? "jl " : "jge ") + target);
+        } else if (e instanceof LessThanEqual) {
+            compare(((LessThanEqual) e).e1, ((LessThanEqual) e).e2);
+            code.add("    " + (jumpIf ? "jle " : "jg ") + target);
+        } else if (e instanceof GreatThan) {
+            compare(((GreatThan) e).e1, ((GreatThan) e).e2);
+            code.add("    " + (jumpIf ? "jg " : "jle ") + target);
+        } else if (e instanceof GreatThanEqual) {
+            compare(((GreatThanEqual) e).e1, ((GreatThanEqual) e).e2);
+            code.add("    " + (jumpIf ? "jge " : "jl ") + target);
+        } else if (e instanceof EqualEqual) {
+            compare(((EqualEqual) e).e1, ((EqualEqual) e).e2);
+            code.add("    " + (jumpIf ? "je " : "jne ") + target);
+        } else if (e instanceof NotEqual) {
+            compare(((NotEqual) e).e1, ((NotEqual) e).e2);
+            code.add("    " + (jumpIf ? "jne " : "je ") + target);
+        } else {
+            e.accept(this);
+            code.add("    cmpl $0, %eax");
+            code.add("    " + (jumpIf ? "jne " : "je ") + target);
+        }
+    }
+
+    /*
+     * Sets the flags for e1 - e2. A literal right operand goes straight
+     *      into the cmpl.
+     */
+    private void compare(Exp e1, Exp e2) {
+        e1.accept(this);
+        if (e2 instanceof IntegerLiteral) {
+            code.add("    cmpl $" + ((IntegerLiteral) e2).i + ", %eax");
+            return;
+        }
+        push("%eax");
+        e2.accept(this);
+        pop("%edx");
+        code.add("    cmpl %eax, %edx");
     }
 
     public void visit(Print n) {
         n.e.accept(this);
-        code.add("    pushl %eax");
+        push("%eax");
         code.add("    call put");
-        code.add("    addl $4, %esp");
-        code.add("    movl (%esp), %ecx");
+        release(1);
+        restoreThis();
     }
 
     public void visit(Assign n) {
         n.e.accept(this);
 
-        String nid = n.i.s;
-
-        Map<String, Integer> paramOffsets =
-            getMethodParameterOffsets(currentClass, currentMethod);
-        Map<String, Integer> localVars =
-            getMethodVariableOffsets(currentClass, currentMethod);
-        Map<String, Integer> instanceVars =
-            getInstanceVariableOffsets(currentClass);
-
-        if (paramOffsets.containsKey(nid)) {
-            int offset = 4 * (1 + paramOffsets.size() - paramOffsets.get(nid));
-            code.add("    # parameter " + nid);
-            code.add("    movl %eax, " + offset + "(%ebp)");
-        } else if (localVars.containsKey(nid)) {
-            code.add("    # local var " + nid);
-            code.add("    movl %eax, " +
-                    (-4 * (1 + localVars.get(nid))) +
-                    "(%ebp)");
-        } else if (instanceVars.containsKey(nid)) {
-            code.add("    # instance var " + nid);
-            code.add("    movl %eax, " +
-                    (4 * instanceVars.get(nid)) +
-                    "(%ecx)");
+        Slot slot = resolve(n.i.s);
+        if (slot != null) {
+            code.add(describe(slot));
+            code.add("    movl %eax, " + operand(slot));
         } else {
             System.err.println("SHOULD NOT HAVE GOTTEN HERE!!");
         }
     }
 
+    /*
+     * Only %eax and %edx are used, so this stays in %ecx.
+     */
     public void visit(ArrayAssign n) {
         n.e2.accept(this);
-        code.add("    pushl %eax");
+        push("%eax");
 
         n.e1.accept(this);
-        code.add("    pushl %eax");
-
-        String nid = n.i.s;
-
-        Map<String, Integer> paramOffsets =
-            getMethodParameterOffsets(currentClass, currentMethod);
-        Map<String, Integer> localVars =
-            getMethodVariableOffsets(currentClass, currentMethod);
-        Map<String, Integer> instanceVars =
-            getInstanceVariableOffsets(currentClass);
-
-        code.add("    popl %edx");
-        code.add("    popl %eax");
-        if (paramOffsets.containsKey(nid)) {
-            int offset = 4 * (1 + paramOffsets.size() - paramOffsets.get(nid));
-            code.add("    # parameter " + nid);
-            code.add("    movl " + offset + "(%ebp), %ecx");
-        } else if (localVars.containsKey(nid)) {
-            code.add("    # local var " + nid);
-            code.add("    movl " +
-                    (-4 * (1 + localVars.get(nid))) +
-                    "(%ebp), %ecx");
-        } else if (instanceVars.containsKey(nid)) {
-            code.add("    # instance var " + nid);
-            code.add("    movl " +
-                    (4 * instanceVars.get(nid)) +
-                    "(%ecx), %ecx");
+
+        Slot slot = resolve(n.i.s);
+        if (slot != null) {
+            code.add(describe(slot));
+            code.add("    movl " + operand(slot) + ", %edx");
         } else {
             System.err.println("SHOULD NOT HAVE GOTTEN HERE!!");
         }
-        code.add("    shl $2, %edx");
-        code.add("    addl %ecx, %edx");
-        code.add("    # DAVIDEBUG edx now contains array item addr");
+        if (safeArrays) {
+            code.add("    cmpl -4(%edx), %eax");
+            code.add("    jae " + BOUNDS_TRAP);
+        }
+        code.add("    leal (%edx,%eax,4), %edx");
+        pop("%eax");
         code.add("    movl %eax, (%edx)");
-        code.add("    movl (%esp), %ecx");
     }
 
     public void visit(And n) {
@@ -523,9 +721,9 @@ public class CodeGenerator implements Visitor {
         String labelEnd = getLabel();
 
         n.e1.accept(this);
-        code.add("    pushl %eax");
+        push("%eax");
         n.e2.accept(this);
-        code.add("    popl %edx");
+        pop("%edx");
         code.add("    cmpl %eax, %edx");
         code.add("    jl " + labelTrue);
         code.add("    movl $0, %eax");
@@ -537,38 +735,50 @@ public class CodeGenerator implements Visitor {
 
     public void visit(Plus n) {
         n.e1.accept(this);
-        code.add("    pushl %eax");
+        push("%eax");
         n.e2.accept(this);
-        code.add("    popl %edx");
+        pop("%edx");
         code.add("    addl %edx, %eax");
     }
 
     public void visit(Minus n) {
         n.e1.accept(this);
-        code.add("    pushl %eax");
+        push("%eax");
         n.e2.accept(this);
         code.add("    movl %eax, %edx");
-        code.add("    popl %eax");
+        pop("%eax");
         code.add("    subl %edx, %eax");
     }
 
+    /*
+     * A literal factor on either side is multiplied in without imull where
+     *      shifts or leal do; see Multiplication.
+     */
     public void visit(Times n) {
+        if (n.e1 instanceof IntegerLiteral || n.e2 instanceof IntegerLiteral) {
+            boolean left = n.e1 instanceof IntegerLiteral;
+            (left ? n.e2 : n.e1).accept(this);
+            int factor = ((IntegerLiteral) (left ? n.e1 : n.e2)).i;
+            code.addAll(Multiplication.byConstant("%eax", "%eax", factor));
+            return;
+        }
         n.e1.accept(this);
-        code.add("    pushl %eax");
+        push("%eax");
         n.e2.accept(this);
-        code.add("    popl %edx");
+        pop("%edx");
         code.add("    imul %edx, %eax");
     }
 
     public void visit(ArrayLookup n) {
         n.e1.accept(this);
-        code.add("    pushl %eax");
+        push("%eax");
         n.e2.accept(this);
-        code.add("    popl %edx");
-        code.add("    shl $2, %eax");
-        code.add("    # DAVIDEBUG eax now contains array item addr");
-        code.add("    addl %edx, %eax");
-        code.add("    movl (%eax), %eax");
+        pop("%edx");
+        if (safeArrays) {
+            code.add("    cmpl -4(%edx), %eax");
+            code.add("    jae " + BOUNDS_TRAP);
+        }
+        code.add("    movl (%edx,%eax,4), %eax");
     }
 
     public void visit(ArrayLength n) {
@@ -581,53 +791,70 @@ public class CodeGenerator implements Visitor {
         ExpList params = n.el;
         for (int i = params.size() - 1; i >= 0; --i) {
             params.elementAt(i).accept(this);
-            code.add("    pushl %eax");
+            push("%eax");
         }
 
         // Get invocant
         n.e.accept(this);
         code.add("    movl %eax, %ecx");
 
-        String typeOfReturnValue = null;
-        Map<String, ClassNode> classes = declaredTypes.getClasses();
-        if (classes.containsKey(lastSeenType)) {
-            Node retType = null;
-            ClassNode klass = classes.get(lastSeenType);
-            while (klass != null) {
-                Map<String, Node> members = klass.getMembers();
-                if (members.containsKey(n.i.s)) {
-                    retType = ((MethodNode)(members.get(n.i.s))).getReturnType();
-                    break;
-                } else if (klass instanceof ClassWithParentNode) {
-                    klass = classes.get(((ClassWithParentNode)klass).getParent());
-                } else {
-                    break;
-                }
-            }
-
-            if (retType instanceof ClassNode) {
-                typeOfReturnValue = ((ClassNode)retType).getName();
-            }
+        VTable table = layout.getVTable(lastSeenType);
+        int slotNumber = table.getSlot(n.i.s);
 
+        String typeOfReturnValue = null;
+        Node retType = table.getMethod(slotNumber).getReturnType();
+        if (retType.getType() == NodeType.CLASS) {
+            typeOfReturnValue = retType.iam;
         }
 
-        Map<String, Integer> clsVTable;
-        clsVTable = (Map<String, Integer>)this.vTable.get(lastSeenType);
-        int slotNumber = (Integer)clsVTable.get(n.i.s);
-
-        code.add("    movl (%eax), %eax");
-        code.add("    addl $" + (slotNumber * 4) + ", %eax");
-        code.add("    movl (%eax), %eax");
-        code.add("    call *%eax");
+        // only one implementation can be reached: call it directly
+        String implementor = layout.getHierarchy()
+                                   .getUniqueImplementor(lastSeenType, n.i.s);
+        ++callSites;
+        if (registerCalls) {
+            registerCall(params.size(), implementor == null ? null
+                         : implementor + "$" + n.i.s, slotNumber);
+        } else if (implementor != null) {
+            ++devirtualized;
+            code.add("    call " + implementor + "$" + n.i.s);
+        } else {
+            code.add("    movl (%eax), %eax");
+            code.add("    addl $" + (slotNumber * 4) + ", %eax");
+            code.add("    movl (%eax), %eax");
+            code.add("    call *%eax");
+        }
 
-        code.add("    addl $" + (4 * params.size()) + ", %esp");
-        code.add("    movl (%esp), %ecx");
+        release(params.size());
+        restoreThis();
 
         if (typeOfReturnValue != null) {
             lastSeenType = typeOfReturnValue;
         }
     }
 
+    /*
+     * The arguments are on the stack, first one deepest, and the receiver
+     *      in %ecx. The first two are copied into ARGUMENT_REGISTERS; their
+     *      stack words stay behind and are popped with the rest, since the
+     *      callee never looks at them. A virtual target is looked up first
+     *      and called through dispatchSlot, as no scratch register is left.
+     */
+    private void registerCall(int count, String target, int slotNumber) {
+        if (target == null) {
+            code.add("    movl (%ecx), %eax");
+            code.add("    movl " + (4 * slotNumber) + "(%eax), %eax");
+            code.add("    movl %eax, " + dispatchSlot);
+            dispatched = true;
+        } else {
+            ++devirtualized;
+        }
+        for (int i = 0; i < Math.min(count, ARGUMENT_REGISTERS.length); ++i) {
+            code.add("    movl " + (4 * (count - 1 - i)) + "(%esp), " +
+                     ARGUMENT_REGISTERS[i]);
+        }
+        code.add("    call " + (target == null ? "*" + dispatchSlot : target));
+    }
+
     public void visit(IntegerLiteral n) {
         code.add("    movl $" + n.i + ", %eax");
     }
@@ -641,108 +868,49 @@ public class CodeGenerator implements Visitor {
     }
 
     public void visit(IdentifierExp n) {
-        String nid = n.s;
-
-        Map<String, Integer> paramOffsets =
-            getMethodParameterOffsets(currentClass, currentMethod);
-        Map<String, Integer> localVars =
-            getMethodVariableOffsets(currentClass, currentMethod);
-        Map<String, Integer> instanceVars =
-            getInstanceVariableOffsets(currentClass);
-
-        Map<String, ClassNode> classes = declaredTypes.getClasses();
-        ClassNode klass = classes.get(currentClass);
-        MethodNode method = (MethodNode)(klass.getMembers().get(currentMethod));
-
-        if (paramOffsets.containsKey(nid)) {
-            int offset = 4 * (1 + paramOffsets.size() - paramOffsets.get(nid));
-            code.add("    # parameter " + nid);
-            code.add("    movl " + offset + "(%ebp), %eax");
-
-            Node node = method.getParameters().get(paramOffsets.get(nid));
-            lastSeenType = node.iam;
-        } else if (localVars.containsKey(nid)) {
-            code.add("    # local var " + nid);
-            code.add("    movl " +
-                    (-4 * (1 + localVars.get(nid))) +
-                    "(%ebp), %eax");
-
-            Node node = method.getLocalVariables().get(nid);
-            lastSeenType = node.iam;
-        } else if (instanceVars.containsKey(nid)) {
-            code.add("    # instance var " + nid);
-            code.add("    movl " +
-                    (4 * instanceVars.get(nid)) +
-                    "(%ecx), %eax");
-
-            while (true) {
-                for (Map.Entry<String, Node> entry :
-                        klass.getMembers().entrySet()) {
-                    Node val = entry.getValue();
-                    if (entry.getKey().equals(nid) &&
-                            val.getType() == NodeType.CLASS) {
-                        lastSeenType = val.iam;
-                        break;
-                    }
-                }
-
-                if (klass instanceof ClassWithParentNode) {
-                    klass = classes.get(((ClassWithParentNode)klass).getParent());
-                } else {
-                    break;
-                }
-            }
-        } else {
+        Slot slot = resolve(n.s);
+        if (slot == null) {
             System.err.println("SHOULD NOT HAVE GOTTEN HERE!!");
+            return;
+        }
+
+        code.add(describe(slot));
+        code.add("    movl " + operand(slot) + ", %eax");
+
+        if (slot.getKind() != Slot.Kind.FIELD ||
+                slot.getType().getType() == NodeType.CLASS) {
+            lastSeenType = slot.getClassName();
         }
     }
 
     public void visit(This n) {
-        code.add("    movl %ecx, %eax");
+        code.add("    movl " + thisRegister() + ", %eax");
 
         lastSeenType = currentClass;
     }
 
     public void visit(NewArray n) {
         n.e.accept(this);
-        code.add("    pushl %eax");
+        push("%eax");
         code.add("    addl $1, %eax");
         code.add("    shl $2, %eax");
-        code.add("    pushl %eax");
+        push("%eax");
         code.add("    call mjmalloc");
-        code.add("    addl $4, %esp");
-        code.add("    popl %edx");
+        release(1);
+        pop("%edx");
         code.add("    movl %edx, (%eax)");
-        code.add("    movl (%esp), %ecx");
+        restoreThis();
         code.add("    addl $4, %eax");
     }
 
     public void visit(NewObject n) {
-        int objectSize = 4; // Space for vtable pointer
-
-        Map<String, ClassNode> classes =
-            declaredTypes.getClasses();
-        ClassNode klass = classes.get(n.i.s);
-        while (true) {
-            for (Node member : klass.getMembers().values()) {
-                if (!(member instanceof MethodNode)) {
-                    objectSize += 4;
-                }
-            }
-
-            if (klass instanceof ClassWithParentNode) {
-                klass = classes.get(((ClassWithParentNode)klass).getParent());
-            } else {
-                break;
-            }
-        }
+        int objectSize = layout.getClassLayout(n.i.s).getObjectSize();
 
-        code.add("    pushl $" + objectSize);
+        push("$" + objectSize);
         code.add("    call mjmalloc");
-        code.add("    addl $4, %esp");
-        code.add("    movl (%esp), %ecx");
-        code.add("    leal " + n.i.s + "$$, %ebx");
-        code.add("    movl %ebx, (%eax)");
+        release(1);
+        restoreThis();
+        code.add("    movl $" + n.i.s + "$$, (%eax)");
 
         lastSeenType = n.i.s;
     }
@@ -767,9 +935,9 @@ public class CodeGenerator implements Visitor {
       String labelEnd = getLabel();
 
       n.e1.accept(this);
-      code.add("    pushl %eax");
+      push("%eax");
       n.e2.accept(this);
-      code.add("    popl %edx");
+      pop("%edx");
       code.add("    cmpl %eax, %edx");
       code.add("    jg " + labelTrue);
       code.add("    movl $0, %eax");
@@ -786,9 +954,9 @@ public class CodeGenerator implements Visitor {
 	      String labelEnd = getLabel();
 
 	      n.e1.accept(this);
-	      code.add("    pushl %eax");
+	      push("%eax");
 	      n.e2.accept(this);
-	      code.add("    popl %edx");
+	      pop("%edx");
 	      code.add("    cmpl %eax, %edx");
 	      code.add("    jge " + labelTrue);
 	      code.add("    movl $0, %eax");
@@ -805,9 +973,9 @@ public class CodeGenerator implements Visitor {
 	      String labelEnd = getLabel();
 
 	      n.e1.accept(this);
-	      code.add("    pushl %eax");
+	      push("%eax");
 	      n.e2.accept(this);
-	      code.add("    popl %edx");
+	      pop("%edx");
 	      code.add("    cmpl %eax, %edx");
 	      code.add("    jle " + labelTrue);
 	      code.add("    movl $0, %eax");
@@ -824,9 +992,9 @@ public class CodeGenerator implements Visitor {
 	      String labelEnd = getLabel();
 
 	      n.e1.accept(this);
-	      code.add("    pushl %eax");
+	      push("%eax");
 	      n.e2.accept(this);
-	      code.add("    popl %edx");
+	      pop("%edx");
 	      code.add("    cmpl %eax, %edx");
 	      code.add("    je " + labelTrue);
 	      code.add("    movl $0, %eax");
@@ -843,9 +1011,9 @@ public class CodeGenerator implements Visitor {
 	      String labelEnd = getLabel();
 
 	      n.e1.accept(this);
-	      code.add("    pushl %eax");
+	      push("%eax");
 	      n.e2.accept(this);
-	      code.add("    popl %edx");
+	      pop("%edx");
 	      code.add("    cmpl %eax, %edx");
 	      code.add("    jne " + labelTrue);
 	      code.add("    movl $0, %eax");
@@ -0,0 +1,703 @@
+package CodeGenerator;
+
+import java.util.*;
+
+import IR.*;
+import Layout.*;
+
+/*
+ * x86-64 backend: emits 64-bit code from the register IR, with virtual
+ *      registers assigned by LinearScan, for the System V ABI.
+ *
+ *      Every 4-byte word of ProgramLayout becomes 8 bytes: objects hold
+ *      the vtable pointer and one quadword per field, vtables hold
+ *      quadwords, and LOAD/STORE offsets and object sizes are doubled.
+ *      Arrays keep 4-byte elements and their length at -4(array).
+ *
+ *      Values live in 64-bit registers and 8-byte frame slots. int and
+ *      boolean values are always kept zero-extended: they are produced
+ *      by 32-bit instructions, which clear the upper half, and slots are
+ *      always written whole, so a spilled index can be reloaded straight
+ *      into an address. Comparisons use cmpl, except between references.
+ *
+ *      Calls follow System V: the receiver goes in %rdi and the arguments
+ *      in %rsi, %rdx, %rcx, %r8 and %r9, the rest on the stack, first one
+ *      lowest; the result comes back in %rax and %rsp is 16-byte aligned
+ *      at every call. put and mjmalloc take their int in %edi. %rax, %r10
+ *      and %r11 are scratch; the other eleven registers besides %rsp and
+ *      %rbp are allocated, the argument registers included, so argument
+ *      passing and receiving are parallel moves.
+ *
+ *      Leaf functions get no frame pointer, as in OptimizingCodeGenerator.
+ */
+public class CodeGenerator64 {
+    // receiver first, then the first five arguments
+    private static final String[] ARGUMENT_REGISTERS = {
+        "%rdi", "%rsi", "%rdx", "%rcx", "%r8", "%r9"
+    };
+    private static final String[] CALLER_SAVED = {
+        "%rcx", "%rdx", "%rsi", "%rdi", "%r8", "%r9"
+    };
+    private static final String[] CALLEE_SAVED = {
+        "%rbx", "%r12", "%r13", "%r14", "%r15"
+    };
+    // breaks cycles in parallel moves
+    private static final String CYCLE_REGISTER = "%r11";
+
+    private List<String> code;
+    private ProgramLayout layout;
+    private int lastLabel;
+    private int callSites;
+    private int devirtualized;
+    private int methods;
+    private int frameless;
+    private int spilledValues;
+    private int spillSlots;
+    private boolean boundsChecked;
+
+    private Function function;
+    private LinearScan allocation;
+    private Map<BasicBlock, String> labels;
+    private int savedCount;
+    private List<String> saved;
+    // bytes below the saved registers: spill slots, frame objects and
+    //      alignment padding
+    private int frameSize;
+    private boolean omitFramePointer;
+    // FRAMEOBJECT instructions and their offsets below the spill slots
+    private Map<Instruction, Integer> frameObjects;
+
+    public CodeGenerator64(ProgramLayout layout) {
+        super();
+        this.code = new ArrayList<String>();
+        this.layout = layout;
+        this.lastLabel = 0;
+        this.callSites = 0;
+        this.devirtualized = 0;
+    }
+
+    public List<String> getCode() {
+        return code;
+    }
+
+    public int getCallSiteCount() {
+        return callSites;
+    }
+
+    public int getDevirtualizedCount() {
+        return devirtualized;
+    }
+
+    public int getMethodCount() {
+        return methods;
+    }
+
+    public int getFramelessCount() {
+        return frameless;
+    }
+
+    public int getSpilledCount() {
+        return spilledValues;
+    }
+
+    public int getSpillSlotCount() {
+        return spillSlots;
+    }
+
+    private String getLabel() {
+        String rv = "L" + lastLabel;
+        ++lastLabel;
+        return rv;
+    }
+
+    public void generate(List<Function> functions) {
+        code.add("    .data");
+        createVTables();
+
+        code.add("    .text");
+        code.add("    .global asm_main");
+        code.add("");
+        for (Function function : functions) {
+            generate(function);
+        }
+        if (boundsChecked) {
+            code.addAll(CodeGenerator.boundsTrap());
+        }
+        // no executable stack needed
+        code.add("    .section .note.GNU-stack,\"\",@progbits");
+    }
+
+    /*
+     * Same tables as the 32-bit backends, with 8-byte entries.
+     */
+    private void createVTables() {
+        for (String className : layout.getClassOrder()) {
+            VTable table = layout.getVTable(className);
+            VTable parent = table.getParent();
+
+            code.add("    .p2align 3");
+            code.add(table.getLabel() + ":");
+            code.add("    .quad " + (parent == null ? "0" : parent.getLabel()));
+            for (int slot = 1; slot <= table.getMethodCount(); ++slot) {
+                code.add("    .quad " + table.getEntry(slot));
+            }
+        }
+    }
+
+    private void generate(Function function) {
+        this.function = function;
+        allocation = new LinearScan(CALLER_SAVED, CALLEE_SAVED);
+        allocation.allocate(function);
+        saved = allocation.getUsedCalleeSaved();
+        savedCount = saved.size();
+        spilledValues += allocation.getSpilledCount();
+        spillSlots += allocation.getSpillCount();
+
+        labels = new HashMap<BasicBlock, String>();
+        for (BasicBlock block : function.getBlocks()) {
+            labels.put(block, getLabel());
+        }
+
+        omitFramePointer = function.isLeaf();
+        if (!function.isMain()) {
+            ++methods;
+            if (omitFramePointer) {
+                ++frameless;
+            }
+        }
+
+        frameObjects = new HashMap<Instruction, Integer>();
+        int objectBytes = 0;
+        for (BasicBlock block : function.getBlocks()) {
+            for (Instruction instr : block.getInstructions()) {
+                if (instr.op == Opcode.FRAMEOBJECT) {
+                    objectBytes += 2 * instr.imm;
+                    frameObjects.put(instr, objectBytes);
+                }
+            }
+        }
+        frameSize = 8 * allocation.getSpillCount() + objectBytes;
+        // %rsp is 8 off alignment on entry and the pushed %rbp fixes
+        //      that; whatever comes below must keep it
+        if (!omitFramePointer && (8 * savedCount + frameSize) % 16 != 0) {
+            frameSize += 8;
+        }
+
+        code.add(function.getLabel() + ":");
+        if (!omitFramePointer) {
+            code.add("    pushq %rbp");
+            code.add("    movq %rsp, %rbp");
+        }
+        for (String reg : saved) {
+            code.add("    pushq " + reg);
+        }
+        if (frameSize > 0) {
+            code.add("    subq $" + frameSize + ", %rsp");
+        }
+        receiveArguments();
+
+        List<BasicBlock> blocks = function.getBlocks();
+        for (int i = 0; i < blocks.size(); ++i) {
+            BasicBlock block = blocks.get(i);
+            BasicBlock next = i + 1 < blocks.size() ? blocks.get(i + 1) : null;
+
+            code.add(labels.get(block) + ":");
+            for (Instruction instr : block.getInstructions()) {
+                generate(instr, next);
+            }
+        }
+    }
+
+    /*
+     * THIS and PARAM all run here, as one parallel move out of the
+     *      argument registers and the caller's stack words. An argument
+     *      nothing reads is skipped: without -O its definition survives,
+     *      and its one-point interval may share a register with a live
+     *      argument.
+     */
+    private void receiveArguments() {
+        Set<Integer> read = new HashSet<Integer>();
+        for (BasicBlock block : function.getBlocks()) {
+            for (Instruction instr : block.getInstructions()) {
+                for (int reg : instr.uses()) {
+                    read.add(reg);
+                }
+            }
+        }
+
+        List<String> sources = new ArrayList<String>();
+        List<String> targets = new ArrayList<String>();
+        for (BasicBlock block : function.getBlocks()) {
+            for (Instruction instr : block.getInstructions()) {
+                int position;
+                if (instr.op == Opcode.THIS) {
+                    position = 0;
+                } else if (instr.op == Opcode.PARAM) {
+                    position = instr.imm + 1;
+                } else {
+                    continue;
+                }
+                if (!isLive(instr.dst) || !read.contains(instr.dst)) {
+                    continue;
+                }
+                sources.add(position < ARGUMENT_REGISTERS.length
+                            ? ARGUMENT_REGISTERS[position]
+                            : frame(16 + 8 * (position - ARGUMENT_REGISTERS.length)));
+                targets.add(loc(instr.dst));
+            }
+        }
+        parallelMove(sources, targets);
+    }
+
+    /*
+     * Emits the moves sources[i] -> targets[i] as if they all happened at
+     *      once. Targets are distinct and only registers are ever both a
+     *      source and a target, so a move whose target no other move still
+     *      reads can always go first unless the rest form cycles; a cycle
+     *      is broken by parking one source in CYCLE_REGISTER.
+     */
+    private void parallelMove(List<String> sources, List<String> targets) {
+        if (new HashSet<String>(targets).size() != targets.size()) {
+            throw new IllegalStateException("parallel move with repeated targets: " +
+                                            sources + " -> " + targets);
+        }
+        List<String> from = new ArrayList<String>();
+        List<String> to = new ArrayList<String>();
+        for (int i = 0; i < sources.size(); ++i) {
+            if (!sources.get(i).equals(targets.get(i))) {
+                from.add(sources.get(i));
+                to.add(targets.get(i));
+            }
+        }
+        while (!from.isEmpty()) {
+            int ready = -1;
+            for (int i = 0; i < to.size() && ready < 0; ++i) {
+                if (!from.contains(to.get(i))) {
+                    ready = i;
+                }
+            }
+            if (ready >= 0) {
+                move(from.remove(ready), to.remove(ready));
+                continue;
+            }
+            String parked = from.get(0);
+            move(parked, CYCLE_REGISTER);
+            for (int i = 0; i < from.size(); ++i) {
+                if (from.get(i).equals(parked)) {
+                    from.set(i, CYCLE_REGISTER);
+                }
+            }
+        }
+    }
+
+    /*
+     * Memory operand for a word at offset from where %rbp would point;
+     *      see OptimizingCodeGenerator.frame.
+     */
+    private String frame(int offset) {
+        if (!omitFramePointer) {
+            return offset + "(%rbp)";
+        }
+        int fromEntry = offset > 0 ? offset - 8 : offset;
+        return (fromEntry + 8 * savedCount + frameSize) + "(%rsp)";
+    }
+
+    private boolean isLive(int reg) {
+        return allocation.getRegister(reg) != null ||
+               allocation.getSpillSlot(reg) >= 0;
+    }
+
+    private boolean isRegister(int reg) {
+        return allocation.getRegister(reg) != null;
+    }
+
+    /*
+     * Whether a register holds a reference rather than an int or boolean.
+     */
+    private boolean isReference(int reg) {
+        int type = function.getRegisterType(reg);
+        return type == ValueType.OBJECT || type == ValueType.INT_ARRAY;
+    }
+
+    /*
+     * Operand for a virtual register: its machine register or its spill
+     *      slot below the saved registers.
+     */
+    private String loc(int reg) {
+        String machine = allocation.getRegister(reg);
+        if (machine != null) {
+            return machine;
+        }
+        int slot = allocation.getSpillSlot(reg);
+        if (slot < 0) {
+            // never live: any scratch location will do
+            return "%rax";
+        }
+        return frame(-8 * (savedCount + 1 + slot));
+    }
+
+    /*
+     * The low 32 bits of a register operand; memory and immediates are
+     *      the same at both sizes.
+     */
+    private static String low(String operand) {
+        if (!operand.startsWith("%")) {
+            return operand;
+        }
+        if (operand.matches("%r[0-9]+")) {
+            return operand + "d";
+        }
+        return "%e" + operand.substring(2);
+    }
+
+    private String second(Instruction instr) {
+        return instr.bImm ? "$" + instr.imm : low(loc(instr.b));
+    }
+
+    private void move(String from, String to) {
+        if (from.equals(to)) {
+            return;
+        }
+        if (from.startsWith("%") || from.startsWith("$") || to.startsWith("%")) {
+            code.add("    movq " + from + ", " + to);
+        } else {
+            code.add("    movq " + from + ", %rax");
+            code.add("    movq %rax, " + to);
+        }
+    }
+
+    /*
+     * Stores the 32-bit result left in %eax, zero-extended, into dst.
+     */
+    private void setInt(int dst) {
+        String d = loc(dst);
+        if (isRegister(dst)) {
+            code.add("    movl %eax, " + low(d));
+        } else {
+            move("%rax", d);
+        }
+    }
+
+    /*
+     * Register usable as an address base or index: the value's own
+     *      register or the given scratch register after loading it.
+     */
+    private String base(int reg, String scratch) {
+        if (isRegister(reg)) {
+            return loc(reg);
+        }
+        code.add("    movq " + loc(reg) + ", " + scratch);
+        return scratch;
+    }
+
+    /*
+     * Index register of an array access. With a folded displacement the
+     *      register holds i where the element is i + imm, and i itself may
+     *      be negative, so it is sign-extended into %r11 first.
+     */
+    private String index(Instruction instr) {
+        if (instr.imm == 0) {
+            return base(instr.b, "%r11");
+        }
+        code.add("    movslq " + low(loc(instr.b)) + ", %r11");
+        return "%r11";
+    }
+
+    private static String element(Instruction instr, String array, String index) {
+        return (instr.imm == 0 ? "" : Integer.toString(4 * instr.imm)) +
+               "(" + array + "," + index + ",4)";
+    }
+
+    private void arithmetic(String mnemonic, boolean commutative,
+                            Instruction instr) {
+        String d = loc(instr.dst);
+        String a = low(loc(instr.a));
+        String b = second(instr);
+
+        if (isRegister(instr.dst)) {
+            if (low(d).equals(b) && !instr.bImm) {
+                if (commutative) {
+                    code.add("    " + mnemonic + " " + a + ", " + low(d));
+                    return;
+                }
+                code.add("    movl " + a + ", %eax");
+                code.add("    " + mnemonic + " " + b + ", %eax");
+                setInt(instr.dst);
+                return;
+            }
+            if (!a.equals(low(d))) {
+                code.add("    movl " + a + ", " + low(d));
+            }
+            code.add("    " + mnemonic + " " + b + ", " + low(d));
+        } else {
+            code.add("    movl " + a + ", %eax");
+            code.add("    " + mnemonic + " " + b + ", %eax");
+            setInt(instr.dst);
+        }
+    }
+
+    /*
+     * Emits the compare for "a <cond> b"; at most one memory operand.
+     */
+    private void compare(Instruction instr) {
+        boolean wide = isReference(instr.a) ||
+                       (!instr.bImm && isReference(instr.b));
+        String a = wide ? loc(instr.a) : low(loc(instr.a));
+        String b = instr.bImm ? "$" + instr.imm
+                              : wide ? loc(instr.b) : low(loc(instr.b));
+        if (!isRegister(instr.a) && !instr.bImm && !isRegister(instr.b)) {
+            code.add("    mov" + (wide ? "q " : "l ") + a +
+                     (wide ? ", %rax" : ", %eax"));
+            a = wide ? "%rax" : "%eax";
+        }
+        code.add("    cmp" + (wide ? "q " : "l ") + b + ", " + a);
+    }
+
+    /*
+     * Arguments past the fifth are pushed last to first, with a padding
+     *      word first when their count is odd; the receiver and the rest
+     *      then go into ARGUMENT_REGISTERS in one parallel move.
+     */
+    private void call(Instruction instr) {
+        int stacked = Math.max(0, instr.args.length + 1 - ARGUMENT_REGISTERS.length);
+        int pad = stacked % 2;
+        if (pad != 0) {
+            code.add("    subq $8, %rsp");
+        }
+        for (int i = instr.args.length - 1; i >= ARGUMENT_REGISTERS.length - 1; --i) {
+            code.add("    pushq " + loc(instr.args[i]));
+        }
+
+        List<String> sources = new ArrayList<String>();
+        List<String> targets = new ArrayList<String>();
+        sources.add(loc(instr.a));
+        targets.add(ARGUMENT_REGISTERS[0]);
+        for (int i = 0; i < instr.args.length && i + 1 < ARGUMENT_REGISTERS.length; ++i) {
+            sources.add(loc(instr.args[i]));
+            targets.add(ARGUMENT_REGISTERS[i + 1]);
+        }
+        parallelMove(sources, targets);
+
+        String implementor = layout.getHierarchy()
+                                   .getUniqueImplementor(instr.sym, instr.method);
+        ++callSites;
+        if (implementor != null) {
+            ++devirtualized;
+            code.add("    call " + implementor + "$" + instr.method);
+        } else {
+            code.add("    movq (%rdi), %rax");
+            code.add("    call *" + (8 * instr.imm) + "(%rax)");
+        }
+        if (stacked + pad > 0) {
+            code.add("    addq $" + (8 * (stacked + pad)) + ", %rsp");
+        }
+        move("%rax", loc(instr.dst));
+    }
+
+    private void generate(Instruction instr, BasicBlock next) {
+        switch (instr.op) {
+        case Opcode.CONST: {
+            String d = loc(instr.dst);
+            if (isRegister(instr.dst)) {
+                code.add("    movl $" + instr.imm + ", " + low(d));
+            } else if (instr.imm >= 0) {
+                code.add("    movq $" + instr.imm + ", " + d);
+            } else {
+                code.add("    movl $" + instr.imm + ", %eax");
+                move("%rax", d);
+            }
+            break;
+        }
+        case Opcode.MOVE:
+            move(loc(instr.a), loc(instr.dst));
+            break;
+        case Opcode.ADD:
+            arithmetic("addl", true, instr);
+            break;
+        case Opcode.SUB:
+            arithmetic("subl", false, instr);
+            break;
+        case Opcode.MUL:
+            if (instr.bImm && isRegister(instr.dst)) {
+                String d = low(loc(instr.dst));
+                String a = isRegister(instr.a) ? low(loc(instr.a)) : d;
+                if (!isRegister(instr.a)) {
+                    code.add("    movl " + low(loc(instr.a)) + ", " + d);
+                }
+                code.addAll(Multiplication.byConstant(a, d, instr.imm));
+            } else if (instr.bImm) {
+                code.add("    movl " + low(loc(instr.a)) + ", %eax");
+                code.addAll(Multiplication.byConstant("%eax", "%eax", instr.imm));
+                setInt(instr.dst);
+            } else {
+                arithmetic("imull", true, instr);
+            }
+            break;
+        case Opcode.NOT:
+            code.add("    movl " + low(loc(instr.a)) + ", %eax");
+            code.add("    xorl $1, %eax");
+            setInt(instr.dst);
+            break;
+        case Opcode.CMP:
+            compare(instr);
+            code.add("    set" + Condition.x86(instr.cond) + " %al");
+            code.add("    movzbl %al, %eax");
+            setInt(instr.dst);
+            break;
+        case Opcode.THIS:
+        case Opcode.PARAM:
+            // see receiveArguments
+            break;
+        case Opcode.LOAD: {
+            String base = base(instr.a, "%rax");
+            String field = (2 * instr.imm) + "(" + base + ")";
+            if (isRegister(instr.dst)) {
+                code.add("    movq " + field + ", " + loc(instr.dst));
+            } else {
+                code.add("    movq " + field + ", %r11");
+                move("%r11", loc(instr.dst));
+            }
+            break;
+        }
+        case Opcode.STORE: {
+            String base = base(instr.a, "%rax");
+            String field = (2 * instr.imm) + "(" + base + ")";
+            if (instr.bImm && instr.imm >= 0) {
+                code.add("    movq $" + instr.imm + ", " + field);
+            } else if (instr.bImm) {
+                code.add("    movl $" + instr.imm + ", %r11d");
+                code.add("    movq %r11, " + field);
+            } else if (isRegister(instr.b)) {
+                code.add("    movq " + loc(instr.b) + ", " + field);
+            } else {
+                code.add("    movq " + loc(instr.b) + ", %r11");
+                code.add("    movq %r11, " + field);
+            }
+            break;
+        }
+        case Opcode.ALOAD: {
+            String array = base(instr.a, "%rax");
+            String index = index(instr);
+            code.add("    movl " + element(instr, array, index) + ", %eax");
+            setInt(instr.dst);
+            break;
+        }
+        case Opcode.ASTORE: {
+            String array = base(instr.a, "%rax");
+            String index = index(instr);
+            String value = low(loc(instr.c));
+            if (!isRegister(instr.c)) {
+                code.add("    movl " + value + ", %r10d");
+                value = "%r10d";
+            }
+            code.add("    movl " + value + ", " + element(instr, array, index));
+            break;
+        }
+        case Opcode.CHECK: {
+            // unsigned, so a negative index fails too
+            String array = base(instr.a, "%r11");
+            String index = base(instr.b, "%rax");
+            if (instr.imm != 0) {
+                code.add("    leal " + instr.imm + "(" + index + "), %eax");
+                index = "%eax";
+            }
+            index = low(index);
+            code.add("    cmpl -4(" + array + "), " + index);
+            code.add("    jae " + CodeGenerator.BOUNDS_TRAP);
+            boundsChecked = true;
+            break;
+        }
+        case Opcode.LENGTH: {
+            String array = base(instr.a, "%rax");
+            code.add("    movl -4(" + array + "), %eax");
+            setInt(instr.dst);
+            break;
+        }
+        case Opcode.NEWARRAY:
+            // the length is pushed twice to keep %rsp aligned
+            code.add("    movl " + low(loc(instr.a)) + ", %edi");
+            code.add("    pushq %rdi");
+            code.add("    pushq %rdi");
+            code.add("    leal 4(,%rdi,4), %edi");
+            code.add("    call mjmalloc");
+            code.add("    popq %r11");
+            code.add("    popq %r11");
+            code.add("    movl %r11d, (%rax)");
+            code.add("    addq $4, %rax");
+            move("%rax", loc(instr.dst));
+            break;
+        case Opcode.NEWOBJECT:
+            code.add("    movl $" + (2 * instr.imm) + ", %edi");
+            code.add("    call mjmalloc");
+            code.add("    leaq " + instr.sym + "$$(%rip), %r11");
+            code.add("    movq %r11, (%rax)");
+            move("%rax", loc(instr.dst));
+            break;
+        case Opcode.FRAMEOBJECT: {
+            // same layout as a heap object, with every field zero
+            int offset = -8 * (savedCount + allocation.getSpillCount()) -
+                         frameObjects.get(instr);
+            code.add("    leaq " + instr.sym + "$$(%rip), %r11");
+            code.add("    movq %r11, " + frame(offset));
+            for (int field = 8; field < 2 * instr.imm; field += 8) {
+                code.add("    movq $0, " + frame(offset + field));
+            }
+            if (isRegister(instr.dst)) {
+                code.add("    leaq " + frame(offset) + ", " + loc(instr.dst));
+            } else {
+                code.add("    leaq " + frame(offset) + ", %rax");
+                move("%rax", loc(instr.dst));
+            }
+            break;
+        }
+        case Opcode.CALL:
+            call(instr);
+            break;
+        case Opcode.PRINT:
+            code.add("    movl " + low(loc(instr.a)) + ", %edi");
+            code.add("    call put");
+            break;
+        case Opcode.JUMP:
+            if (instr.target != next) {
+                code.add("    jmp " + labels.get(instr.target));
+            }
+            break;
+        case Opcode.BRANCH:
+            compare(instr);
+            if (instr.target == next) {
+                code.add("    j" + Condition.x86(Condition.negate(instr.cond)) +
+                         " " + labels.get(instr.alt));
+            } else {
+                code.add("    j" + Condition.x86(instr.cond) + " " +
+                         labels.get(instr.target));
+                if (instr.alt != next) {
+                    code.add("    jmp " + labels.get(instr.alt));
+                }
+            }
+            break;
+        case Opcode.RETURN:
+            if (instr.a >= 0) {
+                move(loc(instr.a), "%rax");
+            }
+            if (omitFramePointer) {
+                if (frameSize > 0) {
+                    code.add("    addq $" + frameSize + ", %rsp");
+                }
+            } else if (savedCount > 0) {
+                code.add("    leaq " + (-8 * savedCount) + "(%rbp), %rsp");
+            } else {
+                code.add("    movq %rbp, %rsp");
+            }
+            for (int i = savedCount - 1; i >= 0; --i) {
+                code.add("    popq " + saved.get(i));
+            }
+            if (!omitFramePointer) {
+                code.add("    popq %rbp");
+            }
+            code.add("    ret");
+            break;
+        default:
+            throw new IllegalStateException("unknown opcode " + instr.op);
+        }
+    }
+}
@@ -0,0 +1,508 @@
+package CodeGenerator;
+
+import java.util.*;
+
+import AST.*;
+import AST.Visitor.*;
+import ClassFile.*;
+import Layout.*;
+import Semantic.*;
+
+/*
+ * JVM backend: turns the checked AST into one class file per MiniJava
+ *      class, plus one for the main class holding a static main, so a
+ *      program runs with `java -cp dir Main` and gets HotSpot's JIT.
+ *
+ *      MiniJava classes become public classes in the default package,
+ *      extending their MiniJava parent or java.lang.Object, with one
+ *      field per declared variable and one public method per method;
+ *      Call is invokevirtual, so overriding and the vtable are the JVM's.
+ *      int is I, boolean Z, int[] a native [I and objects references.
+ *      Print calls System.out.println(int). Out-of-range indexes throw
+ *      ArrayIndexOutOfBoundsException, as with -S.
+ *
+ *      Parameters are locals 1..n after this, and the method's locals
+ *      follow; all are set to 0 or null on entry, which the verifier
+ *      needs and MiniJava does not. Operands are evaluated left to right.
+ */
+public class JvmCodeGenerator implements Visitor {
+    private static final String OBJECT = "java/lang/Object";
+
+    private ProgramLayout layout;
+    private Map<String, byte[]> classes;
+    private ClassWriter writer;
+    private Code code;
+    private String currentClass;
+    private FrameLayout currentFrame;
+    private Map<String, Integer> locals;
+    // the last expression: its descriptor and, for objects, its class
+    private String valueType;
+    private String valueClass;
+    private int callSites;
+
+    public JvmCodeGenerator(ProgramLayout layout) {
+        this.layout = layout;
+        this.classes = new LinkedHashMap<String, byte[]>();
+    }
+
+    /*
+     * Class file contents by class name, main class first.
+     */
+    public Map<String, byte[]> getClasses() {
+        return classes;
+    }
+
+    public int getCallSiteCount() {
+        return callSites;
+    }
+
+    /*
+     * Descriptor of a MiniJava type.
+     */
+    static String descriptor(Node node) {
+        switch (node.getType()) {
+        case BOOLEAN:
+            return "Z";
+        case INTARRAY:
+            return "[I";
+        case CLASS:
+            return "L" + node.iam + ";";
+        default:
+            return "I";
+        }
+    }
+
+    private static String descriptor(Type type) {
+        if (type instanceof BooleanType) {
+            return "Z";
+        } else if (type instanceof IntArrayType) {
+            return "[I";
+        } else if (type instanceof IdentifierType) {
+            return "L" + ((IdentifierType) type).s + ";";
+        }
+        return "I";
+    }
+
+    static String descriptor(MethodNode method) {
+        StringBuilder rv = new StringBuilder("(");
+        for (Node parameter : method.getParameters()) {
+            rv.append(descriptor(parameter));
+        }
+        return rv.append(")").append(descriptor(method.getReturnType())).toString();
+    }
+
+    private void result(String type, String className) {
+        valueType = type;
+        valueClass = className;
+    }
+
+    public void visit(Program n) {
+        n.m.accept(this);
+
+        ClassDeclList classDeclarations = n.cl;
+        int size = classDeclarations.size();
+        for (int i = 0; i < size; ++i) {
+            classDeclarations.elementAt(i).accept(this);
+        }
+    }
+
+    public void visit(MainClass n) {
+        writer = new ClassWriter(n.i1.s, OBJECT);
+        writer.addDefaultConstructor();
+        code = writer.addMethod(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_STATIC,
+                                "main", "([Ljava/lang/String;)V");
+        currentFrame = null;
+        n.s.accept(this);
+        code.returnValue("V");
+        classes.put(writer.getName(), writer.toBytes());
+    }
+
+    public void visit(ClassDeclSimple n) {
+        declareClass(n.i.s, OBJECT, n.vl, n.ml);
+    }
+
+    public void visit(ClassDeclExtends n) {
+        declareClass(n.i.s, n.j.s, n.vl, n.ml);
+    }
+
+    private void declareClass(String name, String parent, VarDeclList variables,
+                              MethodDeclList methods) {
+        currentClass = name;
+        writer = new ClassWriter(name, parent);
+        writer.addDefaultConstructor();
+        for (int i = 0; i < variables.size(); ++i) {
+            VarDecl variable = variables.elementAt(i);
+            writer.addField(variable.i.s, descriptor(variable.t));
+        }
+        for (int i = 0; i < methods.size(); ++i) {
+            methods.elementAt(i).accept(this);
+        }
+        classes.put(name, writer.toBytes());
+        currentClass = null;
+    }
+
+    /*
+     * Reached only for locals: an initializer is stored like an
+     *      assignment, before the method body runs.
+     */
+    public void visit(VarDecl n) {
+        if (n.exp != null) {
+            new Assign(n.i, n.exp, n.getLine()).accept(this);
+        }
+    }
+
+    public void visit(MethodDecl n) {
+        currentFrame = layout.getFrameLayout(currentClass, n.i.s);
+        VTable table = layout.getVTable(currentClass);
+        MethodNode method = table.getMethod(table.getSlot(n.i.s));
+        String methodDescriptor = descriptor(method);
+        code = writer.addMethod(ClassWriter.ACC_PUBLIC, n.i.s, methodDescriptor);
+
+        locals = new HashMap<String, Integer>();
+        for (Slot parameter : currentFrame.getParameterList()) {
+            locals.put(parameter.getName(), 1 + parameter.getIndex());
+        }
+        int next = 1 + currentFrame.getParameterCount();
+        for (Slot local : currentFrame.getLocalList()) {
+            if (locals.containsKey(local.getName())) {
+                continue;
+            }
+            String type = descriptor(local.getType());
+            locals.put(local.getName(), next);
+            if (Descriptors.isReference(type)) {
+                code.aconstNull();
+            } else {
+                code.iconst(0);
+            }
+            code.store(type, next++);
+        }
+
+        VarDeclList localVariables = n.vl;
+        int variablesCount = localVariables.size();
+        for (int i = 0; i < variablesCount; ++i) {
+            localVariables.elementAt(i).accept(this);
+        }
+
+        StatementList stmts = n.sl;
+        int stmtsCount = stmts.size();
+        for (int i = 0; i < stmtsCount; ++i) {
+            stmts.elementAt(i).accept(this);
+        }
+
+        n.e.accept(this);
+        code.returnValue(Descriptors.returnType(methodDescriptor));
+
+        currentFrame = null;
+        locals = null;
+    }
+
+    public void visit(Formal n) { }
+
+    public void visit(IntArrayType n) { }
+
+    public void visit(BooleanType n) { }
+
+    public void visit(IntegerType n) { }
+
+    public void visit(IdentifierType n) { }
+
+    public void visit(Block n) {
+        StatementList stmts = n.sl;
+        int size = stmts.size();
+        for (int i = 0; i < size; ++i) {
+            stmts.elementAt(i).accept(this);
+        }
+    }
+
+    public void visit(If n) {
+        Label labelElse = new Label();
+        Label labelEnd = new Label();
+
+        branch(n.e, labelElse, false);
+        n.s1.accept(this);
+        code.branch(Code.GOTO, labelEnd);
+        code.place(labelElse);
+        n.s2.accept(this);
+        code.place(labelEnd);
+    }
+
+    public void visit(While n) {
+        Label labelStart = new Label();
+        Label labelTest = new Label();
+
+        code.branch(Code.GOTO, labelTest);
+        code.place(labelStart);
+        n.s.accept(this);
+        code.place(labelTest);
+        branch(n.e, labelStart, true);
+    }
+
+    /*
+     * Condition context: jumps to target when e evaluates to jumpIf and
+     *      falls through otherwise, like CodeGenerator.branch.
+     */
+    private void branch(Exp e, Label target, boolean jumpIf) {
+        if (e instanceof And) {
+            And and = (And) e;
+            if (jumpIf) {
+                Label labelSkip = new Label();
+                branch(and.e1, labelSkip, false);
+                branch(and.e2, target, true);
+                code.place(labelSkip);
+            } else {
+                branch(and.e1, target, false);
+                branch(and.e2, target, false);
+            }
+        } else if (e instanceof Not) {
+            branch(((Not) e).e, target, !jumpIf);
+        } else if (e instanceof True || e instanceof False) {
+            if ((e instanceof True) == jumpIf) {
+                code.branch(Code.GOTO, target);
+            }
+        } else if (e instanceof LessThan) {
+            compare(((LessThan) e).e1, ((LessThan) e).e2,
+                    jumpIf ? Code.IF_ICMPLT : Code.IF_ICMPGE, target);
+        } else if (e instanceof LessThanEqual) {
+            compare(((LessThanEqual) e).e1, ((LessThanEqual) e).e2,
+                    jumpIf ? Code.IF_ICMPLE : Code.IF_ICMPGT, target);
+        } else if (e instanceof GreatThan) {
+            compare(((GreatThan) e).e1, ((GreatThan) e).e2,
+                    jumpIf ? Code.IF_ICMPGT : Code.IF_ICMPLE, target);
+        } else if (e instanceof GreatThanEqual) {
+            compare(((GreatThanEqual) e).e1, ((GreatThanEqual) e).e2,
+                    jumpIf ? Code.IF_ICMPGE : Code.IF_ICMPLT, target);
+        } else if (e instanceof EqualEqual) {
+            compare(((EqualEqual) e).e1, ((EqualEqual) e).e2,
+                    jumpIf ? Code.IF_ICMPEQ : Code.IF_ICMPNE, target);
+        } else if (e instanceof NotEqual) {
+            compare(((NotEqual) e).e1, ((NotEqual) e).e2,
+                    jumpIf ? Code.IF_ICMPNE : Code.IF_ICMPEQ, target);
+        } else {
+            e.accept(this);
+            code.branch(jumpIf ? Code.IFNE : Code.IFEQ, target);
+        }
+    }
+
+    /*
+     * Pushes both operands and branches on their comparison; objects
+     *      compare with if_acmp.
+     */
+    private void compare(Exp e1, Exp e2, int opcode, Label target) {
+        e1.accept(this);
+        e2.accept(this);
+        if (Descriptors.isReference(valueType)) {
+            opcode = opcode == Code.IF_ICMPEQ ? Code.IF_ACMPEQ : Code.IF_ACMPNE;
+        }
+        code.branch(opcode, target);
+    }
+
+    /*
+     * Value context for a condition: 1 or 0 on the stack.
+     */
+    private void condition(Exp e) {
+        Label labelTrue = new Label();
+        Label labelEnd = new Label();
+
+        branch(e, labelTrue, true);
+        code.iconst(0);
+        code.branch(Code.GOTO, labelEnd);
+        code.place(labelTrue);
+        code.iconst(1);
+        code.place(labelEnd);
+        result("Z", null);
+    }
+
+    private void arithmetic(Exp e1, Exp e2, int opcode) {
+        e1.accept(this);
+        e2.accept(this);
+        code.arithmetic(opcode);
+        result("I", null);
+    }
+
+    public void visit(Print n) {
+        code.getstatic("java/lang/System", "out", "Ljava/io/PrintStream;");
+        n.e.accept(this);
+        code.invokevirtual("java/io/PrintStream", "println", "(I)V");
+    }
+
+    public void visit(Assign n) {
+        Slot slot = resolve(n.i.s);
+        if (slot == null) {
+            return;
+        }
+        String type = descriptor(slot.getType());
+        if (slot.getKind() == Slot.Kind.FIELD) {
+            code.load("L" + currentClass + ";", 0);
+            n.e.accept(this);
+            code.putfield(currentClass, slot.getName(), type);
+        } else {
+            n.e.accept(this);
+            code.store(type, locals.get(slot.getName()));
+        }
+    }
+
+    public void visit(ArrayAssign n) {
+        Slot slot = resolve(n.i.s);
+        if (slot == null) {
+            return;
+        }
+        load(slot);
+        n.e1.accept(this);
+        n.e2.accept(this);
+        code.iastore();
+    }
+
+    private Slot resolve(String name) {
+        Slot rv = currentFrame == null ? null : currentFrame.resolve(name);
+        if (rv == null) {
+            System.err.println("SHOULD NOT HAVE GOTTEN HERE!!");
+        }
+        return rv;
+    }
+
+    private void load(Slot slot) {
+        String type = descriptor(slot.getType());
+        if (slot.getKind() == Slot.Kind.FIELD) {
+            code.load("L" + currentClass + ";", 0);
+            code.getfield(currentClass, slot.getName(), type);
+        } else {
+            code.load(type, locals.get(slot.getName()));
+        }
+        result(type, slot.getType().getType() == NodeType.CLASS
+                     ? slot.getClassName() : null);
+    }
+
+    public void visit(And n) {
+        condition(n);
+    }
+
+    public void visit(LessThan n) {
+        condition(n);
+    }
+
+    public void visit(LessThanEqual n) {
+        condition(n);
+    }
+
+    public void visit(GreatThan n) {
+        condition(n);
+    }
+
+    public void visit(GreatThanEqual n) {
+        condition(n);
+    }
+
+    public void visit(EqualEqual n) {
+        condition(n);
+    }
+
+    public void visit(NotEqual n) {
+        condition(n);
+    }
+
+    public void visit(Not n) {
+        n.e.accept(this);
+        code.iconst(1);
+        code.arithmetic(Code.IXOR);
+        result("Z", null);
+    }
+
+    public void visit(Plus n) {
+        arithmetic(n.e1, n.e2, Code.IADD);
+    }
+
+    public void visit(Minus n) {
+        arithmetic(n.e1, n.e2, Code.ISUB);
+    }
+
+    public void visit(Times n) {
+        arithmetic(n.e1, n.e2, Code.IMUL);
+    }
+
+    public void visit(ArrayLookup n) {
+        n.e1.accept(this);
+        n.e2.accept(this);
+        code.iaload();
+        result("I", null);
+    }
+
+    public void visit(ArrayLength n) {
+        n.e.accept(this);
+        code.arraylength();
+        result("I", null);
+    }
+
+    public void visit(Call n) {
+        n.e.accept(this);
+        String className = valueClass;
+
+        VTable table = layout.getVTable(className);
+        MethodNode method = table.getMethod(table.getSlot(n.i.s));
+
+        // the parser builds the list last argument first
+        ExpList params = n.el;
+        for (int i = params.size() - 1; i >= 0; --i) {
+            params.elementAt(i).accept(this);
+        }
+
+        ++callSites;
+        code.invokevirtual(className, n.i.s, descriptor(method));
+        Node returnType = method.getReturnType();
+        result(descriptor(returnType),
+               returnType.getType() == NodeType.CLASS ? returnType.iam : null);
+    }
+
+    public void visit(IntegerLiteral n) {
+        code.iconst(n.i);
+        result("I", null);
+    }
+
+    public void visit(True n) {
+        code.iconst(1);
+        result("Z", null);
+    }
+
+    public void visit(False n) {
+        code.iconst(0);
+        result("Z", null);
+    }
+
+    public void visit(IdentifierExp n) {
+        Slot slot = resolve(n.s);
+        if (slot != null) {
+            load(slot);
+        }
+    }
+
+    public void visit(This n) {
+        code.load("L" + currentClass + ";", 0);
+        result("L" + currentClass + ";", currentClass);
+    }
+
+    public void visit(NewArray n) {
+        n.e.accept(this);
+        code.newIntArray();
+        result("[I", null);
+    }
+
+    public void visit(NewObject n) {
+        code.newObject(n.i.s);
+        code.dup();
+        code.invokespecial(n.i.s, "<init>", "()V");
+        result("L" + n.i.s + ";", n.i.s);
+    }
+
+    public void visit(Identifier n) { }
+
+    public void visit(FloatLiteral n) { }
+
+    public void visit(FloatType n) { }
+
+    public void visit(DoubleLiteral n) { }
+
+    public void visit(DoubleType n) { }
+
+    public void visit(Instanceof n) { }
+
+    public void visit(Null n) { }
+}
@@ -0,0 +1,300 @@
+package CodeGenerator;
+
+import java.util.*;
+
+import IR.*;
+
+/*
+ * Linear-scan register allocation (Poletto & Sarkar) over a Function.
+ *
+ *      Instructions are numbered in block layout order; instruction k reads
+ *      its operands at 2k and writes its result at 2k+1. Each register
+ *      gets one conservative interval covering every point where it is
+ *      live. Intervals that are live across a call may only use
+ *      callee-saved registers. When nothing fits, the cheapest interval is
+ *      spilled, where the cost of an interval is its number of reads and
+ *      writes weighted by 10^(loop depth). Spilled intervals that do not
+ *      overlap share a frame slot.
+ */
+public final class LinearScan {
+    private final String[] callerSaved;
+    private final String[] calleeSaved;
+
+    private int[] start;
+    private int[] end;
+    private boolean[] crossesCall;
+    private double[] weight;
+    private String[] assigned;
+    private int[] spillSlot;
+    private int spillCount;
+    private List<Integer> spilled;
+    private List<String> usedCalleeSaved;
+
+    public LinearScan(String[] callerSaved, String[] calleeSaved) {
+        this.callerSaved = callerSaved;
+        this.calleeSaved = calleeSaved;
+    }
+
+    /*
+     * Register holding a virtual register, or null if it was spilled.
+     */
+    public String getRegister(int reg) {
+        return assigned[reg];
+    }
+
+    /*
+     * Spill slot index (0, 1, ...) of a virtual register, or -1.
+     */
+    public int getSpillSlot(int reg) {
+        return spillSlot[reg];
+    }
+
+    /*
+     * Frame slots the spilled registers occupy.
+     */
+    public int getSpillCount() {
+        return spillCount;
+    }
+
+    /*
+     * Registers spilled, at least getSpillCount().
+     */
+    public int getSpilledCount() {
+        return spilled.size();
+    }
+
+    /*
+     * Callee-saved registers the method writes, in allocation order.
+     */
+    public List<String> getUsedCalleeSaved() {
+        return usedCalleeSaved;
+    }
+
+    public void allocate(Function function) {
+        int count = function.getRegisterCount();
+        start = new int[count];
+        end = new int[count];
+        crossesCall = new boolean[count];
+        weight = new double[count];
+        assigned = new String[count];
+        spillSlot = new int[count];
+        spillCount = 0;
+        spilled = new ArrayList<Integer>();
+        usedCalleeSaved = new ArrayList<String>();
+        Arrays.fill(start, Integer.MAX_VALUE);
+        Arrays.fill(end, -1);
+        Arrays.fill(spillSlot, -1);
+
+        List<Integer> calls = buildIntervals(function);
+        markCallCrossings(calls);
+        scan(count);
+    }
+
+    private void extend(int reg, int position) {
+        start[reg] = Math.min(start[reg], position);
+        end[reg] = Math.max(end[reg], position);
+    }
+
+    /*
+     * Loop depth of each block in layout order: an edge to an earlier (or
+     *      the same) block closes a loop over every block in between.
+     */
+    private static int[] loopDepths(List<BasicBlock> blocks) {
+        Map<BasicBlock, Integer> position = new HashMap<BasicBlock, Integer>();
+        for (int i = 0; i < blocks.size(); ++i) {
+            position.put(blocks.get(i), i);
+        }
+
+        int[] depth = new int[blocks.size()];
+        for (int i = 0; i < blocks.size(); ++i) {
+            for (BasicBlock succ : blocks.get(i).getSuccessors()) {
+                int header = position.get(succ);
+                if (header <= i) {
+                    for (int j = header; j <= i; ++j) {
+                        ++depth[j];
+                    }
+                }
+            }
+        }
+        return depth;
+    }
+
+    private List<Integer> buildIntervals(Function function) {
+        Liveness liveness = new Liveness(function);
+        List<Integer> calls = new ArrayList<Integer>();
+        int[] depths = loopDepths(function.getBlocks());
+
+        int k = 0;
+        int b = 0;
+        for (BasicBlock block : function.getBlocks()) {
+            int first = k;
+            double cost = Math.pow(10, Math.min(depths[b++], 6));
+            for (Instruction instr : block.getInstructions()) {
+                for (int reg : instr.uses()) {
+                    extend(reg, 2 * k);
+                    weight[reg] += cost;
+                }
+                if (instr.def() >= 0) {
+                    extend(instr.def(), 2 * k + 1);
+                    weight[instr.def()] += cost;
+                }
+                if (Opcode.isCall(instr.op)) {
+                    calls.add(k);
+                }
+                ++k;
+            }
+            int last = k - 1;
+
+            BitSet in = liveness.getLiveIn(block);
+            for (int reg = in.nextSetBit(0); reg >= 0; reg = in.nextSetBit(reg + 1)) {
+                extend(reg, 2 * first);
+            }
+            BitSet out = liveness.getLiveOut(block);
+            for (int reg = out.nextSetBit(0); reg >= 0; reg = out.nextSetBit(reg + 1)) {
+                extend(reg, 2 * last + 1);
+            }
+        }
+        return calls;
+    }
+
+    private void markCallCrossings(List<Integer> calls) {
+        for (int reg = 0; reg < start.length; ++reg) {
+            if (end[reg] < 0) {
+                continue;
+            }
+            for (int call : calls) {
+                if (start[reg] <= 2 * call && end[reg] >= 2 * call + 2) {
+                    crossesCall[reg] = true;
+                    break;
+                }
+                if (2 * call > end[reg]) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private void scan(int count) {
+        List<Integer> intervals = new ArrayList<Integer>();
+        for (int reg = 0; reg < count; ++reg) {
+            if (end[reg] >= 0) {
+                intervals.add(reg);
+            }
+        }
+        Collections.sort(intervals, new Comparator<Integer>() {
+            public int compare(Integer x, Integer y) {
+                if (start[x] != start[y]) {
+                    return start[x] < start[y] ? -1 : 1;
+                }
+                return x.compareTo(y);
+            }
+        });
+
+        List<Integer> active = new ArrayList<Integer>();
+        Set<String> free = new LinkedHashSet<String>();
+        Collections.addAll(free, callerSaved);
+        Collections.addAll(free, calleeSaved);
+
+        for (int reg : intervals) {
+            // expire intervals that ended before this one starts
+            Iterator<Integer> it = active.iterator();
+            while (it.hasNext()) {
+                int other = it.next();
+                if (end[other] < start[reg]) {
+                    free.add(assigned[other]);
+                    it.remove();
+                }
+            }
+
+            String choice = pickFree(reg, free);
+            if (choice != null) {
+                assign(reg, choice);
+                free.remove(choice);
+                active.add(reg);
+                continue;
+            }
+
+            // spill the cheapest of the current and the eligible active
+            // intervals; among equals, the one that ends last
+            int victim = -1;
+            for (int other : active) {
+                if (isEligible(reg, assigned[other]) &&
+                        (victim < 0 || cheaper(other, victim))) {
+                    victim = other;
+                }
+            }
+            if (victim >= 0 && cheaper(victim, reg)) {
+                assign(reg, assigned[victim]);
+                assigned[victim] = null;
+                spill(victim);
+                active.remove(Integer.valueOf(victim));
+                active.add(reg);
+            } else {
+                spill(reg);
+            }
+        }
+    }
+
+    /*
+     * Gives reg the first frame slot no overlapping spilled interval uses.
+     */
+    private void spill(int reg) {
+        BitSet taken = new BitSet();
+        for (int other : spilled) {
+            if (start[other] <= end[reg] && start[reg] <= end[other]) {
+                taken.set(spillSlot[other]);
+            }
+        }
+        spillSlot[reg] = taken.nextClearBit(0);
+        spillCount = Math.max(spillCount, spillSlot[reg] + 1);
+        spilled.add(reg);
+    }
+
+    private boolean cheaper(int x, int y) {
+        if (weight[x] != weight[y]) {
+            return weight[x] < weight[y];
+        }
+        return end[x] > end[y];
+    }
+
+    private boolean isEligible(int reg, String machineRegister) {
+        if (!crossesCall[reg]) {
+            return true;
+        }
+        for (String r : calleeSaved) {
+            if (r.equals(machineRegister)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Caller-saved registers first for short intervals, so callee-saved
+     *      ones stay available for values that live across calls.
+     */
+    private String pickFree(int reg, Set<String> free) {
+        if (!crossesCall[reg]) {
+            for (String r : callerSaved) {
+                if (free.contains(r)) {
+                    return r;
+                }
+            }
+        }
+        for (String r : calleeSaved) {
+            if (free.contains(r)) {
+                return r;
+            }
+        }
+        return null;
+    }
+
+    private void assign(int reg, String machineRegister) {
+        assigned[reg] = machineRegister;
+        for (String r : calleeSaved) {
+            if (r.equals(machineRegister) && !usedCalleeSaved.contains(r)) {
+                usedCalleeSaved.add(r);
+            }
+        }
+    }
+}
@@ -0,0 +1,703 @@
+package CodeGenerator;
+
+import java.util.*;
+
+import AST.*;
+import AST.Visitor.*;
+import Layout.*;
+import Semantic.*;
+
+/*
+ * LLVM IR backend: emits a textual module (.ll) from the checked AST,
+ *      for clang or llc to optimize and compile, e.g.
+ *
+ *          clang -O2 prog.ll runtime.c
+ *
+ *      where the runtime provides put, mjmalloc and the C main that calls
+ *      asm_main, exactly as for the assembly backends.
+ *
+ *      Each class becomes a struct type %class.C holding the vtable
+ *      pointer and then every field in ProgramLayout order, inherited
+ *      ones first, so a subclass object is a valid parent object. Each
+ *      vtable becomes a struct %vtable.C of function pointers, with the
+ *      parent's table in element 0 as in VTable, and a constant @C$$ of
+ *      that type. A virtual call loads the function pointer from the
+ *      receiver's table; a call with a single possible target calls it
+ *      directly. Arrays keep the runtime's layout: the length in the
+ *      word before element 0.
+ *
+ *      int is i32, boolean i1, and objects and arrays are opaque ptr
+ *      (LLVM 15 or later). Parameters and locals live in allocas, which
+ *      mem2reg turns into SSA values; unlike the native backends, locals
+ *      start out as zero. Operands are evaluated left to right, the
+ *      receiver before the arguments and the index before the value
+ *      stored, as in Java.
+ */
+public class LlvmCodeGenerator implements Visitor {
+    private List<String> code;
+    private ProgramLayout layout;
+    private String currentClass;
+    private String currentMethod;
+    private FrameLayout currentFrame;
+    private int lastTemp;
+    private int lastLabel;
+    // label of the basic block being filled, for phi operands
+    private String block;
+    // the last expression: its operand, LLVM type and, for objects, class
+    private String value;
+    private String valueType;
+    private String valueClass;
+    private boolean safeArrays;
+    private boolean trapped;
+    private int callSites;
+    private int devirtualized;
+
+    public LlvmCodeGenerator(ProgramLayout layout) {
+        this.code = new ArrayList<String>();
+        this.layout = layout;
+    }
+
+    public List<String> getCode() {
+        return code;
+    }
+
+    public int getCallSiteCount() {
+        return callSites;
+    }
+
+    public int getDevirtualizedCount() {
+        return devirtualized;
+    }
+
+    /*
+     * When set, array accesses compare the index with the length and
+     *      call llvm.trap when it is out of range.
+     */
+    public void setSafeArrays(boolean safeArrays) {
+        this.safeArrays = safeArrays;
+    }
+
+    /*
+     * LLVM type of a MiniJava type.
+     */
+    private static String type(Node node) {
+        if (node == null) {
+            return "i32";
+        }
+        switch (node.getType()) {
+        case BOOLEAN:
+            return "i1";
+        case INTARRAY:
+        case CLASS:
+            return "ptr";
+        default:
+            return "i32";
+        }
+    }
+
+    private String temp() {
+        return "%t" + lastTemp++;
+    }
+
+    private String getLabel() {
+        return "L" + lastLabel++;
+    }
+
+    private void label(String name) {
+        code.add(name + ":");
+        block = name;
+    }
+
+    private void jump(String target) {
+        code.add("    br label %" + target);
+    }
+
+    private void result(String operand, String llvmType, String className) {
+        value = operand;
+        valueType = llvmType;
+        valueClass = className;
+    }
+
+    /*
+     * Evaluates e and returns its value as the given type; booleans and
+     *      ints are converted into each other, which the checker only
+     *      lets through after constant folding.
+     */
+    private String evaluate(Exp e, String wanted) {
+        e.accept(this);
+        return convert(value, valueType, wanted);
+    }
+
+    /*
+     * Emits the struct type of every class and of its vtable, then the
+     *      vtable constants, parents before children.
+     */
+    private void createTypes() {
+        for (String className : layout.getClassOrder()) {
+            ClassLayout classLayout = layout.getClassLayout(className);
+            String[] fields = new String[1 + classLayout.getFieldCount()];
+            fields[0] = "ptr";
+            // hidden fields are only in the layout that declared them
+            for (ClassLayout c = classLayout; c != null; c = c.getParent()) {
+                for (Slot slot : c.getFields().values()) {
+                    if (fields[slot.getIndex()] == null) {
+                        fields[slot.getIndex()] = type(slot.getType());
+                    }
+                }
+            }
+            code.add("%class." + className + " = type { " +
+                     join(Arrays.asList(fields)) + " }");
+
+            VTable table = layout.getVTable(className);
+            List<String> entries = new ArrayList<String>();
+            for (int slot = 0; slot <= table.getMethodCount(); ++slot) {
+                entries.add("ptr");
+            }
+            code.add("%vtable." + className + " = type { " + join(entries) + " }");
+        }
+        code.add("");
+
+        for (String className : layout.getClassOrder()) {
+            VTable table = layout.getVTable(className);
+            VTable parent = table.getParent();
+            List<String> entries = new ArrayList<String>();
+            entries.add("ptr " + (parent == null ? "null" : "@" + parent.getLabel()));
+            for (int slot = 1; slot <= table.getMethodCount(); ++slot) {
+                entries.add("ptr @" + table.getEntry(slot));
+            }
+            code.add("@" + table.getLabel() + " = constant %vtable." + className +
+                     " { " + join(entries) + " }");
+        }
+        code.add("");
+
+        code.add("declare void @put(i32)");
+        code.add("declare ptr @mjmalloc(i32)");
+        code.add("declare void @llvm.trap()");
+    }
+
+    private static String join(List<String> parts) {
+        StringBuilder rv = new StringBuilder();
+        for (String part : parts) {
+            if (rv.length() > 0) {
+                rv.append(", ");
+            }
+            rv.append(part);
+        }
+        return rv.toString();
+    }
+
+    /*
+     * Address of a parameter, local or field of the current method.
+     */
+    private String address(Slot slot) {
+        switch (slot.getKind()) {
+        case PARAMETER:
+            return "%" + slot.getName() + ".param";
+        case LOCAL:
+            return "%" + slot.getName() + ".local";
+        default:
+            String rv = temp();
+            code.add("    " + rv + " = getelementptr inbounds %class." +
+                     currentClass + ", ptr %this, i32 0, i32 " + slot.getIndex());
+            return rv;
+        }
+    }
+
+    /*
+     * Address of element index of array, after the bounds check.
+     */
+    private String element(String array, String index) {
+        if (safeArrays) {
+            String length = length(array);
+            String outside = temp();
+            String ok = getLabel();
+            code.add("    " + outside + " = icmp uge i32 " + index + ", " + length);
+            code.add("    br i1 " + outside + ", label %trap, label %" + ok);
+            label(ok);
+            trapped = true;
+        }
+        String rv = temp();
+        code.add("    " + rv + " = getelementptr inbounds i32, ptr " + array +
+                 ", i32 " + index);
+        return rv;
+    }
+
+    private String length(String array) {
+        String field = temp();
+        String rv = temp();
+        code.add("    " + field + " = getelementptr inbounds i32, ptr " + array +
+                 ", i32 -1");
+        code.add("    " + rv + " = load i32, ptr " + field);
+        return rv;
+    }
+
+    private String malloc(String bytes) {
+        String rv = temp();
+        code.add("    " + rv + " = call ptr @mjmalloc(i32 " + bytes + ")");
+        return rv;
+    }
+
+    public void visit(Program n) {
+        createTypes();
+
+        n.m.accept(this);
+
+        ClassDeclList classDeclarations = n.cl;
+        int size = classDeclarations.size();
+        for (int i = 0; i < size; ++i) {
+            classDeclarations.elementAt(i).accept(this);
+        }
+    }
+
+    public void visit(MainClass n) {
+        code.add("");
+        code.add("define void @asm_main() {");
+        lastTemp = 0;
+        trapped = false;
+        label("entry");
+        n.s.accept(this);
+        code.add("    ret void");
+        closeFunction();
+    }
+
+    /*
+     * Appends the shared out-of-bounds block, if a check jumps to it.
+     */
+    private void closeFunction() {
+        if (trapped) {
+            label("trap");
+            code.add("    call void @llvm.trap()");
+            code.add("    unreachable");
+        }
+        code.add("}");
+    }
+
+    public void visit(ClassDeclSimple n) {
+        currentClass = n.i.s;
+
+        MethodDeclList methods = n.ml;
+        int methodsCount = methods.size();
+        for (int i = 0; i < methodsCount; ++i) {
+            methods.elementAt(i).accept(this);
+        }
+
+        currentClass = null;
+    }
+
+    public void visit(ClassDeclExtends n) {
+        currentClass = n.i.s;
+
+        MethodDeclList methods = n.ml;
+        int methodsCount = methods.size();
+        for (int i = 0; i < methodsCount; ++i) {
+            methods.elementAt(i).accept(this);
+        }
+
+        currentClass = null;
+    }
+
+    /*
+     * Reached only for locals: an initializer is stored like an
+     *      assignment, before the method body runs.
+     */
+    public void visit(VarDecl n) {
+        if (n.exp != null) {
+            new Assign(n.i, n.exp, n.getLine()).accept(this);
+        }
+    }
+
+    /*
+     * Every parameter is copied into an alloca so that assignments to it
+     *      need no special case; mem2reg removes the copies again.
+     */
+    public void visit(MethodDecl n) {
+        currentMethod = n.i.s;
+        currentFrame = layout.getFrameLayout(currentClass, currentMethod);
+        VTable table = layout.getVTable(currentClass);
+        String returnType = type(table.getMethod(table.getSlot(currentMethod))
+                                      .getReturnType());
+        lastTemp = 0;
+        trapped = false;
+
+        List<String> parameters = new ArrayList<String>();
+        parameters.add("ptr %this");
+        for (Slot parameter : currentFrame.getParameterList()) {
+            parameters.add(type(parameter.getType()) + " %" + parameter.getName() +
+                           ".arg");
+        }
+        code.add("");
+        code.add("define " + returnType + " @" + currentClass + "$" +
+                 currentMethod + "(" + join(parameters) + ") {");
+        label("entry");
+        for (Slot parameter : currentFrame.getParameterList()) {
+            String llvmType = type(parameter.getType());
+            String slot = "%" + parameter.getName() + ".param";
+            code.add("    " + slot + " = alloca " + llvmType);
+            code.add("    store " + llvmType + " %" + parameter.getName() +
+                     ".arg, ptr " + slot);
+        }
+        for (Slot local : currentFrame.getLocalList()) {
+            String llvmType = type(local.getType());
+            String slot = "%" + local.getName() + ".local";
+            code.add("    " + slot + " = alloca " + llvmType);
+            code.add("    store " + llvmType + " " +
+                     (llvmType.equals("ptr") ? "null" : "0") + ", ptr " + slot);
+        }
+
+        VarDeclList localVariables = n.vl;
+        int variablesCount = localVariables.size();
+        for (int i = 0; i < variablesCount; ++i) {
+            localVariables.elementAt(i).accept(this);
+        }
+
+        StatementList stmts = n.sl;
+        int stmtsCount = stmts.size();
+        for (int i = 0; i < stmtsCount; ++i) {
+            stmts.elementAt(i).accept(this);
+        }
+
+        String rv = evaluate(n.e, returnType);
+        code.add("    ret " + returnType + " " + rv);
+        closeFunction();
+
+        currentFrame = null;
+        currentMethod = null;
+    }
+
+    public void visit(Formal n) { }
+
+    public void visit(IntArrayType n) { }
+
+    public void visit(BooleanType n) { }
+
+    public void visit(IntegerType n) { }
+
+    public void visit(IdentifierType n) { }
+
+    public void visit(Block n) {
+        StatementList stmts = n.sl;
+        int size = stmts.size();
+        for (int i = 0; i < size; ++i) {
+            stmts.elementAt(i).accept(this);
+        }
+    }
+
+    public void visit(If n) {
+        String labelThen = getLabel();
+        String labelElse = getLabel();
+        String labelEnd = getLabel();
+
+        branch(n.e, labelThen, labelElse);
+        label(labelThen);
+        n.s1.accept(this);
+        jump(labelEnd);
+        label(labelElse);
+        n.s2.accept(this);
+        jump(labelEnd);
+        label(labelEnd);
+    }
+
+    public void visit(While n) {
+        String labelBody = getLabel();
+        String labelTest = getLabel();
+        String labelEnd = getLabel();
+
+        jump(labelTest);
+        label(labelBody);
+        n.s.accept(this);
+        jump(labelTest);
+        label(labelTest);
+        branch(n.e, labelBody, labelEnd);
+        label(labelEnd);
+    }
+
+    /*
+     * Condition context: ends the current block with a branch to whenTrue
+     *      or whenFalse. And and Not only rewire the targets, as in
+     *      CodeGenerator.branch.
+     */
+    private void branch(Exp e, String whenTrue, String whenFalse) {
+        if (e instanceof And) {
+            String labelRight = getLabel();
+            branch(((And) e).e1, labelRight, whenFalse);
+            label(labelRight);
+            branch(((And) e).e2, whenTrue, whenFalse);
+        } else if (e instanceof Not) {
+            branch(((Not) e).e, whenFalse, whenTrue);
+        } else if (e instanceof True || e instanceof False) {
+            jump(e instanceof True ? whenTrue : whenFalse);
+        } else {
+            String condition = evaluate(e, "i1");
+            code.add("    br i1 " + condition + ", label %" + whenTrue +
+                     ", label %" + whenFalse);
+        }
+    }
+
+    /*
+     * Compares e1 with e2 as i32, or as pointers when both are objects.
+     */
+    private void compare(String predicate, Exp e1, Exp e2) {
+        e1.accept(this);
+        String left = value;
+        String leftType = valueType;
+        e2.accept(this);
+        String right = value;
+        String rightType = valueType;
+        if (!leftType.equals(rightType)) {
+            right = convert(right, rightType, leftType);
+        }
+        String rv = temp();
+        code.add("    " + rv + " = icmp " + predicate + " " + leftType + " " +
+                 left + ", " + right);
+        result(rv, "i1", null);
+    }
+
+    private String convert(String operand, String from, String to) {
+        if (from.equals("i1") && to.equals("i32")) {
+            String rv = temp();
+            code.add("    " + rv + " = zext i1 " + operand + " to i32");
+            return rv;
+        }
+        if (from.equals("i32") && to.equals("i1")) {
+            String rv = temp();
+            code.add("    " + rv + " = icmp ne i32 " + operand + ", 0");
+            return rv;
+        }
+        return operand;
+    }
+
+    private void arithmetic(String opcode, Exp e1, Exp e2) {
+        String left = evaluate(e1, "i32");
+        String right = evaluate(e2, "i32");
+        String rv = temp();
+        code.add("    " + rv + " = " + opcode + " i32 " + left + ", " + right);
+        result(rv, "i32", null);
+    }
+
+    public void visit(Print n) {
+        String operand = evaluate(n.e, "i32");
+        code.add("    call void @put(i32 " + operand + ")");
+    }
+
+    public void visit(Assign n) {
+        Slot slot = currentFrame == null ? null : currentFrame.resolve(n.i.s);
+        if (slot == null) {
+            System.err.println("SHOULD NOT HAVE GOTTEN HERE!!");
+            return;
+        }
+        String llvmType = type(slot.getType());
+        String operand = evaluate(n.e, llvmType);
+        code.add("    store " + llvmType + " " + operand + ", ptr " + address(slot));
+    }
+
+    public void visit(ArrayAssign n) {
+        Slot slot = currentFrame == null ? null : currentFrame.resolve(n.i.s);
+        if (slot == null) {
+            System.err.println("SHOULD NOT HAVE GOTTEN HERE!!");
+            return;
+        }
+        String address = address(slot);
+        String array = temp();
+        code.add("    " + array + " = load ptr, ptr " + address);
+        String index = evaluate(n.e1, "i32");
+        String operand = evaluate(n.e2, "i32");
+        code.add("    store i32 " + operand + ", ptr " + element(array, index));
+    }
+
+    /*
+     * The right operand runs only when the left one is true; the result
+     *      is a phi of false from the left block and the right value.
+     */
+    public void visit(And n) {
+        String labelRight = getLabel();
+        String labelEnd = getLabel();
+
+        String left = evaluate(n.e1, "i1");
+        String leftBlock = block;
+        code.add("    br i1 " + left + ", label %" + labelRight +
+                 ", label %" + labelEnd);
+        label(labelRight);
+        String right = evaluate(n.e2, "i1");
+        String rightBlock = block;
+        jump(labelEnd);
+        label(labelEnd);
+        String rv = temp();
+        code.add("    " + rv + " = phi i1 [ false, %" + leftBlock + " ], [ " +
+                 right + ", %" + rightBlock + " ]");
+        result(rv, "i1", null);
+    }
+
+    public void visit(LessThan n) {
+        compare("slt", n.e1, n.e2);
+    }
+
+    public void visit(LessThanEqual n) {
+        compare("sle", n.e1, n.e2);
+    }
+
+    public void visit(GreatThan n) {
+        compare("sgt", n.e1, n.e2);
+    }
+
+    public void visit(GreatThanEqual n) {
+        compare("sge", n.e1, n.e2);
+    }
+
+    public void visit(EqualEqual n) {
+        compare("eq", n.e1, n.e2);
+    }
+
+    public void visit(NotEqual n) {
+        compare("ne", n.e1, n.e2);
+    }
+
+    public void visit(Plus n) {
+        arithmetic("add", n.e1, n.e2);
+    }
+
+    public void visit(Minus n) {
+        arithmetic("sub", n.e1, n.e2);
+    }
+
+    public void visit(Times n) {
+        arithmetic("mul", n.e1, n.e2);
+    }
+
+    public void visit(ArrayLookup n) {
+        String array = evaluate(n.e1, "ptr");
+        String index = evaluate(n.e2, "i32");
+        String rv = temp();
+        code.add("    " + rv + " = load i32, ptr " + element(array, index));
+        result(rv, "i32", null);
+    }
+
+    public void visit(ArrayLength n) {
+        String array = evaluate(n.e, "ptr");
+        result(length(array), "i32", null);
+    }
+
+    public void visit(Call n) {
+        String receiver = evaluate(n.e, "ptr");
+        String className = valueClass;
+
+        VTable table = layout.getVTable(className);
+        int slotNumber = table.getSlot(n.i.s);
+        MethodNode method = table.getMethod(slotNumber);
+        Node returnNode = method.getReturnType();
+        String returnType = type(returnNode);
+
+        List<String> arguments = new ArrayList<String>();
+        arguments.add("ptr " + receiver);
+        // the parser builds the list last argument first
+        ExpList params = n.el;
+        for (int i = 0; i < params.size(); ++i) {
+            String llvmType = type(method.getParameters().get(i));
+            Exp argument = params.elementAt(params.size() - 1 - i);
+            arguments.add(llvmType + " " + evaluate(argument, llvmType));
+        }
+
+        // only one implementation can be reached: call it directly
+        String implementor = layout.getHierarchy()
+                                   .getUniqueImplementor(className, n.i.s);
+        String target;
+        ++callSites;
+        if (implementor != null) {
+            ++devirtualized;
+            target = "@" + implementor + "$" + n.i.s;
+        } else {
+            String vtable = temp();
+            String entry = temp();
+            target = temp();
+            code.add("    " + vtable + " = load ptr, ptr " + receiver);
+            code.add("    " + entry + " = getelementptr inbounds %vtable." +
+                     className + ", ptr " + vtable + ", i32 0, i32 " + slotNumber);
+            code.add("    " + target + " = load ptr, ptr " + entry);
+        }
+
+        String rv = temp();
+        code.add("    " + rv + " = call " + returnType + " " + target + "(" +
+                 join(arguments) + ")");
+        result(rv, returnType,
+               returnNode.getType() == NodeType.CLASS ? returnNode.iam : null);
+    }
+
+    public void visit(IntegerLiteral n) {
+        result(Integer.toString(n.i), "i32", null);
+    }
+
+    public void visit(True n) {
+        result("true", "i1", null);
+    }
+
+    public void visit(False n) {
+        result("false", "i1", null);
+    }
+
+    public void visit(IdentifierExp n) {
+        Slot slot = currentFrame == null ? null : currentFrame.resolve(n.s);
+        if (slot == null) {
+            System.err.println("SHOULD NOT HAVE GOTTEN HERE!!");
+            return;
+        }
+        String llvmType = type(slot.getType());
+        String address = address(slot);
+        String rv = temp();
+        code.add("    " + rv + " = load " + llvmType + ", ptr " + address);
+        result(rv, llvmType, slot.getType().getType() == NodeType.CLASS
+                             ? slot.getClassName() : null);
+    }
+
+    public void visit(This n) {
+        result("%this", "ptr", currentClass);
+    }
+
+    /*
+     * One word for the length, then the elements, zeroed by mjmalloc.
+     */
+    public void visit(NewArray n) {
+        String count = evaluate(n.e, "i32");
+        String words = temp();
+        String bytes = temp();
+        code.add("    " + words + " = add i32 " + count + ", 1");
+        code.add("    " + bytes + " = shl i32 " + words + ", 2");
+        String memory = malloc(bytes);
+        code.add("    store i32 " + count + ", ptr " + memory);
+        String rv = temp();
+        code.add("    " + rv + " = getelementptr inbounds i32, ptr " + memory +
+                 ", i32 1");
+        result(rv, "ptr", null);
+    }
+
+    /*
+     * The size comes from the struct type, so it follows the target's
+     *      pointer width.
+     */
+    public void visit(NewObject n) {
+        String rv = malloc("ptrtoint (ptr getelementptr (%class." + n.i.s +
+                           ", ptr null, i32 1) to i32)");
+        code.add("    store ptr @" + layout.getVTable(n.i.s).getLabel() +
+                 ", ptr " + rv);
+        result(rv, "ptr", n.i.s);
+    }
+
+    public void visit(Not n) {
+        String operand = evaluate(n.e, "i1");
+        String rv = temp();
+        code.add("    " + rv + " = xor i1 " + operand + ", true");
+        result(rv, "i1", null);
+    }
+
+    public void visit(Identifier n) { }
+
+    public void visit(FloatLiteral n) { }
+
+    public void visit(FloatType n) { }
+
+    public void visit(DoubleLiteral n) { }
+
+    public void visit(DoubleType n) { }
+
+    public void visit(Instanceof n) { }
+
+    public void visit(Null n) { }
+}
@@ -0,0 +1,63 @@
+package CodeGenerator;
+
+import java.util.*;
+
+/*
+ * Multiplication by a constant without imull where a cheaper sequence
+ *      exists: powers of two become shifts, 3, 5 and 9 (times a power of
+ *      two) become leal with a scaled index, and 0, 1 and -1 become a
+ *      move, nothing or a negation. Other factors use the three-operand
+ *      imull.
+ */
+public final class Multiplication {
+    private Multiplication() { }
+
+    private static int log2(int k) {
+        return k > 0 && (k & (k - 1)) == 0 ? Integer.numberOfTrailingZeros(k) : -1;
+    }
+
+    /*
+     * Lines computing dst := src * k; src and dst are registers and may be
+     *      the same one.
+     */
+    public static List<String> byConstant(String src, String dst, int k) {
+        List<String> rv = new ArrayList<String>();
+        if (k == 0) {
+            rv.add("    movl $0, " + dst);
+            return rv;
+        }
+        if (k == -1) {
+            if (!src.equals(dst)) {
+                rv.add("    movl " + src + ", " + dst);
+            }
+            rv.add("    negl " + dst);
+            return rv;
+        }
+
+        int shift = log2(k);
+        if (shift >= 0) {
+            if (!src.equals(dst)) {
+                rv.add("    movl " + src + ", " + dst);
+            }
+            if (shift > 0) {
+                rv.add("    shll $" + shift + ", " + dst);
+            }
+            return rv;
+        }
+
+        for (int scale = 2; scale <= 8; scale *= 2) {
+            int factor = scale + 1;
+            if (k % factor == 0 && log2(k / factor) >= 0) {
+                rv.add("    leal (" + src + "," + src + "," + scale + "), " + dst);
+                shift = log2(k / factor);
+                if (shift > 0) {
+                    rv.add("    shll $" + shift + ", " + dst);
+                }
+                return rv;
+            }
+        }
+
+        rv.add("    imull $" + k + ", " + src + ", " + dst);
+        return rv;
+    }
+}
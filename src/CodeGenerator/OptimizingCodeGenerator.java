@@ -0,0 +1,628 @@
+package CodeGenerator;
+
+import java.util.*;
+
+import IR.*;
+import Layout.*;
+
+/*
+ * Optimizing backend: emits x86 from the register IR produced by
+ *      IR.Lowering, with virtual registers assigned by LinearScan.
+ *
+ *      Calling convention (compatible with CodeGenerator): arguments are
+ *      pushed first to last, the receiver is passed in %ecx and the result
+ *      comes back in %eax. Inside a method `this` is an ordinary register
+ *      value. %eax and %edx are scratch and never allocated; %ecx is
+ *      allocatable but clobbered by calls, while %ebx, %esi and %edi are
+ *      callee-saved, as in the C ABI used by put and mjmalloc.
+ *
+ *      With setRegisterCalls the first two arguments travel in registers
+ *      instead; see CodeGenerator.ARGUMENT_REGISTERS for the convention.
+ *
+ *      Leaf functions (Function.isLeaf) get no frame pointer: nothing in
+ *      their body pushes, so %esp stays put between the prologue and the
+ *      epilogue and the spill slots, frame objects and stack arguments
+ *      are addressed off it. The prologue is then just the pushes of the
+ *      callee-saved registers in use and the subl for the slots, if any.
+ */
+public class OptimizingCodeGenerator {
+    private static final String[] CALLER_SAVED = { "%ecx" };
+    private static final String[] CALLEE_SAVED = { "%ebx", "%esi", "%edi" };
+
+    private List<String> code;
+    private ProgramLayout layout;
+    private int lastLabel;
+    private int callSites;
+    private int devirtualized;
+    private int methods;
+    private int frameless;
+    private int spilledValues;
+    private int spillSlots;
+    private boolean boundsChecked;
+    private boolean registerCalls;
+
+    private LinearScan allocation;
+    private Map<BasicBlock, String> labels;
+    private int savedCount;
+    private List<String> saved;
+    // bytes below the saved registers: spill slots, frame objects and
+    //      the dispatch slot
+    private int frameSize;
+    private boolean omitFramePointer;
+    // FRAMEOBJECT instructions and their offsets below the spill slots
+    private Map<Instruction, Integer> frameObjects;
+    // frame word holding the target of a virtual call (-R only)
+    private String dispatchSlot;
+
+    public OptimizingCodeGenerator(ProgramLayout layout) {
+        super();
+        this.code = new ArrayList<String>();
+        this.layout = layout;
+        this.lastLabel = 0;
+        this.callSites = 0;
+        this.devirtualized = 0;
+    }
+
+    public List<String> getCode() {
+        return code;
+    }
+
+    public int getCallSiteCount() {
+        return callSites;
+    }
+
+    public int getDevirtualizedCount() {
+        return devirtualized;
+    }
+
+    public int getMethodCount() {
+        return methods;
+    }
+
+    /*
+     * Methods emitted without a frame pointer.
+     */
+    public int getFramelessCount() {
+        return frameless;
+    }
+
+    public int getSpilledCount() {
+        return spilledValues;
+    }
+
+    /*
+     * Frame words the spilled values of all functions take once values
+     *      whose intervals do not overlap share one.
+     */
+    public int getSpillSlotCount() {
+        return spillSlots;
+    }
+
+    public void setRegisterCalls(boolean registerCalls) {
+        this.registerCalls = registerCalls;
+    }
+
+    private String getLabel() {
+        String rv = "L" + lastLabel;
+        ++lastLabel;
+        return rv;
+    }
+
+    public void generate(List<Function> functions) {
+        createVTables();
+
+        code.add("    .text");
+        code.add("    .global asm_main");
+        code.add("");
+        for (Function function : functions) {
+            generate(function);
+        }
+        if (boundsChecked) {
+            code.addAll(CodeGenerator.boundsTrap());
+        }
+    }
+
+    /*
+     * Same tables CodeGenerator emits, parents before children.
+     */
+    private void createVTables() {
+        for (String className : layout.getClassOrder()) {
+            VTable table = layout.getVTable(className);
+            VTable parent = table.getParent();
+
+            code.add(table.getLabel() + ":");
+            code.add("    .long " + (parent == null ? "0" : parent.getLabel()));
+            for (int slot = 1; slot <= table.getMethodCount(); ++slot) {
+                code.add("    .long " + table.getEntry(slot));
+            }
+        }
+    }
+
+    private void generate(Function function) {
+        allocation = new LinearScan(CALLER_SAVED, CALLEE_SAVED);
+        allocation.allocate(function);
+        saved = allocation.getUsedCalleeSaved();
+        savedCount = saved.size();
+        spilledValues += allocation.getSpilledCount();
+        spillSlots += allocation.getSpillCount();
+
+        labels = new HashMap<BasicBlock, String>();
+        for (BasicBlock block : function.getBlocks()) {
+            labels.put(block, getLabel());
+        }
+
+        omitFramePointer = function.isLeaf();
+        if (!function.isMain()) {
+            ++methods;
+            if (omitFramePointer) {
+                ++frameless;
+            }
+        }
+
+        code.add(function.getLabel() + ":");
+        if (!omitFramePointer) {
+            code.add("    pushl %ebp");
+            code.add("    movl %esp, %ebp");
+        }
+        for (String reg : saved) {
+            code.add("    pushl " + reg);
+        }
+        frameObjects = new HashMap<Instruction, Integer>();
+        int objectBytes = 0;
+        for (BasicBlock block : function.getBlocks()) {
+            for (Instruction instr : block.getInstructions()) {
+                if (instr.op == Opcode.FRAMEOBJECT) {
+                    objectBytes += instr.imm;
+                    frameObjects.put(instr, objectBytes);
+                }
+            }
+        }
+        frameSize = 4 * allocation.getSpillCount() + objectBytes;
+        if (registerCalls && hasVirtualCall(function)) {
+            frameSize += 4;
+            dispatchSlot = frame(-4 * savedCount - frameSize);
+        }
+        if (frameSize > 0) {
+            code.add("    subl $" + frameSize + ", %esp");
+        }
+        if (registerCalls) {
+            receiveArguments(function);
+        }
+
+        List<BasicBlock> blocks = function.getBlocks();
+        for (int i = 0; i < blocks.size(); ++i) {
+            BasicBlock block = blocks.get(i);
+            BasicBlock next = i + 1 < blocks.size() ? blocks.get(i + 1) : null;
+
+            code.add(labels.get(block) + ":");
+            for (Instruction instr : block.getInstructions()) {
+                generate(function, instr, next);
+            }
+        }
+    }
+
+    private boolean isVirtual(Instruction call) {
+        return layout.getHierarchy()
+                     .getUniqueImplementor(call.sym, call.method) == null;
+    }
+
+    private boolean hasVirtualCall(Function function) {
+        for (BasicBlock block : function.getBlocks()) {
+            for (Instruction instr : block.getInstructions()) {
+                if (instr.op == Opcode.CALL && isVirtual(instr)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /*
+     * With register calls, THIS and PARAM all run here, before anything
+     *      can overwrite %ecx, %edx or %eax: the receiver first, then the
+     *      register arguments, and last the stack ones, whose moves may
+     *      use %eax. Registers that are never live are skipped, since
+     *      their location is %eax.
+     */
+    private void receiveArguments(Function function) {
+        List<Instruction> stack = new ArrayList<Instruction>();
+        Instruction[] registers = new Instruction[CodeGenerator.ARGUMENT_REGISTERS.length + 1];
+        for (BasicBlock block : function.getBlocks()) {
+            for (Instruction instr : block.getInstructions()) {
+                if (instr.op == Opcode.THIS) {
+                    registers[0] = instr;
+                } else if (instr.op == Opcode.PARAM &&
+                               instr.imm < CodeGenerator.ARGUMENT_REGISTERS.length) {
+                    registers[instr.imm + 1] = instr;
+                } else if (instr.op == Opcode.PARAM) {
+                    stack.add(instr);
+                }
+            }
+        }
+        for (int i = 0; i < registers.length; ++i) {
+            if (registers[i] != null && isLive(registers[i].dst)) {
+                move(i == 0 ? "%ecx" : CodeGenerator.ARGUMENT_REGISTERS[i - 1],
+                     loc(registers[i].dst));
+            }
+        }
+        for (Instruction instr : stack) {
+            if (isLive(instr.dst)) {
+                int offset = 4 * (1 + function.getParameterCount() - instr.imm);
+                move(frame(offset), loc(instr.dst));
+            }
+        }
+    }
+
+    /*
+     * Memory operand for a word at offset from where %ebp would point.
+     *      Without a frame pointer there is no saved %ebp: the arguments
+     *      stay where they are relative to the return address, while the
+     *      words below move up into the freed slot.
+     */
+    private String frame(int offset) {
+        if (!omitFramePointer) {
+            return offset + "(%ebp)";
+        }
+        int fromEntry = offset > 0 ? offset - 4 : offset;
+        return (fromEntry + 4 * savedCount + frameSize) + "(%esp)";
+    }
+
+    private boolean isLive(int reg) {
+        return allocation.getRegister(reg) != null ||
+               allocation.getSpillSlot(reg) >= 0;
+    }
+
+    private boolean isRegister(int reg) {
+        return allocation.getRegister(reg) != null;
+    }
+
+    /*
+     * Operand for a virtual register: its machine register or its spill
+     *      slot below the saved registers.
+     */
+    private String loc(int reg) {
+        String machine = allocation.getRegister(reg);
+        if (machine != null) {
+            return machine;
+        }
+        int slot = allocation.getSpillSlot(reg);
+        if (slot < 0) {
+            // never live: any scratch location will do
+            return "%eax";
+        }
+        return frame(-4 * (savedCount + 1 + slot));
+    }
+
+    private String second(Instruction instr) {
+        return instr.bImm ? "$" + instr.imm : loc(instr.b);
+    }
+
+    private void move(String from, String to) {
+        if (from.equals(to)) {
+            return;
+        }
+        if (from.startsWith("%") || from.startsWith("$") || to.startsWith("%")) {
+            code.add("    movl " + from + ", " + to);
+        } else {
+            code.add("    movl " + from + ", %eax");
+            code.add("    movl %eax, " + to);
+        }
+    }
+
+    /*
+     * Register usable as an address base: the value's own register or
+     *      the given scratch register after loading it.
+     */
+    private String base(int reg, String scratch) {
+        if (isRegister(reg)) {
+            return loc(reg);
+        }
+        code.add("    movl " + loc(reg) + ", " + scratch);
+        return scratch;
+    }
+
+    /*
+     * Address of element index + imm of an array.
+     */
+    private static String element(Instruction instr, String array, String index) {
+        return (instr.imm == 0 ? "" : Integer.toString(4 * instr.imm)) +
+               "(" + array + "," + index + ",4)";
+    }
+
+    private void arithmetic(String mnemonic, boolean commutative,
+                            Instruction instr) {
+        String d = loc(instr.dst);
+        String a = loc(instr.a);
+        String b = second(instr);
+
+        if (isRegister(instr.dst)) {
+            if (d.equals(b) && !instr.bImm) {
+                if (commutative) {
+                    code.add("    " + mnemonic + " " + a + ", " + d);
+                    return;
+                }
+                code.add("    movl " + a + ", %eax");
+                code.add("    " + mnemonic + " " + b + ", %eax");
+                code.add("    movl %eax, " + d);
+                return;
+            }
+            move(a, d);
+            code.add("    " + mnemonic + " " + b + ", " + d);
+        } else {
+            code.add("    movl " + a + ", %eax");
+            code.add("    " + mnemonic + " " + b + ", %eax");
+            code.add("    movl %eax, " + d);
+        }
+    }
+
+    /*
+     * Emits cmpl for "a <cond> b"; at most one memory operand.
+     */
+    private void compare(Instruction instr) {
+        String a = loc(instr.a);
+        String b = second(instr);
+        if (!isRegister(instr.a) && !instr.bImm && !isRegister(instr.b)) {
+            code.add("    movl " + a + ", %eax");
+            a = "%eax";
+        }
+        code.add("    cmpl " + b + ", " + a);
+    }
+
+    /*
+     * CALL with the register convention. Arguments past the second are
+     *      pushed; a virtual target is looked up through %edx before the
+     *      argument registers are loaded and called through dispatchSlot.
+     *      No argument lives in %eax or %edx, so only %ecx needs care: it
+     *      is loaded last.
+     */
+    private void registerCall(Instruction instr) {
+        String[] registers = CodeGenerator.ARGUMENT_REGISTERS;
+        for (int i = registers.length; i < instr.args.length; ++i) {
+            code.add("    pushl " + loc(instr.args[i]));
+        }
+        ++callSites;
+        String target;
+        if (isVirtual(instr)) {
+            move(loc(instr.a), "%edx");
+            code.add("    movl (%edx), %edx");
+            code.add("    movl " + (4 * instr.imm) + "(%edx), %edx");
+            code.add("    movl %edx, " + dispatchSlot);
+            target = "*" + dispatchSlot;
+        } else {
+            ++devirtualized;
+            target = layout.getHierarchy().getUniqueImplementor(instr.sym, instr.method) +
+                     "$" + instr.method;
+        }
+        for (int i = 0; i < Math.min(registers.length, instr.args.length); ++i) {
+            move(loc(instr.args[i]), registers[i]);
+        }
+        move(loc(instr.a), "%ecx");
+        code.add("    call " + target);
+        if (instr.args.length > registers.length) {
+            code.add("    addl $" + (4 * (instr.args.length - registers.length)) +
+                     ", %esp");
+        }
+        move("%eax", loc(instr.dst));
+    }
+
+    private void generate(Function function, Instruction instr,
+                          BasicBlock next) {
+        switch (instr.op) {
+        case Opcode.CONST:
+            code.add("    movl $" + instr.imm + ", " + loc(instr.dst));
+            break;
+        case Opcode.MOVE:
+            move(loc(instr.a), loc(instr.dst));
+            break;
+        case Opcode.ADD:
+            arithmetic("addl", true, instr);
+            break;
+        case Opcode.SUB:
+            arithmetic("subl", false, instr);
+            break;
+        case Opcode.MUL:
+            if (instr.bImm && isRegister(instr.dst)) {
+                String d = loc(instr.dst);
+                String a = isRegister(instr.a) ? loc(instr.a) : d;
+                move(loc(instr.a), a);
+                code.addAll(Multiplication.byConstant(a, d, instr.imm));
+            } else if (instr.bImm) {
+                code.add("    movl " + loc(instr.a) + ", %eax");
+                code.addAll(Multiplication.byConstant("%eax", "%eax", instr.imm));
+                code.add("    movl %eax, " + loc(instr.dst));
+            } else if (isRegister(instr.dst)) {
+                arithmetic("imull", true, instr);
+            } else {
+                code.add("    movl " + loc(instr.a) + ", %eax");
+                code.add("    imull " + second(instr) + ", %eax");
+                code.add("    movl %eax, " + loc(instr.dst));
+            }
+            break;
+        case Opcode.NOT:
+            if (isRegister(instr.dst)) {
+                move(loc(instr.a), loc(instr.dst));
+                code.add("    xorl $1, " + loc(instr.dst));
+            } else {
+                code.add("    movl " + loc(instr.a) + ", %eax");
+                code.add("    xorl $1, %eax");
+                code.add("    movl %eax, " + loc(instr.dst));
+            }
+            break;
+        case Opcode.CMP:
+            compare(instr);
+            code.add("    set" + Condition.x86(instr.cond) + " %al");
+            code.add("    movzbl %al, %eax");
+            code.add("    movl %eax, " + loc(instr.dst));
+            break;
+        case Opcode.THIS:
+            if (!registerCalls) {
+                move("%ecx", loc(instr.dst));
+            }
+            break;
+        case Opcode.PARAM: {
+            if (!registerCalls) {
+                int offset = 4 * (1 + function.getParameterCount() - instr.imm);
+                move(frame(offset), loc(instr.dst));
+            }
+            break;
+        }
+        case Opcode.LOAD: {
+            String base = base(instr.a, "%edx");
+            move(instr.imm + "(" + base + ")", loc(instr.dst));
+            break;
+        }
+        case Opcode.STORE: {
+            String base = base(instr.a, "%edx");
+            String value = second(instr);
+            if (!instr.bImm && !isRegister(instr.b)) {
+                code.add("    movl " + value + ", %eax");
+                value = "%eax";
+            }
+            code.add("    movl " + value + ", " + instr.imm + "(" + base + ")");
+            break;
+        }
+        case Opcode.ALOAD: {
+            String array = base(instr.a, "%eax");
+            String index = base(instr.b, "%edx");
+            move(element(instr, array, index), loc(instr.dst));
+            break;
+        }
+        case Opcode.ASTORE: {
+            String array = base(instr.a, "%eax");
+            String index = base(instr.b, "%edx");
+            String value = loc(instr.c);
+            if (!isRegister(instr.c)) {
+                code.add("    leal " + element(instr, array, index) + ", %eax");
+                code.add("    movl " + value + ", %edx");
+                code.add("    movl %edx, (%eax)");
+            } else {
+                code.add("    movl " + value + ", " + element(instr, array, index));
+            }
+            break;
+        }
+        case Opcode.CHECK: {
+            // unsigned, so a negative index fails too
+            String array = base(instr.a, "%edx");
+            String index = base(instr.b, "%eax");
+            if (instr.imm != 0) {
+                code.add("    leal " + instr.imm + "(" + index + "), %eax");
+                index = "%eax";
+            }
+            code.add("    cmpl -4(" + array + "), " + index);
+            code.add("    jae " + CodeGenerator.BOUNDS_TRAP);
+            boundsChecked = true;
+            break;
+        }
+        case Opcode.LENGTH: {
+            String array = base(instr.a, "%edx");
+            move("-4(" + array + ")", loc(instr.dst));
+            break;
+        }
+        case Opcode.NEWARRAY:
+            code.add("    pushl " + loc(instr.a));
+            code.add("    movl " + loc(instr.a) + ", %eax");
+            code.add("    leal 4(,%eax,4), %eax");
+            code.add("    pushl %eax");
+            code.add("    call mjmalloc");
+            code.add("    addl $4, %esp");
+            code.add("    popl %edx");
+            code.add("    movl %edx, (%eax)");
+            code.add("    addl $4, %eax");
+            move("%eax", loc(instr.dst));
+            break;
+        case Opcode.NEWOBJECT:
+            code.add("    pushl $" + instr.imm);
+            code.add("    call mjmalloc");
+            code.add("    addl $4, %esp");
+            code.add("    movl $" + instr.sym + "$$, (%eax)");
+            move("%eax", loc(instr.dst));
+            break;
+        case Opcode.FRAMEOBJECT: {
+            // same layout as a heap object, with every field zero
+            int offset = -4 * (savedCount + allocation.getSpillCount()) -
+                         frameObjects.get(instr);
+            code.add("    movl $" + instr.sym + "$$, " + frame(offset));
+            for (int field = 4; field < instr.imm; field += 4) {
+                code.add("    movl $0, " + frame(offset + field));
+            }
+            if (isRegister(instr.dst)) {
+                code.add("    leal " + frame(offset) + ", " + loc(instr.dst));
+            } else {
+                code.add("    leal " + frame(offset) + ", %eax");
+                move("%eax", loc(instr.dst));
+            }
+            break;
+        }
+        case Opcode.CALL:
+            if (registerCalls) {
+                registerCall(instr);
+                break;
+            }
+            for (int arg : instr.args) {
+                code.add("    pushl " + loc(arg));
+            }
+            move(loc(instr.a), "%ecx");
+            String implementor = layout.getHierarchy()
+                                       .getUniqueImplementor(instr.sym, instr.method);
+            ++callSites;
+            if (implementor != null) {
+                ++devirtualized;
+                code.add("    call " + implementor + "$" + instr.method);
+            } else {
+                code.add("    movl (%ecx), %eax");
+                code.add("    call *" + (4 * instr.imm) + "(%eax)");
+            }
+            if (instr.args.length > 0) {
+                code.add("    addl $" + (4 * instr.args.length) + ", %esp");
+            }
+            move("%eax", loc(instr.dst));
+            break;
+        case Opcode.PRINT:
+            code.add("    pushl " + loc(instr.a));
+            code.add("    call put");
+            code.add("    addl $4, %esp");
+            break;
+        case Opcode.JUMP:
+            if (instr.target != next) {
+                code.add("    jmp " + labels.get(instr.target));
+            }
+            break;
+        case Opcode.BRANCH:
+            compare(instr);
+            if (instr.target == next) {
+                code.add("    j" + Condition.x86(Condition.negate(instr.cond)) +
+                         " " + labels.get(instr.alt));
+            } else {
+                code.add("    j" + Condition.x86(instr.cond) + " " +
+                         labels.get(instr.target));
+                if (instr.alt != next) {
+                    code.add("    jmp " + labels.get(instr.alt));
+                }
+            }
+            break;
+        case Opcode.RETURN:
+            if (instr.a >= 0) {
+                move(loc(instr.a), "%eax");
+            }
+            if (omitFramePointer) {
+                if (frameSize > 0) {
+                    code.add("    addl $" + frameSize + ", %esp");
+                }
+            } else if (savedCount > 0) {
+                code.add("    leal " + (-4 * savedCount) + "(%ebp), %esp");
+            } else {
+                code.add("    movl %ebp, %esp");
+            }
+            for (int i = savedCount - 1; i >= 0; --i) {
+                code.add("    popl " + saved.get(i));
+            }
+            if (!omitFramePointer) {
+                code.add("    popl %ebp");
+            }
+            code.add("    ret");
+            break;
+        default:
+            throw new IllegalStateException("unknown opcode " + instr.op);
+        }
+    }
+}
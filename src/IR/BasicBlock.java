@@ -0,0 +1,67 @@
+package IR;
+
+import java.util.*;
+
+/*
+ * Straight-line sequence of instructions ending in exactly one
+ *      terminator (JUMP, BRANCH or RETURN).
+ */
+public final class BasicBlock {
+    private final int id;
+    private final List<Instruction> instructions;
+    private final List<BasicBlock> predecessors;
+
+    BasicBlock(int id) {
+        this.id = id;
+        this.instructions = new ArrayList<Instruction>();
+        this.predecessors = new ArrayList<BasicBlock>();
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getLabel() {
+        return "B" + id;
+    }
+
+    public List<Instruction> getInstructions() {
+        return instructions;
+    }
+
+    public Instruction getTerminator() {
+        if (instructions.isEmpty()) {
+            return null;
+        }
+        Instruction last = instructions.get(instructions.size() - 1);
+        return last.isTerminator() ? last : null;
+    }
+
+    public List<BasicBlock> getSuccessors() {
+        List<BasicBlock> rv = new ArrayList<BasicBlock>(2);
+        Instruction last = getTerminator();
+        if (last == null) {
+            return rv;
+        }
+        if (last.op == Opcode.JUMP) {
+            rv.add(last.target);
+        } else if (last.op == Opcode.BRANCH) {
+            rv.add(last.target);
+            if (last.alt != last.target) {
+                rv.add(last.alt);
+            }
+        }
+        return rv;
+    }
+
+    /*
+     * Filled in by Function.computePredecessors().
+     */
+    public List<BasicBlock> getPredecessors() {
+        return predecessors;
+    }
+
+    public String toString() {
+        return getLabel();
+    }
+}
@@ -0,0 +1,415 @@
+package IR;
+
+import java.util.*;
+
+/*
+ * Removes array bounds checks (CHECK) that a range analysis of loop
+ *      induction variables shows can never fail.
+ *
+ *      In a loop whose header tests a basic induction variable against a
+ *      loop-invariant bound and steps it by one towards that bound, e.g.
+ *
+ *          i := phi(P: i0, L: i')    if i < n goto body else exit
+ *          i' := i + 1
+ *
+ *      every iteration sees i in [i0, n - 1] (for i > n stepping down:
+ *      [n + 1, i0]). A check a[i + k] in the body, with a defined outside
+ *      the loop, then holds on every iteration when
+ *
+ *          low + k >= 0   and   high + k < a.length
+ *
+ *      analyze() (on SSA form) deletes the checks for which both facts
+ *      are known at compile time: constant bounds, arrays of constant
+ *      length, or a loop bounded by a.length itself. For the others it
+ *      records a guard evaluating the two facts once in the preheader.
+ *      version() (after SSA.destruct, where registers may be assigned
+ *      more than once and blocks can be copied verbatim) then duplicates
+ *      each such loop: the guard enters a copy without those checks, or
+ *      falls back to the original loop with every check in place.
+ *
+ *      Only innermost loops are versioned, so code grows at most twice.
+ */
+public final class BoundsCheckElimination {
+    // offsets beyond this are left alone so guard arithmetic cannot wrap
+    private static final int MAX_OFFSET = 1 << 20;
+
+    private final Function function;
+    private final Map<Integer, Instruction> definitions;
+    private final Map<Instruction, BasicBlock> blockOf;
+    private final List<Version> versions;
+
+    private int checkCount;
+    private int provenCount;
+    private int versionedCount;
+    private int versionedLoops;
+
+    /*
+     * A loop to duplicate: the guard tests (each ending in a BRANCH taken
+     *      when a fact fails) and the checks the unchecked copy leaves out.
+     */
+    private static final class Version {
+        BasicBlock header;
+        List<List<Instruction>> guard = new ArrayList<List<Instruction>>();
+        Set<Instruction> checks = new HashSet<Instruction>();
+    }
+
+    /*
+     * A value known as reg + offset, or as the constant offset when reg
+     *      is -1.
+     */
+    private static final class Bound {
+        final int reg;
+        final int offset;
+
+        Bound(int reg, int offset) {
+            this.reg = reg;
+            this.offset = offset;
+        }
+    }
+
+    public BoundsCheckElimination(Function function) {
+        this.function = function;
+        this.definitions = new HashMap<Integer, Instruction>();
+        this.blockOf = new HashMap<Instruction, BasicBlock>();
+        this.versions = new ArrayList<Version>();
+    }
+
+    /*
+     * Checks in the function when analyze() started.
+     */
+    public int getCheckCount() {
+        return checkCount;
+    }
+
+    /*
+     * Checks deleted outright.
+     */
+    public int getProvenCount() {
+        return provenCount;
+    }
+
+    /*
+     * Checks left out of the unchecked copies of versioned loops.
+     */
+    public int getVersionedCount() {
+        return versionedCount;
+    }
+
+    public int getVersionedLoopCount() {
+        return versionedLoops;
+    }
+
+    public void analyze() {
+        function.computePredecessors();
+        Dominators dominators = new Dominators(function);
+        List<Loop> loops = Loop.find(function, dominators);
+
+        for (Loop loop : loops) {
+            if (isInnermost(loop, loops) && loop.getPreheader(function) != null) {
+                index();
+                analyze(loop);
+            }
+        }
+
+        index();
+        for (Instruction instr : blockOf.keySet()) {
+            if (instr.op == Opcode.CHECK) {
+                ++checkCount;
+            }
+        }
+        checkCount += provenCount;
+    }
+
+    private void index() {
+        definitions.clear();
+        blockOf.clear();
+        for (BasicBlock block : function.getBlocks()) {
+            for (Instruction instr : block.getInstructions()) {
+                blockOf.put(instr, block);
+                if (instr.def() >= 0) {
+                    definitions.put(instr.def(), instr);
+                }
+            }
+        }
+    }
+
+    private static boolean isInnermost(Loop loop, List<Loop> loops) {
+        for (Loop other : loops) {
+            if (other != loop && loop.contains(other.getHeader())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isOutside(Loop loop, int reg) {
+        Instruction def = definitions.get(reg);
+        return def != null && !loop.contains(blockOf.get(def));
+    }
+
+    private Integer constant(int reg) {
+        Instruction def = reg < 0 ? null : definitions.get(reg);
+        return def != null && def.op == Opcode.CONST ? def.imm : null;
+    }
+
+    private void analyze(Loop loop) {
+        BasicBlock header = loop.getHeader();
+        BasicBlock preheader = loop.getPreheader(function);
+        Instruction test = header.getTerminator();
+        if (test == null || test.op != Opcode.BRANCH ||
+                loop.contains(test.target) == loop.contains(test.alt)) {
+            return;
+        }
+
+        // normalize to "i <cond> n" holding while the loop goes on
+        int cond = loop.contains(test.target) ? test.cond : Condition.negate(test.cond);
+        int iv = test.a;
+        Bound limit = test.bImm ? new Bound(-1, test.imm) : new Bound(test.b, 0);
+        Instruction phi = definitions.get(iv);
+        if ((phi == null || phi.op != Opcode.PHI || blockOf.get(phi) != header) &&
+                !test.bImm) {
+            iv = test.b;
+            limit = new Bound(test.a, 0);
+            cond = Condition.swap(cond);
+            phi = definitions.get(iv);
+        }
+        if (phi == null || phi.op != Opcode.PHI || blockOf.get(phi) != header ||
+                (limit.reg >= 0 && !isOutside(loop, limit.reg))) {
+            return;
+        }
+
+        int initial = -1;
+        int next = -1;
+        for (int i = 0; i < phi.args.length; ++i) {
+            if (phi.from[i] == preheader) {
+                initial = phi.args[i];
+            } else if (next < 0 || next == phi.args[i]) {
+                next = phi.args[i];
+            } else {
+                return;
+            }
+        }
+        Instruction update = next < 0 ? null : definitions.get(next);
+        if (initial < 0 || update == null || !update.bImm || update.a != iv ||
+                (update.op != Opcode.ADD && update.op != Opcode.SUB)) {
+            return;
+        }
+        int step = update.op == Opcode.ADD ? update.imm : -update.imm;
+
+        Bound low;
+        Bound high;
+        if (step == 1 && (cond == Condition.LT || cond == Condition.LE)) {
+            low = new Bound(initial, 0);
+            high = new Bound(limit.reg, limit.offset - (cond == Condition.LT ? 1 : 0));
+        } else if (step == -1 && (cond == Condition.GT || cond == Condition.GE)) {
+            low = new Bound(limit.reg, limit.offset + (cond == Condition.GT ? 1 : 0));
+            high = new Bound(initial, 0);
+        } else {
+            return;
+        }
+        if (Math.abs(low.offset) > MAX_OFFSET || Math.abs(high.offset) > MAX_OFFSET) {
+            return;
+        }
+        low = fold(low);
+        high = fold(high);
+
+        // checks on i + k, grouped by array
+        Map<Integer, List<Instruction>> byArray = new LinkedHashMap<Integer, List<Instruction>>();
+        for (BasicBlock block : loop.getBlocks()) {
+            if (block == header) {
+                continue;
+            }
+            for (Instruction instr : block.getInstructions()) {
+                if (instr.op == Opcode.CHECK && instr.b == iv &&
+                        Math.abs(instr.imm) <= MAX_OFFSET && isOutside(loop, instr.a)) {
+                    List<Instruction> list = byArray.get(instr.a);
+                    if (list == null) {
+                        list = new ArrayList<Instruction>();
+                        byArray.put(instr.a, list);
+                    }
+                    list.add(instr);
+                }
+            }
+        }
+
+        Version version = new Version();
+        version.header = header;
+        for (Map.Entry<Integer, List<Instruction>> entry : byArray.entrySet()) {
+            int array = entry.getKey();
+            List<Instruction> checks = entry.getValue();
+            int minK = Integer.MAX_VALUE;
+            int maxK = Integer.MIN_VALUE;
+            for (Instruction check : checks) {
+                minK = Math.min(minK, check.imm);
+                maxK = Math.max(maxK, check.imm);
+            }
+
+            List<List<Instruction>> guard = new ArrayList<List<Instruction>>();
+            Boolean lowKnown = lowerHolds(low, minK, guard);
+            Boolean highKnown = upperHolds(array, high, maxK, guard);
+            if (lowKnown == null || highKnown == null) {
+                continue;
+            }
+            if (lowKnown && highKnown) {
+                for (Instruction check : checks) {
+                    blockOf.get(check).getInstructions().remove(check);
+                    ++provenCount;
+                }
+            } else {
+                version.guard.addAll(guard);
+                version.checks.addAll(checks);
+            }
+        }
+        if (!version.checks.isEmpty()) {
+            versions.add(version);
+        }
+    }
+
+    private Bound fold(Bound bound) {
+        Integer value = constant(bound.reg);
+        return value == null ? bound : new Bound(-1, value + bound.offset);
+    }
+
+    /*
+     * low + k >= 0: true when known, null when known to fail, otherwise
+     *      false after adding a test that fails when
+     *      low.reg < -(low.offset + k).
+     */
+    private Boolean lowerHolds(Bound low, int k, List<List<Instruction>> guard) {
+        long least = (long)low.offset + k;
+        if (low.reg < 0) {
+            return least >= 0 ? Boolean.TRUE : null;
+        }
+        guard.add(fail(Instruction.branch(Condition.LT, low.reg, -1, true,
+                                          (int)-least, null, null), null));
+        return Boolean.FALSE;
+    }
+
+    /*
+     * high + k < array.length: true when known, null when known to fail
+     *      (or too far out to test), otherwise false after adding tests that fail for a null array
+     *      or when high.reg exceeds length - (high.offset + k + 1).
+     */
+    private Boolean upperHolds(int array, Bound high, int k,
+                               List<List<Instruction>> guard) {
+        if (Math.abs((long)high.offset + k + 1) > MAX_OFFSET) {
+            return null;
+        }
+        int margin = high.offset + k + 1;
+        Instruction def = definitions.get(array);
+        Integer length = def != null && def.op == Opcode.NEWARRAY ? constant(def.a) : null;
+        Instruction bound = high.reg < 0 ? null : definitions.get(high.reg);
+
+        if (bound != null && bound.op == Opcode.LENGTH && bound.a == array &&
+                margin <= 0) {
+            return Boolean.TRUE;
+        }
+        if (high.reg < 0 && length != null) {
+            return margin <= length ? Boolean.TRUE : null;
+        }
+
+        guard.add(fail(Instruction.branch(Condition.EQ, array, -1, true, 0,
+                                          null, null), null));
+        List<Instruction> setup = new ArrayList<Instruction>();
+        int limit = function.newRegister(null, ValueType.INT, null);
+        setup.add(Instruction.unary(Opcode.LENGTH, limit, array));
+        if (high.reg < 0) {
+            guard.add(fail(Instruction.branch(Condition.LT, limit, -1, true, margin,
+                                              null, null), setup));
+        } else {
+            if (margin != 0) {
+                int shifted = function.newRegister(null, ValueType.INT, null);
+                setup.add(Instruction.binaryImm(Opcode.SUB, shifted, limit, margin));
+                limit = shifted;
+            }
+            guard.add(fail(Instruction.branch(Condition.GT, high.reg, limit, false, 0,
+                                              null, null), setup));
+        }
+        return Boolean.FALSE;
+    }
+
+    /*
+     * One guard test: setup code followed by a branch taken on failure.
+     */
+    private static List<Instruction> fail(Instruction branch, List<Instruction> setup) {
+        List<Instruction> rv = new ArrayList<Instruction>();
+        if (setup != null) {
+            rv.addAll(setup);
+        }
+        rv.add(branch);
+        return rv;
+    }
+
+    /*
+     * Duplicates the loops analyze() recorded; call once the function is
+     *      out of SSA form.
+     */
+    public void version() {
+        if (versions.isEmpty()) {
+            return;
+        }
+        function.computePredecessors();
+        List<Loop> loops = Loop.find(function, new Dominators(function));
+        for (Version version : versions) {
+            for (Loop loop : loops) {
+                if (loop.getHeader() == version.header) {
+                    version(loop, version);
+                    function.computePredecessors();
+                    break;
+                }
+            }
+        }
+        function.computePredecessors();
+    }
+
+    private void version(Loop loop, Version version) {
+        BasicBlock header = loop.getHeader();
+        BasicBlock preheader = loop.getPreheader(function);
+        if (preheader == null) {
+            return;
+        }
+        List<BasicBlock> blocks = function.getBlocks();
+
+        Map<BasicBlock, BasicBlock> copies = new LinkedHashMap<BasicBlock, BasicBlock>();
+        for (BasicBlock block : blocks) {
+            if (loop.contains(block)) {
+                copies.put(block, function.newBlock());
+            }
+        }
+        for (Map.Entry<BasicBlock, BasicBlock> entry : copies.entrySet()) {
+            List<Instruction> code = entry.getValue().getInstructions();
+            for (Instruction instr : entry.getKey().getInstructions()) {
+                if (version.checks.contains(instr)) {
+                    ++versionedCount;
+                    continue;
+                }
+                Instruction copy = instr.copy();
+                if (copies.containsKey(copy.target)) copy.target = copies.get(copy.target);
+                if (copies.containsKey(copy.alt)) copy.alt = copies.get(copy.alt);
+                code.add(copy);
+            }
+        }
+
+        // the preheader's jump to the header becomes the chain of tests
+        List<Instruction> code = preheader.getInstructions();
+        code.remove(code.size() - 1);
+        BasicBlock current = preheader;
+        int position = blocks.indexOf(preheader) + 1;
+        for (int i = 0; i < version.guard.size(); ++i) {
+            List<Instruction> test = version.guard.get(i);
+            Instruction branch = test.get(test.size() - 1);
+            current.getInstructions().addAll(test);
+            branch.target = header;
+            if (i + 1 < version.guard.size()) {
+                BasicBlock next = function.newBlock();
+                blocks.add(position++, next);
+                branch.alt = next;
+                current = next;
+            } else {
+                branch.alt = copies.get(header);
+            }
+        }
+        blocks.addAll(copies.values());
+        ++versionedLoops;
+    }
+}
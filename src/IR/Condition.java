@@ -0,0 +1,56 @@
+package IR;
+
+/*
+ * Comparison codes used by CMP and BRANCH.
+ */
+public final class Condition {
+    public static final int EQ = 0;
+    public static final int NE = 1;
+    public static final int LT = 2;
+    public static final int LE = 3;
+    public static final int GT = 4;
+    public static final int GE = 5;
+
+    private static final String[] SYMBOLS = { "==", "!=", "<", "<=", ">", ">=" };
+    private static final String[] X86 = { "e", "ne", "l", "le", "g", "ge" };
+    private static final int[] NEGATED = { NE, EQ, GE, GT, LE, LT };
+    private static final int[] SWAPPED = { EQ, NE, GT, GE, LT, LE };
+
+    private Condition() { }
+
+    public static String symbol(int cond) {
+        return SYMBOLS[cond];
+    }
+
+    /*
+     * Suffix for jcc/setcc.
+     */
+    public static String x86(int cond) {
+        return X86[cond];
+    }
+
+    /*
+     * !(a cond b) == a negate(cond) b
+     */
+    public static int negate(int cond) {
+        return NEGATED[cond];
+    }
+
+    /*
+     * (a cond b) == (b swap(cond) a)
+     */
+    public static int swap(int cond) {
+        return SWAPPED[cond];
+    }
+
+    public static boolean evaluate(int cond, int a, int b) {
+        switch (cond) {
+        case EQ: return a == b;
+        case NE: return a != b;
+        case LT: return a < b;
+        case LE: return a <= b;
+        case GT: return a > b;
+        default: return a >= b;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package IR;
+
+import java.util.*;
+
+/*
+ * Aggressive dead code elimination on a Function in SSA form (Cytron et
+ *      al., section 7.1). Only instructions with an effect outside the
+ *      function (stores, calls, print, return, bounds checks) are assumed
+ *      useful; from there usefulness flows to the definitions they read
+ *      and to the branches they are control dependent on. Everything else
+ *      is removed, and a branch nobody depends on becomes a jump to its
+ *      immediate post-dominator.
+ *
+ *      Blocks that never reach a return (endless loops) keep their
+ *      terminators, since there is no post-dominator to jump to.
+ */
+public final class DeadCodeElimination {
+    private final Function function;
+    private final Dominators postDominators;
+    private final Set<Instruction> live;
+    private final Set<BasicBlock> useful;
+    private final Map<Integer, Instruction> definitions;
+    private final Map<Instruction, BasicBlock> blockOf;
+    private final Set<BasicBlock> blocks;
+    private final Deque<Instruction> work;
+
+    private int removed;
+
+    public DeadCodeElimination(Function function) {
+        this.function = function;
+        function.computePredecessors();
+        this.postDominators = new Dominators(function, true);
+        this.live = new HashSet<Instruction>();
+        this.useful = new HashSet<BasicBlock>();
+        this.definitions = new HashMap<Integer, Instruction>();
+        this.blockOf = new HashMap<Instruction, BasicBlock>();
+        this.blocks = new HashSet<BasicBlock>(function.getBlocks());
+        this.work = new ArrayDeque<Instruction>();
+    }
+
+    /*
+     * Instructions removed, not counting branches turned into jumps.
+     */
+    public int getRemovedCount() {
+        return removed;
+    }
+
+    private static boolean isCritical(Instruction instr) {
+        switch (instr.op) {
+        case Opcode.STORE:
+        case Opcode.ASTORE:
+        case Opcode.CALL:
+        case Opcode.PRINT:
+        case Opcode.RETURN:
+        case Opcode.CHECK:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    public void run() {
+        for (BasicBlock block : function.getBlocks()) {
+            boolean reachesExit = postDominators.isReachable(block);
+            for (Instruction instr : block.getInstructions()) {
+                blockOf.put(instr, block);
+                if (instr.def() >= 0) {
+                    definitions.put(instr.def(), instr);
+                }
+                if (isCritical(instr) ||
+                        (instr.isTerminator() && !(reachesExit && canRemove(block)))) {
+                    mark(instr);
+                }
+            }
+        }
+
+        while (!work.isEmpty()) {
+            Instruction instr = work.pop();
+            BasicBlock block = blockOf.get(instr);
+            for (int use : instr.uses()) {
+                Instruction def = definitions.get(use);
+                if (def != null) {
+                    mark(def);
+                }
+            }
+            if (instr.op == Opcode.PHI) {
+                for (BasicBlock pred : instr.from) {
+                    markUseful(pred);
+                }
+            }
+            markUseful(block);
+        }
+
+        sweep();
+    }
+
+    private void mark(Instruction instr) {
+        if (live.add(instr)) {
+            work.push(instr);
+        }
+    }
+
+    /*
+     * A block with useful code needs the branches deciding whether it
+     *      runs, and its own terminator to get there.
+     */
+    private void markUseful(BasicBlock block) {
+        if (block == null || !blocks.contains(block) || !useful.add(block)) {
+            return;
+        }
+        for (BasicBlock control : postDominators.getFrontier(block)) {
+            mark(control.getTerminator());
+        }
+        Instruction last = block.getTerminator();
+        if (last != null && last.op == Opcode.JUMP) {
+            mark(last);
+        }
+    }
+
+    private void sweep() {
+        for (BasicBlock block : function.getBlocks()) {
+            List<Instruction> instructions = block.getInstructions();
+            for (int i = instructions.size() - 1; i >= 0; --i) {
+                Instruction instr = instructions.get(i);
+                if (live.contains(instr)) {
+                    continue;
+                }
+                if (instr.op == Opcode.BRANCH) {
+                    instructions.set(i, Instruction.jump(
+                        postDominators.getImmediateDominator(block)));
+                } else if (!instr.isTerminator()) {
+                    instructions.remove(i);
+                    ++removed;
+                }
+            }
+        }
+        function.removeUnreachableBlocks();
+    }
+
+    /*
+     * Whether the terminator of a block may become a jump to its immediate
+     *      post-dominator. Not when that is the exit, nor when the
+     *      post-dominator has phis that would miss the new edge.
+     */
+    private boolean canRemove(BasicBlock block) {
+        Instruction last = block.getTerminator();
+        if (last == null || last.op != Opcode.BRANCH) {
+            return true;
+        }
+        BasicBlock next = postDominators.getImmediateDominator(block);
+        return next != null && !hasPhis(next);
+    }
+
+    private static boolean hasPhis(BasicBlock block) {
+        for (Instruction instr : block.getInstructions()) {
+            if (instr.op == Opcode.PHI) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
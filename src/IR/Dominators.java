@@ -0,0 +1,255 @@
+package IR;
+
+import java.util.*;
+
+/*
+ * Dominator tree and dominance frontiers (Cooper, Harvey & Kennedy,
+ *      "A Simple, Fast Dominance Algorithm"), or the same for
+ *      post-dominators when built with post = true. Post-dominators are
+ *      computed on the reversed CFG with a virtual exit node that every
+ *      RETURN block flows into; getImmediateDominator returns null for a
+ *      block whose immediate post-dominator is that exit.
+ *
+ *      Blocks that cannot reach the root (dead blocks for dominators, or
+ *      endless loops for post-dominators) have no dominator at all; see
+ *      isReachable.
+ */
+public final class Dominators {
+    private final boolean post;
+    private final List<BasicBlock> blocks;
+    private final Map<BasicBlock, Integer> number;
+    private final int root;
+
+    // in the direction of the analysis (reversed for post-dominators)
+    private final List<List<Integer>> predecessors;
+    private final List<List<Integer>> successors;
+
+    private final int[] idom;
+    private final int[] order;
+    private final List<List<Integer>> children;
+    private final List<Set<Integer>> frontiers;
+
+    public Dominators(Function function) {
+        this(function, false);
+    }
+
+    public Dominators(Function function, boolean post) {
+        this.post = post;
+        this.blocks = new ArrayList<BasicBlock>(function.getBlocks());
+        this.number = new HashMap<BasicBlock, Integer>();
+        for (int i = 0; i < blocks.size(); ++i) {
+            number.put(blocks.get(i), i);
+        }
+
+        int count = blocks.size() + (post ? 1 : 0);
+        this.root = post ? blocks.size() : 0;
+        this.predecessors = new ArrayList<List<Integer>>();
+        this.successors = new ArrayList<List<Integer>>();
+        for (int i = 0; i < count; ++i) {
+            predecessors.add(new ArrayList<Integer>());
+            successors.add(new ArrayList<Integer>());
+        }
+        for (int i = 0; i < blocks.size(); ++i) {
+            BasicBlock block = blocks.get(i);
+            List<BasicBlock> succs = block.getSuccessors();
+            for (BasicBlock succ : succs) {
+                Integer j = number.get(succ);
+                if (j != null) {
+                    edge(i, j);
+                }
+            }
+            Instruction last = block.getTerminator();
+            if (post && last != null && last.op == Opcode.RETURN) {
+                edge(i, root);
+            }
+        }
+
+        this.idom = new int[count];
+        this.order = new int[count];
+        this.children = new ArrayList<List<Integer>>();
+        this.frontiers = new ArrayList<Set<Integer>>();
+        for (int i = 0; i < count; ++i) {
+            children.add(new ArrayList<Integer>());
+            frontiers.add(new HashSet<Integer>());
+        }
+        computeDominators();
+        computeFrontiers();
+    }
+
+    /*
+     * Adds a CFG edge from -> to, in the direction of the analysis.
+     */
+    private void edge(int from, int to) {
+        if (post) {
+            successors.get(to).add(from);
+            predecessors.get(from).add(to);
+        } else {
+            successors.get(from).add(to);
+            predecessors.get(to).add(from);
+        }
+    }
+
+    private void computeDominators() {
+        // reverse postorder from the root
+        int count = idom.length;
+        List<Integer> postorder = new ArrayList<Integer>();
+        boolean[] seen = new boolean[count];
+        Deque<int[]> stack = new ArrayDeque<int[]>();
+        stack.push(new int[] { root, 0 });
+        seen[root] = true;
+        while (!stack.isEmpty()) {
+            int[] top = stack.peek();
+            List<Integer> succs = successors.get(top[0]);
+            if (top[1] < succs.size()) {
+                int next = succs.get(top[1]++);
+                if (!seen[next]) {
+                    seen[next] = true;
+                    stack.push(new int[] { next, 0 });
+                }
+            } else {
+                postorder.add(top[0]);
+                stack.pop();
+            }
+        }
+
+        Arrays.fill(order, -1);
+        int[] rpo = new int[postorder.size()];
+        for (int i = 0; i < rpo.length; ++i) {
+            rpo[i] = postorder.get(postorder.size() - 1 - i);
+            order[rpo[i]] = i;
+        }
+
+        Arrays.fill(idom, -1);
+        idom[root] = root;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 1; i < rpo.length; ++i) {
+                int node = rpo[i];
+                int candidate = -1;
+                for (int pred : predecessors.get(node)) {
+                    if (idom[pred] < 0) {
+                        continue;
+                    }
+                    candidate = candidate < 0 ? pred : intersect(pred, candidate);
+                }
+                if (candidate != idom[node]) {
+                    idom[node] = candidate;
+                    changed = true;
+                }
+            }
+        }
+
+        for (int i = 0; i < count; ++i) {
+            if (i != root && idom[i] >= 0) {
+                children.get(idom[i]).add(i);
+            }
+        }
+    }
+
+    private int intersect(int a, int b) {
+        while (a != b) {
+            while (order[a] > order[b]) {
+                a = idom[a];
+            }
+            while (order[b] > order[a]) {
+                b = idom[b];
+            }
+        }
+        return a;
+    }
+
+    private void computeFrontiers() {
+        for (int node = 0; node < idom.length; ++node) {
+            if (idom[node] < 0 || predecessors.get(node).size() < 2) {
+                continue;
+            }
+            for (int pred : predecessors.get(node)) {
+                int runner = pred;
+                while (idom[runner] >= 0 && runner != idom[node]) {
+                    frontiers.get(runner).add(node);
+                    if (runner == root) {
+                        break;
+                    }
+                    runner = idom[runner];
+                }
+            }
+        }
+    }
+
+    private BasicBlock block(int node) {
+        return node < blocks.size() ? blocks.get(node) : null;
+    }
+
+    public boolean isReachable(BasicBlock block) {
+        Integer node = number.get(block);
+        return node != null && idom[node] >= 0;
+    }
+
+    /*
+     * Immediate (post-)dominator; null for the entry, for blocks whose
+     *      immediate post-dominator is the virtual exit and for blocks
+     *      that are not reachable.
+     */
+    public BasicBlock getImmediateDominator(BasicBlock block) {
+        int node = number.get(block);
+        if (node == root || idom[node] < 0) {
+            return null;
+        }
+        return block(idom[node]);
+    }
+
+    /*
+     * Children in the (post-)dominator tree.
+     */
+    public List<BasicBlock> getChildren(BasicBlock block) {
+        List<BasicBlock> rv = new ArrayList<BasicBlock>();
+        for (int child : children.get(number.get(block))) {
+            rv.add(block(child));
+        }
+        return rv;
+    }
+
+    /*
+     * Roots of the post-dominator tree (children of the virtual exit),
+     *      or just the entry block for dominators.
+     */
+    public List<BasicBlock> getRoots() {
+        List<BasicBlock> rv = new ArrayList<BasicBlock>();
+        if (post) {
+            for (int child : children.get(root)) {
+                rv.add(block(child));
+            }
+        } else {
+            rv.add(block(root));
+        }
+        return rv;
+    }
+
+    public boolean dominates(BasicBlock a, BasicBlock b) {
+        int target = number.get(a);
+        int node = number.get(b);
+        if (idom[node] < 0) {
+            return false;
+        }
+        while (node != target && node != root) {
+            node = idom[node];
+        }
+        return node == target;
+    }
+
+    /*
+     * Dominance frontier; for post-dominators this is the set of blocks
+     *      whose branch the given block is control dependent on.
+     */
+    public Set<BasicBlock> getFrontier(BasicBlock block) {
+        Set<BasicBlock> rv = new LinkedHashSet<BasicBlock>();
+        for (int node : frontiers.get(number.get(block))) {
+            BasicBlock b = block(node);
+            if (b != null) {
+                rv.add(b);
+            }
+        }
+        return rv;
+    }
+}
@@ -0,0 +1,414 @@
+package IR;
+
+import java.util.*;
+
+import Layout.*;
+
+/*
+ * Escape analysis over the whole program, run on SSA form after inlining
+ *      (so every copy of a local is its own register). A register escapes
+ *      when its value may be stored
+ *      into memory, returned, or passed to a parameter that escapes in
+ *      the callee; values flow backwards through moves, so the sources
+ *      of an escaping copy escape too. Each function gets a summary of
+ *      which of its parameters (receiver included) escape, and the
+ *      summaries are iterated to a fixed point so that recursion and
+ *      calls between methods settle. A virtual call is checked against
+ *      every implementation its receiver's class cone can reach.
+ *
+ *      An allocation that does not escape is then rewritten:
+ *
+ *      - if it is only ever used through field loads and stores (via
+ *        copies and phis that hold nothing else), it is scalar-replaced:
+ *        each field becomes a register, the loads and stores become moves
+ *        and the object disappears. The field registers are assigned more
+ *        than once, so the function then goes out of SSA form and back in;
+ *      - otherwise (it is passed to a non-escaping parameter or compared)
+ *        it becomes a FRAMEOBJECT in the current stack frame instead of a
+ *        call to mjmalloc.
+ *
+ *      Inside a loop, one allocation site produces a new object on every
+ *      trip, so both rewrites also require that no phi at the head of the
+ *      loop carries the object around: then the previous trip's object
+ *      is unreachable by the time the next one is made.
+ */
+public final class EscapeAnalysis {
+    private final ProgramLayout layout;
+    private final Map<String, Function> byLabel;
+    private final List<Function> functions;
+    // escaping parameters by function label, index 0 is the receiver
+    private final Map<String, boolean[]> summaries;
+
+    private int allocations;
+    private int replaced;
+    private int framed;
+
+    public EscapeAnalysis(ProgramLayout layout, List<Function> functions) {
+        this.layout = layout;
+        this.functions = functions;
+        this.byLabel = new HashMap<String, Function>();
+        this.summaries = new HashMap<String, boolean[]>();
+        for (Function function : functions) {
+            byLabel.put(function.getLabel(), function);
+            summaries.put(function.getLabel(),
+                          new boolean[1 + function.getParameterCount()]);
+        }
+    }
+
+    /*
+     * Object allocations seen.
+     */
+    public int getAllocationCount() {
+        return allocations;
+    }
+
+    /*
+     * Allocations replaced by one register per field.
+     */
+    public int getScalarReplacedCount() {
+        return replaced;
+    }
+
+    /*
+     * Allocations moved into the allocating method's frame.
+     */
+    public int getFrameAllocatedCount() {
+        return framed;
+    }
+
+    public void run() {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Function function : functions) {
+                if (summarize(function)) {
+                    changed = true;
+                }
+            }
+        }
+        for (Function function : functions) {
+            rewrite(function, escaping(function));
+        }
+    }
+
+    /*
+     * Labels of the methods a call may run, or null when one of them is
+     *      not compiled here.
+     */
+    private List<String> targets(Instruction call) {
+        List<String> rv = new ArrayList<String>();
+        String implementor = layout.getHierarchy()
+                                   .getUniqueImplementor(call.sym, call.method);
+        if (implementor != null) {
+            rv.add(implementor + "$" + call.method);
+        } else {
+            for (String className : layout.getHierarchy().getCone(call.sym)) {
+                String label = layout.getVTable(className).getEntry(call.imm);
+                if (!rv.contains(label)) {
+                    rv.add(label);
+                }
+            }
+        }
+        for (String label : rv) {
+            if (!byLabel.containsKey(label)) {
+                return null;
+            }
+        }
+        return rv;
+    }
+
+    /*
+     * Whether argument position (0 the receiver) escapes in any target.
+     */
+    private static boolean escapes(Map<String, boolean[]> summaries,
+                                   List<String> targets, int position) {
+        if (targets == null) {
+            return true;
+        }
+        for (String label : targets) {
+            if (summaries.get(label)[position]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Set<Integer> escaping(Function function) {
+        Set<Integer> rv = new HashSet<Integer>();
+        Map<Integer, List<Integer>> sources = new HashMap<Integer, List<Integer>>();
+        Deque<Integer> work = new ArrayDeque<Integer>();
+
+        for (BasicBlock block : function.getBlocks()) {
+            for (Instruction instr : block.getInstructions()) {
+                switch (instr.op) {
+                case Opcode.MOVE:
+                    source(sources, instr.dst, instr.a);
+                    break;
+                case Opcode.PHI:
+                    for (int arg : instr.args) {
+                        source(sources, instr.dst, arg);
+                    }
+                    break;
+                case Opcode.STORE:
+                    work.add(instr.b);
+                    break;
+                case Opcode.ASTORE:
+                    work.add(instr.c);
+                    break;
+                case Opcode.RETURN:
+                    if (instr.a >= 0) {
+                        work.add(instr.a);
+                    }
+                    break;
+                case Opcode.CALL: {
+                    List<String> targets = targets(instr);
+                    if (escapes(summaries, targets, 0)) {
+                        work.add(instr.a);
+                    }
+                    for (int i = 0; i < instr.args.length; ++i) {
+                        if (escapes(summaries, targets, i + 1)) {
+                            work.add(instr.args[i]);
+                        }
+                    }
+                    break;
+                }
+                default:
+                    break;
+                }
+            }
+        }
+
+        while (!work.isEmpty()) {
+            int reg = work.poll();
+            if (!rv.add(reg)) {
+                continue;
+            }
+            List<Integer> from = sources.get(reg);
+            if (from != null) {
+                work.addAll(from);
+            }
+        }
+        return rv;
+    }
+
+    private static void source(Map<Integer, List<Integer>> sources,
+                               int reg, int from) {
+        List<Integer> list = sources.get(reg);
+        if (list == null) {
+            list = new ArrayList<Integer>();
+            sources.put(reg, list);
+        }
+        list.add(from);
+    }
+
+    /*
+     * Recomputes the summary of function; true if it changed.
+     */
+    private boolean summarize(Function function) {
+        Set<Integer> escaping = escaping(function);
+        boolean[] summary = summaries.get(function.getLabel());
+        boolean changed = false;
+        for (BasicBlock block : function.getBlocks()) {
+            for (Instruction instr : block.getInstructions()) {
+                int position;
+                if (instr.op == Opcode.THIS) {
+                    position = 0;
+                } else if (instr.op == Opcode.PARAM) {
+                    position = instr.imm + 1;
+                } else {
+                    continue;
+                }
+                if (!summary[position] && escaping.contains(instr.dst)) {
+                    summary[position] = true;
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    private void rewrite(Function function, Set<Integer> escaping) {
+        function.computePredecessors();
+        List<Loop> loops = Loop.find(function, new Dominators(function));
+
+        List<Instruction> sites = new ArrayList<Instruction>();
+        Map<Instruction, BasicBlock> siteBlocks = new HashMap<Instruction, BasicBlock>();
+        for (BasicBlock block : function.getBlocks()) {
+            for (Instruction instr : block.getInstructions()) {
+                if (instr.op == Opcode.NEWOBJECT) {
+                    sites.add(instr);
+                    siteBlocks.put(instr, block);
+                }
+            }
+        }
+        allocations += sites.size();
+
+        boolean scalars = false;
+        for (Instruction site : sites) {
+            if (escaping.contains(site.dst)) {
+                continue;
+            }
+            Set<Integer> holders = holders(function, site.dst);
+            if (isCarried(loops, siteBlocks.get(site), holders)) {
+                continue;
+            }
+            if (isExclusive(function, site, holders) &&
+                    onlyFields(function, holders)) {
+                scalarReplace(function, site, holders);
+                scalars = true;
+                ++replaced;
+            } else {
+                site.op = Opcode.FRAMEOBJECT;
+                ++framed;
+            }
+        }
+        if (scalars) {
+            SSA.destruct(function);
+            SSA.construct(function);
+        }
+    }
+
+    /*
+     * Whether a holder may bring an object from one trip around a loop
+     *      containing block into the next, which in SSA form takes a phi
+     *      at the loop header.
+     */
+    private static boolean isCarried(List<Loop> loops, BasicBlock block,
+                                     Set<Integer> holders) {
+        for (Loop loop : loops) {
+            if (!loop.contains(block)) {
+                continue;
+            }
+            for (Instruction instr : loop.getHeader().getInstructions()) {
+                if (instr.op == Opcode.PHI && holders.contains(instr.dst)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Registers the new object is copied into, itself included.
+     */
+    private static Set<Integer> holders(Function function, int reg) {
+        Set<Integer> rv = new HashSet<Integer>();
+        rv.add(reg);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (BasicBlock block : function.getBlocks()) {
+                for (Instruction instr : block.getInstructions()) {
+                    if (instr.op != Opcode.MOVE && instr.op != Opcode.PHI) {
+                        continue;
+                    }
+                    if (rv.contains(instr.dst)) {
+                        continue;
+                    }
+                    for (int use : instr.uses()) {
+                        if (rv.contains(use)) {
+                            rv.add(instr.dst);
+                            changed = true;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        return rv;
+    }
+
+    /*
+     * Every register in holders is only ever set from the allocation or
+     *      from another holder, so a field access through any of them
+     *      means this object.
+     */
+    private static boolean isExclusive(Function function, Instruction site,
+                                       Set<Integer> holders) {
+        for (BasicBlock block : function.getBlocks()) {
+            for (Instruction instr : block.getInstructions()) {
+                if (instr == site || !holders.contains(instr.def())) {
+                    continue;
+                }
+                if (instr.op != Opcode.MOVE && instr.op != Opcode.PHI) {
+                    return false;
+                }
+                for (int use : instr.uses()) {
+                    if (!holders.contains(use)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /*
+     * The holders are read only as the base of field loads and stores,
+     *      or copied among themselves.
+     */
+    private static boolean onlyFields(Function function, Set<Integer> holders) {
+        for (BasicBlock block : function.getBlocks()) {
+            for (Instruction instr : block.getInstructions()) {
+                if (instr.op == Opcode.MOVE || instr.op == Opcode.PHI) {
+                    continue;
+                }
+                for (int use : instr.uses()) {
+                    if (!holders.contains(use)) {
+                        continue;
+                    }
+                    boolean field = (instr.op == Opcode.LOAD ||
+                                     instr.op == Opcode.STORE) &&
+                                    instr.a == use && instr.b != use;
+                    if (!field) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private void scalarReplace(Function function, Instruction site,
+                               Set<Integer> holders) {
+        Map<Integer, Slot> slots = new HashMap<Integer, Slot>();
+        for (Slot slot : layout.getClassLayout(site.sym).getFields().values()) {
+            slots.put(slot.getOffset(), slot);
+        }
+        Map<Integer, Integer> fields = new HashMap<Integer, Integer>();
+        List<Instruction> init = new ArrayList<Instruction>();
+        for (int offset = Slot.WORD_SIZE; offset < site.imm;
+                 offset += Slot.WORD_SIZE) {
+            Slot slot = slots.get(offset);
+            int reg = slot == null
+                ? function.newRegister(null, ValueType.INT, null)
+                : function.newRegister(site.sym + "." + slot.getName(),
+                                       ValueType.of(slot.getType()),
+                                       slot.getClassName());
+            fields.put(offset, reg);
+            init.add(Instruction.constant(reg, 0));
+        }
+
+        for (BasicBlock block : function.getBlocks()) {
+            List<Instruction> instructions = block.getInstructions();
+            for (int i = 0; i < instructions.size(); ++i) {
+                Instruction instr = instructions.get(i);
+                if (instr == site) {
+                    instructions.remove(i);
+                    instructions.addAll(i, init);
+                    i += init.size() - 1;
+                } else if ((instr.op == Opcode.MOVE || instr.op == Opcode.PHI) &&
+                               holders.contains(instr.dst)) {
+                    instructions.remove(i--);
+                } else if (instr.op == Opcode.LOAD && holders.contains(instr.a)) {
+                    instructions.set(i, Instruction.unary(Opcode.MOVE, instr.dst,
+                                                          fields.get(instr.imm)));
+                } else if (instr.op == Opcode.STORE && holders.contains(instr.a)) {
+                    instructions.set(i, Instruction.unary(Opcode.MOVE,
+                                                          fields.get(instr.imm),
+                                                          instr.b));
+                }
+            }
+        }
+    }
+}
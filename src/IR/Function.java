@@ -0,0 +1,206 @@
+package IR;
+
+import java.util.*;
+
+/*
+ * IR of one method (or of the main statement). Blocks are kept in
+ *      layout order; the first one is the entry.
+ */
+public final class Function {
+    private final String className;
+    private final String methodName;
+    private final int parameterCount;
+    private final List<BasicBlock> blocks;
+    private final List<String> registerNames;
+    private final List<Integer> registerTypes;
+    private final List<String> registerClasses;
+    private int nextBlock;
+
+    public Function(String className, String methodName, int parameterCount) {
+        this.className = className;
+        this.methodName = methodName;
+        this.parameterCount = parameterCount;
+        this.blocks = new ArrayList<BasicBlock>();
+        this.registerNames = new ArrayList<String>();
+        this.registerTypes = new ArrayList<Integer>();
+        this.registerClasses = new ArrayList<String>();
+        this.nextBlock = 0;
+    }
+
+    /*
+     * Assembly label of the method, or asm_main for the main statement.
+     */
+    public String getLabel() {
+        return isMain() ? "asm_main" : className + "$" + methodName;
+    }
+
+    public boolean isMain() {
+        return methodName == null;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    public int getParameterCount() {
+        return parameterCount;
+    }
+
+    public List<BasicBlock> getBlocks() {
+        return blocks;
+    }
+
+    public BasicBlock getEntry() {
+        return blocks.get(0);
+    }
+
+    /*
+     * Whether the function never calls out (see Opcode.isCall), so the
+     *      stack pointer only moves in its prologue and epilogue.
+     */
+    public boolean isLeaf() {
+        for (BasicBlock block : blocks) {
+            for (Instruction instr : block.getInstructions()) {
+                if (Opcode.isCall(instr.op)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public int getRegisterCount() {
+        return registerNames.size();
+    }
+
+    /*
+     * Source name of a register, or null for temporaries.
+     */
+    public String getRegisterName(int reg) {
+        return registerNames.get(reg);
+    }
+
+    /*
+     * ValueType of a register; INT until setRegisterType says otherwise.
+     */
+    public int getRegisterType(int reg) {
+        return registerTypes.get(reg);
+    }
+
+    /*
+     * Class of an OBJECT register, null for every other type.
+     */
+    public String getRegisterClass(int reg) {
+        return registerClasses.get(reg);
+    }
+
+    public void setRegisterType(int reg, int type, String className) {
+        registerTypes.set(reg, type);
+        registerClasses.set(reg, type == ValueType.OBJECT ? className : null);
+    }
+
+    public int newRegister(String name) {
+        registerNames.add(name);
+        registerTypes.add(ValueType.INT);
+        registerClasses.add(null);
+        return registerNames.size() - 1;
+    }
+
+    public int newRegister() {
+        return newRegister(null);
+    }
+
+    public int newRegister(String name, int type, String className) {
+        int rv = newRegister(name);
+        setRegisterType(rv, type, className);
+        return rv;
+    }
+
+    /*
+     * Creates a block that is not placed yet; see place().
+     */
+    public BasicBlock newBlock() {
+        return new BasicBlock(nextBlock++);
+    }
+
+    public void place(BasicBlock block) {
+        blocks.add(block);
+    }
+
+    public void computePredecessors() {
+        for (BasicBlock block : blocks) {
+            block.getPredecessors().clear();
+        }
+        for (BasicBlock block : blocks) {
+            for (BasicBlock succ : block.getSuccessors()) {
+                succ.getPredecessors().add(block);
+            }
+        }
+    }
+
+    /*
+     * Drops blocks that cannot be reached from the entry.
+     */
+    public void removeUnreachableBlocks() {
+        Set<BasicBlock> seen = new HashSet<BasicBlock>();
+        Deque<BasicBlock> work = new ArrayDeque<BasicBlock>();
+        work.push(getEntry());
+        seen.add(getEntry());
+        while (!work.isEmpty()) {
+            for (BasicBlock succ : work.pop().getSuccessors()) {
+                if (seen.add(succ)) {
+                    work.push(succ);
+                }
+            }
+        }
+        blocks.retainAll(seen);
+        computePredecessors();
+    }
+
+    /*
+     * Register name and type, e.g. "t3 num: int" or "t0 this: Fac".
+     */
+    public String describeRegister(int reg) {
+        String type = getRegisterType(reg) == ValueType.OBJECT
+                    ? getRegisterClass(reg)
+                    : ValueType.name(getRegisterType(reg));
+        String name = getRegisterName(reg);
+        return "t" + reg + (name == null ? "" : " " + name) + ": " + type;
+    }
+
+    public List<String> dump() {
+        return dump(getLabel());
+    }
+
+    /*
+     * Text form: register declarations, then every block with its
+     *      predecessors and instructions.
+     */
+    public List<String> dump(String label) {
+        List<String> rv = new ArrayList<String>();
+        rv.add(label + ":");
+        for (int reg = 0; reg < getRegisterCount(); ++reg) {
+            rv.add("    var " + describeRegister(reg));
+        }
+        computePredecessors();
+        for (BasicBlock block : blocks) {
+            StringBuilder header = new StringBuilder("  ");
+            header.append(block.getLabel()).append(":");
+            if (!block.getPredecessors().isEmpty()) {
+                header.append("    <-");
+                for (BasicBlock pred : block.getPredecessors()) {
+                    header.append(" ").append(pred.getLabel());
+                }
+            }
+            rv.add(header.toString());
+            for (Instruction instr : block.getInstructions()) {
+                rv.add("    " + instr);
+            }
+        }
+        return rv;
+    }
+}
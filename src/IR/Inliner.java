@@ -0,0 +1,248 @@
+package IR;
+
+import java.util.*;
+
+import Layout.*;
+
+/*
+ * Replaces calls to small methods by a copy of their body. A call is
+ *      inlined only when
+ *
+ *      - the class hierarchy leaves one possible target (monomorphic),
+ *      - the target's body has at most `budget` instructions, not
+ *        counting THIS/PARAM/RETURN, and
+ *      - the target is not already being expanded at that point, which
+ *        rules out direct and mutual recursion.
+ *
+ *      The copy gets fresh registers in the caller, so the callee's
+ *      parameters and locals end up in the caller's frame: THIS and PARAM
+ *      become moves from the receiver and the arguments, RETURN becomes a
+ *      move into the call's destination and a jump to the code after it.
+ */
+public final class Inliner {
+    public static final int DEFAULT_BUDGET = 12;
+    // no caller grows by more than this many instructions
+    private static final int MAX_GROWTH = 400;
+
+    private final ProgramLayout layout;
+    private final List<Function> functions;
+    private final Map<String, Function> byLabel;
+    private final int budget;
+    private int inlined;
+
+    public Inliner(ProgramLayout layout, List<Function> functions) {
+        this(layout, functions, DEFAULT_BUDGET);
+    }
+
+    public Inliner(ProgramLayout layout, List<Function> functions, int budget) {
+        this.layout = layout;
+        this.functions = functions;
+        this.byLabel = new HashMap<String, Function>();
+        this.budget = budget;
+        this.inlined = 0;
+        for (Function function : functions) {
+            byLabel.put(function.getLabel(), function);
+        }
+    }
+
+    public int getInlinedCount() {
+        return inlined;
+    }
+
+    public void run() {
+        // inline from copies taken before anything changed, so every
+        //      caller sees the same (unexpanded) callee bodies
+        Map<String, Function> originals = new HashMap<String, Function>();
+        for (Function function : functions) {
+            originals.put(function.getLabel(), copyOf(function));
+        }
+        byLabel.clear();
+        byLabel.putAll(originals);
+
+        for (Function function : functions) {
+            inline(function);
+        }
+    }
+
+    private static int size(Function function) {
+        int rv = 0;
+        for (BasicBlock block : function.getBlocks()) {
+            for (Instruction instr : block.getInstructions()) {
+                if (instr.op != Opcode.THIS && instr.op != Opcode.PARAM &&
+                        instr.op != Opcode.RETURN) {
+                    ++rv;
+                }
+            }
+        }
+        return rv;
+    }
+
+    private Function target(Instruction call) {
+        String implementor = layout.getHierarchy()
+                                   .getUniqueImplementor(call.sym, call.method);
+        if (implementor == null) {
+            return null;
+        }
+        return byLabel.get(implementor + "$" + call.method);
+    }
+
+    private void inline(Function caller) {
+        // labels of the methods being expanded in each block
+        Map<BasicBlock, Set<String>> chains = new HashMap<BasicBlock, Set<String>>();
+        Set<String> root = new HashSet<String>();
+        root.add(caller.getLabel());
+        for (BasicBlock block : caller.getBlocks()) {
+            chains.put(block, root);
+        }
+
+        int growth = 0;
+        List<BasicBlock> blocks = caller.getBlocks();
+        for (int i = 0; i < blocks.size(); ++i) {
+            BasicBlock block = blocks.get(i);
+            List<Instruction> instructions = block.getInstructions();
+            for (int k = 0; k < instructions.size(); ++k) {
+                Instruction call = instructions.get(k);
+                if (call.op != Opcode.CALL) {
+                    continue;
+                }
+                Function callee = target(call);
+                Set<String> chain = chains.get(block);
+                if (callee == null || chain.contains(callee.getLabel())) {
+                    continue;
+                }
+                int size = size(callee);
+                if (size > budget || growth + size > MAX_GROWTH) {
+                    continue;
+                }
+
+                Set<String> inner = new HashSet<String>(chain);
+                inner.add(callee.getLabel());
+                List<BasicBlock> body = expand(caller, block, k, call, callee);
+                for (BasicBlock copy : body) {
+                    chains.put(copy, inner);
+                }
+                // the last block is the rest of the original one
+                chains.put(body.get(body.size() - 1), chain);
+                blocks.addAll(i + 1, body);
+                growth += size;
+                ++inlined;
+                break;
+            }
+        }
+        caller.removeUnreachableBlocks();
+    }
+
+    /*
+     * Splits block at position k and wires a copy of callee in between.
+     *      Returns the new blocks in layout order, the continuation last.
+     */
+    private static List<BasicBlock> expand(Function caller, BasicBlock block,
+                                           int k, Instruction call,
+                                           Function callee) {
+        List<Instruction> instructions = block.getInstructions();
+        BasicBlock continuation = caller.newBlock();
+        List<Instruction> rest = instructions.subList(k + 1, instructions.size());
+        continuation.getInstructions().addAll(rest);
+        rest.clear();
+        instructions.remove(k);
+
+        int[] registers = new int[callee.getRegisterCount()];
+        for (int r = 0; r < registers.length; ++r) {
+            String name = callee.getRegisterName(r);
+            registers[r] = caller.newRegister(name == null ? null :
+                                              callee.getMethodName() + "." + name,
+                                              callee.getRegisterType(r),
+                                              callee.getRegisterClass(r));
+        }
+        Map<BasicBlock, BasicBlock> copies = new HashMap<BasicBlock, BasicBlock>();
+        List<BasicBlock> rv = new ArrayList<BasicBlock>();
+        for (BasicBlock original : callee.getBlocks()) {
+            BasicBlock copy = caller.newBlock();
+            copies.put(original, copy);
+            rv.add(copy);
+        }
+
+        for (BasicBlock original : callee.getBlocks()) {
+            List<Instruction> target = copies.get(original).getInstructions();
+            for (Instruction instr : original.getInstructions()) {
+                switch (instr.op) {
+                case Opcode.THIS:
+                    target.add(Instruction.unary(Opcode.MOVE,
+                                                 registers[instr.dst], call.a));
+                    break;
+                case Opcode.PARAM:
+                    target.add(Instruction.unary(Opcode.MOVE,
+                                                 registers[instr.dst],
+                                                 call.args[instr.imm]));
+                    break;
+                case Opcode.RETURN:
+                    if (instr.a >= 0 && call.dst >= 0) {
+                        target.add(Instruction.unary(Opcode.MOVE, call.dst,
+                                                     registers[instr.a]));
+                    }
+                    target.add(Instruction.jump(continuation));
+                    break;
+                default:
+                    Instruction copy = instr.copy();
+                    if (copy.dst >= 0) copy.dst = registers[copy.dst];
+                    if (copy.a >= 0) copy.a = registers[copy.a];
+                    if (copy.b >= 0 && !copy.bImm) copy.b = registers[copy.b];
+                    if (copy.c >= 0) copy.c = registers[copy.c];
+                    if (copy.args != null) {
+                        for (int j = 0; j < copy.args.length; ++j) {
+                            copy.args[j] = registers[copy.args[j]];
+                        }
+                    }
+                    if (copy.target != null) copy.target = copies.get(copy.target);
+                    if (copy.alt != null) copy.alt = copies.get(copy.alt);
+                    if (copy.from != null) {
+                        for (int j = 0; j < copy.from.length; ++j) {
+                            copy.from[j] = copies.get(copy.from[j]);
+                        }
+                    }
+                    target.add(copy);
+                }
+            }
+        }
+
+        instructions.add(Instruction.jump(rv.get(0)));
+        rv.add(continuation);
+        return rv;
+    }
+
+    /*
+     * Deep copy of a function's blocks, with the same block ids and
+     *      register numbering.
+     */
+    private static Function copyOf(Function function) {
+        Function rv = new Function(function.getClassName(),
+                                   function.getMethodName(),
+                                   function.getParameterCount());
+        for (int r = 0; r < function.getRegisterCount(); ++r) {
+            rv.newRegister(function.getRegisterName(r),
+                           function.getRegisterType(r),
+                           function.getRegisterClass(r));
+        }
+        Map<BasicBlock, BasicBlock> copies = new HashMap<BasicBlock, BasicBlock>();
+        for (BasicBlock block : function.getBlocks()) {
+            BasicBlock copy = rv.newBlock();
+            copies.put(block, copy);
+            rv.place(copy);
+        }
+        for (BasicBlock block : function.getBlocks()) {
+            List<Instruction> target = copies.get(block).getInstructions();
+            for (Instruction instr : block.getInstructions()) {
+                Instruction copy = instr.copy();
+                if (copy.target != null) copy.target = copies.get(copy.target);
+                if (copy.alt != null) copy.alt = copies.get(copy.alt);
+                if (copy.from != null) {
+                    for (int j = 0; j < copy.from.length; ++j) {
+                        copy.from[j] = copies.get(copy.from[j]);
+                    }
+                }
+                target.add(copy);
+            }
+        }
+        return rv;
+    }
+}
@@ -0,0 +1,246 @@
+package IR;
+
+/*
+ * One three-address instruction. Operands are virtual register numbers;
+ *      -1 means "unused". When bImm is set the second operand is the
+ *      constant in imm instead of register b.
+ */
+public final class Instruction {
+    public int op;
+    public int dst;
+    public int a;
+    public int b;
+    public int c;
+    public int imm;
+    public boolean bImm;
+    public int cond;
+    public int[] args;
+    public String sym;
+    public String method;
+    public BasicBlock target;
+    public BasicBlock alt;
+    public BasicBlock[] from;
+
+    public Instruction(int op) {
+        this.op = op;
+        this.dst = -1;
+        this.a = -1;
+        this.b = -1;
+        this.c = -1;
+    }
+
+    public static Instruction constant(int dst, int value) {
+        Instruction rv = new Instruction(Opcode.CONST);
+        rv.dst = dst;
+        rv.imm = value;
+        return rv;
+    }
+
+    public static Instruction unary(int op, int dst, int a) {
+        Instruction rv = new Instruction(op);
+        rv.dst = dst;
+        rv.a = a;
+        return rv;
+    }
+
+    public static Instruction binary(int op, int dst, int a, int b) {
+        Instruction rv = new Instruction(op);
+        rv.dst = dst;
+        rv.a = a;
+        rv.b = b;
+        return rv;
+    }
+
+    public static Instruction binaryImm(int op, int dst, int a, int value) {
+        Instruction rv = new Instruction(op);
+        rv.dst = dst;
+        rv.a = a;
+        rv.imm = value;
+        rv.bImm = true;
+        return rv;
+    }
+
+    public static Instruction jump(BasicBlock target) {
+        Instruction rv = new Instruction(Opcode.JUMP);
+        rv.target = target;
+        return rv;
+    }
+
+    public static Instruction branch(int cond, int a, int b, boolean bImm,
+                                     int value,
+                                     BasicBlock target, BasicBlock alt) {
+        Instruction rv = new Instruction(Opcode.BRANCH);
+        rv.cond = cond;
+        rv.a = a;
+        rv.b = b;
+        rv.bImm = bImm;
+        rv.imm = value;
+        rv.target = target;
+        rv.alt = alt;
+        return rv;
+    }
+
+    /*
+     * Field-by-field copy; args is copied too, blocks are shared.
+     */
+    public Instruction copy() {
+        Instruction rv = new Instruction(op);
+        rv.dst = dst;
+        rv.a = a;
+        rv.b = b;
+        rv.c = c;
+        rv.imm = imm;
+        rv.bImm = bImm;
+        rv.cond = cond;
+        rv.args = args == null ? null : args.clone();
+        rv.sym = sym;
+        rv.method = method;
+        rv.target = target;
+        rv.alt = alt;
+        rv.from = from == null ? null : from.clone();
+        return rv;
+    }
+
+    public static Instruction phi(int dst, int[] args, BasicBlock[] from) {
+        Instruction rv = new Instruction(Opcode.PHI);
+        rv.dst = dst;
+        rv.args = args;
+        rv.from = from;
+        return rv;
+    }
+
+    /*
+     * Register defined by this instruction, or -1.
+     */
+    public int def() {
+        return dst;
+    }
+
+    /*
+     * Registers read by this instruction, in operand order.
+     */
+    public int[] uses() {
+        int count = 0;
+        if (a >= 0) ++count;
+        if (b >= 0 && !bImm) ++count;
+        if (c >= 0) ++count;
+        if (args != null) count += args.length;
+
+        int[] rv = new int[count];
+        int i = 0;
+        if (a >= 0) rv[i++] = a;
+        if (b >= 0 && !bImm) rv[i++] = b;
+        if (c >= 0) rv[i++] = c;
+        if (args != null) {
+            for (int arg : args) {
+                rv[i++] = arg;
+            }
+        }
+        return rv;
+    }
+
+    /*
+     * Rewrites every read of register from into register to.
+     */
+    public void replaceUse(int from, int to) {
+        if (a == from) a = to;
+        if (b == from && !bImm) b = to;
+        if (c == from) c = to;
+        if (args != null) {
+            for (int i = 0; i < args.length; ++i) {
+                if (args[i] == from) args[i] = to;
+            }
+        }
+    }
+
+    public boolean isTerminator() {
+        return Opcode.isTerminator(op);
+    }
+
+    private static String reg(int r) {
+        return "t" + r;
+    }
+
+    private String second() {
+        return bImm ? Integer.toString(imm) : reg(b);
+    }
+
+    private String index() {
+        if (imm == 0) {
+            return reg(b);
+        }
+        return reg(b) + (imm < 0 ? " - " + -imm : " + " + imm);
+    }
+
+    public String toString() {
+        switch (op) {
+        case Opcode.CONST:
+            return reg(dst) + " := " + imm;
+        case Opcode.MOVE:
+            return reg(dst) + " := " + reg(a);
+        case Opcode.ADD:
+            return reg(dst) + " := " + reg(a) + " + " + second();
+        case Opcode.SUB:
+            return reg(dst) + " := " + reg(a) + " - " + second();
+        case Opcode.MUL:
+            return reg(dst) + " := " + reg(a) + " * " + second();
+        case Opcode.NOT:
+            return reg(dst) + " := !" + reg(a);
+        case Opcode.CMP:
+            return reg(dst) + " := " + reg(a) + " " +
+                   Condition.symbol(cond) + " " + second();
+        case Opcode.THIS:
+            return reg(dst) + " := this";
+        case Opcode.PARAM:
+            return reg(dst) + " := param " + imm;
+        case Opcode.LOAD:
+            return reg(dst) + " := [" + reg(a) + " + " + imm + "]";
+        case Opcode.STORE:
+            return "[" + reg(a) + " + " + imm + "] := " + second();
+        case Opcode.ALOAD:
+            return reg(dst) + " := " + reg(a) + "[" + index() + "]";
+        case Opcode.ASTORE:
+            return reg(a) + "[" + index() + "] := " + reg(c);
+        case Opcode.LENGTH:
+            return reg(dst) + " := length " + reg(a);
+        case Opcode.NEWARRAY:
+            return reg(dst) + " := new int[" + reg(a) + "]";
+        case Opcode.NEWOBJECT:
+            return reg(dst) + " := new " + sym;
+        case Opcode.FRAMEOBJECT:
+            return reg(dst) + " := new " + sym + " in frame";
+        case Opcode.CALL: {
+            StringBuilder sb = new StringBuilder();
+            sb.append(reg(dst)).append(" := call ").append(reg(a))
+              .append(".").append(sym).append("$").append(method);
+            for (int arg : args) {
+                sb.append(" ").append(reg(arg));
+            }
+            return sb.toString();
+        }
+        case Opcode.PRINT:
+            return "print " + reg(a);
+        case Opcode.PHI: {
+            StringBuilder sb = new StringBuilder();
+            sb.append(reg(dst)).append(" := phi(");
+            for (int i = 0; i < args.length; ++i) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(from[i].getLabel()).append(": ").append(reg(args[i]));
+            }
+            return sb.append(")").toString();
+        }
+        case Opcode.CHECK:
+            return "check " + reg(a) + "[" + index() + "]";
+        case Opcode.JUMP:
+            return "goto " + target.getLabel();
+        case Opcode.BRANCH:
+            return "if " + reg(a) + " " + Condition.symbol(cond) + " " +
+                   second() + " goto " + target.getLabel() +
+                   " else " + alt.getLabel();
+        default:
+            return a < 0 ? "return" : "return " + reg(a);
+        }
+    }
+}
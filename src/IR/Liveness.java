@@ -0,0 +1,72 @@
+package IR;
+
+import java.util.*;
+
+/*
+ * Backward dataflow: which registers are live on entry to and exit from
+ *      each block.
+ */
+public final class Liveness {
+    private final Map<BasicBlock, BitSet> liveIn;
+    private final Map<BasicBlock, BitSet> liveOut;
+
+    public Liveness(Function function) {
+        liveIn = new HashMap<BasicBlock, BitSet>();
+        liveOut = new HashMap<BasicBlock, BitSet>();
+
+        List<BasicBlock> blocks = function.getBlocks();
+        Map<BasicBlock, BitSet> gen = new HashMap<BasicBlock, BitSet>();
+        Map<BasicBlock, BitSet> kill = new HashMap<BasicBlock, BitSet>();
+
+        for (BasicBlock block : blocks) {
+            BitSet use = new BitSet();
+            BitSet def = new BitSet();
+            for (Instruction instr : block.getInstructions()) {
+                for (int reg : instr.uses()) {
+                    if (!def.get(reg)) {
+                        use.set(reg);
+                    }
+                }
+                if (instr.def() >= 0) {
+                    def.set(instr.def());
+                }
+            }
+            gen.put(block, use);
+            kill.put(block, def);
+            liveIn.put(block, new BitSet());
+            liveOut.put(block, new BitSet());
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = blocks.size() - 1; i >= 0; --i) {
+                BasicBlock block = blocks.get(i);
+
+                BitSet out = new BitSet();
+                for (BasicBlock succ : block.getSuccessors()) {
+                    out.or(liveIn.get(succ));
+                }
+
+                BitSet in = (BitSet)out.clone();
+                in.andNot(kill.get(block));
+                in.or(gen.get(block));
+
+                if (!out.equals(liveOut.get(block)) ||
+                        !in.equals(liveIn.get(block))) {
+                    liveOut.put(block, out);
+                    liveIn.put(block, in);
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    public BitSet getLiveIn(BasicBlock block) {
+        return liveIn.get(block);
+    }
+
+    public BitSet getLiveOut(BasicBlock block) {
+        return liveOut.get(block);
+    }
+}
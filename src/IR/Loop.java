@@ -0,0 +1,175 @@
+package IR;
+
+import java.util.*;
+
+/*
+ * Natural loop: a header and every block that reaches one of its back
+ *      edges (an edge into a block that dominates its source) without
+ *      passing through the header. Back edges sharing a header form one
+ *      loop.
+ */
+public final class Loop {
+    private final BasicBlock header;
+    private final Set<BasicBlock> blocks;
+    private final List<BasicBlock> latches;
+    private BasicBlock preheader;
+
+    private Loop(BasicBlock header) {
+        this.header = header;
+        this.blocks = new LinkedHashSet<BasicBlock>();
+        this.latches = new ArrayList<BasicBlock>();
+        blocks.add(header);
+    }
+
+    public BasicBlock getHeader() {
+        return header;
+    }
+
+    /*
+     * Blocks of the loop, header included.
+     */
+    public Set<BasicBlock> getBlocks() {
+        return blocks;
+    }
+
+    /*
+     * Sources of the back edges.
+     */
+    public List<BasicBlock> getLatches() {
+        return latches;
+    }
+
+    public boolean contains(BasicBlock block) {
+        return blocks.contains(block);
+    }
+
+    /*
+     * Blocks inside the loop with a successor outside it.
+     */
+    public List<BasicBlock> getExitingBlocks() {
+        List<BasicBlock> rv = new ArrayList<BasicBlock>();
+        for (BasicBlock block : blocks) {
+            for (BasicBlock succ : block.getSuccessors()) {
+                if (!blocks.contains(succ)) {
+                    rv.add(block);
+                    break;
+                }
+            }
+        }
+        return rv;
+    }
+
+    /*
+     * Finds every natural loop, innermost (smallest) first. Predecessors
+     *      must be up to date.
+     */
+    public static List<Loop> find(Function function, Dominators dominators) {
+        Map<BasicBlock, Loop> byHeader = new LinkedHashMap<BasicBlock, Loop>();
+        for (BasicBlock block : function.getBlocks()) {
+            for (BasicBlock succ : block.getSuccessors()) {
+                if (!dominators.dominates(succ, block)) {
+                    continue;
+                }
+                Loop loop = byHeader.get(succ);
+                if (loop == null) {
+                    loop = new Loop(succ);
+                    byHeader.put(succ, loop);
+                }
+                loop.latches.add(block);
+
+                Deque<BasicBlock> work = new ArrayDeque<BasicBlock>();
+                if (loop.blocks.add(block)) {
+                    work.push(block);
+                }
+                while (!work.isEmpty()) {
+                    for (BasicBlock pred : work.pop().getPredecessors()) {
+                        if (dominators.isReachable(pred) && loop.blocks.add(pred)) {
+                            work.push(pred);
+                        }
+                    }
+                }
+            }
+        }
+
+        List<Loop> rv = new ArrayList<Loop>(byHeader.values());
+        Collections.sort(rv, new Comparator<Loop>() {
+            public int compare(Loop x, Loop y) {
+                return x.blocks.size() - y.blocks.size();
+            }
+        });
+        return rv;
+    }
+
+    /*
+     * The single block outside the loop that jumps to the header, created
+     *      on first use unless the loop is only entered from a block that
+     *      has nowhere else to go. Header phis get one incoming value from it; when
+     *      several outside blocks entered the loop their values are merged
+     *      by a phi in the preheader. Null when nothing outside the loop
+     *      enters it.
+     */
+    public BasicBlock getPreheader(Function function) {
+        if (preheader != null) {
+            return preheader;
+        }
+        List<BasicBlock> outside = new ArrayList<BasicBlock>();
+        for (BasicBlock pred : header.getPredecessors()) {
+            if (!blocks.contains(pred)) {
+                outside.add(pred);
+            }
+        }
+        if (outside.isEmpty()) {
+            return null;
+        }
+        if (outside.size() == 1 && outside.get(0).getSuccessors().size() == 1) {
+            preheader = outside.get(0);
+            return preheader;
+        }
+
+        preheader = function.newBlock();
+        for (Instruction instr : header.getInstructions()) {
+            if (instr.op != Opcode.PHI) {
+                continue;
+            }
+            List<Integer> args = new ArrayList<Integer>();
+            List<BasicBlock> from = new ArrayList<BasicBlock>();
+            int[] outsideArgs = new int[outside.size()];
+            for (int i = 0; i < instr.args.length; ++i) {
+                int k = outside.indexOf(instr.from[i]);
+                if (k >= 0) {
+                    outsideArgs[k] = instr.args[i];
+                } else {
+                    args.add(instr.args[i]);
+                    from.add(instr.from[i]);
+                }
+            }
+            int entry = outsideArgs.length == 1 ? outsideArgs[0] : -1;
+            if (entry < 0) {
+                entry = function.newRegister(function.getRegisterName(instr.dst),
+                                             function.getRegisterType(instr.dst),
+                                             function.getRegisterClass(instr.dst));
+                preheader.getInstructions().add(
+                    Instruction.phi(entry, outsideArgs,
+                                    outside.toArray(new BasicBlock[0])));
+            }
+            args.add(entry);
+            from.add(preheader);
+            instr.args = new int[args.size()];
+            for (int i = 0; i < args.size(); ++i) {
+                instr.args[i] = args.get(i);
+            }
+            instr.from = from.toArray(new BasicBlock[0]);
+        }
+        preheader.getInstructions().add(Instruction.jump(header));
+
+        for (BasicBlock pred : outside) {
+            Instruction last = pred.getTerminator();
+            if (last.target == header) last.target = preheader;
+            if (last.alt == header) last.alt = preheader;
+        }
+        List<BasicBlock> order = function.getBlocks();
+        order.add(order.indexOf(header), preheader);
+        function.computePredecessors();
+        return preheader;
+    }
+}
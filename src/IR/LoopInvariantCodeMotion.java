@@ -0,0 +1,171 @@
+package IR;
+
+import java.util.*;
+
+/*
+ * Loop-invariant code motion on a Function in SSA form. For each natural
+ *      loop, innermost first, instructions whose operands are all defined
+ *      outside the loop (or by instructions already hoisted) are moved to
+ *      the end of the loop's preheader, so they run once instead of on
+ *      every iteration; a loop nested in another then hands them on to the
+ *      outer preheader.
+ *
+ *      Arithmetic, comparisons and constants always move. Loads read
+ *      memory, so a field load only moves when the loop has no call and
+ *      no store to that offset, and an array load when it has no call
+ *      and no array store. Array loads, array lengths and loads through
+ *      anything but this can fault, and the preheader runs even when the
+ *      loop body does not, so these only move from blocks that run on
+ *      every trip through the loop (those dominating all of its exits).
+ */
+public final class LoopInvariantCodeMotion {
+    private final Function function;
+    private final Map<Integer, BasicBlock> definedIn;
+    private final Set<Integer> thisRegisters;
+
+    private int loops;
+    private int hoisted;
+
+    public LoopInvariantCodeMotion(Function function) {
+        this.function = function;
+        this.definedIn = new HashMap<Integer, BasicBlock>();
+        this.thisRegisters = new HashSet<Integer>();
+    }
+
+    /*
+     * Natural loops found.
+     */
+    public int getLoopCount() {
+        return loops;
+    }
+
+    /*
+     * Instructions moved out of a loop, counted once per loop left.
+     */
+    public int getHoistedCount() {
+        return hoisted;
+    }
+
+    public void run() {
+        function.computePredecessors();
+        Dominators dominators = new Dominators(function);
+        List<Loop> found = Loop.find(function, dominators);
+        loops = found.size();
+
+        for (BasicBlock block : function.getBlocks()) {
+            for (Instruction instr : block.getInstructions()) {
+                if (instr.def() >= 0) {
+                    definedIn.put(instr.def(), block);
+                }
+                if (instr.op == Opcode.THIS) {
+                    thisRegisters.add(instr.dst);
+                }
+            }
+        }
+
+        for (int i = 0; i < found.size(); ++i) {
+            Loop loop = found.get(i);
+            BasicBlock preheader = loop.getPreheader(function);
+            if (preheader == null) {
+                continue;
+            }
+            // the preheader belongs to every loop around this one
+            for (int j = i + 1; j < found.size(); ++j) {
+                if (found.get(j).contains(loop.getHeader())) {
+                    found.get(j).getBlocks().add(preheader);
+                }
+            }
+            for (Instruction instr : preheader.getInstructions()) {
+                if (instr.def() >= 0) {
+                    definedIn.put(instr.def(), preheader);
+                }
+            }
+            hoist(loop, preheader, new Dominators(function));
+        }
+    }
+
+    private void hoist(Loop loop, BasicBlock preheader, Dominators dominators) {
+        boolean calls = false;
+        boolean arrayStores = false;
+        Set<Integer> storedOffsets = new HashSet<Integer>();
+        for (BasicBlock block : loop.getBlocks()) {
+            for (Instruction instr : block.getInstructions()) {
+                if (instr.op == Opcode.CALL) {
+                    calls = true;
+                } else if (instr.op == Opcode.ASTORE) {
+                    arrayStores = true;
+                } else if (instr.op == Opcode.STORE) {
+                    storedOffsets.add(instr.imm);
+                }
+            }
+        }
+
+        List<BasicBlock> exiting = loop.getExitingBlocks();
+        List<Instruction> target = preheader.getInstructions();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (BasicBlock block : function.getBlocks()) {
+                if (!loop.contains(block)) {
+                    continue;
+                }
+                boolean everyTrip = true;
+                for (BasicBlock exit : exiting) {
+                    everyTrip &= dominators.dominates(block, exit);
+                }
+
+                for (Iterator<Instruction> it = block.getInstructions().iterator();
+                         it.hasNext(); ) {
+                    Instruction instr = it.next();
+                    if (!isInvariant(loop, instr)) {
+                        continue;
+                    }
+                    boolean movable;
+                    switch (instr.op) {
+                    case Opcode.CONST:
+                    case Opcode.ADD:
+                    case Opcode.SUB:
+                    case Opcode.MUL:
+                    case Opcode.NOT:
+                    case Opcode.CMP:
+                        movable = true;
+                        break;
+                    case Opcode.LENGTH:
+                        movable = everyTrip;
+                        break;
+                    case Opcode.LOAD:
+                        movable = !calls && !storedOffsets.contains(instr.imm) &&
+                                  (everyTrip || thisRegisters.contains(instr.a));
+                        break;
+                    case Opcode.ALOAD:
+                        movable = !calls && !arrayStores && everyTrip;
+                        break;
+                    default:
+                        movable = false;
+                    }
+                    if (!movable) {
+                        continue;
+                    }
+                    it.remove();
+                    target.add(target.size() - 1, instr);
+                    definedIn.put(instr.dst, preheader);
+                    ++hoisted;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private boolean isInvariant(Loop loop, Instruction instr) {
+        if (instr.dst < 0) {
+            return false;
+        }
+        for (int use : instr.uses()) {
+            BasicBlock block = definedIn.get(use);
+            if (block != null && loop.contains(block)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,574 @@
+package IR;
+
+import java.util.*;
+
+import AST.*;
+import AST.Visitor.*;
+import Layout.*;
+import Semantic.*;
+
+/*
+ * Translates the AST into one Function per method plus one for the main
+ *      statement. Parameters and locals become virtual registers, fields
+ *      are LOAD/STORE through the receiver, and conditions are lowered
+ *      straight into branches.
+ *
+ *      Expressions leave their value in `result` and the static class of
+ *      that value (or null) in `resultClass`.
+ */
+public class Lowering implements Visitor {
+    private ProgramLayout layout;
+    private List<Function> functions;
+
+    private Function function;
+    private BasicBlock current;
+    private FrameLayout currentFrame;
+    private String currentClass;
+    private Map<String, Integer> variables;
+    private int thisRegister;
+
+    private int result;
+    private String resultClass;
+    private boolean safeArrays;
+
+    public Lowering(ProgramLayout layout) {
+        super();
+        this.layout = layout;
+        this.functions = new ArrayList<Function>();
+    }
+
+    /*
+     * When set, every array access is preceded by a CHECK of its index.
+     */
+    public void setSafeArrays(boolean safeArrays) {
+        this.safeArrays = safeArrays;
+    }
+
+    public List<Function> getFunctions() {
+        return functions;
+    }
+
+    private void emit(Instruction instr) {
+        current.getInstructions().add(instr);
+    }
+
+    /*
+     * Places a block after the current one, falling through into it if
+     *      the current block is still open.
+     */
+    private void startBlock(BasicBlock block) {
+        if (current != null && current.getTerminator() == null) {
+            emit(Instruction.jump(block));
+        }
+        function.place(block);
+        current = block;
+    }
+
+    private void finishFunction() {
+        function.removeUnreachableBlocks();
+        functions.add(function);
+        function = null;
+        current = null;
+        currentFrame = null;
+        variables = null;
+    }
+
+    private int lower(Exp e) {
+        e.accept(this);
+        return result;
+    }
+
+    /*
+     * Records the value of the expression just lowered and its type.
+     */
+    private void setResult(int reg, int type, String className) {
+        function.setRegisterType(reg, type, className);
+        result = reg;
+        resultClass = type == ValueType.OBJECT ? className : null;
+    }
+
+    /*
+     * Branches to onTrue or onFalse depending on e, without materializing
+     *      a 0/1 value for relational operators, && and !.
+     */
+    private void lowerCondition(Exp e, BasicBlock onTrue, BasicBlock onFalse) {
+        if (e instanceof And) {
+            BasicBlock second = function.newBlock();
+            lowerCondition(((And)e).e1, second, onFalse);
+            startBlock(second);
+            lowerCondition(((And)e).e2, onTrue, onFalse);
+        } else if (e instanceof Not) {
+            lowerCondition(((Not)e).e, onFalse, onTrue);
+        } else if (e instanceof True) {
+            emit(Instruction.jump(onTrue));
+        } else if (e instanceof False) {
+            emit(Instruction.jump(onFalse));
+        } else if (isRelational(e)) {
+            Exp[] operands = operands(e);
+            int a = lower(operands[0]);
+            if (operands[1] instanceof IntegerLiteral) {
+                emit(Instruction.branch(conditionOf(e), a, -1, true,
+                                        ((IntegerLiteral)operands[1]).i,
+                                        onTrue, onFalse));
+            } else {
+                int b = lower(operands[1]);
+                emit(Instruction.branch(conditionOf(e), a, b, false, 0,
+                                        onTrue, onFalse));
+            }
+        } else {
+            int value = lower(e);
+            emit(Instruction.branch(Condition.NE, value, -1, true, 0,
+                                    onTrue, onFalse));
+        }
+    }
+
+    private static boolean isRelational(Exp e) {
+        return e instanceof LessThan || e instanceof LessThanEqual ||
+               e instanceof GreatThan || e instanceof GreatThanEqual ||
+               e instanceof EqualEqual || e instanceof NotEqual;
+    }
+
+    private static int conditionOf(Exp e) {
+        if (e instanceof LessThan) return Condition.LT;
+        if (e instanceof LessThanEqual) return Condition.LE;
+        if (e instanceof GreatThan) return Condition.GT;
+        if (e instanceof GreatThanEqual) return Condition.GE;
+        if (e instanceof EqualEqual) return Condition.EQ;
+        return Condition.NE;
+    }
+
+    private static Exp[] operands(Exp e) {
+        if (e instanceof LessThan) return new Exp[] { ((LessThan)e).e1, ((LessThan)e).e2 };
+        if (e instanceof LessThanEqual) return new Exp[] { ((LessThanEqual)e).e1, ((LessThanEqual)e).e2 };
+        if (e instanceof GreatThan) return new Exp[] { ((GreatThan)e).e1, ((GreatThan)e).e2 };
+        if (e instanceof GreatThanEqual) return new Exp[] { ((GreatThanEqual)e).e1, ((GreatThanEqual)e).e2 };
+        if (e instanceof EqualEqual) return new Exp[] { ((EqualEqual)e).e1, ((EqualEqual)e).e2 };
+        return new Exp[] { ((NotEqual)e).e1, ((NotEqual)e).e2 };
+    }
+
+    /*
+     * Value context for boolean operators that are lowered as branches.
+     */
+    private void materialize(Exp e) {
+        int dst = function.newRegister();
+        BasicBlock onTrue = function.newBlock();
+        BasicBlock onFalse = function.newBlock();
+        BasicBlock join = function.newBlock();
+
+        lowerCondition(e, onTrue, onFalse);
+        startBlock(onTrue);
+        emit(Instruction.constant(dst, 1));
+        emit(Instruction.jump(join));
+        startBlock(onFalse);
+        emit(Instruction.constant(dst, 0));
+        startBlock(join);
+
+        setResult(dst, ValueType.BOOLEAN, null);
+    }
+
+    private void arithmetic(int op, Exp e1, Exp e2) {
+        int a = lower(e1);
+        int dst = function.newRegister();
+        if (e2 instanceof IntegerLiteral) {
+            emit(Instruction.binaryImm(op, dst, a, ((IntegerLiteral)e2).i));
+        } else {
+            int b = lower(e2);
+            emit(Instruction.binary(op, dst, a, b));
+        }
+        setResult(dst, ValueType.INT, null);
+    }
+
+    private void comparison(Exp e) {
+        Exp[] operands = operands(e);
+        int a = lower(operands[0]);
+        int dst = function.newRegister();
+        Instruction instr;
+        if (operands[1] instanceof IntegerLiteral) {
+            instr = Instruction.binaryImm(Opcode.CMP, dst, a,
+                                          ((IntegerLiteral)operands[1]).i);
+        } else {
+            instr = Instruction.binary(Opcode.CMP, dst, a, lower(operands[1]));
+        }
+        instr.cond = conditionOf(e);
+        emit(instr);
+        setResult(dst, ValueType.BOOLEAN, null);
+    }
+
+    private void assign(String name, int value) {
+        Slot slot = currentFrame == null ? null : currentFrame.resolve(name);
+        if (slot == null) {
+            throw new IllegalStateException("unknown variable " + name);
+        }
+
+        if (slot.getKind() == Slot.Kind.FIELD) {
+            Instruction store = new Instruction(Opcode.STORE);
+            store.a = thisRegister;
+            store.b = value;
+            store.imm = slot.getOffset();
+            emit(store);
+        } else {
+            int variable = variables.get(name);
+            List<Instruction> instrs = current.getInstructions();
+            Instruction last = instrs.isEmpty() ? null : instrs.get(instrs.size() - 1);
+            if (last != null && last.def() == value &&
+                    function.getRegisterName(value) == null) {
+                // write the variable directly instead of copying a temporary
+                last.dst = variable;
+            } else {
+                emit(Instruction.unary(Opcode.MOVE, variable, value));
+            }
+        }
+    }
+
+    public void visit(Program n) {
+        n.m.accept(this);
+
+        ClassDeclList classDeclarations = n.cl;
+        int size = classDeclarations.size();
+        for (int i = 0; i < size; ++i) {
+            classDeclarations.elementAt(i).accept(this);
+        }
+    }
+
+    public void visit(MainClass n) {
+        function = new Function(n.i1.s, null, 0);
+        currentClass = null;
+        thisRegister = -1;
+        variables = new HashMap<String, Integer>();
+        current = null;
+        startBlock(function.newBlock());
+
+        n.s.accept(this);
+
+        emit(new Instruction(Opcode.RETURN));
+        finishFunction();
+    }
+
+    public void visit(ClassDeclSimple n) {
+        currentClass = n.i.s;
+
+        MethodDeclList methods = n.ml;
+        int methodsCount = methods.size();
+        for (int i = 0; i < methodsCount; ++i) {
+            methods.elementAt(i).accept(this);
+        }
+
+        currentClass = null;
+    }
+
+    public void visit(ClassDeclExtends n) {
+        currentClass = n.i.s;
+
+        MethodDeclList methods = n.ml;
+        int methodsCount = methods.size();
+        for (int i = 0; i < methodsCount; ++i) {
+            methods.elementAt(i).accept(this);
+        }
+
+        currentClass = null;
+    }
+
+    public void visit(VarDecl n) {
+        if (n.exp != null) {
+            assign(n.i.s, lower(n.exp));
+        }
+    }
+
+    public void visit(MethodDecl n) {
+        currentFrame = layout.getFrameLayout(currentClass, n.i.s);
+        function = new Function(currentClass, n.i.s,
+                                currentFrame.getParameterCount());
+        variables = new HashMap<String, Integer>();
+        current = null;
+        startBlock(function.newBlock());
+
+        thisRegister = function.newRegister("this", ValueType.OBJECT,
+                                            currentClass);
+        emit(Instruction.unary(Opcode.THIS, thisRegister, -1));
+
+        for (Slot param : currentFrame.getParameterList()) {
+            int reg = function.newRegister(param.getName(),
+                                           ValueType.of(param.getType()),
+                                           param.getClassName());
+            Instruction instr = Instruction.unary(Opcode.PARAM, reg, -1);
+            instr.imm = param.getIndex();
+            emit(instr);
+            variables.put(param.getName(), reg);
+        }
+        for (Slot local : currentFrame.getLocalList()) {
+            if (!variables.containsKey(local.getName())) {
+                variables.put(local.getName(),
+                              function.newRegister(local.getName(),
+                                                   ValueType.of(local.getType()),
+                                                   local.getClassName()));
+            }
+        }
+
+        VarDeclList localVariables = n.vl;
+        int variablesCount = localVariables.size();
+        for (int i = 0; i < variablesCount; ++i) {
+            localVariables.elementAt(i).accept(this);
+        }
+
+        StatementList stmts = n.sl;
+        int stmtsCount = stmts.size();
+        for (int i = 0; i < stmtsCount; ++i) {
+            stmts.elementAt(i).accept(this);
+        }
+
+        Instruction ret = new Instruction(Opcode.RETURN);
+        ret.a = lower(n.e);
+        emit(ret);
+        finishFunction();
+    }
+
+    public void visit(Formal n) { }
+
+    public void visit(IntArrayType n) { }
+
+    public void visit(BooleanType n) { }
+
+    public void visit(IntegerType n) { }
+
+    public void visit(IdentifierType n) { }
+
+    public void visit(Block n) {
+        StatementList stmts = n.sl;
+        int size = stmts.size();
+        for (int i = 0; i < size; ++i) {
+            stmts.elementAt(i).accept(this);
+        }
+    }
+
+    public void visit(If n) {
+        BasicBlock thenBlock = function.newBlock();
+        BasicBlock elseBlock = function.newBlock();
+        BasicBlock join = function.newBlock();
+
+        lowerCondition(n.e, thenBlock, elseBlock);
+        startBlock(thenBlock);
+        n.s1.accept(this);
+        emit(Instruction.jump(join));
+        startBlock(elseBlock);
+        n.s2.accept(this);
+        startBlock(join);
+    }
+
+    /*
+     * Test at the bottom so each iteration runs a single branch:
+     *
+     *          goto test
+     *      body:
+     *          ...
+     *      test:
+     *          if cond goto body else exit
+     *      exit:
+     */
+    public void visit(While n) {
+        BasicBlock body = function.newBlock();
+        BasicBlock test = function.newBlock();
+        BasicBlock exit = function.newBlock();
+
+        emit(Instruction.jump(test));
+        startBlock(body);
+        n.s.accept(this);
+        startBlock(test);
+        lowerCondition(n.e, body, exit);
+        startBlock(exit);
+    }
+
+    public void visit(Print n) {
+        emit(Instruction.unary(Opcode.PRINT, -1, lower(n.e)));
+    }
+
+    public void visit(Assign n) {
+        assign(n.i.s, lower(n.e));
+    }
+
+    public void visit(ArrayAssign n) {
+        int array = lower(new IdentifierExp(n.i.s, n.getLine()));
+        int index = lower(n.e1);
+        int value = lower(n.e2);
+
+        check(array, index);
+        Instruction instr = new Instruction(Opcode.ASTORE);
+        instr.a = array;
+        instr.b = index;
+        instr.c = value;
+        emit(instr);
+    }
+
+    public void visit(And n) {
+        materialize(n);
+    }
+
+    public void visit(LessThan n) {
+        comparison(n);
+    }
+
+    public void visit(GreatThan n) {
+        comparison(n);
+    }
+
+    public void visit(GreatThanEqual n) {
+        comparison(n);
+    }
+
+    public void visit(LessThanEqual n) {
+        comparison(n);
+    }
+
+    public void visit(EqualEqual n) {
+        comparison(n);
+    }
+
+    public void visit(NotEqual n) {
+        comparison(n);
+    }
+
+    public void visit(Plus n) {
+        arithmetic(Opcode.ADD, n.e1, n.e2);
+    }
+
+    public void visit(Minus n) {
+        arithmetic(Opcode.SUB, n.e1, n.e2);
+    }
+
+    public void visit(Times n) {
+        arithmetic(Opcode.MUL, n.e1, n.e2);
+    }
+
+    public void visit(ArrayLookup n) {
+        int array = lower(n.e1);
+        int index = lower(n.e2);
+        check(array, index);
+        int dst = function.newRegister();
+        emit(Instruction.binary(Opcode.ALOAD, dst, array, index));
+        setResult(dst, ValueType.INT, null);
+    }
+
+    private void check(int array, int index) {
+        if (safeArrays) {
+            emit(Instruction.binary(Opcode.CHECK, -1, array, index));
+        }
+    }
+
+    public void visit(ArrayLength n) {
+        int dst = function.newRegister();
+        emit(Instruction.unary(Opcode.LENGTH, dst, lower(n.e)));
+        setResult(dst, ValueType.INT, null);
+    }
+
+    public void visit(Call n) {
+        int receiver = lower(n.e);
+        String receiverClass = resultClass;
+
+        VTable table = layout.getVTable(receiverClass);
+        if (table == null || table.getSlot(n.i.s) < 0) {
+            throw new IllegalStateException("cannot resolve method " +
+                                            n.i.s + " on line " +
+                                            n.getLine());
+        }
+        int slot = table.getSlot(n.i.s);
+
+        // ExpList keeps the arguments last to first
+        ExpList params = n.el;
+        int[] args = new int[params.size()];
+        for (int i = params.size() - 1; i >= 0; --i) {
+            args[params.size() - 1 - i] = lower(params.elementAt(i));
+        }
+
+        Instruction instr = new Instruction(Opcode.CALL);
+        instr.dst = function.newRegister();
+        instr.a = receiver;
+        instr.imm = slot;
+        instr.args = args;
+        instr.sym = receiverClass;
+        instr.method = n.i.s;
+        emit(instr);
+
+        Node retType = table.getMethod(slot).getReturnType();
+        setResult(instr.dst, ValueType.of(retType), retType.iam);
+    }
+
+    public void visit(IntegerLiteral n) {
+        int dst = function.newRegister();
+        emit(Instruction.constant(dst, n.i));
+        setResult(dst, ValueType.INT, null);
+    }
+
+    public void visit(True n) {
+        int dst = function.newRegister();
+        emit(Instruction.constant(dst, 1));
+        setResult(dst, ValueType.BOOLEAN, null);
+    }
+
+    public void visit(False n) {
+        int dst = function.newRegister();
+        emit(Instruction.constant(dst, 0));
+        setResult(dst, ValueType.BOOLEAN, null);
+    }
+
+    public void visit(IdentifierExp n) {
+        Slot slot = currentFrame == null ? null : currentFrame.resolve(n.s);
+        if (slot == null) {
+            throw new IllegalStateException("unknown variable " + n.s +
+                                            " on line " + n.getLine());
+        }
+
+        if (slot.getKind() == Slot.Kind.FIELD) {
+            int dst = function.newRegister();
+            Instruction load = Instruction.unary(Opcode.LOAD, dst, thisRegister);
+            load.imm = slot.getOffset();
+            emit(load);
+            setResult(dst, ValueType.of(slot.getType()), slot.getClassName());
+        } else {
+            setResult(variables.get(n.s), ValueType.of(slot.getType()),
+                      slot.getClassName());
+        }
+    }
+
+    public void visit(This n) {
+        setResult(thisRegister, ValueType.OBJECT, currentClass);
+    }
+
+    public void visit(NewArray n) {
+        int length = lower(n.e);
+        int dst = function.newRegister();
+        emit(Instruction.unary(Opcode.NEWARRAY, dst, length));
+        setResult(dst, ValueType.INT_ARRAY, null);
+    }
+
+    public void visit(NewObject n) {
+        int dst = function.newRegister();
+        Instruction instr = Instruction.unary(Opcode.NEWOBJECT, dst, -1);
+        instr.sym = n.i.s;
+        instr.imm = layout.getClassLayout(n.i.s).getObjectSize();
+        emit(instr);
+        setResult(dst, ValueType.OBJECT, n.i.s);
+    }
+
+    public void visit(Not n) {
+        int dst = function.newRegister();
+        emit(Instruction.unary(Opcode.NOT, dst, lower(n.e)));
+        setResult(dst, ValueType.BOOLEAN, null);
+    }
+
+    public void visit(Identifier n) { }
+
+    public void visit(FloatLiteral n) { }
+
+    public void visit(FloatType n) { }
+
+    public void visit(DoubleLiteral n) { }
+
+    public void visit(DoubleType n) { }
+
+    public void visit(Instanceof n) { }
+
+    public void visit(Null n) {
+        int dst = function.newRegister();
+        emit(Instruction.constant(dst, 0));
+        setResult(dst, ValueType.OBJECT, null);
+    }
+}
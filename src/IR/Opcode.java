@@ -0,0 +1,85 @@
+package IR;
+
+/*
+ * Instruction set of the method-level IR. Every instruction has at most
+ *      one destination and reads virtual registers (or an immediate, see
+ *      Instruction.bImm):
+ *
+ *      CONST     dst = imm
+ *      MOVE      dst = a
+ *      ADD       dst = a + b
+ *      SUB       dst = a - b
+ *      MUL       dst = a * b
+ *      NOT       dst = !a
+ *      CMP       dst = a <cond> b
+ *      THIS      dst = receiver
+ *      PARAM     dst = parameter #imm
+ *      LOAD      dst = [a + imm]
+ *      STORE     [a + imm] = b
+ *      ALOAD     dst = a[b + imm]
+ *      ASTORE    a[b + imm] = c
+ *      LENGTH    dst = a.length
+ *      NEWARRAY  dst = new int[a]
+ *      NEWOBJECT dst = new sym
+ *      CALL      dst = a.method(args), dispatched through vtable slot imm
+ *      PRINT     print a
+ *      JUMP      goto target
+ *      BRANCH    if a <cond> b goto target else alt
+ *      RETURN    return a (no value when a is -1)
+ *      PHI       dst = args[i] when control arrives from block from[i]
+ *                (SSA form only, see SSA)
+ *      CHECK     trap unless 0 <= b + imm < a.length (safe arrays only)
+ *      FRAMEOBJECT dst = new sym, imm bytes in the current stack frame
+ *                (see EscapeAnalysis)
+ */
+public final class Opcode {
+    public static final int CONST = 0;
+    public static final int MOVE = 1;
+    public static final int ADD = 2;
+    public static final int SUB = 3;
+    public static final int MUL = 4;
+    public static final int NOT = 5;
+    public static final int CMP = 6;
+    public static final int THIS = 7;
+    public static final int PARAM = 8;
+    public static final int LOAD = 9;
+    public static final int STORE = 10;
+    public static final int ALOAD = 11;
+    public static final int ASTORE = 12;
+    public static final int LENGTH = 13;
+    public static final int NEWARRAY = 14;
+    public static final int NEWOBJECT = 15;
+    public static final int CALL = 16;
+    public static final int PRINT = 17;
+    public static final int JUMP = 18;
+    public static final int BRANCH = 19;
+    public static final int RETURN = 20;
+    public static final int PHI = 21;
+    public static final int CHECK = 22;
+    public static final int FRAMEOBJECT = 23;
+
+    private static final String[] NAMES = {
+        "const", "move", "add", "sub", "mul", "not", "cmp", "this",
+        "param", "load", "store", "aload", "astore", "length", "newarray",
+        "newobject", "call", "print", "jump", "branch", "return", "phi",
+        "check", "frameobject",
+    };
+
+    private Opcode() { }
+
+    public static String name(int op) {
+        return NAMES[op];
+    }
+
+    public static boolean isTerminator(int op) {
+        return op == JUMP || op == BRANCH || op == RETURN;
+    }
+
+    /*
+     * Instructions that call into other code and clobber the caller-saved
+     *      registers.
+     */
+    public static boolean isCall(int op) {
+        return op == CALL || op == PRINT || op == NEWARRAY || op == NEWOBJECT;
+    }
+}
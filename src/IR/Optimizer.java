@@ -0,0 +1,135 @@
+package IR;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import Layout.ProgramLayout;
+
+/*
+ * The -O pass pipeline over the lowered functions, in the order the
+ *      passes depend on, with the counts each one reports.
+ *
+ *      Inlining and then tail recursion run on the lowered code. Every
+ *      function then goes into SSA form for SCCP, escape analysis looks
+ *      at all of them at once, and the per-function passes follow: value
+ *      numbering, loop-invariant code motion, strength reduction,
+ *      bounds-check analysis and dead-code elimination. Bounds-checked
+ *      loops are versioned once the function is out of SSA form again.
+ */
+public class Optimizer {
+    private final ProgramLayout layout;
+    private boolean safeArrays;
+
+    private int inlined;
+    private String recursive;
+    private int allocations;
+    private int scalarReplaced;
+    private int frameAllocated;
+    private int constants;
+    private int branches;
+    private int removed;
+    private int redundant;
+    private int loads;
+    private int copies;
+    private int loops;
+    private int hoisted;
+    private int reduced;
+    private int indices;
+    private int checks;
+    private int proven;
+    private int versioned;
+    private int versionedLoops;
+
+    public Optimizer(ProgramLayout layout) {
+        this.layout = layout;
+    }
+
+    /*
+     * Whether the functions were lowered with bounds checks (-S); only
+     *      then does the report have a line for them.
+     */
+    public void setSafeArrays(boolean safeArrays) {
+        this.safeArrays = safeArrays;
+    }
+
+    public void optimize(List<Function> functions) {
+        Inliner inliner = new Inliner(layout, functions);
+        inliner.run();
+        inlined = inliner.getInlinedCount();
+
+        StringBuilder transformed = new StringBuilder();
+        for (Function function : functions) {
+            TailRecursion recursion = new TailRecursion(layout, function);
+            recursion.run();
+            if (recursion.getTransformedCount() > 0) {
+                transformed.append(" ").append(function.getLabel())
+                           .append(recursion.usesAccumulator() ? " (accumulator)" : "");
+            }
+        }
+        recursive = transformed.length() == 0 ? " none" : transformed.toString();
+
+        for (Function function : functions) {
+            SSA.construct(function);
+            SCCP propagation = new SCCP(function);
+            propagation.run();
+            constants += propagation.getFoldedConstants();
+            branches += propagation.getFoldedBranches();
+        }
+        EscapeAnalysis escape = new EscapeAnalysis(layout, functions);
+        escape.run();
+        allocations = escape.getAllocationCount();
+        scalarReplaced = escape.getScalarReplacedCount();
+        frameAllocated = escape.getFrameAllocatedCount();
+        for (Function function : functions) {
+            ValueNumbering numbering = new ValueNumbering(function);
+            numbering.run();
+            redundant += numbering.getEliminatedCount();
+            loads += numbering.getEliminatedLoadCount();
+            copies += numbering.getCopyCount();
+            LoopInvariantCodeMotion motion = new LoopInvariantCodeMotion(function);
+            motion.run();
+            loops += motion.getLoopCount();
+            hoisted += motion.getHoistedCount();
+            StrengthReduction reduction = new StrengthReduction(function);
+            reduction.run();
+            reduced += reduction.getReducedCount();
+            indices += reduction.getFoldedIndexCount();
+            BoundsCheckElimination bounds = new BoundsCheckElimination(function);
+            bounds.analyze();
+            DeadCodeElimination elimination = new DeadCodeElimination(function);
+            elimination.run();
+            removed += elimination.getRemovedCount();
+            SSA.destruct(function);
+            bounds.version();
+            checks += bounds.getCheckCount();
+            proven += bounds.getProvenCount();
+            versioned += bounds.getVersionedCount();
+            versionedLoops += bounds.getVersionedLoopCount();
+        }
+    }
+
+    /*
+     * One line per pass, for the driver to print.
+     */
+    public List<String> formatReport() {
+        List<String> rv = new ArrayList<String>();
+        rv.add("inlined " + inlined + " call sites");
+        rv.add("tail recursion turned into loops:" + recursive);
+        rv.add("escape analysis: " + scalarReplaced + " of " + allocations +
+               " allocations scalar-replaced, " + frameAllocated +
+               " moved to the stack frame");
+        rv.add("propagated " + constants + " constants, folded " + branches +
+               " branches, removed " + removed + " dead instructions");
+        rv.add("value numbering removed " + redundant + " redundant instructions (" +
+               loads + " loads) and " + copies + " copies");
+        rv.add("hoisted " + hoisted + " instructions out of " + loops + " loops");
+        rv.add("strength reduction replaced " + reduced + " multiplications, folded " +
+               indices + " array index offsets");
+        if (safeArrays) {
+            rv.add("bounds checks: " + (proven + versioned) + " of " + checks +
+                   " eliminated (" + proven + " proven, " + versioned +
+                   " dropped from " + versionedLoops + " versioned loops)");
+        }
+        return rv;
+    }
+}
@@ -0,0 +1,347 @@
+package IR;
+
+import java.util.*;
+
+/*
+ * Sparse conditional constant propagation (Wegman & Zadeck) on a Function
+ *      in SSA form. Every register starts out undetermined and can only
+ *      move down to a constant and then to "varying"; blocks and edges are
+ *      only considered once they are known to execute, so a constant
+ *      branch condition keeps the untaken side from spoiling the phis
+ *      after it.
+ *
+ *      Afterwards constant registers are defined by CONST, their uses in
+ *      ADD/SUB/MUL/CMP/BRANCH become immediates where the instruction
+ *      allows one, branches with a known outcome become jumps and blocks
+ *      that never execute are removed.
+ */
+public final class SCCP {
+    private static final int UNKNOWN = 0;
+    private static final int CONSTANT = 1;
+    private static final int VARYING = 2;
+
+    private final Function function;
+    private final int[] state;
+    private final int[] value;
+    private final Map<Integer, List<Instruction>> users;
+    private final Map<Instruction, BasicBlock> blockOf;
+    private final Set<BasicBlock> visited;
+    private final Set<String> executable;
+    private final Deque<BasicBlock[]> flowWork;
+    private final Deque<Integer> valueWork;
+
+    private int foldedConstants;
+    private int foldedBranches;
+
+    public SCCP(Function function) {
+        this.function = function;
+        int count = function.getRegisterCount();
+        this.state = new int[count];
+        this.value = new int[count];
+        this.users = new HashMap<Integer, List<Instruction>>();
+        this.blockOf = new HashMap<Instruction, BasicBlock>();
+        this.visited = new HashSet<BasicBlock>();
+        this.executable = new HashSet<String>();
+        this.flowWork = new ArrayDeque<BasicBlock[]>();
+        this.valueWork = new ArrayDeque<Integer>();
+    }
+
+    /*
+     * Instructions replaced by a constant.
+     */
+    public int getFoldedConstants() {
+        return foldedConstants;
+    }
+
+    /*
+     * Branches replaced by a jump.
+     */
+    public int getFoldedBranches() {
+        return foldedBranches;
+    }
+
+    private static String edge(BasicBlock from, BasicBlock to) {
+        return (from == null ? "" : from.getLabel()) + ">" + to.getLabel();
+    }
+
+    public void run() {
+        function.computePredecessors();
+        for (BasicBlock block : function.getBlocks()) {
+            for (Instruction instr : block.getInstructions()) {
+                blockOf.put(instr, block);
+                for (int use : instr.uses()) {
+                    List<Instruction> list = users.get(use);
+                    if (list == null) {
+                        list = new ArrayList<Instruction>();
+                        users.put(use, list);
+                    }
+                    list.add(instr);
+                }
+            }
+        }
+
+        flowWork.add(new BasicBlock[] { null, function.getEntry() });
+        while (!flowWork.isEmpty() || !valueWork.isEmpty()) {
+            if (!flowWork.isEmpty()) {
+                BasicBlock[] e = flowWork.poll();
+                if (!executable.add(edge(e[0], e[1]))) {
+                    continue;
+                }
+                BasicBlock block = e[1];
+                boolean first = visited.add(block);
+                for (Instruction instr : block.getInstructions()) {
+                    if (instr.op == Opcode.PHI || first) {
+                        evaluate(instr);
+                    }
+                }
+            } else {
+                int reg = valueWork.poll();
+                List<Instruction> list = users.get(reg);
+                if (list == null) {
+                    continue;
+                }
+                for (Instruction instr : list) {
+                    if (visited.contains(blockOf.get(instr))) {
+                        evaluate(instr);
+                    }
+                }
+            }
+        }
+
+        rewrite();
+    }
+
+    private void lower(int reg, int newState, int newValue) {
+        if (newState <= state[reg] &&
+                !(newState == CONSTANT && state[reg] == CONSTANT &&
+                  newValue != value[reg])) {
+            return;
+        }
+        if (newState == CONSTANT && state[reg] == CONSTANT) {
+            newState = VARYING;
+        }
+        state[reg] = newState;
+        value[reg] = newValue;
+        valueWork.add(reg);
+    }
+
+    private void reach(BasicBlock from, BasicBlock to) {
+        flowWork.add(new BasicBlock[] { from, to });
+    }
+
+    private void evaluate(Instruction instr) {
+        BasicBlock block = blockOf.get(instr);
+        switch (instr.op) {
+        case Opcode.PHI: {
+            int newState = UNKNOWN;
+            int newValue = 0;
+            for (int i = 0; i < instr.args.length; ++i) {
+                if (!executable.contains(edge(instr.from[i], block))) {
+                    continue;
+                }
+                int arg = instr.args[i];
+                if (state[arg] == VARYING ||
+                        (state[arg] == CONSTANT && newState == CONSTANT &&
+                         value[arg] != newValue)) {
+                    newState = VARYING;
+                    break;
+                }
+                if (state[arg] == CONSTANT) {
+                    newState = CONSTANT;
+                    newValue = value[arg];
+                }
+            }
+            lower(instr.dst, newState, newValue);
+            break;
+        }
+        case Opcode.CONST:
+            lower(instr.dst, CONSTANT, instr.imm);
+            break;
+        case Opcode.MOVE:
+            lower(instr.dst, state[instr.a], value[instr.a]);
+            break;
+        case Opcode.ADD:
+        case Opcode.SUB:
+        case Opcode.MUL:
+        case Opcode.CMP:
+        case Opcode.NOT: {
+            int[] operands = operands(instr);
+            if (operands == null) {
+                lower(instr.dst, VARYING, 0);
+            } else if (operands.length > 0) {
+                lower(instr.dst, CONSTANT, compute(instr, operands));
+            }
+            break;
+        }
+        case Opcode.BRANCH: {
+            int[] operands = operands(instr);
+            if (operands == null) {
+                reach(block, instr.target);
+                reach(block, instr.alt);
+            } else if (operands.length > 0) {
+                boolean taken = Condition.evaluate(instr.cond, operands[0], operands[1]);
+                reach(block, taken ? instr.target : instr.alt);
+            }
+            break;
+        }
+        case Opcode.JUMP:
+            reach(block, instr.target);
+            break;
+        default:
+            if (instr.dst >= 0) {
+                lower(instr.dst, VARYING, 0);
+            }
+        }
+    }
+
+    /*
+     * Constant operands {a, b} (b is the immediate when bImm), an empty
+     *      array while any operand is still unknown, or null once one of
+     *      them varies.
+     */
+    private int[] operands(Instruction instr) {
+        int[] regs = instr.op == Opcode.NOT || instr.bImm
+                   ? new int[] { instr.a }
+                   : new int[] { instr.a, instr.b };
+        boolean unknown = false;
+        for (int reg : regs) {
+            if (state[reg] == VARYING) {
+                return null;
+            }
+            if (state[reg] == UNKNOWN) {
+                unknown = true;
+            }
+        }
+        if (unknown) {
+            return new int[0];
+        }
+        return new int[] { value[instr.a],
+                           instr.bImm ? instr.imm :
+                           instr.op == Opcode.NOT ? 0 : value[instr.b] };
+    }
+
+    private static int compute(Instruction instr, int[] operands) {
+        int a = operands[0];
+        int b = operands[1];
+        switch (instr.op) {
+        case Opcode.ADD:
+            return a + b;
+        case Opcode.SUB:
+            return a - b;
+        case Opcode.MUL:
+            return a * b;
+        case Opcode.NOT:
+            return a == 0 ? 1 : 0;
+        default:
+            return Condition.evaluate(instr.cond, a, b) ? 1 : 0;
+        }
+    }
+
+    private boolean isConstant(int reg) {
+        return reg >= 0 && state[reg] == CONSTANT;
+    }
+
+    private void rewrite() {
+        for (BasicBlock block : function.getBlocks()) {
+            if (!visited.contains(block)) {
+                continue;
+            }
+            List<Instruction> instructions = block.getInstructions();
+            for (int i = 0; i < instructions.size(); ++i) {
+                Instruction instr = instructions.get(i);
+
+                if (instr.op == Opcode.PHI) {
+                    prunePhi(block, instr);
+                }
+                if (instr.dst >= 0 && isConstant(instr.dst) &&
+                        instr.op != Opcode.CONST && !Opcode.isCall(instr.op)) {
+                    instructions.set(i, Instruction.constant(instr.dst, value[instr.dst]));
+                    ++foldedConstants;
+                    continue;
+                }
+
+                switch (instr.op) {
+                case Opcode.ADD:
+                case Opcode.MUL:
+                    if (!instr.bImm && isConstant(instr.a) && !isConstant(instr.b)) {
+                        int other = instr.a;
+                        instr.a = instr.b;
+                        instr.b = other;
+                    }
+                    immediate(instr);
+                    break;
+                case Opcode.SUB:
+                    immediate(instr);
+                    break;
+                case Opcode.CMP:
+                case Opcode.BRANCH:
+                    if (!instr.bImm && isConstant(instr.a) && !isConstant(instr.b)) {
+                        int other = instr.a;
+                        instr.a = instr.b;
+                        instr.b = other;
+                        instr.cond = Condition.swap(instr.cond);
+                    }
+                    immediate(instr);
+                    break;
+                default:
+                    break;
+                }
+
+                if (instr.op == Opcode.BRANCH) {
+                    boolean toTarget = executable.contains(edge(block, instr.target));
+                    boolean toAlt = executable.contains(edge(block, instr.alt));
+                    if (toTarget != toAlt) {
+                        instructions.set(i, Instruction.jump(toTarget ? instr.target
+                                                                      : instr.alt));
+                        ++foldedBranches;
+                    }
+                }
+            }
+        }
+
+        function.getBlocks().retainAll(visited);
+        function.removeUnreachableBlocks();
+    }
+
+    private void immediate(Instruction instr) {
+        if (!instr.bImm && isConstant(instr.b)) {
+            instr.imm = value[instr.b];
+            instr.bImm = true;
+            instr.b = -1;
+        }
+    }
+
+    /*
+     * Drops the incoming values of edges that never execute; a phi left
+     *      with a single one becomes a plain copy.
+     */
+    private void prunePhi(BasicBlock block, Instruction phi) {
+        int kept = 0;
+        for (int i = 0; i < phi.args.length; ++i) {
+            if (executable.contains(edge(phi.from[i], block))) {
+                ++kept;
+            }
+        }
+        if (kept == phi.args.length) {
+            return;
+        }
+        int[] args = new int[kept];
+        BasicBlock[] from = new BasicBlock[kept];
+        kept = 0;
+        for (int i = 0; i < phi.args.length; ++i) {
+            if (executable.contains(edge(phi.from[i], block))) {
+                args[kept] = phi.args[i];
+                from[kept] = phi.from[i];
+                ++kept;
+            }
+        }
+        phi.args = args;
+        phi.from = from;
+        if (kept == 1) {
+            phi.op = Opcode.MOVE;
+            phi.a = args[0];
+            phi.args = null;
+            phi.from = null;
+        }
+    }
+}
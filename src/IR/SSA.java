@@ -0,0 +1,250 @@
+package IR;
+
+import java.util.*;
+
+/*
+ * Conversion into and out of static single assignment form.
+ *
+ *      construct() places phis at the iterated dominance frontier of each
+ *      register's definitions, only where the register is live (pruned
+ *      SSA), and renames every definition to a fresh register by walking
+ *      the dominator tree (Cytron et al.). A register read on a path where
+ *      it was never written gets a CONST 0 at the entry; the type checker
+ *      rules that out for real variables.
+ *
+ *      destruct() replaces the phis by copies at the end of each
+ *      predecessor. Critical edges are split first so a copy never runs
+ *      on the wrong path, and the copies of one edge are ordered as a
+ *      parallel copy (using a temporary to break cycles), so passes may
+ *      freely propagate values between phis before going out of SSA.
+ */
+public final class SSA {
+    private final Function function;
+    private final Dominators dominators;
+    private final int originalCount;
+    private final Map<Instruction, Integer> phiVariables;
+    private final List<Deque<Integer>> stacks;
+    private final int[] undefined;
+    private final List<Instruction> undefinedConstants;
+
+    private SSA(Function function) {
+        this.function = function;
+        this.dominators = new Dominators(function);
+        this.originalCount = function.getRegisterCount();
+        this.phiVariables = new HashMap<Instruction, Integer>();
+        this.stacks = new ArrayList<Deque<Integer>>();
+        for (int r = 0; r < originalCount; ++r) {
+            stacks.add(new ArrayDeque<Integer>());
+        }
+        this.undefined = new int[originalCount];
+        Arrays.fill(undefined, -1);
+        this.undefinedConstants = new ArrayList<Instruction>();
+    }
+
+    public static void construct(Function function) {
+        function.removeUnreachableBlocks();
+        SSA ssa = new SSA(function);
+        ssa.placePhis();
+        ssa.rename(function.getEntry());
+        function.getEntry().getInstructions().addAll(0, ssa.undefinedConstants);
+    }
+
+    private void placePhis() {
+        Liveness liveness = new Liveness(function);
+
+        List<Set<BasicBlock>> definitions = new ArrayList<Set<BasicBlock>>();
+        for (int r = 0; r < originalCount; ++r) {
+            definitions.add(new LinkedHashSet<BasicBlock>());
+        }
+        for (BasicBlock block : function.getBlocks()) {
+            for (Instruction instr : block.getInstructions()) {
+                if (instr.def() >= 0) {
+                    definitions.get(instr.def()).add(block);
+                }
+            }
+        }
+
+        for (int r = 0; r < originalCount; ++r) {
+            Set<BasicBlock> hasPhi = new HashSet<BasicBlock>();
+            Deque<BasicBlock> work = new ArrayDeque<BasicBlock>(definitions.get(r));
+            Set<BasicBlock> queued = new HashSet<BasicBlock>(definitions.get(r));
+            while (!work.isEmpty()) {
+                BasicBlock block = work.pop();
+                for (BasicBlock join : dominators.getFrontier(block)) {
+                    if (hasPhi.contains(join) || !liveness.getLiveIn(join).get(r)) {
+                        continue;
+                    }
+                    hasPhi.add(join);
+                    List<BasicBlock> preds = join.getPredecessors();
+                    int[] args = new int[preds.size()];
+                    Arrays.fill(args, r);
+                    Instruction phi = Instruction.phi(r, args,
+                                                      preds.toArray(new BasicBlock[0]));
+                    join.getInstructions().add(0, phi);
+                    phiVariables.put(phi, r);
+                    if (queued.add(join)) {
+                        work.push(join);
+                    }
+                }
+            }
+        }
+    }
+
+    private int fresh(int original) {
+        return function.newRegister(function.getRegisterName(original),
+                                    function.getRegisterType(original),
+                                    function.getRegisterClass(original));
+    }
+
+    private int current(int original) {
+        Deque<Integer> stack = stacks.get(original);
+        if (!stack.isEmpty()) {
+            return stack.peek();
+        }
+        if (undefined[original] < 0) {
+            undefined[original] = fresh(original);
+            undefinedConstants.add(Instruction.constant(undefined[original], 0));
+        }
+        return undefined[original];
+    }
+
+    private void rename(BasicBlock block) {
+        List<Integer> pushed = new ArrayList<Integer>();
+        for (Instruction instr : block.getInstructions()) {
+            if (instr.op != Opcode.PHI) {
+                for (int use : instr.uses()) {
+                    if (use < originalCount) {
+                        instr.replaceUse(use, current(use));
+                    }
+                }
+            }
+            int def = instr.def();
+            if (def >= 0 && def < originalCount) {
+                int name = fresh(def);
+                instr.dst = name;
+                stacks.get(def).push(name);
+                pushed.add(def);
+            }
+        }
+
+        for (BasicBlock succ : block.getSuccessors()) {
+            for (Instruction phi : succ.getInstructions()) {
+                if (phi.op != Opcode.PHI || !phiVariables.containsKey(phi)) {
+                    continue;
+                }
+                for (int i = 0; i < phi.from.length; ++i) {
+                    if (phi.from[i] == block) {
+                        phi.args[i] = current(phiVariables.get(phi));
+                    }
+                }
+            }
+        }
+
+        for (BasicBlock child : dominators.getChildren(block)) {
+            rename(child);
+        }
+
+        for (int def : pushed) {
+            stacks.get(def).pop();
+        }
+    }
+
+    public static void destruct(Function function) {
+        function.computePredecessors();
+        List<BasicBlock> blocks = function.getBlocks();
+
+        for (int i = 0; i < blocks.size(); ++i) {
+            BasicBlock block = blocks.get(i);
+            List<Instruction> phis = new ArrayList<Instruction>();
+            for (Instruction instr : block.getInstructions()) {
+                if (instr.op == Opcode.PHI) {
+                    phis.add(instr);
+                }
+            }
+            if (phis.isEmpty()) {
+                continue;
+            }
+            block.getInstructions().removeAll(phis);
+
+            // one set of parallel copies per incoming edge
+            List<BasicBlock> preds = new ArrayList<BasicBlock>(block.getPredecessors());
+            for (BasicBlock pred : preds) {
+                List<int[]> copies = new ArrayList<int[]>();
+                for (Instruction phi : phis) {
+                    for (int k = 0; k < phi.from.length; ++k) {
+                        if (phi.from[k] == pred) {
+                            copies.add(new int[] { phi.dst, phi.args[k] });
+                        }
+                    }
+                }
+                if (copies.isEmpty()) {
+                    continue;
+                }
+
+                BasicBlock source = pred;
+                if (pred.getSuccessors().size() > 1) {
+                    source = function.newBlock();
+                    source.getInstructions().add(Instruction.jump(block));
+                    Instruction branch = pred.getTerminator();
+                    if (branch.target == block) branch.target = source;
+                    if (branch.alt == block) branch.alt = source;
+                    blocks.add(blocks.indexOf(block), source);
+                    ++i;
+                }
+                List<Instruction> code = source.getInstructions();
+                code.addAll(code.size() - 1, sequentialize(function, copies));
+            }
+        }
+        function.computePredecessors();
+    }
+
+    /*
+     * Orders parallel copies {dst := src} so no source is overwritten
+     *      before it is read.
+     */
+    private static List<Instruction> sequentialize(Function function,
+                                                   List<int[]> copies) {
+        List<Instruction> rv = new ArrayList<Instruction>();
+        List<int[]> pending = new ArrayList<int[]>();
+        for (int[] copy : copies) {
+            if (copy[0] != copy[1]) {
+                pending.add(copy);
+            }
+        }
+
+        while (!pending.isEmpty()) {
+            int[] ready = null;
+            for (int[] copy : pending) {
+                boolean read = false;
+                for (int[] other : pending) {
+                    if (other != copy && other[1] == copy[0]) {
+                        read = true;
+                        break;
+                    }
+                }
+                if (!read) {
+                    ready = copy;
+                    break;
+                }
+            }
+
+            if (ready == null) {
+                // a cycle: save one destination and read the copy instead
+                int[] copy = pending.get(0);
+                int saved = function.newRegister(null,
+                                                 function.getRegisterType(copy[0]),
+                                                 function.getRegisterClass(copy[0]));
+                rv.add(Instruction.unary(Opcode.MOVE, saved, copy[0]));
+                for (int[] other : pending) {
+                    if (other[1] == copy[0]) {
+                        other[1] = saved;
+                    }
+                }
+                continue;
+            }
+            rv.add(Instruction.unary(Opcode.MOVE, ready[0], ready[1]));
+            pending.remove(ready);
+        }
+        return rv;
+    }
+}
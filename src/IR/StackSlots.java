@@ -0,0 +1,106 @@
+package IR;
+
+import java.util.*;
+
+/*
+ * Packs a set of registers into as few stack slots as their lifetimes
+ *      allow. Two registers interfere when one is written while the other
+ *      is live (Liveness, walked backwards through each block), except
+ *      that a copy does not make its destination interfere with its
+ *      source, since both then hold the same value. Registers live on
+ *      entry to the function are read before being written and are kept
+ *      apart from each other as well. Slots are handed out first-fit in
+ *      the order the registers are given.
+ */
+public final class StackSlots {
+    private final Map<Integer, Integer> slots;
+    private int slotCount;
+
+    public StackSlots(Function function, List<Integer> registers) {
+        this.slots = new HashMap<Integer, Integer>();
+
+        BitSet members = new BitSet();
+        for (int reg : registers) {
+            members.set(reg);
+        }
+        Map<Integer, BitSet> interference = interference(function, members);
+
+        for (int reg : registers) {
+            BitSet taken = new BitSet();
+            BitSet neighbours = interference.get(reg);
+            for (int other = neighbours.nextSetBit(0); other >= 0;
+                     other = neighbours.nextSetBit(other + 1)) {
+                Integer slot = slots.get(other);
+                if (slot != null) {
+                    taken.set(slot);
+                }
+            }
+            int slot = taken.nextClearBit(0);
+            slots.put(reg, slot);
+            slotCount = Math.max(slotCount, slot + 1);
+        }
+    }
+
+    /*
+     * Slot (0, 1, ...) of one of the registers.
+     */
+    public int getSlot(int reg) {
+        return slots.get(reg);
+    }
+
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    private static Map<Integer, BitSet> interference(Function function,
+                                                     BitSet members) {
+        Map<Integer, BitSet> rv = new HashMap<Integer, BitSet>();
+        for (int reg = members.nextSetBit(0); reg >= 0;
+                 reg = members.nextSetBit(reg + 1)) {
+            rv.put(reg, new BitSet());
+        }
+
+        Liveness liveness = new Liveness(function);
+        for (BasicBlock block : function.getBlocks()) {
+            BitSet live = (BitSet) liveness.getLiveOut(block).clone();
+            List<Instruction> instructions = block.getInstructions();
+            for (int i = instructions.size() - 1; i >= 0; --i) {
+                Instruction instr = instructions.get(i);
+                int def = instr.def();
+                if (def >= 0) {
+                    live.clear(def);
+                    if (members.get(def)) {
+                        BitSet others = (BitSet) live.clone();
+                        others.and(members);
+                        if (instr.op == Opcode.MOVE) {
+                            others.clear(instr.a);
+                        }
+                        interfere(rv, def, others);
+                    }
+                }
+                for (int reg : instr.uses()) {
+                    live.set(reg);
+                }
+            }
+        }
+
+        BitSet entry = (BitSet) liveness.getLiveIn(function.getEntry()).clone();
+        entry.and(members);
+        for (int reg = entry.nextSetBit(0); reg >= 0;
+                 reg = entry.nextSetBit(reg + 1)) {
+            interfere(rv, reg, entry);
+        }
+        return rv;
+    }
+
+    private static void interfere(Map<Integer, BitSet> graph, int reg,
+                                  BitSet others) {
+        for (int other = others.nextSetBit(0); other >= 0;
+                 other = others.nextSetBit(other + 1)) {
+            if (other != reg) {
+                graph.get(reg).set(other);
+                graph.get(other).set(reg);
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package IR;
+
+import java.util.*;
+
+/*
+ * Strength reduction on a Function in SSA form.
+ *
+ *      A basic induction variable is a loop header phi that enters the loop
+ *      with some value and comes back around every back edge as itself
+ *      plus or minus a constant:
+ *
+ *          i := phi(P: i0, L: i')        i' := i + step
+ *
+ *      A product i * k inside the loop is then replaced by a new induction
+ *      variable that starts at i0 * k in the preheader and is bumped by
+ *      step * k right after i' is computed, so the loop adds where it
+ *      used to multiply (two's complement makes both wrap the same way).
+ *      Factors the backend already turns into a shift and/or a leal are
+ *      left alone, since an extra induction variable costs a register.
+ *
+ *      Independently, an array index of the form x + k or x - k is folded
+ *      into the element access (ALOAD/ASTORE/CHECK imm), where the x86 address
+ *      mode adds it for free; a[j - 1] next to a[j] then costs no
+ *      subtraction.
+ */
+public final class StrengthReduction {
+    private final Function function;
+    private final Map<Integer, Instruction> definitions;
+    private final Map<Instruction, BasicBlock> blockOf;
+
+    private int reduced;
+    private int folded;
+
+    public StrengthReduction(Function function) {
+        this.function = function;
+        this.definitions = new HashMap<Integer, Instruction>();
+        this.blockOf = new HashMap<Instruction, BasicBlock>();
+    }
+
+    /*
+     * Multiplications replaced by an induction variable.
+     */
+    public int getReducedCount() {
+        return reduced;
+    }
+
+    /*
+     * Array accesses whose index offset moved into the address.
+     */
+    public int getFoldedIndexCount() {
+        return folded;
+    }
+
+    public void run() {
+        function.computePredecessors();
+        List<Loop> loops = Loop.find(function, new Dominators(function));
+        for (Loop loop : loops) {
+            if (loop.getPreheader(function) != null) {
+                index();
+                reduce(loop);
+            }
+        }
+        index();
+        foldIndices();
+    }
+
+    private void index() {
+        definitions.clear();
+        blockOf.clear();
+        for (BasicBlock block : function.getBlocks()) {
+            for (Instruction instr : block.getInstructions()) {
+                blockOf.put(instr, block);
+                if (instr.def() >= 0) {
+                    definitions.put(instr.def(), instr);
+                }
+            }
+        }
+    }
+
+    /*
+     * The step of a basic induction variable, or null if phi is not one.
+     */
+    private Integer step(Loop loop, BasicBlock preheader, Instruction phi) {
+        int next = -1;
+        for (int i = 0; i < phi.args.length; ++i) {
+            if (phi.from[i] == preheader) {
+                continue;
+            }
+            if (next >= 0 && phi.args[i] != next) {
+                return null;
+            }
+            next = phi.args[i];
+        }
+        Instruction update = next < 0 ? null : definitions.get(next);
+        if (update == null || !update.bImm || update.a != phi.dst ||
+                !loop.contains(blockOf.get(update))) {
+            return null;
+        }
+        if (update.op == Opcode.ADD) {
+            return update.imm;
+        }
+        if (update.op == Opcode.SUB) {
+            return -update.imm;
+        }
+        return null;
+    }
+
+    private void reduce(Loop loop) {
+        BasicBlock header = loop.getHeader();
+        BasicBlock preheader = loop.getPreheader(function);
+
+        List<Instruction> phis = new ArrayList<Instruction>();
+        for (Instruction instr : header.getInstructions()) {
+            if (instr.op == Opcode.PHI) {
+                phis.add(instr);
+            }
+        }
+
+        for (Instruction phi : phis) {
+            Integer step = step(loop, preheader, phi);
+            if (step == null) {
+                continue;
+            }
+            int initial = -1;
+            int next = -1;
+            for (int i = 0; i < phi.args.length; ++i) {
+                if (phi.from[i] == preheader) {
+                    initial = phi.args[i];
+                } else {
+                    next = phi.args[i];
+                }
+            }
+            Instruction update = definitions.get(next);
+
+            for (BasicBlock block : loop.getBlocks()) {
+                List<Instruction> instructions = block.getInstructions();
+                for (int k = 0; k < instructions.size(); ++k) {
+                    Instruction mul = instructions.get(k);
+                    if (mul.op != Opcode.MUL || !mul.bImm || mul.a != phi.dst ||
+                            isCheap(mul.imm)) {
+                        continue;
+                    }
+                    replace(mul, newVariable(loop, preheader, phi, initial,
+                                             update, step * mul.imm, mul.imm));
+                    instructions.remove(k--);
+                    ++reduced;
+                }
+            }
+        }
+    }
+
+    /*
+     * Creates v := phi(P: initial * factor, L: v') with v' := v + increment
+     *      placed right after update, and returns v.
+     */
+    private int newVariable(Loop loop, BasicBlock preheader, Instruction phi,
+                            int initial, Instruction update,
+                            int increment, int factor) {
+        int start = function.newRegister(null, ValueType.INT, null);
+        int value = function.newRegister(null, ValueType.INT, null);
+        int next = function.newRegister(null, ValueType.INT, null);
+
+        List<Instruction> pre = preheader.getInstructions();
+        Instruction first = definitions.get(initial);
+        pre.add(pre.size() - 1, first != null && first.op == Opcode.CONST
+                                ? Instruction.constant(start, first.imm * factor)
+                                : Instruction.binaryImm(Opcode.MUL, start, initial, factor));
+
+        int[] args = new int[phi.args.length];
+        for (int i = 0; i < args.length; ++i) {
+            args[i] = phi.from[i] == preheader ? start : next;
+        }
+        loop.getHeader().getInstructions().add(0,
+            Instruction.phi(value, args, phi.from.clone()));
+
+        List<Instruction> body = blockOf.get(update).getInstructions();
+        Instruction bump = Instruction.binaryImm(Opcode.ADD, next, value, increment);
+        body.add(body.indexOf(update) + 1, bump);
+        blockOf.put(bump, blockOf.get(update));
+        return value;
+    }
+
+    /*
+     * 0, +-1, and powers of two times 1, 3, 5 or 9; see
+     *      CodeGenerator.Multiplication.
+     */
+    private static boolean isCheap(int factor) {
+        for (int odd = 1; odd <= 9; odd += 2) {
+            if (odd == 7 || factor % odd != 0) {
+                continue;
+            }
+            int rest = factor / odd;
+            if (rest > 0 && (rest & (rest - 1)) == 0) {
+                return true;
+            }
+        }
+        return factor >= -1 && factor <= 1;
+    }
+
+    private void replace(Instruction instr, int value) {
+        for (BasicBlock block : function.getBlocks()) {
+            for (Instruction user : block.getInstructions()) {
+                user.replaceUse(instr.dst, value);
+            }
+        }
+    }
+
+    private void foldIndices() {
+        for (BasicBlock block : function.getBlocks()) {
+            for (Instruction instr : block.getInstructions()) {
+                if (instr.op != Opcode.ALOAD && instr.op != Opcode.ASTORE &&
+                        instr.op != Opcode.CHECK) {
+                    continue;
+                }
+                Instruction def = definitions.get(instr.b);
+                boolean changed = false;
+                while (def != null && def.bImm &&
+                           (def.op == Opcode.ADD || def.op == Opcode.SUB)) {
+                    instr.b = def.a;
+                    instr.imm += def.op == Opcode.ADD ? def.imm : -def.imm;
+                    def = definitions.get(instr.b);
+                    changed = true;
+                }
+                if (changed) {
+                    ++folded;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package IR;
+
+import java.util.*;
+
+import Layout.*;
+
+/*
+ * Turns self-recursive tail calls into jumps back to the start of the
+ *      method, before SSA construction. A call is a tail call when the
+ *      only thing between it and a RETURN is copying its result (and
+ *      computations whose results are dropped); the parameters and the
+ *      receiver register are then reassigned, as a parallel copy, from
+ *      the call's operands and the frame is reused instead of pushing a
+ *      new one.
+ *
+ *      The receiver does not have to be `this`, as long as the class
+ *      hierarchy sends the call to this very method.
+ *
+ *      Accumulator-style recursion, `return n * this.f(n - 1)`, is handled
+ *      too: when the result is combined by additions only, or by
+ *      multiplications only, with values known before the call, the
+ *      method gets an accumulator register that starts at 0 (or 1) and
+ *      takes those operands on every jump, and every remaining RETURN
+ *      returns the accumulator combined with its value. Both operations
+ *      are associative and commutative in two's complement, so the order
+ *      does not matter.
+ */
+public final class TailRecursion {
+    private final ProgramLayout layout;
+    private final Function function;
+
+    private int accumulator;
+    private int kind;
+    private int transformed;
+
+    public TailRecursion(ProgramLayout layout, Function function) {
+        this.layout = layout;
+        this.function = function;
+        this.accumulator = -1;
+        this.kind = -1;
+    }
+
+    /*
+     * Tail calls replaced by a jump.
+     */
+    public int getTransformedCount() {
+        return transformed;
+    }
+
+    /*
+     * Whether the calls were combined through an accumulator.
+     */
+    public boolean usesAccumulator() {
+        return accumulator >= 0;
+    }
+
+    /*
+     * A tail call and what the caller does to its result on the way to
+     *      RETURN: operands[i] (a register, or immediates[i] when it is
+     *      -1) combined by kind.
+     */
+    private static final class Site {
+        final BasicBlock block;
+        final Instruction call;
+        final List<Integer> operands = new ArrayList<Integer>();
+        final List<Integer> immediates = new ArrayList<Integer>();
+        int kind = -1;
+
+        Site(BasicBlock block, Instruction call) {
+            this.block = block;
+            this.call = call;
+        }
+    }
+
+    public void run() {
+        if (function.isMain()) {
+            return;
+        }
+        BasicBlock entry = function.getEntry();
+        int thisRegister = -1;
+        int[] parameters = new int[function.getParameterCount()];
+        Arrays.fill(parameters, -1);
+        for (Instruction instr : entry.getInstructions()) {
+            if (instr.op == Opcode.THIS) {
+                thisRegister = instr.dst;
+            } else if (instr.op == Opcode.PARAM) {
+                parameters[instr.imm] = instr.dst;
+            }
+        }
+        if (thisRegister < 0) {
+            return;
+        }
+        for (int reg : parameters) {
+            if (reg < 0) {
+                return;
+            }
+        }
+
+        List<Site> sites = new ArrayList<Site>();
+        for (BasicBlock block : function.getBlocks()) {
+            for (Instruction instr : block.getInstructions()) {
+                if (instr.op == Opcode.CALL && isSelf(instr)) {
+                    Site site = follow(block, instr);
+                    if (site != null && (site.kind < 0 || kind < 0 ||
+                                         site.kind == kind)) {
+                        if (site.kind >= 0) {
+                            kind = site.kind;
+                        }
+                        sites.add(site);
+                    }
+                }
+            }
+        }
+        if (sites.isEmpty()) {
+            return;
+        }
+
+        // the entry keeps THIS and PARAM and falls into the loop header,
+        //      which is the rest of the old entry block
+        BasicBlock start = function.newBlock();
+        List<Instruction> instructions = entry.getInstructions();
+        for (int i = 0; i < instructions.size(); ++i) {
+            Instruction instr = instructions.get(i);
+            if (instr.op == Opcode.THIS || instr.op == Opcode.PARAM) {
+                start.getInstructions().add(instr);
+                instructions.remove(i--);
+            }
+        }
+        if (kind >= 0) {
+            accumulator = function.newRegister(null, ValueType.INT, null);
+            start.getInstructions().add(
+                Instruction.constant(accumulator, kind == Opcode.ADD ? 0 : 1));
+        }
+        start.getInstructions().add(Instruction.jump(entry));
+        function.getBlocks().add(0, start);
+
+        for (Site site : sites) {
+            replace(site, entry, thisRegister, parameters);
+            ++transformed;
+        }
+        if (accumulator >= 0) {
+            combineReturns();
+        }
+        function.computePredecessors();
+    }
+
+    private boolean isSelf(Instruction call) {
+        String implementor = layout.getHierarchy()
+                                   .getUniqueImplementor(call.sym, call.method);
+        return implementor != null &&
+               (implementor + "$" + call.method).equals(function.getLabel());
+    }
+
+    /*
+     * The path from call to the RETURN of its result, or null if the call
+     *      is not in tail position.
+     */
+    private Site follow(BasicBlock block, Instruction call) {
+        Site site = new Site(block, call);
+        int result = call.dst;
+        Set<Integer> defined = new HashSet<Integer>();
+        Set<BasicBlock> visited = new HashSet<BasicBlock>();
+        List<Instruction> instructions = block.getInstructions();
+        int i = instructions.indexOf(call) + 1;
+        while (true) {
+            if (i >= instructions.size()) {
+                return null;
+            }
+            Instruction instr = instructions.get(i++);
+            switch (instr.op) {
+            case Opcode.JUMP:
+                if (!visited.add(instr.target)) {
+                    return null;
+                }
+                instructions = instr.target.getInstructions();
+                i = 0;
+                continue;
+            case Opcode.RETURN:
+                return instr.a == result ? site : null;
+            case Opcode.MOVE:
+                if (instr.a == result) {
+                    result = instr.dst;
+                }
+                break;
+            case Opcode.ADD:
+            case Opcode.MUL: {
+                boolean left = instr.a == result;
+                boolean right = !instr.bImm && instr.b == result;
+                if (left && right) {
+                    return null;
+                }
+                if (left || right) {
+                    int operand = instr.bImm ? -1 : left ? instr.b : instr.a;
+                    if (defined.contains(operand) ||
+                            (site.kind >= 0 && site.kind != instr.op)) {
+                        return null;
+                    }
+                    site.kind = instr.op;
+                    site.operands.add(operand);
+                    site.immediates.add(instr.imm);
+                    result = instr.dst;
+                }
+                break;
+            }
+            case Opcode.CONST:
+            case Opcode.SUB:
+            case Opcode.NOT:
+            case Opcode.CMP:
+                for (int use : instr.uses()) {
+                    if (use == result) {
+                        return null;
+                    }
+                }
+                break;
+            default:
+                return null;
+            }
+            defined.add(instr.dst);
+        }
+    }
+
+    private void replace(Site site, BasicBlock header, int thisRegister,
+                         int[] parameters) {
+        List<Instruction> instructions = site.block.getInstructions();
+        int k = instructions.indexOf(site.call);
+        instructions.subList(k, instructions.size()).clear();
+
+        for (int i = 0; i < site.operands.size(); ++i) {
+            int operand = site.operands.get(i);
+            instructions.add(operand < 0
+                ? Instruction.binaryImm(kind, accumulator, accumulator,
+                                        site.immediates.get(i))
+                : Instruction.binary(kind, accumulator, accumulator, operand));
+        }
+
+        // parallel copy: read every operand before writing any target
+        int[] targets = new int[parameters.length + 1];
+        int[] sources = new int[parameters.length + 1];
+        targets[0] = thisRegister;
+        sources[0] = site.call.a;
+        for (int i = 0; i < parameters.length; ++i) {
+            targets[i + 1] = parameters[i];
+            sources[i + 1] = site.call.args[i];
+        }
+        int[] temporaries = new int[targets.length];
+        for (int i = 0; i < targets.length; ++i) {
+            if (sources[i] == targets[i]) {
+                continue;
+            }
+            temporaries[i] = function.newRegister(null,
+                                                  function.getRegisterType(targets[i]),
+                                                  function.getRegisterClass(targets[i]));
+            instructions.add(Instruction.unary(Opcode.MOVE, temporaries[i], sources[i]));
+        }
+        for (int i = 0; i < targets.length; ++i) {
+            if (sources[i] != targets[i]) {
+                instructions.add(Instruction.unary(Opcode.MOVE, targets[i],
+                                                   temporaries[i]));
+            }
+        }
+        instructions.add(Instruction.jump(header));
+    }
+
+    private void combineReturns() {
+        for (BasicBlock block : function.getBlocks()) {
+            List<Instruction> instructions = block.getInstructions();
+            Instruction last = block.getTerminator();
+            if (last == null || last.op != Opcode.RETURN) {
+                continue;
+            }
+            int value = function.newRegister(null, ValueType.INT, null);
+            instructions.add(instructions.size() - 1,
+                             Instruction.binary(kind, value, accumulator, last.a));
+            last.a = value;
+        }
+    }
+}
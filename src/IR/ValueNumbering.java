@@ -0,0 +1,278 @@
+package IR;
+
+import java.util.*;
+
+/*
+ * Dominator-based global value numbering on a Function in SSA form. The
+ *      dominator tree is walked with a scoped table from expressions to
+ *      the register that first computed them; a later instruction
+ *      computing the same expression is deleted and its uses read that
+ *      register instead. Copies are propagated the same way, and a phi
+ *      whose arguments are all one register is replaced by it.
+ *
+ *      Arithmetic, comparisons, array lengths and bounds checks depend
+ *      only on their operands. Field loads ([a + k]) and array loads
+ *      (a[i]) also depend on memory, so they are forgotten again when
+ *      memory may change:
+ *
+ *          STORE [a + k]   forgets the loads at offset k
+ *          ASTORE          forgets every array load
+ *          CALL            forgets every field and array load
+ *
+ *      and the value just stored is remembered as the result of loading it
+ *      back. Crossing into a block of the dominator tree the same rules
+ *      are applied for every store and call on the paths that reach the
+ *      block from its immediate dominator.
+ */
+public final class ValueNumbering {
+    private final Function function;
+    private final Dominators dominators;
+    private final Map<String, Integer> table;
+    private final Deque<Object[]> undo;
+    private final int[] replacement;
+
+    private int eliminated;
+    private int eliminatedLoads;
+    private int copies;
+
+    public ValueNumbering(Function function) {
+        this.function = function;
+        function.computePredecessors();
+        this.dominators = new Dominators(function);
+        this.table = new HashMap<String, Integer>();
+        this.undo = new ArrayDeque<Object[]>();
+        this.replacement = new int[function.getRegisterCount()];
+        for (int r = 0; r < replacement.length; ++r) {
+            replacement[r] = r;
+        }
+    }
+
+    /*
+     * Copies and single-valued phis removed.
+     */
+    public int getCopyCount() {
+        return copies;
+    }
+
+    /*
+     * Redundant computations removed, loads included.
+     */
+    public int getEliminatedCount() {
+        return eliminated;
+    }
+
+    /*
+     * Field, array and length loads removed.
+     */
+    public int getEliminatedLoadCount() {
+        return eliminatedLoads;
+    }
+
+    public void run() {
+        visit(function.getEntry());
+        for (BasicBlock block : function.getBlocks()) {
+            for (Instruction instr : block.getInstructions()) {
+                for (int use : instr.uses()) {
+                    instr.replaceUse(use, find(use));
+                }
+            }
+        }
+    }
+
+    private int find(int reg) {
+        while (replacement[reg] != reg) {
+            reg = replacement[reg];
+        }
+        return reg;
+    }
+
+    private void put(String key, int reg) {
+        undo.push(new Object[] { key, table.put(key, reg) });
+    }
+
+    private void forget(String key) {
+        if (table.containsKey(key)) {
+            undo.push(new Object[] { key, table.remove(key) });
+        }
+    }
+
+    /*
+     * Forgets the loads a store or call may have changed; for a field
+     *      store only those at the same offset.
+     */
+    private void clobber(Instruction instr) {
+        List<String> keys = new ArrayList<String>();
+        for (String key : table.keySet()) {
+            boolean field = key.startsWith("load ");
+            boolean array = key.startsWith("aload ");
+            if ((instr.op == Opcode.CALL && (field || array)) ||
+                    (instr.op == Opcode.ASTORE && array) ||
+                    (instr.op == Opcode.STORE && field &&
+                     key.endsWith(" " + instr.imm))) {
+                keys.add(key);
+            }
+        }
+        for (String key : keys) {
+            forget(key);
+        }
+    }
+
+    /*
+     * Applies the stores and calls of every block that can run between
+     *      leaving the immediate dominator and entering block.
+     */
+    private void clobberPaths(BasicBlock block, BasicBlock idom) {
+        Set<BasicBlock> seen = new HashSet<BasicBlock>();
+        Deque<BasicBlock> work = new ArrayDeque<BasicBlock>();
+        for (BasicBlock pred : block.getPredecessors()) {
+            if (pred != idom && seen.add(pred)) {
+                work.push(pred);
+            }
+        }
+        while (!work.isEmpty()) {
+            BasicBlock b = work.pop();
+            for (Instruction instr : b.getInstructions()) {
+                if (instr.op == Opcode.CALL || instr.op == Opcode.STORE ||
+                        instr.op == Opcode.ASTORE) {
+                    clobber(instr);
+                }
+            }
+            for (BasicBlock pred : b.getPredecessors()) {
+                if (pred != idom && seen.add(pred)) {
+                    work.push(pred);
+                }
+            }
+        }
+    }
+
+    private static String key(Instruction instr, int a, int b) {
+        String second = instr.bImm ? "#" + instr.imm : "t" + b;
+        switch (instr.op) {
+        case Opcode.ADD:
+        case Opcode.MUL:
+            if (!instr.bImm && b < a) {
+                return Opcode.name(instr.op) + " t" + b + " t" + a;
+            }
+            return Opcode.name(instr.op) + " t" + a + " " + second;
+        case Opcode.SUB:
+            return "sub t" + a + " " + second;
+        case Opcode.CMP:
+            return "cmp" + instr.cond + " t" + a + " " + second;
+        case Opcode.NOT:
+            return "not t" + a;
+        case Opcode.LENGTH:
+            return "length t" + a;
+        case Opcode.LOAD:
+            return "load t" + a + " " + instr.imm;
+        case Opcode.ALOAD:
+            return "aload t" + a + " t" + b + " " + instr.imm;
+        default:
+            return null;
+        }
+    }
+
+    private void visit(BasicBlock block) {
+        int mark = undo.size();
+        BasicBlock idom = dominators.getImmediateDominator(block);
+        if (idom != null) {
+            clobberPaths(block, idom);
+        }
+
+        List<Instruction> instructions = block.getInstructions();
+        for (Iterator<Instruction> it = instructions.iterator(); it.hasNext(); ) {
+            Instruction instr = it.next();
+            if (instr.op == Opcode.PHI) {
+                if (redundantPhi(instr)) {
+                    it.remove();
+                    ++copies;
+                }
+                continue;
+            }
+
+            int a = instr.a < 0 ? -1 : find(instr.a);
+            int b = instr.b < 0 || instr.bImm ? instr.b : find(instr.b);
+
+            if (instr.op == Opcode.MOVE) {
+                replacement[instr.dst] = a;
+                it.remove();
+                ++copies;
+                continue;
+            }
+
+            if (instr.op == Opcode.CALL || instr.op == Opcode.ASTORE ||
+                    instr.op == Opcode.STORE) {
+                clobber(instr);
+                if (instr.op == Opcode.STORE) {
+                    put("load t" + a + " " + instr.imm, find(instr.b));
+                } else if (instr.op == Opcode.ASTORE) {
+                    put("aload t" + a + " t" + b + " " + instr.imm, find(instr.c));
+                }
+                continue;
+            }
+
+            if (instr.op == Opcode.CHECK) {
+                // lengths never change, so one check covers the next
+                String check = "check t" + a + " t" + b + " " + instr.imm;
+                if (table.containsKey(check)) {
+                    it.remove();
+                    ++eliminated;
+                } else {
+                    put(check, -1);
+                }
+                continue;
+            }
+
+            String key = key(instr, a, b);
+            if (key == null) {
+                continue;
+            }
+            Integer known = table.get(key);
+            if (known != null) {
+                replacement[instr.dst] = known;
+                it.remove();
+                ++eliminated;
+                if (instr.op == Opcode.LOAD || instr.op == Opcode.ALOAD ||
+                        instr.op == Opcode.LENGTH) {
+                    ++eliminatedLoads;
+                }
+            } else {
+                put(key, instr.dst);
+            }
+        }
+
+        for (BasicBlock child : dominators.getChildren(block)) {
+            visit(child);
+        }
+
+        while (undo.size() > mark) {
+            Object[] entry = undo.pop();
+            if (entry[1] == null) {
+                table.remove(entry[0]);
+            } else {
+                table.put((String)entry[0], (Integer)entry[1]);
+            }
+        }
+    }
+
+    /*
+     * A phi that only ever sees one register (or itself) is that register.
+     */
+    private boolean redundantPhi(Instruction phi) {
+        int same = -1;
+        for (int arg : phi.args) {
+            int value = find(arg);
+            if (value == phi.dst || value == same) {
+                continue;
+            }
+            if (same >= 0) {
+                return false;
+            }
+            same = value;
+        }
+        if (same < 0) {
+            return false;
+        }
+        replacement[phi.dst] = same;
+        return true;
+    }
+}
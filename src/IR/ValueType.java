@@ -0,0 +1,41 @@
+package IR;
+
+import Semantic.*;
+
+/*
+ * Static type of a virtual register. Object registers also carry their
+ *      class name (Function.getRegisterClass).
+ */
+public final class ValueType {
+    public static final int INT = 0;
+    public static final int BOOLEAN = 1;
+    public static final int INT_ARRAY = 2;
+    public static final int OBJECT = 3;
+
+    private static final String[] NAMES = { "int", "boolean", "int[]", "object" };
+
+    private ValueType() { }
+
+    public static String name(int type) {
+        return NAMES[type];
+    }
+
+    /*
+     * Type of a declared variable, field or return value.
+     */
+    public static int of(Node declared) {
+        if (declared == null) {
+            return INT;
+        }
+        switch (declared.getType()) {
+        case BOOLEAN:
+            return BOOLEAN;
+        case INTARRAY:
+            return INT_ARRAY;
+        case CLASS:
+            return OBJECT;
+        default:
+            return INT;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package Layout;
+
+import java.util.*;
+
+/*
+ * Whole-program class hierarchy analysis. MiniJava has no dynamic
+ *      loading, so the subclasses TypeVisitor saw are all the subclasses
+ *      there will ever be: a call whose receiver is statically a Foo can
+ *      only reach the implementations found in Foo and its descendants.
+ *      When they are all the same, the call has exactly one target.
+ */
+public final class ClassHierarchy {
+    private final ProgramLayout layout;
+    private final Map<String, List<String>> children;
+    private final Map<String, String> targets;
+
+    ClassHierarchy(ProgramLayout layout) {
+        this.layout = layout;
+        this.children = new HashMap<String, List<String>>();
+        this.targets = new HashMap<String, String>();
+
+        for (String className : layout.getClassOrder()) {
+            children.put(className, new ArrayList<String>());
+            VTable parent = layout.getVTable(className).getParent();
+            if (parent != null) {
+                children.get(parent.getClassName()).add(className);
+            }
+        }
+    }
+
+    /*
+     * Direct subclasses, in declaration order.
+     */
+    public List<String> getSubclasses(String className) {
+        List<String> rv = children.get(className);
+        return rv == null ? Collections.<String>emptyList() : rv;
+    }
+
+    /*
+     * The class itself followed by every transitive subclass.
+     */
+    public List<String> getCone(String className) {
+        List<String> rv = new ArrayList<String>();
+        rv.add(className);
+        for (int i = 0; i < rv.size(); ++i) {
+            rv.addAll(getSubclasses(rv.get(i)));
+        }
+        return rv;
+    }
+
+    /*
+     * The class whose implementation every receiver of static type
+     *      className runs for methodName, or null if that depends on the
+     *      dynamic type (or the method does not exist).
+     */
+    public String getUniqueImplementor(String className, String methodName) {
+        String key = className + "$" + methodName;
+        if (targets.containsKey(key)) {
+            return targets.get(key);
+        }
+
+        String rv = null;
+        if (layout.getVTable(className) != null) {
+            for (String subclass : getCone(className)) {
+                VTable table = layout.getVTable(subclass);
+                int slot = table.getSlot(methodName);
+                if (slot < 0) {
+                    rv = null;
+                    break;
+                }
+                String implementor = table.getImplementor(slot);
+                if (rv != null && !rv.equals(implementor)) {
+                    rv = null;
+                    break;
+                }
+                rv = implementor;
+            }
+        }
+        targets.put(key, rv);
+        return rv;
+    }
+
+    public boolean isMonomorphic(String className, String methodName) {
+        return getUniqueImplementor(className, methodName) != null;
+    }
+}
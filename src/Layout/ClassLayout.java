@@ -0,0 +1,77 @@
+package Layout;
+
+import java.util.*;
+
+import Semantic.*;
+
+/*
+ * Field layout of a class. Inherited fields come first so that an
+ *      object of a subclass can be used wherever its parent is expected:
+ *
+ *          [0] vtable pointer
+ *          [1] Parent.a
+ *          [2] Parent.b
+ *          [3] Child.c
+ *
+ *      A field redeclared in the subclass gets a new slot and hides the
+ *      inherited one for code compiled inside the subclass.
+ */
+public final class ClassLayout {
+    private final String name;
+    private final ClassLayout parent;
+    private final Map<String, Slot> fields;
+    private final int fieldCount;
+
+    ClassLayout(ClassNode klass, ClassLayout parent) {
+        this.name = klass.getName();
+        this.parent = parent;
+
+        Map<String, Slot> rv = new HashMap<String, Slot>();
+        int position = 1; // 0 has the vtable pointer
+        if (parent != null) {
+            rv.putAll(parent.fields);
+            position += parent.fieldCount;
+        }
+
+        for (Map.Entry<String, Node> entry : klass.getMembers().entrySet()) {
+            if (!(entry.getValue() instanceof MethodNode)) {
+                rv.put(entry.getKey(), new Slot(entry.getKey(),
+                                                Slot.Kind.FIELD,
+                                                position,
+                                                Slot.WORD_SIZE * position,
+                                                entry.getValue()));
+                ++position;
+            }
+        }
+
+        this.fields = Collections.unmodifiableMap(rv);
+        this.fieldCount = position - 1;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public ClassLayout getParent() {
+        return parent;
+    }
+
+    public Slot getField(String fieldName) {
+        return fields.get(fieldName);
+    }
+
+    public Map<String, Slot> getFields() {
+        return fields;
+    }
+
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    /*
+     * Bytes to request from mjmalloc: vtable pointer plus every field.
+     */
+    public int getObjectSize() {
+        return Slot.WORD_SIZE * (1 + fieldCount);
+    }
+}
@@ -0,0 +1,132 @@
+package Layout;
+
+import java.util.*;
+
+import Semantic.*;
+
+/*
+ * Frame layout of a method, relative to %ebp:
+ *
+ *          ...
+ *          12(%ebp)   parameter
+ *           8(%ebp)   last parameter (pushed last by the caller)
+ *           4(%ebp)   return address
+ *           0(%ebp)   saved %ebp
+ *          -4(%ebp)   local 0 (locals sorted by name)
+ *          ...
+ *      -4*(n+1)(%ebp) saved %ecx (this)
+ *
+ *      This is the unshared layout; CodeGenerator folds locals whose
+ *      lifetimes never overlap into one word (IR.StackSlots), so its
+ *      frames can be smaller.
+ */
+public final class FrameLayout {
+    private final String className;
+    private final String methodName;
+    private final ClassLayout owner;
+    private final Map<String, Slot> parameters;
+    private final Map<String, Slot> locals;
+    private final List<Slot> parameterList;
+    private final List<Slot> localList;
+
+    FrameLayout(String className,
+                String methodName,
+                MethodNode method,
+                ClassLayout owner) {
+        this.className = className;
+        this.methodName = methodName;
+        this.owner = owner;
+
+        Map<Integer, String> positions = method.getParametersPositions();
+        List<Node> types = method.getParameters();
+        int parameterCount = types.size();
+
+        Map<String, Slot> params = new HashMap<String, Slot>();
+        Slot[] paramArray = new Slot[parameterCount];
+        for (int i = 0; i < parameterCount; ++i) {
+            String name = positions.get(i);
+            Slot slot = new Slot(name,
+                                 Slot.Kind.PARAMETER,
+                                 i,
+                                 Slot.WORD_SIZE * (1 + parameterCount - i),
+                                 types.get(i));
+            params.put(name, slot);
+            paramArray[i] = slot;
+        }
+
+        Map<String, Node> declared = method.getLocalVariables();
+        String[] names = declared.keySet().toArray(new String[0]);
+        Arrays.sort(names);
+
+        Map<String, Slot> vars = new HashMap<String, Slot>();
+        Slot[] localArray = new Slot[names.length];
+        for (int i = 0; i < names.length; ++i) {
+            Slot slot = new Slot(names[i],
+                                 Slot.Kind.LOCAL,
+                                 i,
+                                 -Slot.WORD_SIZE * (1 + i),
+                                 declared.get(names[i]));
+            vars.put(names[i], slot);
+            localArray[i] = slot;
+        }
+
+        this.parameters = Collections.unmodifiableMap(params);
+        this.locals = Collections.unmodifiableMap(vars);
+        this.parameterList =
+            Collections.unmodifiableList(Arrays.asList(paramArray));
+        this.localList =
+            Collections.unmodifiableList(Arrays.asList(localArray));
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    public ClassLayout getOwner() {
+        return owner;
+    }
+
+    public Map<String, Slot> getParameters() {
+        return parameters;
+    }
+
+    public Map<String, Slot> getLocals() {
+        return locals;
+    }
+
+    public List<Slot> getParameterList() {
+        return parameterList;
+    }
+
+    public List<Slot> getLocalList() {
+        return localList;
+    }
+
+    public int getParameterCount() {
+        return parameterList.size();
+    }
+
+    public int getLocalCount() {
+        return localList.size();
+    }
+
+    /*
+     * Resolves a name the same way the language scopes it: parameters,
+     *      then locals, then fields of the enclosing class (including the
+     *      inherited ones). Returns null for unknown names.
+     */
+    public Slot resolve(String name) {
+        Slot slot = parameters.get(name);
+        if (slot == null) {
+            slot = locals.get(name);
+        }
+        if (slot == null) {
+            slot = owner.getField(name);
+        }
+        return slot;
+    }
+}
@@ -0,0 +1,117 @@
+package Layout;
+
+import java.util.*;
+
+import AST.Visitor.TypeVisitor;
+import Semantic.*;
+
+/*
+ * Object layouts, dispatch tables and frame layouts for a whole program.
+ *      Everything is computed once, right after TypeVisitor, and never
+ *      changes afterwards, so the same instance can be shared by
+ *      IntermediateCode, CodeGenerator and any later pass.
+ */
+public final class ProgramLayout {
+    private final Map<String, ClassLayout> classes;
+    private final Map<String, VTable> vTables;
+    private final Map<String, FrameLayout> frames;
+    private final List<String> classOrder;
+    private final ClassHierarchy hierarchy;
+
+    public ProgramLayout(TypeVisitor declaredTypes) {
+        Map<String, ClassNode> declared = declaredTypes.getClasses();
+
+        Map<String, ClassLayout> classLayouts =
+            new HashMap<String, ClassLayout>();
+        Map<String, VTable> tables = new HashMap<String, VTable>();
+        List<String> order = new ArrayList<String>();
+        for (String className : declared.keySet()) {
+            layoutClass(className, declared, classLayouts, tables, order);
+        }
+
+        Map<String, FrameLayout> frameLayouts =
+            new HashMap<String, FrameLayout>();
+        for (Map.Entry<String, ClassNode> entry : declared.entrySet()) {
+            String className = entry.getKey();
+            ClassLayout owner = classLayouts.get(className);
+            for (Map.Entry<String, Node> member :
+                    entry.getValue().getMembers().entrySet()) {
+                if (member.getValue() instanceof MethodNode) {
+                    frameLayouts.put(key(className, member.getKey()),
+                                     new FrameLayout(className,
+                                                     member.getKey(),
+                                                     (MethodNode)member.getValue(),
+                                                     owner));
+                }
+            }
+        }
+
+        this.classes = Collections.unmodifiableMap(classLayouts);
+        this.vTables = Collections.unmodifiableMap(tables);
+        this.frames = Collections.unmodifiableMap(frameLayouts);
+        this.classOrder = Collections.unmodifiableList(order);
+        this.hierarchy = new ClassHierarchy(this);
+    }
+
+    /*
+     * Parents are laid out before their children; memoized so each class
+     *      is visited exactly once and every table is built by extending
+     *      its parent's copy.
+     */
+    private static void layoutClass(String className,
+                                    Map<String, ClassNode> declared,
+                                    Map<String, ClassLayout> classLayouts,
+                                    Map<String, VTable> tables,
+                                    List<String> order) {
+        if (classLayouts.containsKey(className)) {
+            return;
+        }
+
+        ClassNode klass = declared.get(className);
+        ClassLayout parentLayout = null;
+        VTable parentTable = null;
+        if (klass instanceof ClassWithParentNode) {
+            String parentName = ((ClassWithParentNode)klass).getParent();
+            if (declared.containsKey(parentName)) {
+                layoutClass(parentName, declared, classLayouts, tables, order);
+                parentLayout = classLayouts.get(parentName);
+                parentTable = tables.get(parentName);
+            }
+        }
+
+        classLayouts.put(className, new ClassLayout(klass, parentLayout));
+        tables.put(className, new VTable(klass, parentTable));
+        order.add(className);
+    }
+
+    private static String key(String className, String methodName) {
+        return className + "$" + methodName;
+    }
+
+    public ClassLayout getClassLayout(String className) {
+        return classes.get(className);
+    }
+
+    public FrameLayout getFrameLayout(String className, String methodName) {
+        return frames.get(key(className, methodName));
+    }
+
+    public Map<String, ClassLayout> getClassLayouts() {
+        return classes;
+    }
+
+    public VTable getVTable(String className) {
+        return vTables.get(className);
+    }
+
+    /*
+     * Every class, parents before children; ties keep TypeVisitor order.
+     */
+    public List<String> getClassOrder() {
+        return classOrder;
+    }
+
+    public ClassHierarchy getHierarchy() {
+        return hierarchy;
+    }
+}
@@ -0,0 +1,67 @@
+package Layout;
+
+import Semantic.Node;
+
+/*
+ * A single storage location known at compile time: a method parameter,
+ *      a local variable or an instance field. Slots are immutable and
+ *      shared by every pass that needs to address a name.
+ */
+public final class Slot {
+    public enum Kind { PARAMETER, LOCAL, FIELD }
+
+    public static final int WORD_SIZE = 4;
+
+    private final String name;
+    private final Kind kind;
+    private final int index;
+    private final int offset;
+    private final Node type;
+
+    Slot(String name, Kind kind, int index, int offset, Node type) {
+        this.name = name;
+        this.kind = kind;
+        this.index = index;
+        this.offset = offset;
+        this.type = type;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /*
+     * Parameters: source position. Locals: position in the frame.
+     *      Fields: word index inside the object (0 is the vtable pointer).
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /*
+     * Byte offset relative to %ebp (parameters and locals) or to the
+     *      object pointer (fields).
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    public Node getType() {
+        return type;
+    }
+
+    /*
+     * Class name for object typed slots, null otherwise.
+     */
+    public String getClassName() {
+        return type == null ? null : type.iam;
+    }
+
+    public String toString() {
+        return kind + " " + name + " @ " + offset;
+    }
+}
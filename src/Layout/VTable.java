@@ -0,0 +1,124 @@
+package Layout;
+
+import java.util.*;
+
+import Semantic.*;
+
+/*
+ * Dispatch table of a class. Slot 0 points to the parent's table, slots
+ *      1..n hold the method implementations. The parent's slots always
+ *      come first and keep their numbers, overriding only replaces the
+ *      entry, and new methods are appended in declaration order:
+ *
+ *          Foo$$:
+ *              .long 0                 [slot 0]
+ *              .long Foo$MethodA       [slot 1]
+ *              .long Foo$MethodB       [slot 2]
+ *          Bar$$:
+ *              .long Foo$$             [slot 0]
+ *              .long Foo$MethodA       [slot 1]
+ *              .long Bar$MethodB       [slot 2]
+ *              .long Bar$MethodC       [slot 3]
+ */
+public final class VTable {
+    private final String className;
+    private final VTable parent;
+    private final Map<String, Integer> slots;
+    private final String[] methodNames;
+    private final String[] implementors;
+    private final MethodNode[] methods;
+
+    VTable(ClassNode klass, VTable parent) {
+        this.className = klass.getName();
+        this.parent = parent;
+
+        int inherited = parent == null ? 0 : parent.methodNames.length;
+        int declared = 0;
+        for (Node member : klass.getMembers().values()) {
+            if (member instanceof MethodNode) {
+                ++declared;
+            }
+        }
+
+        Map<String, Integer> rv = new HashMap<String, Integer>();
+        String[] names = new String[inherited + declared];
+        String[] owners = new String[inherited + declared];
+        MethodNode[] nodes = new MethodNode[inherited + declared];
+        if (parent != null) {
+            rv.putAll(parent.slots);
+            System.arraycopy(parent.methodNames, 0, names, 0, inherited);
+            System.arraycopy(parent.implementors, 0, owners, 0, inherited);
+            System.arraycopy(parent.methods, 0, nodes, 0, inherited);
+        }
+
+        int size = inherited;
+        for (Map.Entry<String, Node> entry : klass.getMembers().entrySet()) {
+            if (!(entry.getValue() instanceof MethodNode)) {
+                continue;
+            }
+
+            Integer slot = rv.get(entry.getKey());
+            int index;
+            if (slot != null) {
+                index = slot - 1;
+            } else {
+                index = size++;
+                rv.put(entry.getKey(), index + 1);
+                names[index] = entry.getKey();
+            }
+            owners[index] = className;
+            nodes[index] = (MethodNode)entry.getValue();
+        }
+
+        this.slots = Collections.unmodifiableMap(rv);
+        this.methodNames = Arrays.copyOf(names, size);
+        this.implementors = Arrays.copyOf(owners, size);
+        this.methods = Arrays.copyOf(nodes, size);
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public VTable getParent() {
+        return parent;
+    }
+
+    public String getLabel() {
+        return className + "$$";
+    }
+
+    /*
+     * Number of method slots, not counting the parent pointer.
+     */
+    public int getMethodCount() {
+        return methodNames.length;
+    }
+
+    /*
+     * Slot of a method visible in this class, or -1.
+     */
+    public int getSlot(String methodName) {
+        Integer slot = slots.get(methodName);
+        return slot == null ? -1 : slot;
+    }
+
+    public String getMethodName(int slot) {
+        return methodNames[slot - 1];
+    }
+
+    /*
+     * Class whose body runs when the slot is dispatched on this class.
+     */
+    public String getImplementor(int slot) {
+        return implementors[slot - 1];
+    }
+
+    public String getEntry(int slot) {
+        return implementors[slot - 1] + "$" + methodNames[slot - 1];
+    }
+
+    public MethodNode getMethod(int slot) {
+        return methods[slot - 1];
+    }
+}
@@ -0,0 +1,700 @@
+package ObjectFile;
+
+import java.util.*;
+
+/*
+ * Encodes the 32-bit AT&T assembly the code generators emit straight
+ *      into machine code, so no external assembler is needed. It knows
+ *      the instructions CodeGenerator, OptimizingCodeGenerator and the
+ *      peephole pass produce (mov, push/pop, the add/sub/cmp family,
+ *      imul, shifts, lea, jumps, calls, setcc, movzbl, ...), the .text,
+ *      .data, .global, .long and .p2align directives, labels and
+ *      comments. Anything else is rejected with the offending line.
+ *
+ *      Jumps start out in their two-byte form and are widened to rel32
+ *      until every displacement fits, as GNU as does. Other instructions
+ *      get the encoding as picks too (imm8 forms, the short %eax forms of
+ *      the arithmetic group and test), and a section is aligned to its
+ *      largest .p2align, so objdump shows the same code for both objects.
+ *
+ *      A jump or call to a label of the same section is resolved here;
+ *      everything else (calls to put and mjmalloc, vtable addresses, ...)
+ *      becomes a relocation. Local labels are relocated against their
+ *      section, with the label's offset as the addend, and kept as local
+ *      symbols so that objdump still shows them.
+ */
+public final class Assembler {
+    private static final String[] REGISTERS = {
+        "eax", "ecx", "edx", "ebx", "esp", "ebp", "esi", "edi"
+    };
+    private static final String[] BYTE_REGISTERS = {
+        "al", "cl", "dl", "bl", "ah", "ch", "dh", "bh"
+    };
+    private static final int ESP = 4;
+    private static final int EBP = 5;
+
+    private static final Map<String, Integer> CONDITIONS = new HashMap<String, Integer>();
+    static {
+        String[][] names = {
+            { "o" }, { "no" }, { "b", "c", "nae" }, { "ae", "nb", "nc" },
+            { "e", "z" }, { "ne", "nz" }, { "be", "na" }, { "a", "nbe" },
+            { "s" }, { "ns" }, { "p", "pe" }, { "np", "po" },
+            { "l", "nge" }, { "ge", "nl" }, { "le", "ng" }, { "g", "nle" }
+        };
+        for (int code = 0; code < names.length; ++code) {
+            for (String name : names[code]) {
+                CONDITIONS.put(name, code);
+            }
+        }
+    }
+
+    // the add/or/adc/sbb/and/sub/xor/cmp group, by its /digit
+    private static final List<String> ARITHMETIC =
+        Arrays.asList("add", "or", "adc", "sbb", "and", "sub", "xor", "cmp");
+    // mnemonics that may carry an l suffix
+    private static final Set<String> SUFFIXED = new HashSet<String>(Arrays.asList(
+        "mov", "add", "or", "adc", "sbb", "and", "sub", "xor", "cmp", "test",
+        "lea", "imul", "idiv", "shl", "sal", "shr", "sar", "neg", "not",
+        "inc", "dec", "push", "pop"));
+
+    private static final class Operand {
+        static final int REGISTER = 0;
+        static final int IMMEDIATE = 1;
+        static final int MEMORY = 2;
+
+        int kind;
+        int reg = -1;
+        boolean byteRegister;
+        // immediate value or displacement, plus an optional symbol
+        int value;
+        String symbol;
+        int base = -1;
+        int index = -1;
+        int scale = 1;
+        boolean indirect;
+
+        // a bare label: the target of a direct jump or call
+        boolean isLabel() {
+            return kind == MEMORY && symbol != null && value == 0 &&
+                   base < 0 && index < 0 && !indirect;
+        }
+    }
+
+    /*
+     * One line that produces bytes or defines a label.
+     */
+    private static final class Item {
+        final String line;
+        final int section;
+        String label;
+        String mnemonic;
+        List<Operand> operands;
+        // alignment of .p2align, or -1
+        int align = -1;
+        boolean longJump;
+        int offset;
+
+        Item(String line, int section) {
+            this.line = line;
+            this.section = section;
+        }
+    }
+
+    private final List<Section> sections;
+    private final Map<String, Integer> labels;
+    private final Map<String, Integer> labelSections;
+    private final Set<String> globals;
+    private final List<String> externals;
+    private int widened;
+
+    public Assembler() {
+        this.sections = new ArrayList<Section>();
+        this.sections.add(new Section(".text"));
+        this.sections.add(new Section(".data"));
+        this.labels = new LinkedHashMap<String, Integer>();
+        this.labelSections = new HashMap<String, Integer>();
+        this.globals = new LinkedHashSet<String>();
+        this.externals = new ArrayList<String>();
+    }
+
+    public List<Section> getSections() {
+        return sections;
+    }
+
+    /*
+     * Every label, in definition order, and its offset in its section.
+     */
+    public Map<String, Integer> getLabels() {
+        return labels;
+    }
+
+    /*
+     * Index into getSections() of the section a label is defined in.
+     */
+    public int getLabelSection(String label) {
+        return labelSections.get(label);
+    }
+
+    public boolean isGlobal(String label) {
+        return globals.contains(label);
+    }
+
+    /*
+     * Symbols used but not defined here, such as put and mjmalloc.
+     */
+    public List<String> getExternals() {
+        return externals;
+    }
+
+    /*
+     * Jumps that needed a 32-bit displacement.
+     */
+    public int getWidenedCount() {
+        return widened;
+    }
+
+    public void assemble(List<String> code) {
+        List<Item> items = parse(code);
+
+        // grow jumps until every short one reaches its target
+        boolean changed = true;
+        while (changed) {
+            layout(items);
+            changed = false;
+            for (Item item : items) {
+                if (item.mnemonic != null && isJump(item.mnemonic) &&
+                        !item.longJump && !fitsShort(item)) {
+                    item.longJump = true;
+                    changed = true;
+                }
+            }
+        }
+
+        for (Item item : items) {
+            if (item.label == null) {
+                encode(item, sections.get(item.section));
+            }
+        }
+        for (Item item : items) {
+            if (item.mnemonic != null && isJump(item.mnemonic) && item.longJump) {
+                ++widened;
+            }
+        }
+    }
+
+    private List<Item> parse(List<String> code) {
+        List<Item> items = new ArrayList<Item>();
+        int section = 0;
+        for (String raw : code) {
+            String line = raw;
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+            while (line.length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon < 0 || line.substring(0, colon).contains(" ")) {
+                    break;
+                }
+                Item item = new Item(raw, section);
+                item.label = line.substring(0, colon);
+                if (labelSections.put(item.label, section) != null) {
+                    throw new IllegalArgumentException("label defined twice: " + raw);
+                }
+                items.add(item);
+                line = line.substring(colon + 1).trim();
+            }
+            if (line.length() == 0) {
+                continue;
+            }
+
+            String mnemonic = line.split("\\s+", 2)[0];
+            String rest = line.substring(mnemonic.length()).trim();
+            if (mnemonic.equals(".text")) {
+                section = 0;
+            } else if (mnemonic.equals(".data")) {
+                section = 1;
+            } else if (mnemonic.equals(".global") || mnemonic.equals(".globl")) {
+                globals.add(rest);
+            } else if (mnemonic.equals(".p2align")) {
+                Item item = new Item(raw, section);
+                item.align = 1 << Integer.parseInt(rest.split(",")[0].trim());
+                items.add(item);
+            } else if (mnemonic.equals(".section")) {
+                // only the GNU-stack note, which the object file always has
+            } else {
+                Item item = new Item(raw, section);
+                item.mnemonic = normalize(mnemonic);
+                item.operands = new ArrayList<Operand>();
+                for (String operand : splitOperands(rest)) {
+                    item.operands.add(operand(operand, raw));
+                }
+                items.add(item);
+            }
+        }
+
+        for (Item item : items) {
+            if (item.operands == null) {
+                continue;
+            }
+            for (Operand operand : item.operands) {
+                if (operand.symbol != null && !labelSections.containsKey(operand.symbol) &&
+                        !externals.contains(operand.symbol)) {
+                    externals.add(operand.symbol);
+                }
+            }
+        }
+        return items;
+    }
+
+    private static String normalize(String mnemonic) {
+        if (mnemonic.length() > 2 && mnemonic.endsWith("l") &&
+                SUFFIXED.contains(mnemonic.substring(0, mnemonic.length() - 1))) {
+            return mnemonic.substring(0, mnemonic.length() - 1);
+        }
+        return mnemonic;
+    }
+
+    /*
+     * Splits on the commas outside parentheses.
+     */
+    private static List<String> splitOperands(String text) {
+        List<String> rv = new ArrayList<String>();
+        if (text.length() == 0) {
+            return rv;
+        }
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            if (c == '(') {
+                ++depth;
+            } else if (c == ')') {
+                --depth;
+            } else if (c == ',' && depth == 0) {
+                rv.add(text.substring(start, i).trim());
+                start = i + 1;
+            }
+        }
+        rv.add(text.substring(start).trim());
+        return rv;
+    }
+
+    private static Operand operand(String text, String line) {
+        Operand rv = new Operand();
+        if (text.startsWith("*")) {
+            rv.indirect = true;
+            text = text.substring(1);
+        }
+        if (text.startsWith("%")) {
+            rv.kind = Operand.REGISTER;
+            rv.reg = register(text, line);
+            rv.byteRegister = rv.reg < 0;
+            if (rv.byteRegister) {
+                rv.reg = Arrays.asList(BYTE_REGISTERS).indexOf(text.substring(1));
+            }
+            return rv;
+        }
+        if (text.startsWith("$")) {
+            rv.kind = Operand.IMMEDIATE;
+            value(rv, text.substring(1), line);
+            return rv;
+        }
+        rv.kind = Operand.MEMORY;
+        int paren = text.indexOf('(');
+        value(rv, paren < 0 ? text : text.substring(0, paren), line);
+        if (paren >= 0) {
+            String[] parts = text.substring(paren + 1, text.length() - 1).split(",", -1);
+            if (parts[0].trim().length() > 0) {
+                rv.base = register(parts[0].trim(), line);
+            }
+            if (parts.length > 1) {
+                rv.index = register(parts[1].trim(), line);
+            }
+            if (parts.length > 2) {
+                rv.scale = Integer.parseInt(parts[2].trim());
+            }
+        }
+        return rv;
+    }
+
+    /*
+     * Number of a 32-bit register, -1 for a byte register.
+     */
+    private static int register(String text, String line) {
+        String name = text.substring(1);
+        int rv = Arrays.asList(REGISTERS).indexOf(name);
+        if (rv < 0 && !Arrays.asList(BYTE_REGISTERS).contains(name)) {
+            throw new IllegalArgumentException("unknown register: " + line);
+        }
+        return rv;
+    }
+
+    private static void value(Operand operand, String text, String line) {
+        text = text.trim();
+        if (text.length() == 0) {
+            return;
+        }
+        try {
+            operand.value = (int) Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            if (!Character.isJavaIdentifierStart(text.charAt(0))) {
+                throw new IllegalArgumentException("cannot parse operand: " + line);
+            }
+            operand.symbol = text;
+        }
+    }
+
+    private static boolean isJump(String mnemonic) {
+        return mnemonic.equals("jmp") ||
+               (mnemonic.startsWith("j") && CONDITIONS.containsKey(mnemonic.substring(1)));
+    }
+
+    /*
+     * Gives every item its offset and every label its value, sizing each
+     *      instruction by encoding it into a scratch section.
+     */
+    private void layout(List<Item> items) {
+        int[] offsets = new int[sections.size()];
+        Section scratch = new Section("scratch");
+        for (Item item : items) {
+            item.offset = offsets[item.section];
+            if (item.label != null) {
+                labels.put(item.label, item.offset);
+            } else if (item.align > 0) {
+                offsets[item.section] += padding(item.offset, item.align);
+            } else {
+                int before = scratch.size();
+                encode(item, scratch);
+                offsets[item.section] += scratch.size() - before;
+            }
+        }
+    }
+
+    private static int padding(int offset, int align) {
+        return (align - offset % align) % align;
+    }
+
+    private boolean isLocalTarget(Item item, Operand target) {
+        Integer section = labelSections.get(target.symbol);
+        return target.isLabel() && section != null && section == item.section;
+    }
+
+    private boolean fitsShort(Item item) {
+        Operand target = item.operands.get(0);
+        if (!isLocalTarget(item, target)) {
+            return false;
+        }
+        int distance = labels.get(target.symbol) - (item.offset + 2);
+        return distance >= -128 && distance <= 127;
+    }
+
+    private void encode(Item item, Section out) {
+        if (item.align > 0) {
+            out.alignTo(item.align);
+            int pad = padding(out.size(), item.align);
+            for (int i = 0; i < pad; ++i) {
+                out.emit(item.section == 0 ? 0x90 : 0);
+            }
+            return;
+        }
+        String op = item.mnemonic;
+        List<Operand> ops = item.operands;
+        int count = ops.size();
+        Operand src = count > 0 ? ops.get(0) : null;
+        Operand dst = count > 1 ? ops.get(count - 1) : src;
+
+        if (op.equals(".long")) {
+            for (Operand word : ops) {
+                absolute(out, word);
+            }
+        } else if (op.equals("mov")) {
+            if (src.kind == Operand.IMMEDIATE && dst.kind == Operand.REGISTER) {
+                out.emit(0xB8 + dst.reg);
+                absolute(out, src);
+            } else if (src.kind == Operand.IMMEDIATE) {
+                out.emit(0xC7);
+                modrm(out, 0, dst);
+                absolute(out, src);
+            } else if (src.kind == Operand.REGISTER) {
+                out.emit(0x89);
+                modrm(out, src.reg, dst);
+            } else {
+                requireRegister(dst, item);
+                out.emit(0x8B);
+                modrm(out, dst.reg, src);
+            }
+        } else if (op.equals("movzbl")) {
+            requireRegister(dst, item);
+            out.emit(0x0F);
+            out.emit(0xB6);
+            modrm(out, dst.reg, src);
+        } else if (ARITHMETIC.contains(op)) {
+            int digit = ARITHMETIC.indexOf(op);
+            if (src.kind == Operand.IMMEDIATE && isEax(dst) &&
+                    !(src.symbol == null && fits8(src.value))) {
+                // the one-byte-shorter accumulator form, as GNU as picks
+                out.emit(8 * digit + 5);
+                absolute(out, src);
+            } else if (src.kind == Operand.IMMEDIATE) {
+                immediateGroup(out, 0x83, 0x81, digit, dst, src);
+            } else if (src.kind == Operand.REGISTER) {
+                out.emit(8 * digit + 1);
+                modrm(out, src.reg, dst);
+            } else {
+                requireRegister(dst, item);
+                out.emit(8 * digit + 3);
+                modrm(out, dst.reg, src);
+            }
+        } else if (op.equals("test")) {
+            if (src.kind == Operand.IMMEDIATE && isEax(dst)) {
+                out.emit(0xA9);
+                absolute(out, src);
+            } else if (src.kind == Operand.IMMEDIATE) {
+                out.emit(0xF7);
+                modrm(out, 0, dst);
+                absolute(out, src);
+            } else {
+                requireRegister(src, item);
+                out.emit(0x85);
+                modrm(out, src.reg, dst);
+            }
+        } else if (op.equals("lea")) {
+            requireRegister(dst, item);
+            out.emit(0x8D);
+            modrm(out, dst.reg, src);
+        } else if (op.equals("imul")) {
+            requireRegister(dst, item);
+            if (src.kind == Operand.IMMEDIATE) {
+                // imull $n, src, dst or imull $n, dst
+                Operand from = count == 3 ? ops.get(1) : dst;
+                boolean small = src.symbol == null && fits8(src.value);
+                out.emit(small ? 0x6B : 0x69);
+                modrm(out, dst.reg, from);
+                if (small) {
+                    out.emit(src.value);
+                } else {
+                    absolute(out, src);
+                }
+            } else {
+                out.emit(0x0F);
+                out.emit(0xAF);
+                modrm(out, dst.reg, src);
+            }
+        } else if (op.equals("shl") || op.equals("sal") || op.equals("shr") ||
+                   op.equals("sar")) {
+            int digit = op.equals("shr") ? 5 : op.equals("sar") ? 7 : 4;
+            if (count == 1) {
+                out.emit(0xD1);
+                modrm(out, digit, src);
+            } else if (src.kind == Operand.REGISTER) {
+                out.emit(0xD3);
+                modrm(out, digit, dst);
+            } else if (src.value == 1) {
+                out.emit(0xD1);
+                modrm(out, digit, dst);
+            } else {
+                out.emit(0xC1);
+                modrm(out, digit, dst);
+                out.emit(src.value);
+            }
+        } else if (op.equals("neg") || op.equals("not") || op.equals("idiv")) {
+            out.emit(0xF7);
+            modrm(out, op.equals("neg") ? 3 : op.equals("not") ? 2 : 7, src);
+        } else if (op.equals("inc") || op.equals("dec")) {
+            out.emit(0xFF);
+            modrm(out, op.equals("inc") ? 0 : 1, src);
+        } else if (op.equals("push")) {
+            if (src.kind == Operand.REGISTER) {
+                out.emit(0x50 + src.reg);
+            } else if (src.kind == Operand.IMMEDIATE) {
+                if (src.symbol == null && fits8(src.value)) {
+                    out.emit(0x6A);
+                    out.emit(src.value);
+                } else {
+                    out.emit(0x68);
+                    absolute(out, src);
+                }
+            } else {
+                out.emit(0xFF);
+                modrm(out, 6, src);
+            }
+        } else if (op.equals("pop")) {
+            if (src.kind == Operand.REGISTER) {
+                out.emit(0x58 + src.reg);
+            } else {
+                out.emit(0x8F);
+                modrm(out, 0, src);
+            }
+        } else if (op.equals("call")) {
+            if (src.isLabel()) {
+                out.emit(0xE8);
+                relative(out, item, src, 5);
+            } else {
+                out.emit(0xFF);
+                modrm(out, 2, src);
+            }
+        } else if (isJump(op)) {
+            jump(out, item, op.equals("jmp") ? -1 : CONDITIONS.get(op.substring(1)));
+        } else if (op.startsWith("set") && CONDITIONS.containsKey(op.substring(3))) {
+            out.emit(0x0F);
+            out.emit(0x90 + CONDITIONS.get(op.substring(3)));
+            modrm(out, 0, src);
+        } else if (op.equals("ret") && count == 0) {
+            out.emit(0xC3);
+        } else if (op.equals("ud2")) {
+            out.emit(0x0F);
+            out.emit(0x0B);
+        } else if (op.equals("cltd") || op.equals("cdq")) {
+            out.emit(0x99);
+        } else if (op.equals("leave")) {
+            out.emit(0xC9);
+        } else if (op.equals("nop")) {
+            out.emit(0x90);
+        } else {
+            throw new IllegalArgumentException("cannot encode: " + item.line.trim());
+        }
+    }
+
+    private static void requireRegister(Operand operand, Item item) {
+        if (operand.kind != Operand.REGISTER) {
+            throw new IllegalArgumentException("cannot encode: " + item.line.trim());
+        }
+    }
+
+    private static boolean fits8(int value) {
+        return value >= -128 && value <= 127;
+    }
+
+    private static boolean isEax(Operand operand) {
+        return operand.kind == Operand.REGISTER && operand.reg == 0;
+    }
+
+    /*
+     * An instruction with a short (imm8) and a long (imm32) opcode.
+     */
+    private void immediateGroup(Section out, int shortOpcode, int longOpcode,
+                                int digit, Operand rm, Operand imm) {
+        boolean small = imm.symbol == null && fits8(imm.value);
+        out.emit(small ? shortOpcode : longOpcode);
+        modrm(out, digit, rm);
+        if (small) {
+            out.emit(imm.value);
+        } else {
+            absolute(out, imm);
+        }
+    }
+
+    private void jump(Section out, Item item, int condition) {
+        Operand target = item.operands.get(0);
+        if (!target.isLabel()) {
+            if (condition >= 0) {
+                throw new IllegalArgumentException("cannot encode: " + item.line.trim());
+            }
+            out.emit(0xFF);
+            modrm(out, 4, target);
+        } else if (!item.longJump) {
+            out.emit(condition < 0 ? 0xEB : 0x70 + condition);
+            Integer to = labels.get(target.symbol);
+            out.emit(to == null ? 0 : to - (item.offset + 2));
+        } else if (condition < 0) {
+            out.emit(0xE9);
+            relative(out, item, target, 5);
+        } else {
+            out.emit(0x0F);
+            out.emit(0x80 + condition);
+            relative(out, item, target, 6);
+        }
+    }
+
+    /*
+     * rel32 to target, for an instruction of the given length ending with
+     *      it. Labels of the same section are resolved, others relocated.
+     */
+    private void relative(Section out, Item item, Operand target, int length) {
+        if (isLocalTarget(item, target)) {
+            Integer to = labels.get(target.symbol);
+            out.emitWord(to == null ? 0 : to - (item.offset + length));
+        } else {
+            out.relocate(relocationSymbol(target.symbol), Section.Relocation.RELATIVE);
+            out.emitWord(addend(target.symbol) - 4);
+        }
+    }
+
+    /*
+     * imm32 or disp32: a number, or a symbol's address through an
+     *      R_386_32 relocation.
+     */
+    private void absolute(Section out, Operand operand) {
+        if (operand.symbol == null) {
+            out.emitWord(operand.value);
+            return;
+        }
+        out.relocate(relocationSymbol(operand.symbol), Section.Relocation.ABSOLUTE);
+        out.emitWord(addend(operand.symbol) + operand.value);
+    }
+
+    /*
+     * Local labels are reached through their section's symbol.
+     */
+    private String relocationSymbol(String symbol) {
+        Integer section = labelSections.get(symbol);
+        if (section == null || globals.contains(symbol)) {
+            return symbol;
+        }
+        return sections.get(section).getName();
+    }
+
+    private int addend(String symbol) {
+        if (relocationSymbol(symbol).equals(symbol)) {
+            return 0;
+        }
+        Integer offset = labels.get(symbol);
+        return offset == null ? 0 : offset;
+    }
+
+    /*
+     * ModRM byte (plus SIB and displacement) for reg and a register or
+     *      memory operand.
+     */
+    private void modrm(Section out, int reg, Operand rm) {
+        if (rm.kind == Operand.REGISTER) {
+            out.emit(0xC0 | reg << 3 | rm.reg);
+            return;
+        }
+        if (rm.kind != Operand.MEMORY) {
+            throw new IllegalArgumentException("immediate used as memory operand");
+        }
+        int scale = Integer.numberOfTrailingZeros(rm.scale);
+        if (rm.base < 0) {
+            if (rm.index < 0) {
+                out.emit(reg << 3 | 5);
+            } else {
+                out.emit(reg << 3 | 4);
+                out.emit(scale << 6 | rm.index << 3 | 5);
+            }
+            absolute(out, rm);
+            return;
+        }
+        int mod;
+        if (rm.symbol != null || !fits8(rm.value)) {
+            mod = 2;
+        } else if (rm.value == 0 && rm.base != EBP) {
+            mod = 0;
+        } else {
+            mod = 1;
+        }
+        if (rm.index >= 0 || rm.base == ESP) {
+            out.emit(mod << 6 | reg << 3 | 4);
+            out.emit(scale << 6 | (rm.index < 0 ? 4 : rm.index) << 3 | rm.base);
+        } else {
+            out.emit(mod << 6 | reg << 3 | rm.base);
+        }
+        if (mod == 1) {
+            out.emit(rm.value);
+        } else if (mod == 2) {
+            absolute(out, rm);
+        }
+    }
+}
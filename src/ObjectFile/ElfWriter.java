@@ -0,0 +1,240 @@
+package ObjectFile;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.*;
+
+/*
+ * Writes what an Assembler produced as an ELF32 relocatable object for
+ *      i386, the same kind of file `as --32` makes, to be linked with the
+ *      runtime object:
+ *
+ *          ld -m elf_i386 runtime.o prog.o -o prog
+ *
+ *      Sections, in order: null, .text, .data, .rel.text, .rel.data,
+ *      .symtab, .strtab, .shstrtab and an empty .note.GNU-stack, so the
+ *      stack stays non-executable. The symbol table holds the two
+ *      section symbols and every label as a local, then the .global
+ *      labels and the undefined symbols.
+ */
+public final class ElfWriter {
+    private static final int HEADER_SIZE = 52;
+    private static final int SECTION_HEADER_SIZE = 40;
+    private static final int SYMBOL_SIZE = 16;
+    private static final int RELOCATION_SIZE = 8;
+
+    private static final int SHT_PROGBITS = 1;
+    private static final int SHT_SYMTAB = 2;
+    private static final int SHT_STRTAB = 3;
+    private static final int SHT_REL = 9;
+    private static final int SHF_WRITE = 1;
+    private static final int SHF_ALLOC = 2;
+    private static final int SHF_EXECINSTR = 4;
+    private static final int STB_LOCAL = 0;
+    private static final int STB_GLOBAL = 1;
+    private static final int STT_NOTYPE = 0;
+    private static final int STT_SECTION = 3;
+
+    // section header indices
+    private static final int TEXT = 1;
+    private static final int DATA = 2;
+    private static final int SYMTAB = 5;
+    private static final int STRTAB = 6;
+    private static final int SHSTRTAB = 7;
+    private static final int SECTION_COUNT = 9;
+
+    private final Assembler assembler;
+    private final Map<String, Integer> symbolIndices;
+    private final ByteArrayOutputStream symbols;
+    private final ByteArrayOutputStream strings;
+    private int firstGlobal;
+
+    public ElfWriter(Assembler assembler) {
+        this.assembler = assembler;
+        this.symbolIndices = new HashMap<String, Integer>();
+        this.symbols = new ByteArrayOutputStream();
+        this.strings = new ByteArrayOutputStream();
+    }
+
+    public void write(File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(toBytes());
+        } finally {
+            out.close();
+        }
+    }
+
+    public byte[] toBytes() {
+        buildSymbols();
+        List<Section> sections = assembler.getSections();
+        byte[] text = sections.get(0).getBytes();
+        byte[] data = sections.get(1).getBytes();
+        byte[] textRelocations = relocations(sections.get(0));
+        byte[] dataRelocations = relocations(sections.get(1));
+        byte[] symbolTable = symbols.toByteArray();
+        byte[] stringTable = strings.toByteArray();
+
+        ByteArrayOutputStream names = new ByteArrayOutputStream();
+        names.write(0);
+        String[] sectionNames = {
+            "", ".text", ".data", ".rel.text", ".rel.data", ".symtab",
+            ".strtab", ".shstrtab", ".note.GNU-stack"
+        };
+        int[] nameOffsets = new int[SECTION_COUNT];
+        for (int i = 1; i < SECTION_COUNT; ++i) {
+            nameOffsets[i] = names.size();
+            byte[] name = sectionNames[i].getBytes();
+            names.write(name, 0, name.length);
+            names.write(0);
+        }
+        byte[] nameTable = names.toByteArray();
+
+        byte[][] contents = {
+            null, text, data, textRelocations, dataRelocations, symbolTable,
+            stringTable, nameTable, new byte[0]
+        };
+        int[] aligns = { 0, assembler.getSections().get(0).getAlignment(),
+                          assembler.getSections().get(1).getAlignment(), 4, 4, 4, 1, 1, 1 };
+        int[] offsets = new int[SECTION_COUNT];
+        int position = HEADER_SIZE;
+        for (int i = 1; i < SECTION_COUNT; ++i) {
+            position = align(position, aligns[i]);
+            offsets[i] = position;
+            position += contents[i].length;
+        }
+        int sectionHeaders = align(position, 4);
+
+        ByteBuffer out = ByteBuffer.allocate(sectionHeaders +
+                                             SECTION_COUNT * SECTION_HEADER_SIZE);
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        out.put(new byte[] { 0x7F, 'E', 'L', 'F', 1, 1, 1, 0 });
+        out.position(16);
+        out.putShort((short) 1);            // ET_REL
+        out.putShort((short) 3);            // EM_386
+        out.putInt(1);                      // EV_CURRENT
+        out.putInt(0);                      // entry
+        out.putInt(0);                      // program headers
+        out.putInt(sectionHeaders);
+        out.putInt(0);                      // flags
+        out.putShort((short) HEADER_SIZE);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+        out.putShort((short) SECTION_HEADER_SIZE);
+        out.putShort((short) SECTION_COUNT);
+        out.putShort((short) SHSTRTAB);
+
+        for (int i = 1; i < SECTION_COUNT; ++i) {
+            out.position(offsets[i]);
+            out.put(contents[i]);
+        }
+
+        out.position(sectionHeaders + SECTION_HEADER_SIZE);
+        sectionHeader(out, nameOffsets[1], SHT_PROGBITS, SHF_ALLOC | SHF_EXECINSTR,
+                      offsets[1], text.length, 0, 0, aligns[1], 0);
+        sectionHeader(out, nameOffsets[2], SHT_PROGBITS, SHF_ALLOC | SHF_WRITE,
+                      offsets[2], data.length, 0, 0, aligns[2], 0);
+        sectionHeader(out, nameOffsets[3], SHT_REL, 0, offsets[3],
+                      textRelocations.length, SYMTAB, TEXT, 4, RELOCATION_SIZE);
+        sectionHeader(out, nameOffsets[4], SHT_REL, 0, offsets[4],
+                      dataRelocations.length, SYMTAB, DATA, 4, RELOCATION_SIZE);
+        sectionHeader(out, nameOffsets[5], SHT_SYMTAB, 0, offsets[5],
+                      symbolTable.length, STRTAB, firstGlobal, 4, SYMBOL_SIZE);
+        sectionHeader(out, nameOffsets[6], SHT_STRTAB, 0, offsets[6],
+                      stringTable.length, 0, 0, 1, 0);
+        sectionHeader(out, nameOffsets[7], SHT_STRTAB, 0, offsets[7],
+                      nameTable.length, 0, 0, 1, 0);
+        sectionHeader(out, nameOffsets[8], SHT_PROGBITS, 0, offsets[8], 0,
+                      0, 0, 1, 0);
+        return out.array();
+    }
+
+    private static int align(int position, int alignment) {
+        return alignment <= 1 ? position
+                              : (position + alignment - 1) / alignment * alignment;
+    }
+
+    private static void sectionHeader(ByteBuffer out, int name, int type, int flags,
+                                      int offset, int size, int link, int info,
+                                      int alignment, int entrySize) {
+        out.putInt(name);
+        out.putInt(type);
+        out.putInt(flags);
+        out.putInt(0);                      // address
+        out.putInt(offset);
+        out.putInt(size);
+        out.putInt(link);
+        out.putInt(info);
+        out.putInt(alignment);
+        out.putInt(entrySize);
+    }
+
+    /*
+     * Locals must come before globals; sh_info of .symtab is the index
+     *      of the first global.
+     */
+    private void buildSymbols() {
+        strings.write(0);
+        symbol(0, 0, 0, 0);
+        symbolIndices.put(".text", 1);
+        symbol(0, 0, STB_LOCAL << 4 | STT_SECTION, TEXT);
+        symbolIndices.put(".data", 2);
+        symbol(0, 0, STB_LOCAL << 4 | STT_SECTION, DATA);
+
+        int index = 3;
+        List<String> globals = new ArrayList<String>();
+        for (Map.Entry<String, Integer> label : assembler.getLabels().entrySet()) {
+            if (assembler.isGlobal(label.getKey())) {
+                globals.add(label.getKey());
+                continue;
+            }
+            symbolIndices.put(label.getKey(), index++);
+            symbol(name(label.getKey()), label.getValue(),
+                   STB_LOCAL << 4 | STT_NOTYPE,
+                   TEXT + assembler.getLabelSection(label.getKey()));
+        }
+        firstGlobal = index;
+        for (String label : globals) {
+            symbolIndices.put(label, index++);
+            symbol(name(label), assembler.getLabels().get(label),
+                   STB_GLOBAL << 4 | STT_NOTYPE,
+                   TEXT + assembler.getLabelSection(label));
+        }
+        for (String external : assembler.getExternals()) {
+            symbolIndices.put(external, index++);
+            symbol(name(external), 0, STB_GLOBAL << 4 | STT_NOTYPE, 0);
+        }
+    }
+
+    private int name(String symbol) {
+        int rv = strings.size();
+        byte[] bytes = symbol.getBytes();
+        strings.write(bytes, 0, bytes.length);
+        strings.write(0);
+        return rv;
+    }
+
+    private void symbol(int name, int value, int info, int section) {
+        ByteBuffer entry = ByteBuffer.allocate(SYMBOL_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        entry.putInt(name);
+        entry.putInt(value);
+        entry.putInt(0);                    // size
+        entry.put((byte) info);
+        entry.put((byte) 0);
+        entry.putShort((short) section);
+        symbols.write(entry.array(), 0, SYMBOL_SIZE);
+    }
+
+    private byte[] relocations(Section section) {
+        List<Section.Relocation> list = section.getRelocations();
+        ByteBuffer out = ByteBuffer.allocate(RELOCATION_SIZE * list.size())
+                                   .order(ByteOrder.LITTLE_ENDIAN);
+        for (Section.Relocation relocation : list) {
+            out.putInt(relocation.getOffset());
+            out.putInt(symbolIndices.get(relocation.getSymbol()) << 8 |
+                       relocation.getType());
+        }
+        return out.array();
+    }
+}
@@ -0,0 +1,100 @@
+package ObjectFile;
+
+import java.io.ByteArrayOutputStream;
+import java.util.*;
+
+/*
+ * Contents of one section being assembled: the bytes so far and the
+ *      relocations against them. Values that need a relocation are
+ *      written with their addend in place, as ELF REL sections expect.
+ */
+public final class Section {
+    /*
+     * A word at offset that the linker patches with the address of
+     *      symbol (ABSOLUTE) or its distance from the word (RELATIVE).
+     */
+    public static final class Relocation {
+        public static final int ABSOLUTE = 1; // R_386_32
+        public static final int RELATIVE = 2; // R_386_PC32
+
+        private final int offset;
+        private final String symbol;
+        private final int type;
+
+        Relocation(int offset, String symbol, int type) {
+            this.offset = offset;
+            this.symbol = symbol;
+            this.type = type;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        /*
+         * Name of a global or undefined symbol, or of a section when the
+         *      target is a local label of that section.
+         */
+        public String getSymbol() {
+            return symbol;
+        }
+
+        public int getType() {
+            return type;
+        }
+    }
+
+    private final String name;
+    private final ByteArrayOutputStream bytes;
+    private final List<Relocation> relocations;
+    private int alignment;
+
+    Section(String name) {
+        this.name = name;
+        this.bytes = new ByteArrayOutputStream();
+        this.relocations = new ArrayList<Relocation>();
+        this.alignment = 1;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /*
+     * The largest .p2align in the section, 1 without any, as GNU as
+     *      records it in the section header.
+     */
+    public int getAlignment() {
+        return alignment;
+    }
+
+    void alignTo(int boundary) {
+        alignment = Math.max(alignment, boundary);
+    }
+
+    public int size() {
+        return bytes.size();
+    }
+
+    public byte[] getBytes() {
+        return bytes.toByteArray();
+    }
+
+    public List<Relocation> getRelocations() {
+        return relocations;
+    }
+
+    void emit(int b) {
+        bytes.write(b);
+    }
+
+    void emitWord(int word) {
+        for (int i = 0; i < 4; ++i) {
+            bytes.write(word >>> (8 * i));
+        }
+    }
+
+    void relocate(String symbol, int type) {
+        relocations.add(new Relocation(bytes.size(), symbol, type));
+    }
+}
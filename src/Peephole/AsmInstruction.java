@@ -0,0 +1,174 @@
+package Peephole;
+
+import java.util.*;
+
+/*
+ * One line of assembly, parsed: a label, a directive or an instruction
+ *      with its operands. Comment lines are attached to the item that
+ *      follows them, so rewrites never have to look past them.
+ */
+public final class AsmInstruction {
+    public enum Kind { LABEL, DIRECTIVE, INSTRUCTION, BLANK }
+
+    private final Kind kind;
+    private final String name;
+    private final String[] operands;
+    private final List<String> comments;
+
+    private AsmInstruction(Kind kind, String name, String[] operands) {
+        this.kind = kind;
+        this.name = name;
+        this.operands = operands;
+        this.comments = new ArrayList<String>();
+    }
+
+    public static AsmInstruction label(String name) {
+        return new AsmInstruction(Kind.LABEL, name, new String[0]);
+    }
+
+    public static AsmInstruction instruction(String mnemonic, String... operands) {
+        return new AsmInstruction(Kind.INSTRUCTION, mnemonic, operands);
+    }
+
+    /*
+     * Parses the lines produced by CodeGenerator/OptimizingCodeGenerator.
+     */
+    public static List<AsmInstruction> parse(List<String> lines) {
+        List<AsmInstruction> rv = new ArrayList<AsmInstruction>();
+        List<String> pending = new ArrayList<String>();
+
+        for (String line : lines) {
+            String text = line.trim();
+            AsmInstruction item;
+            if (text.startsWith("#")) {
+                pending.add(text);
+                continue;
+            } else if (text.isEmpty()) {
+                item = new AsmInstruction(Kind.BLANK, "", new String[0]);
+            } else if (text.endsWith(":") && text.indexOf(' ') < 0) {
+                item = label(text.substring(0, text.length() - 1));
+            } else if (text.startsWith(".")) {
+                item = new AsmInstruction(Kind.DIRECTIVE, text, new String[0]);
+            } else {
+                int space = text.indexOf(' ');
+                if (space < 0) {
+                    item = instruction(text);
+                } else {
+                    item = instruction(text.substring(0, space),
+                                       splitOperands(text.substring(space + 1)));
+                }
+            }
+            item.comments.addAll(pending);
+            pending.clear();
+            rv.add(item);
+        }
+        return rv;
+    }
+
+    private static String[] splitOperands(String text) {
+        List<String> rv = new ArrayList<String>();
+        int depth = 0;
+        int begin = 0;
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            if (c == '(') {
+                ++depth;
+            } else if (c == ')') {
+                --depth;
+            } else if (c == ',' && depth == 0) {
+                rv.add(text.substring(begin, i).trim());
+                begin = i + 1;
+            }
+        }
+        rv.add(text.substring(begin).trim());
+        return rv.toArray(new String[0]);
+    }
+
+    public static List<String> render(List<AsmInstruction> code) {
+        List<String> rv = new ArrayList<String>();
+        for (AsmInstruction item : code) {
+            for (String comment : item.comments) {
+                rv.add("    " + comment);
+            }
+            rv.add(item.toString());
+        }
+        return rv;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public boolean isLabel() {
+        return kind == Kind.LABEL;
+    }
+
+    public boolean isInstruction() {
+        return kind == Kind.INSTRUCTION;
+    }
+
+    /*
+     * Label name, directive text or instruction mnemonic.
+     */
+    public String getName() {
+        return name;
+    }
+
+    public boolean is(String mnemonic) {
+        return kind == Kind.INSTRUCTION && name.equals(mnemonic);
+    }
+
+    public int getOperandCount() {
+        return operands.length;
+    }
+
+    public String getOperand(int i) {
+        return operands[i];
+    }
+
+    /*
+     * Last operand, which is the destination in AT&T syntax.
+     */
+    public String getDestination() {
+        return operands[operands.length - 1];
+    }
+
+    public boolean isJump() {
+        return kind == Kind.INSTRUCTION && name.startsWith("j");
+    }
+
+    public boolean isConditionalJump() {
+        return isJump() && !name.equals("jmp");
+    }
+
+    /*
+     * Comments of a removed item move to the one that replaces it.
+     */
+    public AsmInstruction withCommentsOf(AsmInstruction other) {
+        comments.addAll(0, other.comments);
+        return this;
+    }
+
+    public String toString() {
+        switch (kind) {
+        case LABEL:
+            return name + ":";
+        case DIRECTIVE:
+            return "    " + name;
+        case BLANK:
+            return "";
+        default:
+            if (operands.length == 0) {
+                return "    " + name;
+            }
+            StringBuilder sb = new StringBuilder("    ").append(name).append(" ");
+            for (int i = 0; i < operands.length; ++i) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(operands[i]);
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package Peephole;
+
+import java.util.*;
+
+/*
+ * Rewrites emitted x86 with the rules in Rules.TABLE until none of them
+ *      applies any more, and counts how many instructions each method
+ *      lost.
+ *
+ *      Register liveness is answered by scanning forward from a point and
+ *      following jumps a few levels deep; anything it cannot prove dead
+ *      is treated as live.
+ */
+public class PeepholeOptimizer {
+    private static final int MAX_JUMP_DEPTH = 4;
+
+    private Rule[] rules;
+    private List<AsmInstruction> code;
+    private Map<String, Integer> labelPositions;
+    private Map<String, Integer> labelUses;
+    private Map<String, int[]> report;
+
+    public PeepholeOptimizer() {
+        this(Rules.TABLE);
+    }
+
+    public PeepholeOptimizer(Rule[] rules) {
+        super();
+        this.rules = rules;
+        this.report = new LinkedHashMap<String, int[]>();
+    }
+
+    public List<String> optimize(List<String> lines) {
+        code = AsmInstruction.parse(lines);
+        Map<String, Integer> before = countPerMethod(code);
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < code.size(); ++i) {
+                for (Rule rule : rules) {
+                    if (i < code.size() && rule.apply(this, code, i)) {
+                        labelPositions = null;
+                        labelUses = null;
+                        changed = true;
+                    }
+                }
+            }
+        }
+
+        Map<String, Integer> after = countPerMethod(code);
+        report.clear();
+        for (Map.Entry<String, Integer> entry : before.entrySet()) {
+            Integer remaining = after.get(entry.getKey());
+            report.put(entry.getKey(),
+                       new int[] { entry.getValue(),
+                                   remaining == null ? 0 : remaining });
+        }
+        return AsmInstruction.render(code);
+    }
+
+    /*
+     * method label => { instructions before, instructions after }
+     */
+    public Map<String, int[]> getReport() {
+        return report;
+    }
+
+    public List<String> formatReport() {
+        List<String> rv = new ArrayList<String>();
+        int totalBefore = 0;
+        int totalAfter = 0;
+        for (Map.Entry<String, int[]> entry : report.entrySet()) {
+            int[] counts = entry.getValue();
+            rv.add(String.format("%-32s %6d -> %6d  (-%d)", entry.getKey(),
+                                 counts[0], counts[1], counts[0] - counts[1]));
+            totalBefore += counts[0];
+            totalAfter += counts[1];
+        }
+        rv.add(String.format("%-32s %6d -> %6d  (-%d)", "total",
+                             totalBefore, totalAfter, totalBefore - totalAfter));
+        return rv;
+    }
+
+    private static boolean isMethodLabel(String name) {
+        return name.equals("asm_main") ||
+               (name.indexOf('$') > 0 && !name.endsWith("$$"));
+    }
+
+    private static Map<String, Integer> countPerMethod(List<AsmInstruction> code) {
+        Map<String, Integer> rv = new LinkedHashMap<String, Integer>();
+        String method = null;
+        for (AsmInstruction item : code) {
+            if (item.isLabel() && isMethodLabel(item.getName())) {
+                method = item.getName();
+                rv.put(method, 0);
+            } else if (item.isInstruction() && method != null) {
+                rv.put(method, rv.get(method) + 1);
+            }
+        }
+        return rv;
+    }
+
+    public int findLabel(String name) {
+        if (labelPositions == null) {
+            labelPositions = new HashMap<String, Integer>();
+            for (int i = 0; i < code.size(); ++i) {
+                if (code.get(i).isLabel()) {
+                    labelPositions.put(code.get(i).getName(), i);
+                }
+            }
+        }
+        Integer rv = labelPositions.get(name);
+        return rv == null ? -1 : rv;
+    }
+
+    /*
+     * Number of jumps (or other operands) naming a label.
+     */
+    public int countUses(String name) {
+        if (labelUses == null) {
+            labelUses = new HashMap<String, Integer>();
+            for (AsmInstruction item : code) {
+                if (!item.isInstruction()) {
+                    if (item.getKind() == AsmInstruction.Kind.DIRECTIVE) {
+                        String text = item.getName();
+                        String target = text.substring(text.lastIndexOf(' ') + 1);
+                        Integer n = labelUses.get(target);
+                        labelUses.put(target, n == null ? 1 : n + 1);
+                    }
+                    continue;
+                }
+                for (int k = 0; k < item.getOperandCount(); ++k) {
+                    String operand = item.getOperand(k);
+                    Integer n = labelUses.get(operand);
+                    labelUses.put(operand, n == null ? 1 : n + 1);
+                }
+            }
+        }
+        Integer rv = labelUses.get(name);
+        return rv == null ? 0 : rv;
+    }
+
+    /*
+     * True if the register's current value is never read again starting
+     *      at position i.
+     */
+    public boolean isDead(String reg, int i) {
+        return isDead(reg, i, MAX_JUMP_DEPTH);
+    }
+
+    private boolean isDead(String reg, int i, int depth) {
+        for (; i < code.size(); ++i) {
+            AsmInstruction item = code.get(i);
+            if (!item.isInstruction()) {
+                if (item.getKind() == AsmInstruction.Kind.DIRECTIVE) {
+                    return false;
+                }
+                continue;
+            }
+            if (Registers.reads(item, reg)) {
+                return false;
+            }
+            if (Registers.writes(item, reg)) {
+                return true;
+            }
+            if (item.is("ret")) {
+                return true;
+            }
+            if (item.isJump()) {
+                String target = item.getOperand(0);
+                int position = findLabel(target);
+                if (depth == 0 || position < 0 ||
+                        !isDead(reg, position, depth - 1)) {
+                    return false;
+                }
+                if (!item.isConditionalJump()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
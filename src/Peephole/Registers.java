@@ -0,0 +1,121 @@
+package Peephole;
+
+/*
+ * What an instruction does to a 32-bit register. Sub-registers (%al, %ax)
+ *      count as their 32-bit parent. Calls follow the compiler's own
+ *      conventions: a method call may read %eax, %ecx and %edx (receiver
+ *      and register arguments) and clobbers all three; ret reads %eax and
+ *      every callee-saved register.
+ */
+public final class Registers {
+    private Registers() { }
+
+    public static boolean isRegister(String operand) {
+        return operand.startsWith("%");
+    }
+
+    public static boolean isImmediate(String operand) {
+        return operand.startsWith("$");
+    }
+
+    public static boolean isMemory(String operand) {
+        return !isRegister(operand) && !isImmediate(operand);
+    }
+
+    /*
+     * "%eax" for %eax, %ax, %al and %ah; other names unchanged.
+     */
+    public static String canonical(String reg) {
+        if (reg.length() == 3 && (reg.endsWith("l") || reg.endsWith("h")) &&
+                "abcd".indexOf(reg.charAt(1)) >= 0) {
+            return "%e" + reg.charAt(1) + "x";
+        }
+        if (reg.length() == 3) {
+            return "%e" + reg.substring(1);
+        }
+        return reg;
+    }
+
+    public static boolean mentions(String operand, String reg) {
+        int at = operand.indexOf('%');
+        while (at >= 0) {
+            int stop = at + 1;
+            while (stop < operand.length() &&
+                    Character.isLetterOrDigit(operand.charAt(stop))) {
+                ++stop;
+            }
+            if (canonical(operand.substring(at, stop)).equals(reg)) {
+                return true;
+            }
+            at = operand.indexOf('%', stop);
+        }
+        return false;
+    }
+
+    /*
+     * put and mjmalloc are C functions and take no receiver.
+     */
+    public static boolean isRuntimeCall(AsmInstruction instr) {
+        String target = instr.getOperand(0);
+        return !target.startsWith("*") && target.indexOf('$') < 0;
+    }
+
+    private static boolean isMove(String mnemonic) {
+        return mnemonic.equals("movl") || mnemonic.equals("leal") ||
+               mnemonic.equals("movzbl") || mnemonic.equals("movsbl");
+    }
+
+    public static boolean reads(AsmInstruction instr, String reg) {
+        String mnemonic = instr.getName();
+        int count = instr.getOperandCount();
+
+        if (mnemonic.equals("ret")) {
+            return !reg.equals("%ecx") && !reg.equals("%edx");
+        }
+        if (mnemonic.equals("call")) {
+            return ((reg.equals("%eax") || reg.equals("%ecx") ||
+                     reg.equals("%edx")) && !isRuntimeCall(instr)) ||
+                   (count > 0 && mentions(instr.getOperand(0), reg));
+        }
+        if (mnemonic.equals("popl")) {
+            return isMemory(instr.getOperand(0)) &&
+                   mentions(instr.getOperand(0), reg);
+        }
+        if (isMove(mnemonic) || mnemonic.startsWith("set")) {
+            String dst = instr.getDestination();
+            if (mentions(instr.getOperand(0), reg) && count > 1) {
+                return true;
+            }
+            if (mnemonic.startsWith("set")) {
+                // partial write keeps the rest of the register
+                return mentions(dst, reg);
+            }
+            return isMemory(dst) && mentions(dst, reg);
+        }
+        for (int k = 0; k < count; ++k) {
+            if (mentions(instr.getOperand(k), reg)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * True if the whole register is overwritten (without being read).
+     */
+    public static boolean writes(AsmInstruction instr, String reg) {
+        String mnemonic = instr.getName();
+        if (mnemonic.equals("call")) {
+            return reg.equals("%eax") || reg.equals("%ecx") ||
+                   reg.equals("%edx");
+        }
+        if (instr.getOperandCount() == 0) {
+            return false;
+        }
+        String dst = instr.getDestination();
+        if (mnemonic.equals("popl") || isMove(mnemonic)) {
+            return isRegister(dst) && canonical(dst).equals(reg);
+        }
+        return false;
+    }
+}
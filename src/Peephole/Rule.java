@@ -0,0 +1,14 @@
+package Peephole;
+
+import java.util.List;
+
+/*
+ * A rewrite that looks at the code starting at position i. Returns true
+ *      if it changed anything.
+ */
+public interface Rule {
+    public String getName();
+    public boolean apply(PeepholeOptimizer optimizer,
+                         List<AsmInstruction> code,
+                         int i);
+}
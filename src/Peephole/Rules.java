@@ -0,0 +1,565 @@
+package Peephole;
+
+import java.util.*;
+
+/*
+ * The rewrite table. Each rule matches a short window starting at the
+ *      given position and replaces it in place; the optimizer keeps
+ *      sweeping until no rule fires.
+ */
+public final class Rules {
+    private Rules() { }
+
+    public static final Rule[] TABLE = {
+        new SelfMove(),
+        new AddZero(),
+        new PushPop(),
+        new PushAroundPop(),
+        new DeadMove(),
+        new DeadStackAdjust(),
+        new MoveChain(),
+        new ImmediateOperand(),
+        new ConstantPush(),
+        new StoreReload(),
+        new OffsetLoad(),
+        new IndirectCall(),
+        new BooleanBranch(),
+        new JumpOverJump(),
+        new JumpToNext(),
+        new Unreachable(),
+        new UnusedLabel(),
+    };
+
+    private static final String[] REGISTERS = {
+        "%eax", "%ebx", "%ecx", "%edx", "%esi", "%edi"
+    };
+
+    private static final Map<String, String> NEGATED = new HashMap<String, String>();
+    static {
+        String[][] pairs = {
+            { "je", "jne" }, { "jl", "jge" }, { "jle", "jg" },
+            { "jb", "jae" }, { "jbe", "ja" }
+        };
+        for (String[] pair : pairs) {
+            NEGATED.put(pair[0], pair[1]);
+            NEGATED.put(pair[1], pair[0]);
+        }
+    }
+
+    private static boolean isGeneralRegister(String operand) {
+        for (String reg : REGISTERS) {
+            if (reg.equals(operand)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static AsmInstruction at(List<AsmInstruction> code, int i) {
+        return i < code.size() ? code.get(i) : null;
+    }
+
+    private static boolean isInstruction(List<AsmInstruction> code, int i,
+                                         String mnemonic, int operands) {
+        AsmInstruction item = at(code, i);
+        return item != null && item.is(mnemonic) &&
+               item.getOperandCount() == operands;
+    }
+
+    /*
+     * Removes code[i], handing its comments to whatever follows.
+     */
+    private static void remove(List<AsmInstruction> code, int i) {
+        AsmInstruction removed = code.remove(i);
+        if (i < code.size()) {
+            code.get(i).withCommentsOf(removed);
+        }
+    }
+
+    private static void replace(List<AsmInstruction> code, int i,
+                                AsmInstruction replacement) {
+        code.set(i, replacement.withCommentsOf(code.get(i)));
+    }
+
+    /*
+     * Replaces code[i .. i+count) with one item carrying all their comments.
+     */
+    private static void merge(List<AsmInstruction> code, int i, int count,
+                              AsmInstruction replacement) {
+        for (int k = i + count - 1; k >= i; --k) {
+            replacement.withCommentsOf(code.remove(k));
+        }
+        code.add(i, replacement);
+    }
+
+    /*
+     * movl %r, %r
+     */
+    static final class SelfMove implements Rule {
+        public String getName() { return "self-move"; }
+
+        public boolean apply(PeepholeOptimizer opt, List<AsmInstruction> code, int i) {
+            AsmInstruction item = code.get(i);
+            if (item.is("movl") && item.getOperandCount() == 2 &&
+                    Registers.isRegister(item.getOperand(0)) &&
+                    item.getOperand(0).equals(item.getOperand(1))) {
+                remove(code, i);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /*
+     * addl $0, X / subl $0, X (flags are never read after them)
+     */
+    static final class AddZero implements Rule {
+        public String getName() { return "add-zero"; }
+
+        public boolean apply(PeepholeOptimizer opt, List<AsmInstruction> code, int i) {
+            AsmInstruction item = code.get(i);
+            if ((item.is("addl") || item.is("subl")) &&
+                    item.getOperandCount() == 2 &&
+                    item.getOperand(0).equals("$0")) {
+                AsmInstruction next = at(code, i + 1);
+                if (next != null && next.isConditionalJump()) {
+                    return false;
+                }
+                remove(code, i);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /*
+     * pushl S; popl D  =>  movl S, D
+     */
+    static final class PushPop implements Rule {
+        public String getName() { return "push-pop"; }
+
+        public boolean apply(PeepholeOptimizer opt, List<AsmInstruction> code, int i) {
+            if (!isInstruction(code, i, "pushl", 1) ||
+                    !isInstruction(code, i + 1, "popl", 1)) {
+                return false;
+            }
+            String source = code.get(i).getOperand(0);
+            String destination = code.get(i + 1).getOperand(0);
+            if (Registers.isMemory(source) && Registers.isMemory(destination)) {
+                return false;
+            }
+            if (source.equals(destination)) {
+                remove(code, i + 1);
+                remove(code, i);
+            } else {
+                merge(code, i, 2, AsmInstruction.instruction("movl", source, destination));
+            }
+            return true;
+        }
+    }
+
+    /*
+     * pushl S; I; popl %D  =>  movl S, %D; I
+     *      when I leaves the stack and %D alone.
+     */
+    static final class PushAroundPop implements Rule {
+        public String getName() { return "push-around-pop"; }
+
+        public boolean apply(PeepholeOptimizer opt, List<AsmInstruction> code, int i) {
+            if (!isInstruction(code, i, "pushl", 1) ||
+                    !isInstruction(code, i + 2, "popl", 1)) {
+                return false;
+            }
+            AsmInstruction middle = code.get(i + 1);
+            String source = code.get(i).getOperand(0);
+            String destination = code.get(i + 2).getOperand(0);
+            if (!middle.isInstruction() || middle.isJump() ||
+                    !isGeneralRegister(destination) ||
+                    middle.is("call") || middle.is("ret") ||
+                    middle.getName().startsWith("push") ||
+                    middle.getName().startsWith("pop")) {
+                return false;
+            }
+            for (int k = 0; k < middle.getOperandCount(); ++k) {
+                String operand = middle.getOperand(k);
+                if (Registers.mentions(operand, "%esp") ||
+                        Registers.mentions(operand, destination)) {
+                    return false;
+                }
+            }
+            AsmInstruction pop = code.remove(i + 2);
+            replace(code, i, AsmInstruction.instruction("movl", source, destination)
+                                           .withCommentsOf(pop));
+            return true;
+        }
+    }
+
+    /*
+     * movl/leal/movzbl X, %R  where %R is never read afterwards.
+     */
+    static final class DeadMove implements Rule {
+        public String getName() { return "dead-move"; }
+
+        public boolean apply(PeepholeOptimizer opt, List<AsmInstruction> code, int i) {
+            AsmInstruction item = code.get(i);
+            if (!(item.is("movl") || item.is("leal") || item.is("movzbl")) ||
+                    item.getOperandCount() != 2) {
+                return false;
+            }
+            String destination = item.getDestination();
+            if (!isGeneralRegister(destination) || !opt.isDead(destination, i + 1)) {
+                return false;
+            }
+            remove(code, i);
+            return true;
+        }
+    }
+
+    /*
+     * addl/subl $N, %esp  immediately followed by  movl %ebp, %esp
+     */
+    static final class DeadStackAdjust implements Rule {
+        public String getName() { return "dead-stack-adjust"; }
+
+        public boolean apply(PeepholeOptimizer opt, List<AsmInstruction> code, int i) {
+            AsmInstruction item = code.get(i);
+            if ((item.is("addl") || item.is("subl")) &&
+                    item.getOperandCount() == 2 &&
+                    item.getDestination().equals("%esp") &&
+                    isInstruction(code, i + 1, "movl", 2) &&
+                    code.get(i + 1).getOperand(0).equals("%ebp") &&
+                    code.get(i + 1).getOperand(1).equals("%esp")) {
+                remove(code, i);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /*
+     * movl S, %R; movl %R, D  =>  movl S, D   when %R dies.
+     */
+    static final class MoveChain implements Rule {
+        public String getName() { return "move-chain"; }
+
+        public boolean apply(PeepholeOptimizer opt, List<AsmInstruction> code, int i) {
+            if (!isInstruction(code, i, "movl", 2) ||
+                    !isInstruction(code, i + 1, "movl", 2)) {
+                return false;
+            }
+            String source = code.get(i).getOperand(0);
+            String temporary = code.get(i).getOperand(1);
+            String destination = code.get(i + 1).getOperand(1);
+            if (!isGeneralRegister(temporary) ||
+                    !code.get(i + 1).getOperand(0).equals(temporary) ||
+                    Registers.mentions(destination, temporary) ||
+                    (Registers.isMemory(source) && Registers.isMemory(destination)) ||
+                    !opt.isDead(temporary, i + 2)) {
+                return false;
+            }
+            merge(code, i, 2, AsmInstruction.instruction("movl", source, destination));
+            return true;
+        }
+    }
+
+    /*
+     * movl $k, %R; OP %R, X  =>  OP $k, X   when %R dies.
+     */
+    static final class ImmediateOperand implements Rule {
+        private static final Set<String> OPERATIONS = new HashSet<String>(
+            Arrays.asList("addl", "subl", "andl", "orl", "xorl", "cmpl", "imull", "imul"));
+
+        public String getName() { return "immediate-operand"; }
+
+        public boolean apply(PeepholeOptimizer opt, List<AsmInstruction> code, int i) {
+            if (!isInstruction(code, i, "movl", 2)) {
+                return false;
+            }
+            AsmInstruction next = at(code, i + 1);
+            String constant = code.get(i).getOperand(0);
+            String register = code.get(i).getOperand(1);
+            if (next == null || !next.isInstruction() ||
+                    !OPERATIONS.contains(next.getName()) ||
+                    next.getOperandCount() != 2 ||
+                    !Registers.isImmediate(constant) ||
+                    !isGeneralRegister(register) ||
+                    !next.getOperand(0).equals(register) ||
+                    Registers.mentions(next.getOperand(1), register) ||
+                    !opt.isDead(register, i + 2)) {
+                return false;
+            }
+            merge(code, i, 2, AsmInstruction.instruction(next.getName(), constant,
+                                                        next.getOperand(1)));
+            return true;
+        }
+    }
+
+    /*
+     * movl $k, %R; pushl %R  =>  pushl $k   when %R dies.
+     */
+    static final class ConstantPush implements Rule {
+        public String getName() { return "constant-push"; }
+
+        public boolean apply(PeepholeOptimizer opt, List<AsmInstruction> code, int i) {
+            if (!isInstruction(code, i, "movl", 2) ||
+                    !isInstruction(code, i + 1, "pushl", 1)) {
+                return false;
+            }
+            String value = code.get(i).getOperand(0);
+            String register = code.get(i).getOperand(1);
+            if (!isGeneralRegister(register) ||
+                    Registers.isMemory(value) ||
+                    !code.get(i + 1).getOperand(0).equals(register) ||
+                    !opt.isDead(register, i + 2)) {
+                return false;
+            }
+            merge(code, i, 2, AsmInstruction.instruction("pushl", value));
+            return true;
+        }
+    }
+
+    /*
+     * movl %R, M; movl M, %R  =>  movl %R, M
+     * movl M, %R; movl %R, M  =>  movl M, %R   (M not addressed through %R)
+     */
+    static final class StoreReload implements Rule {
+        public String getName() { return "store-reload"; }
+
+        public boolean apply(PeepholeOptimizer opt, List<AsmInstruction> code, int i) {
+            if (!isInstruction(code, i, "movl", 2) ||
+                    !isInstruction(code, i + 1, "movl", 2)) {
+                return false;
+            }
+            AsmInstruction first = code.get(i);
+            AsmInstruction second = code.get(i + 1);
+            if (!first.getOperand(0).equals(second.getOperand(1)) ||
+                    !first.getOperand(1).equals(second.getOperand(0))) {
+                return false;
+            }
+            String register;
+            String memory;
+            if (isGeneralRegister(first.getOperand(0))) {
+                register = first.getOperand(0);
+                memory = first.getOperand(1);
+            } else {
+                register = first.getOperand(1);
+                memory = first.getOperand(0);
+                if (Registers.mentions(memory, register)) {
+                    return false;
+                }
+            }
+            if (!isGeneralRegister(register) || !Registers.isMemory(memory)) {
+                return false;
+            }
+            first.withCommentsOf(code.remove(i + 1));
+            return true;
+        }
+    }
+
+    /*
+     * addl $N, %R; movl (%R), %X  =>  movl N(%R), %X
+     *      when %X is %R or %R dies.
+     */
+    static final class OffsetLoad implements Rule {
+        public String getName() { return "offset-load"; }
+
+        public boolean apply(PeepholeOptimizer opt, List<AsmInstruction> code, int i) {
+            if (!isInstruction(code, i, "addl", 2) ||
+                    !isInstruction(code, i + 1, "movl", 2)) {
+                return false;
+            }
+            String offset = code.get(i).getOperand(0);
+            String base = code.get(i).getOperand(1);
+            String destination = code.get(i + 1).getOperand(1);
+            if (!Registers.isImmediate(offset) || !isGeneralRegister(base) ||
+                    !code.get(i + 1).getOperand(0).equals("(" + base + ")") ||
+                    !isGeneralRegister(destination) ||
+                    (!destination.equals(base) && !opt.isDead(base, i + 2))) {
+                return false;
+            }
+            merge(code, i, 2, AsmInstruction.instruction("movl",
+                                                        offset.substring(1) + "(" + base + ")",
+                                                        destination));
+            return true;
+        }
+    }
+
+    /*
+     * movl M, %eax; call *%eax  =>  call *M
+     */
+    static final class IndirectCall implements Rule {
+        public String getName() { return "indirect-call"; }
+
+        public boolean apply(PeepholeOptimizer opt, List<AsmInstruction> code, int i) {
+            if (!isInstruction(code, i, "movl", 2) ||
+                    !isInstruction(code, i + 1, "call", 1)) {
+                return false;
+            }
+            String target = code.get(i).getOperand(0);
+            String register = code.get(i).getOperand(1);
+            if (!isGeneralRegister(register) || !Registers.isMemory(target) ||
+                    Registers.mentions(target, "%esp") ||
+                    !code.get(i + 1).getOperand(0).equals("*" + register) ||
+                    !(register.equals("%eax") || register.equals("%edx"))) {
+                return false;
+            }
+            merge(code, i, 2, AsmInstruction.instruction("call", "*" + target));
+            return true;
+        }
+    }
+
+    /*
+     * The boolean the code generator materializes for a comparison and
+     *      immediately tests again:
+     *
+     *          cmpl A, B; jCC Lt; movl $x, %eax; jmp Le;
+     *      Lt: movl $y, %eax;
+     *      Le: cmpl $0, %eax; je/jne T
+     *
+     *      becomes cmpl A, B; jCC' T when both labels are private to the
+     *      pattern and the boolean is dead on both exits.
+     */
+    static final class BooleanBranch implements Rule {
+        public String getName() { return "boolean-branch"; }
+
+        public boolean apply(PeepholeOptimizer opt, List<AsmInstruction> code, int i) {
+            if (!isInstruction(code, i, "cmpl", 2)) {
+                return false;
+            }
+            AsmInstruction branch = at(code, i + 1);
+            AsmInstruction falseValue = at(code, i + 2);
+            AsmInstruction skip = at(code, i + 3);
+            AsmInstruction trueLabel = at(code, i + 4);
+            AsmInstruction trueValue = at(code, i + 5);
+            AsmInstruction endLabel = at(code, i + 6);
+            AsmInstruction test = at(code, i + 7);
+            AsmInstruction use = at(code, i + 8);
+            if (use == null || !branch.isConditionalJump() ||
+                    !NEGATED.containsKey(branch.getName()) ||
+                    !isMaterialize(falseValue) || !skip.is("jmp") ||
+                    !trueLabel.isLabel() || !isMaterialize(trueValue) ||
+                    !endLabel.isLabel() || !test.is("cmpl") ||
+                    !test.getOperand(0).equals("$0") ||
+                    !test.getOperand(1).equals("%eax") ||
+                    !(use.is("je") || use.is("jne")) ||
+                    !branch.getOperand(0).equals(trueLabel.getName()) ||
+                    !skip.getOperand(0).equals(endLabel.getName()) ||
+                    opt.countUses(trueLabel.getName()) != 1 ||
+                    opt.countUses(endLabel.getName()) != 1) {
+                return false;
+            }
+            String fallthroughValue = falseValue.getOperand(0);
+            String takenValue = trueValue.getOperand(0);
+            if (fallthroughValue.equals(takenValue)) {
+                return false;
+            }
+            String target = use.getOperand(0);
+            int targetPosition = opt.findLabel(target);
+            if (targetPosition < 0 || !opt.isDead("%eax", targetPosition) ||
+                    !opt.isDead("%eax", i + 9)) {
+                return false;
+            }
+            // the condition is true when the taken side holds the nonzero value
+            boolean takenIsTrue = !takenValue.equals("$0");
+            boolean jumpWhenTrue = use.is("jne");
+            String mnemonic = takenIsTrue == jumpWhenTrue
+                            ? branch.getName()
+                            : NEGATED.get(branch.getName());
+            for (int k = 8; k > 1; --k) {
+                remove(code, i + k);
+            }
+            code.set(i + 1, AsmInstruction.instruction(mnemonic, target)
+                                          .withCommentsOf(branch));
+            return true;
+        }
+
+        private static boolean isMaterialize(AsmInstruction item) {
+            return item != null && item.is("movl") && item.getOperandCount() == 2 &&
+                   (item.getOperand(0).equals("$0") || item.getOperand(0).equals("$1")) &&
+                   item.getOperand(1).equals("%eax");
+        }
+    }
+
+    /*
+     * jCC L1; jmp L2; L1:  =>  jNCC L2; L1:
+     */
+    static final class JumpOverJump implements Rule {
+        public String getName() { return "jump-over-jump"; }
+
+        public boolean apply(PeepholeOptimizer opt, List<AsmInstruction> code, int i) {
+            AsmInstruction branch = code.get(i);
+            AsmInstruction jump = at(code, i + 1);
+            AsmInstruction label = at(code, i + 2);
+            if (label == null || !branch.isConditionalJump() ||
+                    !NEGATED.containsKey(branch.getName()) ||
+                    !jump.is("jmp") || !label.isLabel() ||
+                    !branch.getOperand(0).equals(label.getName()) ||
+                    jump.getOperand(0).startsWith("*")) {
+                return false;
+            }
+            merge(code, i, 2, AsmInstruction.instruction(NEGATED.get(branch.getName()),
+                                                        jump.getOperand(0)));
+            return true;
+        }
+    }
+
+    /*
+     * jmp L  where L is among the labels immediately following.
+     */
+    static final class JumpToNext implements Rule {
+        public String getName() { return "jump-to-next"; }
+
+        public boolean apply(PeepholeOptimizer opt, List<AsmInstruction> code, int i) {
+            AsmInstruction jump = code.get(i);
+            if (!jump.isJump()) {
+                return false;
+            }
+            String target = jump.getOperand(0);
+            for (int k = i + 1; k < code.size() && code.get(k).isLabel(); ++k) {
+                if (code.get(k).getName().equals(target)) {
+                    remove(code, i);
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /*
+     * Instructions between an unconditional jump (or ret) and the next
+     *      label can never run.
+     */
+    static final class Unreachable implements Rule {
+        public String getName() { return "unreachable"; }
+
+        public boolean apply(PeepholeOptimizer opt, List<AsmInstruction> code, int i) {
+            AsmInstruction item = code.get(i);
+            if (!item.is("jmp") && !item.is("ret")) {
+                return false;
+            }
+            AsmInstruction next = at(code, i + 1);
+            if (next == null || !next.isInstruction()) {
+                return false;
+            }
+            remove(code, i + 1);
+            return true;
+        }
+    }
+
+    /*
+     * Local labels (L<n>) nobody jumps to.
+     */
+    static final class UnusedLabel implements Rule {
+        public String getName() { return "unused-label"; }
+
+        public boolean apply(PeepholeOptimizer opt, List<AsmInstruction> code, int i) {
+            AsmInstruction item = code.get(i);
+            if (!item.isLabel() || !item.getName().matches("L[0-9]+") ||
+                    opt.countUses(item.getName()) != 0) {
+                return false;
+            }
+            remove(code, i);
+            return true;
+        }
+    }
+}
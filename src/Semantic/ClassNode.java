@@ -1,6 +1,6 @@
 package Semantic;
 
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 public class ClassNode extends Node{
@@ -10,7 +10,7 @@ public class ClassNode extends Node{
 	
 	public ClassNode(String name){
 		super(NodeType.CLASS);
-		members = new HashMap<String, Node>();
+		members = new LinkedHashMap<String, Node>();
 		this.name = name;
 	}
 	
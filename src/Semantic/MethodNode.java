@@ -2,6 +2,7 @@ package Semantic;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -18,7 +19,7 @@ public class MethodNode extends Node{
 		
 		this.parameters = new ArrayList<Node>();
 		this.parametersPositions = new HashMap<Integer, String>();
-		this.localVariables = new HashMap<String, Node>();
+		this.localVariables = new LinkedHashMap<String, Node>();
 		this.returnType = type;
 	}
 
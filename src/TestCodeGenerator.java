@@ -1,8 +1,12 @@
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.io.Reader;
+import java.util.List;
+import java.util.Map;
 
 import AST.Program;
 import AST.Visitor.*;
@@ -10,6 +14,10 @@ import Parser.parser;
 import Scanner.scanner;
 import CodeGenerator.*;
 import IntermediateCode.IntermediateCode;
+import IR.*;
+import ObjectFile.*;
+import Layout.ProgramLayout;
+import Peephole.PeepholeOptimizer;
 
 public class TestCodeGenerator {
     public static void main(String[] args) {
@@ -27,23 +35,174 @@ public class TestCodeGenerator {
 //            if (returnValue != 0) {
 //                System.exit(returnValue);
 //            }
-            IntermediateCode intermediateCode = new IntermediateCode(typeInfo);
+
+            ConstantFoldingVisitor folding = new ConstantFoldingVisitor();
+            prog.accept(folding);
+            System.err.println("constant folding removed " +
+                               folding.getEliminatedCount() + " of " +
+                               folding.getNodesBefore() + " nodes");
+
+            ProgramLayout layout = new ProgramLayout(typeInfo);
+
+            // -O selects the register-allocating backend,
+            // -P runs the peephole pass over whichever backend's output,
+            // -S checks every array index against the array's length,
+            // -R passes the receiver and first arguments in registers,
+            // -m64 targets x86-64 (System V) instead of 32-bit x86,
+            // -llvm emits LLVM IR text instead of assembly,
+            // -c writes an ELF object file instead of assembly text,
+            // -jvm writes class files into the output directory
+            boolean optimize = false;
+            boolean peephole = false;
+            boolean safeArrays = false;
+            boolean registerCalls = false;
+            boolean target64 = false;
+            boolean llvm = false;
+            boolean objectFile = false;
+            boolean jvm = false;
+            String outputFile = null;
+            for (String arg : args) {
+                if (arg.equals("-O")) {
+                    optimize = true;
+                } else if (arg.equals("-P")) {
+                    peephole = true;
+                } else if (arg.equals("-S")) {
+                    safeArrays = true;
+                } else if (arg.equals("-R")) {
+                    registerCalls = true;
+                } else if (arg.equals("-m64")) {
+                    target64 = true;
+                } else if (arg.equals("-llvm")) {
+                    llvm = true;
+                } else if (arg.equals("-c")) {
+                    objectFile = true;
+                } else if (arg.equals("-jvm")) {
+                    jvm = true;
+                } else {
+                    outputFile = arg;
+                }
+            }
+
+            if (jvm) {
+                // the AST straight to class files; HotSpot does the optimizing
+                generateClasses(prog, layout, outputFile == null ? "." : outputFile);
+                return;
+            }
+
+            IntermediateCode intermediateCode = new IntermediateCode(typeInfo, layout);
+            intermediateCode.setSafeArrays(safeArrays);
             prog.accept(intermediateCode);
             
-            CodeGenerator codeGenerator = new CodeGenerator(typeInfo, intermediateCode);
-            prog.accept(codeGenerator);
+
+            List<String> code;
+            if (optimize) {
+                Optimizer optimizer = new Optimizer(layout);
+                optimizer.setSafeArrays(safeArrays);
+                optimizer.optimize(intermediateCode.getFunctions());
+                for (String line : optimizer.formatReport()) {
+                    System.err.println(line);
+                }
+            }
+
+            if (llvm) {
+                // straight from the AST; LLVM does its own optimizing
+                LlvmCodeGenerator codeGenerator = new LlvmCodeGenerator(layout);
+                codeGenerator.setSafeArrays(safeArrays);
+                prog.accept(codeGenerator);
+                code = codeGenerator.getCode();
+                System.err.println("devirtualized " +
+                                   codeGenerator.getDevirtualizedCount() + " of " +
+                                   codeGenerator.getCallSiteCount() + " call sites");
+            } else if (target64) {
+                // the IR as it stands, optimized or not
+                code = generate64(layout, intermediateCode.getFunctions());
+            } else if (optimize) {
+                OptimizingCodeGenerator codeGenerator = new OptimizingCodeGenerator(layout);
+                codeGenerator.setRegisterCalls(registerCalls);
+                codeGenerator.generate(intermediateCode.getFunctions());
+                code = codeGenerator.getCode();
+                System.err.println("devirtualized " +
+                                   codeGenerator.getDevirtualizedCount() + " of " +
+                                   codeGenerator.getCallSiteCount() + " call sites");
+                System.err.println("frame pointer omitted in " +
+                                   codeGenerator.getFramelessCount() + " of " +
+                                   codeGenerator.getMethodCount() + " methods");
+                System.err.println("stack slot sharing: " +
+                                   codeGenerator.getSpilledCount() + " spilled values in " +
+                                   codeGenerator.getSpillSlotCount() + " frame words (" +
+                                   4 * (codeGenerator.getSpilledCount() -
+                                        codeGenerator.getSpillSlotCount()) +
+                                   " bytes saved)");
+            } else {
+                CodeGenerator codeGenerator = new CodeGenerator(typeInfo, intermediateCode, layout);
+                codeGenerator.setSafeArrays(safeArrays);
+                codeGenerator.setRegisterCalls(registerCalls);
+                prog.accept(codeGenerator);
+                code = codeGenerator.getCode();
+                System.err.println("devirtualized " +
+                                   codeGenerator.getDevirtualizedCount() + " of " +
+                                   codeGenerator.getCallSiteCount() + " call sites");
+                System.err.println("frame pointer omitted in " +
+                                   codeGenerator.getFramelessCount() + " of " +
+                                   codeGenerator.getMethodCount() + " methods");
+                System.err.println("stack slot sharing: " +
+                                   codeGenerator.getDeclaredLocalCount() + " locals in " +
+                                   codeGenerator.getLocalSlotCount() + " frame words (" +
+                                   4 * (codeGenerator.getDeclaredLocalCount() -
+                                        codeGenerator.getLocalSlotCount()) +
+                                   " bytes saved)");
+            }
+
+            if (peephole && (target64 || llvm)) {
+                System.err.println("peephole pass skipped: it only knows 32-bit code");
+            } else if (peephole) {
+                PeepholeOptimizer peepholeOptimizer = new PeepholeOptimizer();
+                code = peepholeOptimizer.optimize(code);
+                for (String line : peepholeOptimizer.formatReport()) {
+                    System.err.println(line);
+                }
+            }
             
-             PrintStream out;
-             if (args.length >= 1) {
-                 out = new PrintStream(new File(args[0]));
-             } else {
-                 out = System.out;
-             }
-            for (String line : codeGenerator.getCode()) {
+            if (objectFile && (target64 || llvm)) {
+                System.err.println("object output skipped: the assembler only knows 32-bit code");
+                objectFile = false;
+            }
+            if (objectFile && outputFile == null) {
+                System.err.println("object output skipped: -c needs an output file");
+                objectFile = false;
+            }
+
+            // with -c the file gets the object and stdout still the assembly
+            PrintStream out;
+            if (outputFile != null && !objectFile) {
+                out = new PrintStream(new File(outputFile));
+            } else {
+                out = System.out;
+            }
+            for (String line : code) {
                 System.out.println(line);
-                 out.println(line);
+                if (out != System.out) {
+                    out.println(line);
+                }
+            }
+            if (out != System.out) {
+                out.close();
+            }
+
+            if (objectFile) {
+                Assembler assembler = new Assembler();
+                assembler.assemble(code);
+                new ElfWriter(assembler).write(new File(outputFile));
+                int bytes = 0;
+                int relocations = 0;
+                for (Section section : assembler.getSections()) {
+                    bytes += section.size();
+                    relocations += section.getRelocations().size();
+                }
+                System.err.println("object file: " + bytes + " bytes, " +
+                                   relocations + " relocations, " +
+                                   assembler.getWidenedCount() + " long jumps");
             }
-             out.close();
 
         } catch (Exception e) {
             // yuck: some kind of error in the compiler implementation
@@ -54,4 +213,41 @@ public class TestCodeGenerator {
             e.printStackTrace();
         }
     }
+
+    private static void generateClasses(Program prog, ProgramLayout layout,
+                                        String directory) throws IOException {
+        JvmCodeGenerator codeGenerator = new JvmCodeGenerator(layout);
+        prog.accept(codeGenerator);
+        File dir = new File(directory);
+        dir.mkdirs();
+        int bytes = 0;
+        for (Map.Entry<String, byte[]> entry : codeGenerator.getClasses().entrySet()) {
+            FileOutputStream out = new FileOutputStream(new File(dir, entry.getKey() + ".class"));
+            out.write(entry.getValue());
+            out.close();
+            bytes += entry.getValue().length;
+        }
+        System.err.println("class files: " + codeGenerator.getClasses().size() +
+                           " classes, " + bytes + " bytes, " +
+                           codeGenerator.getCallSiteCount() + " call sites");
+    }
+
+    private static List<String> generate64(ProgramLayout layout,
+                                           List<Function> functions) {
+        CodeGenerator64 codeGenerator = new CodeGenerator64(layout);
+        codeGenerator.generate(functions);
+        System.err.println("devirtualized " +
+                           codeGenerator.getDevirtualizedCount() + " of " +
+                           codeGenerator.getCallSiteCount() + " call sites");
+        System.err.println("frame pointer omitted in " +
+                           codeGenerator.getFramelessCount() + " of " +
+                           codeGenerator.getMethodCount() + " methods");
+        System.err.println("stack slot sharing: " +
+                           codeGenerator.getSpilledCount() + " spilled values in " +
+                           codeGenerator.getSpillSlotCount() + " frame words (" +
+                           8 * (codeGenerator.getSpilledCount() -
+                                codeGenerator.getSpillSlotCount()) +
+                           " bytes saved)");
+        return codeGenerator.getCode();
+    }
 }
@@ -0,0 +1,116 @@
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+
+import AST.Program;
+import AST.Visitor.*;
+import Parser.parser;
+import Scanner.scanner;
+import Bytecode.*;
+import Layout.ProgramLayout;
+
+/*
+ * Compiles the program on standard input to register bytecode and runs
+ *      it in this JVM; its output goes to standard output.
+ *
+ *      usage: TestInterpreter [-d] [-tiered] [-hot N]
+ *          -d       lists the bytecode on standard error first
+ *          -tiered  compiles hot methods to JVM bytecode as it runs
+ *          -hot N   with -tiered, a method is hot after N calls or N
+ *                   loop iterations (default 1000 and 10000)
+ */
+public class TestInterpreter {
+    public static void main(String[] args) {
+        boolean disassemble = false;
+        boolean tiered = false;
+        int threshold = -1;
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equals("-d")) {
+                disassemble = true;
+            } else if (args[i].equals("-tiered")) {
+                tiered = true;
+            } else if (args[i].equals("-hot") && i + 1 < args.length) {
+                threshold = Integer.parseInt(args[++i]);
+            }
+        }
+
+        try {
+            parser p = new parser(new scanner(new BufferedReader(new InputStreamReader(System.in))));
+            Program prog = (Program)(p.parse().value);
+
+            TypeVisitor typeInfo = new TypeVisitor();
+            prog.accept(typeInfo);
+
+            ConstantFoldingVisitor folding = new ConstantFoldingVisitor();
+            prog.accept(folding);
+
+            ProgramLayout layout = new ProgramLayout(typeInfo);
+            BytecodeCompiler compiler = new BytecodeCompiler(layout);
+            prog.accept(compiler);
+            Executable executable = compiler.getExecutable();
+            System.err.println("bytecode: " + executable.getMethodCount() + " methods, " +
+                               executable.getCodeSize() + " words, devirtualized " +
+                               compiler.getDevirtualizedCount() + " of " +
+                               compiler.getCallSiteCount() + " call sites");
+            if (disassemble) {
+                for (String line : executable.disassemble()) {
+                    System.err.println(line);
+                }
+            }
+
+            Machine machine = new Machine(executable, System.out);
+            machine.setTiered(tiered);
+            if (threshold > 0) {
+                machine.setThresholds(threshold, threshold);
+            }
+            long start = System.nanoTime();
+            try {
+                run(machine);
+            } finally {
+                System.out.flush();
+                System.err.println(String.format("ran in %.2f ms, %d heap words",
+                                                 (System.nanoTime() - start) / 1e6,
+                                                 machine.getHeapSize()));
+                if (tiered) {
+                    System.err.println("compiled " + machine.getCompiledMethods().size() +
+                                       " of " + executable.getMethodCount() + " methods" +
+                                       (machine.getCompiledMethods().isEmpty() ? ""
+                                        : ": " + String.join(" ", machine.getCompiledMethods())) +
+                                       ", " + machine.getTransferCount() +
+                                       " transfers from running loops");
+                }
+            }
+        } catch (Trap e) {
+            System.err.println("error: " + e.getMessage());
+            System.exit(1);
+        } catch (Throwable e) {
+            // yuck: some kind of error in the compiler implementation
+            // that we're not expecting (a bug!)
+            System.err.println("Unexpected internal compiler error: " +
+                               e.toString());
+            // print out a stack dump
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * Compiled methods recurse on the Java stack, so the program gets a
+     *      thread with a deep one.
+     */
+    private static void run(final Machine machine) throws Throwable {
+        final Throwable[] thrown = new Throwable[1];
+        Thread thread = new Thread(null, new Runnable() {
+            public void run() {
+                try {
+                    machine.run();
+                } catch (Throwable e) {
+                    thrown[0] = e;
+                }
+            }
+        }, "minijava", 1L << 30);
+        thread.start();
+        thread.join();
+        if (thrown[0] != null) {
+            throw thrown[0];
+        }
+    }
+}